@@ -0,0 +1,53 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.benchmark;
+
+import java.util.Random;
+
+import com.threewks.thundr.deferred.task.DeferredTask;
+
+/**
+ * A task carrying a payload of a given size, which does nothing when run.
+ */
+public class BenchmarkTask implements DeferredTask {
+	private static final String Alphabet = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 ";
+
+	private String payload;
+	private int count;
+
+	public BenchmarkTask() {
+	}
+
+	public BenchmarkTask(int payloadSize) {
+		Random random = new Random(payloadSize);
+		StringBuilder sb = new StringBuilder(payloadSize);
+		for (int i = 0; i < payloadSize; i++) {
+			sb.append(Alphabet.charAt(random.nextInt(Alphabet.length())));
+		}
+		this.payload = sb.toString();
+	}
+
+	@Override
+	public void run() {
+		count++;
+	}
+
+	public String getPayload() {
+		return payload;
+	}
+}
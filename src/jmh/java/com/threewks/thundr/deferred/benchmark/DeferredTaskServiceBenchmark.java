@@ -0,0 +1,87 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.threewks.thundr.deferred.DeferredTaskService;
+import com.threewks.thundr.deferred.provider.InMemoryQueueProvider;
+import com.threewks.thundr.deferred.worker.RejectionPolicy;
+import com.threewks.thundr.deferred.worker.WorkerPool;
+
+/**
+ * End to end throughput of deferring a batch of tasks and running them, reported per task.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeferredTaskServiceBenchmark {
+	private static final int Batch = 100;
+
+	@Param({ "64", "4096" })
+	public int payloadSize;
+
+	private InMemoryQueueProvider queueProvider;
+	private WorkerPool workerPool;
+	private DeferredTaskService deferredTaskService;
+	private BenchmarkTask task;
+
+	@Setup
+	public void setup() {
+		queueProvider = new InMemoryQueueProvider(0, Batch);
+		workerPool = new WorkerPool(Runtime.getRuntime().availableProcessors(), 1000, RejectionPolicy.CallerRuns);
+		deferredTaskService = new DeferredTaskService(queueProvider, workerPool);
+		task = new BenchmarkTask(payloadSize);
+	}
+
+	@TearDown
+	public void tearDown() {
+		workerPool.shutdown();
+		queueProvider.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(Batch)
+	public int deferAndProcess() {
+		for (int i = 0; i < Batch; i++) {
+			deferredTaskService.defer(task);
+		}
+		int processed = 0;
+		while (processed < Batch) {
+			processed += deferredTaskService.processQueue();
+		}
+		return processed;
+	}
+}
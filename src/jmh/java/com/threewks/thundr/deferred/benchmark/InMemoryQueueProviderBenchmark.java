@@ -0,0 +1,97 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.threewks.thundr.deferred.ThundrDeferredException;
+import com.threewks.thundr.deferred.provider.InMemoryQueueProvider;
+
+/**
+ * Throughput of the in memory queue with four threads sending while four others receive, compared to a single thread
+ * doing both. The queue is bounded so that senders cannot outrun receivers indefinitely, sends to a full queue are
+ * counted but otherwise ignored.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InMemoryQueueProviderBenchmark {
+	private static final String Message = "{\"v\":2,\"type\":\"com.threewks.thundr.deferred.benchmark.BenchmarkTask\",\"task\":{}}";
+
+	private InMemoryQueueProvider queueProvider;
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		queueProvider = new InMemoryQueueProvider(100000, 100);
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() {
+		queueProvider.close();
+	}
+
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(4)
+	public boolean send() {
+		return trySend();
+	}
+
+	@Benchmark
+	@Group("contended")
+	@GroupThreads(4)
+	public List<String> receive() {
+		return queueProvider.receive();
+	}
+
+	@Benchmark
+	@Group("uncontended")
+	@GroupThreads(1)
+	public List<String> sendThenReceive() {
+		trySend();
+		return queueProvider.receive();
+	}
+
+	private boolean trySend() {
+		try {
+			queueProvider.send(Message);
+			return true;
+		} catch (ThundrDeferredException e) {
+			return false;
+		}
+	}
+}
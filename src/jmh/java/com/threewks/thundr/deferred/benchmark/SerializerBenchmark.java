@@ -0,0 +1,106 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.threewks.thundr.deferred.serializer.BinarySerializer;
+import com.threewks.thundr.deferred.serializer.JsonSerializer;
+import com.threewks.thundr.deferred.serializer.TaskSerializer;
+import com.threewks.thundr.deferred.serializer.TaskTypeRegistry;
+import com.threewks.thundr.deferred.task.DeferredTask;
+
+/**
+ * Time taken to write and read tasks of various sizes, with the raw JSON serializer and through the task envelope.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializerBenchmark {
+	@Param({ "64", "4096", "65536" })
+	public int payloadSize;
+
+	private BenchmarkTask task;
+	private JsonSerializer jsonSerializer;
+	private TaskSerializer jsonTaskSerializer;
+	private TaskSerializer binaryTaskSerializer;
+	private String json;
+	private String jsonMessage;
+	private String binaryMessage;
+
+	@Setup
+	public void setup() {
+		task = new BenchmarkTask(payloadSize);
+		jsonSerializer = new JsonSerializer();
+		jsonTaskSerializer = new TaskSerializer(jsonSerializer, new TaskTypeRegistry());
+		binaryTaskSerializer = new TaskSerializer(new BinarySerializer().register(BenchmarkTask.class), new TaskTypeRegistry());
+		json = jsonSerializer.serialize(task);
+		jsonMessage = jsonTaskSerializer.serialize(task);
+		binaryMessage = binaryTaskSerializer.serialize(task);
+	}
+
+	@Benchmark
+	public String jsonSerialize() {
+		return jsonSerializer.serialize(task);
+	}
+
+	@Benchmark
+	public BenchmarkTask jsonDeserialize() throws ClassNotFoundException {
+		return jsonSerializer.deserialize(BenchmarkTask.class, json);
+	}
+
+	@Benchmark
+	public String taskSerializeJson() {
+		return jsonTaskSerializer.serialize(task);
+	}
+
+	@Benchmark
+	public DeferredTask taskDeserializeJson() throws ClassNotFoundException {
+		return jsonTaskSerializer.deserialize(jsonMessage);
+	}
+
+	@Benchmark
+	public DeferredTask taskRoundTripJson() throws ClassNotFoundException {
+		return jsonTaskSerializer.deserialize(jsonTaskSerializer.serialize(task));
+	}
+
+	@Benchmark
+	public DeferredTask taskDeserializeBinary() throws ClassNotFoundException {
+		return binaryTaskSerializer.deserialize(binaryMessage);
+	}
+
+	@Benchmark
+	public DeferredTask taskRoundTripBinary() throws ClassNotFoundException {
+		return binaryTaskSerializer.deserialize(binaryTaskSerializer.serialize(task));
+	}
+}
@@ -17,12 +17,28 @@
  */
 package com.threewks.thundr.deferred;
 
+import com.threewks.thundr.deferred.provider.JournalSync;
+import com.threewks.thundr.deferred.provider.OverflowPolicy;
+import com.threewks.thundr.deferred.provider.PriorityPolicy;
+import com.threewks.thundr.deferred.worker.RejectionPolicy;
+import com.threewks.thundr.deferred.worker.WorkerMode;
+
 public interface Defaults {
 	/**
 	 * Default monitoring interval in seconds.
 	 */
 	int QueueMonitorInterval = 1;
 
+	/**
+	 * Default shortest monitoring interval in milliseconds when the interval is adaptive.
+	 */
+	long QueueMonitorMinIntervalMillis = 100;
+
+	/**
+	 * Default longest monitoring interval in milliseconds when the interval is adaptive.
+	 */
+	long QueueMonitorMaxIntervalMillis = 30000;
+
 	/**
 	 * Default queue provider implementation.
 	 */
@@ -32,4 +48,209 @@ public interface Defaults {
 	 * Default queue monitor implementation.
 	 */
 	String QueueMonitor = "com.threewks.thundr.deferred.monitor.quartz.QuartzQueueMonitor";
+
+	/**
+	 * Default number of worker threads used to run deferred tasks.
+	 */
+	int WorkerThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Default number of tasks that may wait for a free worker thread.
+	 */
+	int WorkerQueueCapacity = 1000;
+
+	/**
+	 * Default policy applied when the worker queue is full.
+	 */
+	RejectionPolicy WorkerRejectionPolicy = RejectionPolicy.CallerRuns;
+
+	/**
+	 * Default way of running deferred tasks.
+	 */
+	WorkerMode WorkerMode = com.threewks.thundr.deferred.worker.WorkerMode.Pooled;
+
+	/**
+	 * Default number of deferred tasks that may run at once when each runs on its own virtual thread.
+	 */
+	int WorkerMaxConcurrency = 256;
+
+	/**
+	 * Default way prioritizing queue providers share each batch between priorities.
+	 */
+	PriorityPolicy PriorityPolicy = com.threewks.thundr.deferred.provider.PriorityPolicy.Weighted;
+
+	/**
+	 * Default share of each batch given to high, normal and low priority messages under the weighted policy.
+	 */
+	int[] PriorityWeights = { 6, 3, 1 };
+
+	/**
+	 * Default capacity of the in memory queue. Zero means unbounded.
+	 */
+	int InMemoryQueueCapacity = 0;
+
+	/**
+	 * Default maximum total size in UTF-8 bytes of messages in the in memory queue. Zero means unbounded.
+	 */
+	long InMemoryMaxBytes = 0;
+
+	/**
+	 * Default policy applied when a bounded in memory queue is full.
+	 */
+	OverflowPolicy OverflowPolicy = com.threewks.thundr.deferred.provider.OverflowPolicy.Reject;
+
+	/**
+	 * Default time in milliseconds sending waits for room in a full queue under the block overflow policy.
+	 */
+	long OverflowBlockTimeoutMillis = 1000;
+
+	/**
+	 * Default maximum number of messages received from the in memory queue per poll.
+	 */
+	int InMemoryBatchSize = 100;
+
+	/**
+	 * Default size in bytes of each journal segment file.
+	 */
+	int JournalSegmentSize = 64 * 1024 * 1024;
+
+	/**
+	 * Default for when the journal queue provider forces its journal to disk.
+	 */
+	JournalSync JournalSync = com.threewks.thundr.deferred.provider.JournalSync.Commit;
+
+	/**
+	 * Default time in milliseconds between journal syncs when nothing is waiting on one.
+	 */
+	long JournalSyncIntervalMillis = 100;
+
+	/**
+	 * Default maximum number of messages received from the journal per poll.
+	 */
+	int JournalBatchSize = 100;
+
+	/**
+	 * Default percentage of unacknowledged messages at or below which the oldest journal segment is compacted.
+	 */
+	int JournalCompactPercent = 25;
+
+	/**
+	 * Default time in milliseconds before a message that could not be processed is received from the journal again.
+	 */
+	long JournalNackDelayMillis = 1000;
+
+	/**
+	 * Default table the JDBC queue provider keeps messages in.
+	 */
+	String JdbcTable = "thundr_deferred";
+
+	/**
+	 * Default maximum number of messages claimed from the database per poll.
+	 */
+	int JdbcBatchSize = 100;
+
+	/**
+	 * Default seconds a message claimed from the database stays hidden from other nodes.
+	 */
+	int JdbcLeaseSeconds = 300;
+
+	/**
+	 * Default seconds before a message in the database that could not be processed can be claimed again.
+	 */
+	int JdbcNackDelaySeconds = 0;
+
+	/**
+	 * Default maximum number of messages inserted into the database in one batch.
+	 */
+	int JdbcInsertBatchSize = 100;
+
+	/**
+	 * Whether the SQS queue provider buffers messages and sends them in batches by default.
+	 */
+	boolean SqsBatchSend = false;
+
+	/**
+	 * Default time in milliseconds a buffered SQS message waits for others to join its batch.
+	 */
+	long SqsBatchLingerMillis = 20;
+
+	/**
+	 * Default number of times failed entries in an SQS batch are resent.
+	 */
+	int SqsBatchRetries = 3;
+
+	/**
+	 * Default most messages buffered for sending to SQS at once.
+	 */
+	int SqsBatchBufferCapacity = 1000;
+
+	/**
+	 * Default seconds before an SQS message that could not be processed becomes visible again.
+	 */
+	int SqsNackVisibilityTimeout = 0;
+
+	/**
+	 * Default maximum number of messages per SQS receive request.
+	 */
+	int SqsMaxMessages = 10;
+
+	/**
+	 * Default SQS long polling wait time in seconds. Zero means short polling.
+	 */
+	int SqsWaitTimeSeconds = 0;
+
+	/**
+	 * Default number of concurrent SQS receive requests per poll.
+	 */
+	int SqsReceivers = 1;
+
+	/**
+	 * Default version of the task message envelope written to the queue.
+	 */
+	int EnvelopeVersion = 2;
+
+	/**
+	 * Default serializer implementation.
+	 */
+	String Serializer = "com.threewks.thundr.deferred.serializer.JsonSerializer";
+
+	/**
+	 * Default length in characters above which task messages are compressed.
+	 */
+	int CompressThreshold = 16 * 1024;
+
+	/**
+	 * Default length in characters above which compressed task messages are put in the blob store.
+	 */
+	int ClaimCheckThreshold = 192 * 1024;
+
+	/**
+	 * Default time in milliseconds within which a task is skipped if a copy with the same dedupe key has run.
+	 */
+	long DedupeWindowMillis = 5000;
+
+	/**
+	 * Default most dedupe keys remembered at once.
+	 */
+	int DedupeCacheSize = 10000;
+
+	/**
+	 * Default most batchable tasks of the same class run together in one batch.
+	 */
+	int TaskBatchSize = 100;
+
+	/**
+	 * Default number of consumer threads used by the consumer loop queue monitor.
+	 */
+	int ConsumerThreads = 1;
+
+	/**
+	 * Shortest time in milliseconds the consumer loop queue monitor waits between polls of an empty queue.
+	 */
+	long ConsumerMinBackoffMillis = 10;
+
+	/**
+	 * Default longest time in milliseconds the consumer loop queue monitor waits between polls of an empty queue.
+	 */
+	long ConsumerMaxBackoffMillis = 1000;
 }
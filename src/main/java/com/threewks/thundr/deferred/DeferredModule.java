@@ -17,8 +17,44 @@
  */
 package com.threewks.thundr.deferred;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import com.threewks.thundr.deferred.deadletter.DeadLetterQueue;
+import com.threewks.thundr.deferred.dedupe.SeenKeyCache;
+import com.threewks.thundr.deferred.metrics.MetricsRegistry;
 import com.threewks.thundr.deferred.monitor.QueueMonitor;
+import com.threewks.thundr.deferred.monitor.loop.ConsumerLoopQueueMonitor;
+import com.threewks.thundr.deferred.monitor.quartz.AdaptivePollingInterval;
+import com.threewks.thundr.deferred.payload.BlobStore;
+import com.threewks.thundr.deferred.payload.PayloadCodec;
+import com.threewks.thundr.deferred.queue.NamedQueue;
+import com.threewks.thundr.deferred.queue.QueueRouter;
+import com.threewks.thundr.deferred.provider.AdmissionSettings;
+import com.threewks.thundr.deferred.provider.InMemoryQueueProvider;
+import com.threewks.thundr.deferred.provider.JdbcQueueProvider;
+import com.threewks.thundr.deferred.provider.JdbcSettings;
+import com.threewks.thundr.deferred.provider.JournalQueueProvider;
+import com.threewks.thundr.deferred.provider.JournalSettings;
+import com.threewks.thundr.deferred.provider.JournalSync;
+import com.threewks.thundr.deferred.provider.OverflowPolicy;
+import com.threewks.thundr.deferred.provider.PriorityPolicy;
 import com.threewks.thundr.deferred.provider.QueueProvider;
+import com.threewks.thundr.deferred.provider.SqsQueueProvider;
+import com.threewks.thundr.deferred.provider.SqsSettings;
+import com.threewks.thundr.deferred.ratelimit.RateLimiter;
+import com.threewks.thundr.deferred.serializer.Serializer;
+import com.threewks.thundr.deferred.serializer.TaskSerializer;
+import com.threewks.thundr.deferred.serializer.TaskTypeRegistry;
+import com.threewks.thundr.deferred.task.DeferredTask;
+import com.threewks.thundr.deferred.worker.RejectionPolicy;
+import com.threewks.thundr.deferred.worker.WorkerMode;
+import com.threewks.thundr.deferred.worker.WorkerPool;
 import com.threewks.thundr.injection.InjectionContext;
 import com.threewks.thundr.injection.Module;
 import com.threewks.thundr.injection.UpdatableInjectionContext;
@@ -40,19 +76,107 @@ public class DeferredModule implements Module {
 	public void configure(UpdatableInjectionContext injectionContext) {
 		addQueueProvider(injectionContext);
 		addQueueMonitor(injectionContext);
+		addWorkerPool(injectionContext);
+		addTaskSerializer(injectionContext);
+		addMetrics(injectionContext);
+		addPayloadCodec(injectionContext);
+		addDeadLetterQueue(injectionContext);
+		addSeenKeyCache(injectionContext);
+		addRateLimiter(injectionContext);
+		addNamedQueues(injectionContext);
 
 		injectionContext.inject(DeferredTaskService.class).as(DeferredTaskService.class);
 	}
 
 	@Override
 	public void start(UpdatableInjectionContext injectionContext) {
+		DeferredTaskService deferredTaskService = injectionContext.get(DeferredTaskService.class);
+		deferredTaskService.setSeenKeyCache(getSeenKeyCache(injectionContext));
+		deferredTaskService.setTaskBatchSize(getTaskBatchSize(injectionContext, "deferredTaskBatchSize"));
+		deferredTaskService.setRateLimiter(injectionContext.get(RateLimiter.class));
+		if (injectionContext.contains(QueueRouter.class)) {
+			QueueRouter router = injectionContext.get(QueueRouter.class);
+			router.addQueue(new NamedQueue(QueueRouter.DefaultQueue, deferredTaskService, injectionContext.get(QueueMonitor.class)));
+		}
+		if (injectionContext.contains(MetricsRegistry.class)) {
+			MetricsRegistry metricsRegistry = injectionContext.get(MetricsRegistry.class);
+			deferredTaskService.addListener(metricsRegistry);
+			for (NamedQueue queue : getNamedQueues(injectionContext)) {
+				queue.getDeferredTaskService().addListener(metricsRegistry);
+			}
+		}
 		Logger.info("Starting queue monitor...");
 		injectionContext.get(QueueMonitor.class).start();
+		for (NamedQueue queue : getNamedQueues(injectionContext)) {
+			queue.getQueueMonitor().start();
+		}
 		Logger.info("Queue monitor started OK.");
 	}
 
 	@Override
 	public void stop(InjectionContext injectionContext) {
+		List<NamedQueue> namedQueues = getNamedQueues(injectionContext);
+		QueueMonitor queueMonitor = injectionContext.get(QueueMonitor.class);
+		if (queueMonitor instanceof Closeable) {
+			Logger.info("Stopping queue monitor...");
+			close((Closeable) queueMonitor, "queue monitor");
+		}
+		for (NamedQueue queue : namedQueues) {
+			if (queue.getQueueMonitor() instanceof Closeable) {
+				close((Closeable) queue.getQueueMonitor(), "queue monitor for " + queue.getName());
+			}
+		}
+
+		Logger.info("Shutting down deferred worker pool...");
+		injectionContext.get(WorkerPool.class).shutdown();
+		for (NamedQueue queue : namedQueues) {
+			queue.getDeferredTaskService().getWorkerPool().shutdown();
+		}
+
+		QueueProvider queueProvider = injectionContext.get(QueueProvider.class);
+		if (queueProvider instanceof Closeable) {
+			close((Closeable) queueProvider, "queue provider");
+		}
+		for (NamedQueue queue : namedQueues) {
+			if (queue.getDeferredTaskService().getQueueProvider() instanceof Closeable) {
+				close((Closeable) queue.getDeferredTaskService().getQueueProvider(), "queue provider for " + queue.getName());
+			}
+		}
+		DeadLetterQueue deadLetterQueue = injectionContext.contains(DeadLetterQueue.class) ? injectionContext.get(DeadLetterQueue.class) : null;
+		if (deadLetterQueue != null && deadLetterQueue.getQueueProvider() instanceof Closeable) {
+			close((Closeable) deadLetterQueue.getQueueProvider(), "dead letter queue provider");
+		}
+		for (NamedQueue queue : namedQueues) {
+			DeadLetterQueue queueDeadLetterQueue = queue.getDeferredTaskService().getDeadLetterQueue();
+			if (queueDeadLetterQueue != null && queueDeadLetterQueue != deadLetterQueue && queueDeadLetterQueue.getQueueProvider() instanceof Closeable) {
+				close((Closeable) queueDeadLetterQueue.getQueueProvider(), "dead letter queue provider for " + queue.getName());
+			}
+		}
+	}
+
+	/**
+	 * @return the named queues other than the default queue, which is managed on its own
+	 */
+	private List<NamedQueue> getNamedQueues(InjectionContext injectionContext) {
+		List<NamedQueue> namedQueues = new ArrayList<NamedQueue>();
+		if (injectionContext.contains(QueueRouter.class)) {
+			for (NamedQueue queue : injectionContext.get(QueueRouter.class).getQueues()) {
+				if (!QueueRouter.DefaultQueue.equals(queue.getName())) {
+					namedQueues.add(queue);
+				}
+			}
+		}
+		return namedQueues;
+	}
+
+	private void close(Closeable closeable, String name) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			Logger.warn("Failed to close %s cleanly. Reason: %s", name, e.getMessage());
+		} catch (RuntimeException e) {
+			Logger.error("Failed to close %s cleanly. Reason: %s", name, e.getMessage());
+		}
 	}
 
 	@SuppressWarnings("unchecked")
@@ -62,7 +186,18 @@ public class DeferredModule implements Module {
 			Class<?> type = Class.forName(queueProviderClassName);
 			if (QueueProvider.class.isAssignableFrom(type)) {
 				Logger.info("Set deferred queue provider to %s", queueProviderClassName);
-				injectionContext.inject((Class<QueueProvider>) type).as(QueueProvider.class);
+				if (type == InMemoryQueueProvider.class) {
+					injectionContext.inject(createInMemoryQueueProvider(injectionContext, null)).as(QueueProvider.class);
+				} else if (type == JournalQueueProvider.class) {
+					injectionContext.inject(createJournalQueueProvider(injectionContext, null)).as(QueueProvider.class);
+				} else if (type == JdbcQueueProvider.class) {
+					injectionContext.inject(createJdbcQueueProvider(injectionContext)).as(QueueProvider.class);
+				} else {
+					injectionContext.inject((Class<QueueProvider>) type).as(QueueProvider.class);
+				}
+				if (SqsQueueProvider.class.isAssignableFrom(type)) {
+					addSqsSettings(injectionContext);
+				}
 			} else {
 				String message = "Queue provider must implement %s";
 				String className = QueueProvider.class.getName();
@@ -80,6 +215,7 @@ public class DeferredModule implements Module {
 	private void addQueueMonitor(UpdatableInjectionContext injectionContext) {
 		String queueMonitorClassName = getProperty(
 				String.class, injectionContext, "deferredQueueMonitor", Defaults.QueueMonitor);
+		addAdaptivePollingInterval(injectionContext);
 		try {
 			Class<?> type = Class.forName(queueMonitorClassName);
 			if (QueueMonitor.class.isAssignableFrom(type)) {
@@ -98,6 +234,489 @@ public class DeferredModule implements Module {
 		}
 	}
 
+	private void addAdaptivePollingInterval(UpdatableInjectionContext injectionContext) {
+		String adaptive = injectionContext.get(String.class, "deferredQueueMonitorAdaptive");
+		if (!Boolean.parseBoolean(adaptive)) {
+			return;
+		}
+		int interval = getIntProperty(injectionContext, "deferredQueueMonitorInterval", Defaults.QueueMonitorInterval);
+		int minInterval = getIntProperty(injectionContext, "deferredQueueMonitorMinInterval", (int) Defaults.QueueMonitorMinIntervalMillis);
+		int maxInterval = getIntProperty(injectionContext, "deferredQueueMonitorMaxInterval", (int) Defaults.QueueMonitorMaxIntervalMillis);
+		Logger.info("Set deferred queue monitor interval to adapt between %sms and %sms", minInterval, maxInterval);
+		injectionContext.inject(new AdaptivePollingInterval(interval * 1000L, minInterval, maxInterval)).as(AdaptivePollingInterval.class);
+	}
+
+	private void addSqsSettings(UpdatableInjectionContext injectionContext) {
+		SqsSettings settings = new SqsSettings();
+		settings.setBatchSend(Boolean.parseBoolean(getProperty(String.class, injectionContext, "deferredSqsBatchSend", String.valueOf(Defaults.SqsBatchSend))));
+		settings.setBatchLingerMillis(getIntProperty(injectionContext, "deferredSqsBatchLinger", (int) Defaults.SqsBatchLingerMillis));
+		settings.setBatchRetries(getIntProperty(injectionContext, "deferredSqsBatchRetries", Defaults.SqsBatchRetries));
+		settings.setBatchBufferCapacity(getIntProperty(injectionContext, "deferredSqsBatchBufferCapacity", Defaults.SqsBatchBufferCapacity));
+		settings.setNackVisibilityTimeout(getIntProperty(injectionContext, "deferredSqsNackVisibilityTimeout", Defaults.SqsNackVisibilityTimeout));
+		settings.setMaxMessages(getIntProperty(injectionContext, "deferredSqsMaxMessages", Defaults.SqsMaxMessages));
+		settings.setWaitTimeSeconds(getIntProperty(injectionContext, "deferredSqsWaitTimeSeconds", Defaults.SqsWaitTimeSeconds));
+		settings.setReceivers(getIntProperty(injectionContext, "deferredSqsReceivers", Defaults.SqsReceivers));
+		settings.setPriorities(Boolean.parseBoolean(injectionContext.get(String.class, "deferredSqsPriorities")));
+		settings.setPriorityPolicy(getPriorityPolicy(injectionContext));
+		settings.setPriorityWeights(getPriorityWeights(injectionContext));
+		String visibilityTimeout = injectionContext.get(String.class, "deferredSqsVisibilityTimeout");
+		if (visibilityTimeout != null) {
+			settings.setVisibilityTimeout(Integer.valueOf(visibilityTimeout.trim()));
+		}
+		injectionContext.inject(settings).as(SqsSettings.class);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void addTaskSerializer(UpdatableInjectionContext injectionContext) {
+		String serializerClassName = getProperty(String.class, injectionContext, "deferredSerializer", Defaults.Serializer);
+		try {
+			Class<?> type = Class.forName(serializerClassName);
+			if (Serializer.class.isAssignableFrom(type)) {
+				Logger.info("Set deferred serializer to %s", serializerClassName);
+				injectionContext.inject((Class<Serializer>) type).as(Serializer.class);
+			} else {
+				String message = "Serializer must implement %s";
+				String className = Serializer.class.getName();
+				Logger.error(message, className);
+				throw new ThundrDeferredException(message, className);
+			}
+		} catch (ClassNotFoundException e) {
+			String message = "No such serializer: %s. Is it on the classpath?";
+			Logger.error(message, serializerClassName);
+			throw new ThundrDeferredException(e, message, serializerClassName);
+		}
+
+		TaskTypeRegistry registry = new TaskTypeRegistry();
+		injectionContext.inject(registry).as(TaskTypeRegistry.class);
+		int envelopeVersion = getIntProperty(injectionContext, "deferredEnvelopeVersion", Defaults.EnvelopeVersion);
+		Serializer serializer = injectionContext.get(Serializer.class);
+		injectionContext.inject(new TaskSerializer(serializer, registry, envelopeVersion)).as(TaskSerializer.class);
+	}
+
+	private void addMetrics(UpdatableInjectionContext injectionContext) {
+		String metrics = injectionContext.get(String.class, "deferredMetrics");
+		if (!Boolean.parseBoolean(metrics)) {
+			return;
+		}
+		Logger.info("Enabled deferred task metrics");
+		injectionContext.get(TaskSerializer.class).setRecordEnqueueTime(true);
+		injectionContext.inject(new MetricsRegistry()).as(MetricsRegistry.class);
+	}
+
+	private void addDeadLetterQueue(UpdatableInjectionContext injectionContext) {
+		String queueName = injectionContext.get(String.class, "deferredDeadLetterQueue");
+		if (queueName == null || injectionContext.contains(DeadLetterQueue.class)) {
+			return;
+		}
+		Logger.info("Set deferred dead letter queue to %s", queueName);
+		injectionContext.inject(new DeadLetterQueue(createDeadLetterProvider(injectionContext, queueName), injectionContext.get(Serializer.class))).as(DeadLetterQueue.class);
+	}
+
+	/**
+	 * Named queues each get their own dead letter queue, named by deferredDeadLetterQueue.[queue] and defaulting to
+	 * the default dead letter queue's name suffixed with the queue name. Where no dead letter queue name is configured
+	 * they share a bound {@link DeadLetterQueue}, if there is one.
+	 */
+	private DeadLetterQueue getDeadLetterQueue(InjectionContext injectionContext, String queueName) {
+		String deadLetterQueueName = injectionContext.get(String.class, "deferredDeadLetterQueue");
+		if (deadLetterQueueName == null) {
+			return injectionContext.contains(DeadLetterQueue.class) ? injectionContext.get(DeadLetterQueue.class) : null;
+		}
+		String name = getProperty(String.class, injectionContext, "deferredDeadLetterQueue." + queueName, deadLetterQueueName + "-" + queueName);
+		Logger.info("Set deferred dead letter queue for %s to %s", queueName, name);
+		return new DeadLetterQueue(createDeadLetterProvider(injectionContext, name), injectionContext.get(Serializer.class));
+	}
+
+	private QueueProvider createDeadLetterProvider(InjectionContext injectionContext, String queueName) {
+		QueueProvider queueProvider = injectionContext.get(QueueProvider.class);
+		QueueProvider deadLetterProvider;
+		if (queueProvider instanceof SqsQueueProvider) {
+			deadLetterProvider = ((SqsQueueProvider) queueProvider).forQueue(queueName);
+		} else if (queueProvider instanceof InMemoryQueueProvider) {
+			deadLetterProvider = new InMemoryQueueProvider();
+		} else if (queueProvider instanceof JournalQueueProvider) {
+			deadLetterProvider = createJournalQueueProvider(injectionContext, queueName);
+		} else if (queueProvider instanceof JdbcQueueProvider) {
+			deadLetterProvider = ((JdbcQueueProvider) queueProvider).forQueue(queueName);
+		} else {
+			String message = "Unable to create a dead letter queue for %s. Bind a %s instead.";
+			String className = queueProvider.getClass().getName();
+			Logger.error(message, className, DeadLetterQueue.class.getName());
+			throw new ThundrDeferredException(message, className, DeadLetterQueue.class.getName());
+		}
+		return deadLetterProvider;
+	}
+
+	/**
+	 * Binds the cache of recently run dedupe keys, unless the dedupe window is zero. Named queues share it, which is
+	 * safe as keys are scoped to their task class.
+	 */
+	private void addSeenKeyCache(UpdatableInjectionContext injectionContext) {
+		int window = getIntProperty(injectionContext, "deferredDedupeWindow", (int) Defaults.DedupeWindowMillis);
+		int cacheSize = getIntProperty(injectionContext, "deferredDedupeCacheSize", Defaults.DedupeCacheSize);
+		if (window > 0) {
+			Logger.info("Set deferred dedupe window to %sms, remembering up to %s keys", window, cacheSize);
+			injectionContext.inject(new SeenKeyCache(window, cacheSize)).as(SeenKeyCache.class);
+		}
+	}
+
+	/**
+	 * Binds the rate limiter, with the limits listed in deferredRateLimits as <code>class:perSecond[:burst]</code>
+	 * separated by commas. Named queues share it, so each limit applies across all queues on this node.
+	 */
+	@SuppressWarnings("unchecked")
+	private void addRateLimiter(UpdatableInjectionContext injectionContext) {
+		RateLimiter rateLimiter = new RateLimiter();
+		String limits = injectionContext.get(String.class, "deferredRateLimits");
+		for (String limit : limits == null ? new String[0] : limits.split(",")) {
+			if (limit.trim().isEmpty()) {
+				continue;
+			}
+			String[] parts = limit.trim().split(":");
+			String taskClassName = parts[0].trim();
+			double perSecond;
+			int burst;
+			try {
+				if (parts.length < 2 || parts.length > 3) {
+					throw new NumberFormatException();
+				}
+				perSecond = Double.parseDouble(parts[1].trim());
+				burst = parts.length == 3 ? Integer.parseInt(parts[2].trim()) : 0;
+			} catch (NumberFormatException e) {
+				String message = "Property deferredRateLimits must be task classes with a rate per second and optional burst, such as com.example.EmailTask:10:20, but was: %s";
+				Logger.error(message, limit.trim());
+				throw new ThundrDeferredException(message, limit.trim());
+			}
+			try {
+				Class<?> type = Class.forName(taskClassName);
+				if (!DeferredTask.class.isAssignableFrom(type)) {
+					String message = "Rate limited task %s must implement %s";
+					Logger.error(message, taskClassName, DeferredTask.class.getName());
+					throw new ThundrDeferredException(message, taskClassName, DeferredTask.class.getName());
+				}
+				rateLimiter.setLimit((Class<? extends DeferredTask>) type, perSecond, burst);
+				Logger.info("Limited deferred task %s to %s per second", taskClassName, perSecond);
+			} catch (ClassNotFoundException e) {
+				String message = "No such task: %s. Is it on the classpath?";
+				Logger.error(message, taskClassName);
+				throw new ThundrDeferredException(e, message, taskClassName);
+			}
+		}
+		injectionContext.inject(rateLimiter).as(RateLimiter.class);
+	}
+
+	private int getTaskBatchSize(InjectionContext injectionContext, String property) {
+		int taskBatchSize = getIntProperty(injectionContext, property, Defaults.TaskBatchSize);
+		if (taskBatchSize < 1) {
+			String message = "Property %s must be at least 1 but was: %s";
+			Logger.error(message, property, taskBatchSize);
+			throw new ThundrDeferredException(message, property, taskBatchSize);
+		}
+		return taskBatchSize;
+	}
+
+	private SeenKeyCache getSeenKeyCache(InjectionContext injectionContext) {
+		return injectionContext.contains(SeenKeyCache.class) ? injectionContext.get(SeenKeyCache.class) : null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void addPayloadCodec(UpdatableInjectionContext injectionContext) {
+		int compressThreshold = getIntProperty(injectionContext, "deferredCompressThreshold", Defaults.CompressThreshold);
+		int claimCheckThreshold = getIntProperty(injectionContext, "deferredClaimCheckThreshold", Defaults.ClaimCheckThreshold);
+		BlobStore blobStore = null;
+		String blobStoreClassName = injectionContext.get(String.class, "deferredBlobStore");
+		if (blobStoreClassName != null) {
+			try {
+				Class<?> type = Class.forName(blobStoreClassName);
+				if (BlobStore.class.isAssignableFrom(type)) {
+					Logger.info("Set deferred blob store to %s", blobStoreClassName);
+					injectionContext.inject((Class<BlobStore>) type).as(BlobStore.class);
+					blobStore = injectionContext.get(BlobStore.class);
+				} else {
+					String message = "Blob store must implement %s";
+					String className = BlobStore.class.getName();
+					Logger.error(message, className);
+					throw new ThundrDeferredException(message, className);
+				}
+			} catch (ClassNotFoundException e) {
+				String message = "No such blob store: %s. Is it on the classpath?";
+				Logger.error(message, blobStoreClassName);
+				throw new ThundrDeferredException(e, message, blobStoreClassName);
+			}
+		}
+		injectionContext.inject(new PayloadCodec(compressThreshold, claimCheckThreshold, blobStore)).as(PayloadCodec.class);
+	}
+
+	private void addWorkerPool(UpdatableInjectionContext injectionContext) {
+		injectionContext.inject(createWorkerPool(injectionContext, null)).as(WorkerPool.class);
+	}
+
+	/**
+	 * @param queueName the named queue the pool is for, or null for the default queue
+	 */
+	private WorkerPool createWorkerPool(InjectionContext injectionContext, String queueName) {
+		int threads = getIntProperty(injectionContext, queueProperty(injectionContext, "deferredWorkerThreads", queueName), Defaults.WorkerThreads);
+		int queueCapacity = getIntProperty(injectionContext, queueProperty(injectionContext, "deferredWorkerQueueCapacity", queueName), Defaults.WorkerQueueCapacity);
+		String rejectionPolicyName = getProperty(String.class, injectionContext, queueProperty(injectionContext, "deferredWorkerRejectionPolicy", queueName), Defaults.WorkerRejectionPolicy.name());
+		RejectionPolicy rejectionPolicy;
+		try {
+			rejectionPolicy = RejectionPolicy.valueOf(rejectionPolicyName);
+		} catch (IllegalArgumentException e) {
+			String message = "No such worker rejection policy: %s";
+			Logger.error(message, rejectionPolicyName);
+			throw new ThundrDeferredException(e, message, rejectionPolicyName);
+		}
+
+		String modeName = getProperty(String.class, injectionContext, queueProperty(injectionContext, "deferredWorkerMode", queueName), Defaults.WorkerMode.name());
+		WorkerMode mode;
+		try {
+			mode = WorkerMode.valueOf(modeName);
+		} catch (IllegalArgumentException e) {
+			String message = "No such worker mode: %s";
+			Logger.error(message, modeName);
+			throw new ThundrDeferredException(e, message, modeName);
+		}
+
+		String pool = queueName == null ? "deferred worker pool" : "worker pool for deferred queue " + queueName;
+		if (mode == WorkerMode.Virtual) {
+			int maxConcurrency = getIntProperty(injectionContext, queueProperty(injectionContext, "deferredWorkerMaxConcurrency", queueName), Defaults.WorkerMaxConcurrency);
+			Logger.info("Set %s to a virtual thread per task, at most %s at once, rejection policy %s", pool, maxConcurrency, rejectionPolicy);
+			return new WorkerPool(mode, threads, queueCapacity, maxConcurrency, rejectionPolicy);
+		}
+		Logger.info("Set %s to %s threads, queue capacity %s, rejection policy %s", pool, threads, queueCapacity, rejectionPolicy);
+		return new WorkerPool(threads, queueCapacity, rejectionPolicy);
+	}
+
+	/**
+	 * Adds the queues listed in deferredQueues. Each is polled by its own {@link ConsumerLoopQueueMonitor} whatever
+	 * deferredQueueMonitor is set to, as other monitors are bound once and poll only the default queue.
+	 */
+	private void addNamedQueues(UpdatableInjectionContext injectionContext) {
+		String queueNames = injectionContext.get(String.class, "deferredQueues");
+		if (queueNames == null || queueNames.trim().isEmpty()) {
+			return;
+		}
+		String queueMonitorClassName = getProperty(String.class, injectionContext, "deferredQueueMonitor", Defaults.QueueMonitor);
+		if (!ConsumerLoopQueueMonitor.class.getName().equals(queueMonitorClassName)) {
+			Logger.info("Named deferred queues use %s rather than %s", ConsumerLoopQueueMonitor.class.getName(), queueMonitorClassName);
+		}
+		QueueRouter router = new QueueRouter();
+		TaskSerializer taskSerializer = injectionContext.get(TaskSerializer.class);
+		PayloadCodec payloadCodec = injectionContext.get(PayloadCodec.class);
+		for (String name : queueNames.split(",")) {
+			String queueName = name.trim();
+			if (queueName.isEmpty()) {
+				continue;
+			}
+			if (QueueRouter.DefaultQueue.equals(queueName)) {
+				String message = "Queue name %s is reserved for the default queue";
+				Logger.error(message, queueName);
+				throw new ThundrDeferredException(message, queueName);
+			}
+			QueueProvider queueProvider = createQueueProvider(injectionContext, queueName);
+			WorkerPool workerPool = createWorkerPool(injectionContext, queueName);
+			DeferredTaskService deferredTaskService = new DeferredTaskService(queueProvider, workerPool, taskSerializer, payloadCodec, getDeadLetterQueue(injectionContext, queueName));
+			deferredTaskService.setSeenKeyCache(getSeenKeyCache(injectionContext));
+			deferredTaskService.setTaskBatchSize(getTaskBatchSize(injectionContext, queueProperty(injectionContext, "deferredTaskBatchSize", queueName)));
+			deferredTaskService.setRateLimiter(injectionContext.get(RateLimiter.class));
+			int consumers = getIntProperty(injectionContext, queueProperty(injectionContext, "deferredConsumerThreads", queueName), Defaults.ConsumerThreads);
+			int maxBackoff = getIntProperty(injectionContext, queueProperty(injectionContext, "deferredConsumerMaxBackoff", queueName), (int) Defaults.ConsumerMaxBackoffMillis);
+			router.addQueue(new NamedQueue(queueName, deferredTaskService, new ConsumerLoopQueueMonitor(deferredTaskService, consumers, maxBackoff)));
+			addQueueRoutes(injectionContext, router, queueName);
+			Logger.info("Added deferred queue %s with %s consumer threads", queueName, consumers);
+		}
+		injectionContext.inject(router).as(QueueRouter.class);
+	}
+
+	private QueueProvider createQueueProvider(InjectionContext injectionContext, String queueName) {
+		QueueProvider queueProvider = injectionContext.get(QueueProvider.class);
+		if (queueProvider instanceof SqsQueueProvider) {
+			String sqsQueueName = getProperty(String.class, injectionContext, "deferredSqsQueueName." + queueName, SqsQueueProvider.getDefaultQueueName(queueName));
+			return ((SqsQueueProvider) queueProvider).forQueue(sqsQueueName);
+		}
+		if (queueProvider instanceof InMemoryQueueProvider) {
+			return createInMemoryQueueProvider(injectionContext, queueName);
+		}
+		if (queueProvider instanceof JournalQueueProvider) {
+			return createJournalQueueProvider(injectionContext, queueName);
+		}
+		if (queueProvider instanceof JdbcQueueProvider) {
+			return ((JdbcQueueProvider) queueProvider).forQueue(queueName);
+		}
+		String message = "Unable to create deferred queue %s for %s. Named queues need the SQS, JDBC, journal or in memory queue provider.";
+		String className = queueProvider.getClass().getName();
+		Logger.error(message, queueName, className);
+		throw new ThundrDeferredException(message, queueName, className);
+	}
+
+	/**
+	 * @param queueName the named queue the provider is for, or null for the default queue
+	 */
+	private InMemoryQueueProvider createInMemoryQueueProvider(InjectionContext injectionContext, String queueName) {
+		AdmissionSettings admission = new AdmissionSettings();
+		admission.setCapacity(getIntProperty(injectionContext, queueProperty(injectionContext, "deferredInMemoryQueueCapacity", queueName), Defaults.InMemoryQueueCapacity));
+		admission.setMaxBytes(getLongProperty(injectionContext, queueProperty(injectionContext, "deferredInMemoryMaxBytes", queueName), Defaults.InMemoryMaxBytes));
+		admission.setOverflowPolicy(getOverflowPolicy(injectionContext, queueProperty(injectionContext, "deferredOverflowPolicy", queueName)));
+		admission.setBlockTimeoutMillis(getLongProperty(injectionContext, queueProperty(injectionContext, "deferredOverflowBlockTimeout", queueName), Defaults.OverflowBlockTimeoutMillis));
+		int batchSize = getIntProperty(injectionContext, queueProperty(injectionContext, "deferredInMemoryBatchSize", queueName), Defaults.InMemoryBatchSize);
+		return new InMemoryQueueProvider(admission, batchSize, getPriorityPolicy(injectionContext), getPriorityWeights(injectionContext));
+	}
+
+	/**
+	 * @param name the named queue or dead letter queue the journal is for, kept in a directory of that name inside the
+	 *            default queue's journal directory, or null for the default queue
+	 */
+	private JournalQueueProvider createJournalQueueProvider(InjectionContext injectionContext, String name) {
+		String directoryName = injectionContext.get(String.class, "deferredJournalDirectory");
+		if (directoryName == null) {
+			String message = "Property %s is required by the journal queue provider";
+			Logger.error(message, "deferredJournalDirectory");
+			throw new ThundrDeferredException(message, "deferredJournalDirectory");
+		}
+		File directory = name == null ? new File(directoryName) : new File(directoryName, name);
+		String syncName = getProperty(String.class, injectionContext, "deferredJournalSync", Defaults.JournalSync.name());
+		JournalSettings settings = new JournalSettings();
+		try {
+			settings.setSync(JournalSync.valueOf(syncName));
+		} catch (IllegalArgumentException e) {
+			String message = "No such journal sync: %s";
+			Logger.error(message, syncName);
+			throw new ThundrDeferredException(e, message, syncName);
+		}
+		settings.setSegmentSize(getIntProperty(injectionContext, "deferredJournalSegmentSize", Defaults.JournalSegmentSize));
+		settings.setSyncIntervalMillis(getIntProperty(injectionContext, "deferredJournalSyncInterval", (int) Defaults.JournalSyncIntervalMillis));
+		settings.setBatchSize(getIntProperty(injectionContext, queueProperty(injectionContext, "deferredJournalBatchSize", name), Defaults.JournalBatchSize));
+		settings.setCompactPercent(getIntProperty(injectionContext, "deferredJournalCompactPercent", Defaults.JournalCompactPercent));
+		settings.setNackDelayMillis(getIntProperty(injectionContext, "deferredJournalNackDelay", (int) Defaults.JournalNackDelayMillis));
+		Logger.info("Opening deferred journal in %s with %s sync", directory.getAbsolutePath(), settings.getSync());
+		return new JournalQueueProvider(directory, settings);
+	}
+
+	private JdbcQueueProvider createJdbcQueueProvider(InjectionContext injectionContext) {
+		if (!injectionContext.contains(DataSource.class)) {
+			String message = "The JDBC queue provider needs a %s in the injection context";
+			Logger.error(message, DataSource.class.getName());
+			throw new ThundrDeferredException(message, DataSource.class.getName());
+		}
+		JdbcSettings settings = new JdbcSettings();
+		settings.setTable(getProperty(String.class, injectionContext, "deferredJdbcTable", Defaults.JdbcTable));
+		settings.setBatchSize(getIntProperty(injectionContext, "deferredJdbcBatchSize", Defaults.JdbcBatchSize));
+		settings.setLeaseSeconds(getIntProperty(injectionContext, "deferredJdbcLeaseSeconds", Defaults.JdbcLeaseSeconds));
+		settings.setNackDelaySeconds(getIntProperty(injectionContext, "deferredJdbcNackDelaySeconds", Defaults.JdbcNackDelaySeconds));
+		settings.setInsertBatchSize(getIntProperty(injectionContext, "deferredJdbcInsertBatchSize", Defaults.JdbcInsertBatchSize));
+		JdbcQueueProvider queueProvider = new JdbcQueueProvider(injectionContext.get(DataSource.class), JdbcQueueProvider.DefaultQueueName, settings);
+		if (Boolean.parseBoolean(injectionContext.get(String.class, "deferredJdbcCreateTable"))) {
+			queueProvider.createTable();
+		}
+		Logger.info("Set deferred JDBC queue table to %s", settings.getTable());
+		return queueProvider;
+	}
+
+	private PriorityPolicy getPriorityPolicy(InjectionContext injectionContext) {
+		String policyName = getProperty(String.class, injectionContext, "deferredPriorityPolicy", Defaults.PriorityPolicy.name());
+		try {
+			return PriorityPolicy.valueOf(policyName);
+		} catch (IllegalArgumentException e) {
+			String message = "No such priority policy: %s";
+			Logger.error(message, policyName);
+			throw new ThundrDeferredException(e, message, policyName);
+		}
+	}
+
+	private OverflowPolicy getOverflowPolicy(InjectionContext injectionContext, String property) {
+		String policyName = getProperty(String.class, injectionContext, property, Defaults.OverflowPolicy.name());
+		try {
+			return OverflowPolicy.valueOf(policyName);
+		} catch (IllegalArgumentException e) {
+			String message = "No such overflow policy: %s";
+			Logger.error(message, policyName);
+			throw new ThundrDeferredException(e, message, policyName);
+		}
+	}
+
+	private int[] getPriorityWeights(InjectionContext injectionContext) {
+		String value = injectionContext.get(String.class, "deferredPriorityWeights");
+		if (value == null) {
+			return Defaults.PriorityWeights;
+		}
+		String[] parts = value.split(",");
+		int[] weights = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			try {
+				weights[i] = Integer.parseInt(parts[i].trim());
+			} catch (NumberFormatException e) {
+				String message = "Property %s must be whole numbers separated by commas but was: %s";
+				Logger.error(message, "deferredPriorityWeights", value);
+				throw new ThundrDeferredException(e, message, "deferredPriorityWeights", value);
+			}
+		}
+		return weights;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void addQueueRoutes(InjectionContext injectionContext, QueueRouter router, String queueName) {
+		String taskClassNames = injectionContext.get(String.class, "deferredQueueTasks." + queueName);
+		if (taskClassNames == null) {
+			return;
+		}
+		for (String name : taskClassNames.split(",")) {
+			String taskClassName = name.trim();
+			if (taskClassName.isEmpty()) {
+				continue;
+			}
+			try {
+				Class<?> type = Class.forName(taskClassName);
+				if (DeferredTask.class.isAssignableFrom(type)) {
+					router.route((Class<? extends DeferredTask>) type, queueName);
+				} else {
+					String message = "Task routed to queue %s must implement %s";
+					String className = DeferredTask.class.getName();
+					Logger.error(message, queueName, className);
+					throw new ThundrDeferredException(message, queueName, className);
+				}
+			} catch (ClassNotFoundException e) {
+				String message = "No such task: %s. Is it on the classpath?";
+				Logger.error(message, taskClassName);
+				throw new ThundrDeferredException(e, message, taskClassName);
+			}
+		}
+	}
+
+	/**
+	 * @return the name of the property to read for the given queue, which is the queue's own property if it has one
+	 */
+	private String queueProperty(InjectionContext injectionContext, String name, String queueName) {
+		if (queueName != null) {
+			String queuePropertyName = name + "." + queueName;
+			if (injectionContext.get(String.class, queuePropertyName) != null) {
+				return queuePropertyName;
+			}
+		}
+		return name;
+	}
+
+	private int getIntProperty(InjectionContext injectionContext, String name, int defaultTo) {
+		String value = getProperty(String.class, injectionContext, name, String.valueOf(defaultTo));
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			String message = "Property %s must be a whole number but was: %s";
+			Logger.error(message, name, value);
+			throw new ThundrDeferredException(e, message, name, value);
+		}
+	}
+
+	private long getLongProperty(InjectionContext injectionContext, String name, long defaultTo) {
+		String value = getProperty(String.class, injectionContext, name, String.valueOf(defaultTo));
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			String message = "Property %s must be a whole number but was: %s";
+			Logger.error(message, name, value);
+			throw new ThundrDeferredException(e, message, name, value);
+		}
+	}
+
 	@SuppressWarnings("unchecked")
 	private <T> T getProperty(Class<T> type, InjectionContext injectionContext, String name, Object defaultTo) {
 		T value = (T) injectionContext.get(String.class, name);
@@ -17,70 +17,859 @@
  */
 package com.threewks.thundr.deferred;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.joda.time.DateTime;
 
+import com.threewks.thundr.deferred.deadletter.DeadLetterQueue;
+import com.threewks.thundr.deferred.dedupe.SeenKeyCache;
+import com.threewks.thundr.deferred.metrics.CompositeDeferredTaskListener;
+import com.threewks.thundr.deferred.metrics.DeferredTaskListener;
+import com.threewks.thundr.deferred.payload.PayloadCodec;
+import com.threewks.thundr.deferred.queue.QueueRouter;
+import com.threewks.thundr.deferred.ratelimit.RateLimiter;
+import com.threewks.thundr.deferred.provider.AcknowledgingQueueProvider;
+import com.threewks.thundr.deferred.provider.BlockingQueueProvider;
+import com.threewks.thundr.deferred.provider.BoundedQueueProvider;
+import com.threewks.thundr.deferred.provider.DeduplicatingQueueProvider;
+import com.threewks.thundr.deferred.provider.DelayingQueueProvider;
+import com.threewks.thundr.deferred.provider.MessageDroppedException;
+import com.threewks.thundr.deferred.provider.PrioritizingQueueProvider;
+import com.threewks.thundr.deferred.provider.Priority;
 import com.threewks.thundr.deferred.provider.QueueProvider;
+import com.threewks.thundr.deferred.provider.ReceiveFailedException;
+import com.threewks.thundr.deferred.provider.ReceivedMessage;
 import com.threewks.thundr.deferred.serializer.JsonSerializer;
+import com.threewks.thundr.deferred.serializer.ReceivedTask;
 import com.threewks.thundr.deferred.serializer.TaskSerializer;
+import com.threewks.thundr.deferred.task.BatchableDeferredTask;
+import com.threewks.thundr.deferred.task.DeduplicatedDeferredTask;
 import com.threewks.thundr.deferred.task.DeferredTask;
+import com.threewks.thundr.deferred.task.DeferredTaskFailedException;
+import com.threewks.thundr.deferred.task.DelayedRetryDeferredTask;
 import com.threewks.thundr.deferred.task.RetryableDeferredTask;
+import com.threewks.thundr.deferred.worker.WorkerPool;
 import com.threewks.thundr.logger.Logger;
 
 public class DeferredTaskService {
 	private final QueueProvider queueProvider;
-	private final TaskSerializer serializer = new TaskSerializer(new JsonSerializer());
+	private final WorkerPool workerPool;
+	private final TaskSerializer serializer;
+	private final PayloadCodec payloadCodec;
+	private final DeadLetterQueue deadLetterQueue;
+	private final CompositeDeferredTaskListener listeners = new CompositeDeferredTaskListener();
+	private volatile QueueRouter router;
+	private volatile SeenKeyCache seenKeys = new SeenKeyCache(Defaults.DedupeWindowMillis, Defaults.DedupeCacheSize);
+	private volatile int taskBatchSize = Defaults.TaskBatchSize;
+	private volatile RateLimiter rateLimiter = new RateLimiter();
 
 	public DeferredTaskService(QueueProvider queueProvider) {
+		this(queueProvider, new WorkerPool());
+	}
+
+	public DeferredTaskService(QueueProvider queueProvider, WorkerPool workerPool) {
+		this(queueProvider, workerPool, new TaskSerializer(new JsonSerializer()));
+	}
+
+	public DeferredTaskService(QueueProvider queueProvider, WorkerPool workerPool, TaskSerializer taskSerializer) {
+		this(queueProvider, workerPool, taskSerializer, new PayloadCodec());
+	}
+
+	public DeferredTaskService(QueueProvider queueProvider, WorkerPool workerPool, TaskSerializer taskSerializer, PayloadCodec payloadCodec) {
+		this(queueProvider, workerPool, taskSerializer, payloadCodec, null);
+	}
+
+	/**
+	 * @param deadLetterQueue where messages which cannot be processed are sent, or null to report them as failures
+	 */
+	public DeferredTaskService(QueueProvider queueProvider, WorkerPool workerPool, TaskSerializer taskSerializer, PayloadCodec payloadCodec, DeadLetterQueue deadLetterQueue) {
 		this.queueProvider = queueProvider;
+		this.workerPool = workerPool;
+		this.serializer = taskSerializer;
+		this.payloadCodec = payloadCodec;
+		this.deadLetterQueue = deadLetterQueue;
+		if (queueProvider instanceof BoundedQueueProvider) {
+			((BoundedQueueProvider) queueProvider).setDropListener(new BoundedQueueProvider.DropListener() {
+				@Override
+				public void dropped(String message) {
+					DeferredTaskService.this.payloadCodec.release(message);
+				}
+			});
+		}
 	}
 
 	public QueueProvider getQueueProvider() {
 		return queueProvider;
 	}
 
+	public WorkerPool getWorkerPool() {
+		return workerPool;
+	}
+
+	public DeadLetterQueue getDeadLetterQueue() {
+		return deadLetterQueue;
+	}
+
+	/**
+	 * Routes tasks deferred through this service to the queue chosen by the given router. Without a router every task
+	 * is sent to this service's queue.
+	 */
+	public void setRouter(QueueRouter router) {
+		this.router = router;
+	}
+
+	public QueueRouter getRouter() {
+		return router;
+	}
+
+	/**
+	 * Sets the cache used to skip a {@link DeduplicatedDeferredTask} when a copy with the same key has run recently.
+	 * It is only used when the queue provider is not a {@link DeduplicatingQueueProvider}. Null runs every copy.
+	 */
+	public void setSeenKeyCache(SeenKeyCache seenKeys) {
+		this.seenKeys = seenKeys;
+	}
+
+	public SeenKeyCache getSeenKeyCache() {
+		return seenKeys;
+	}
+
+	/**
+	 * Sets the most {@link BatchableDeferredTask}s of the same class run together in one batch. One runs every task on
+	 * its own.
+	 */
+	public void setTaskBatchSize(int taskBatchSize) {
+		if (taskBatchSize < 1) {
+			throw new ThundrDeferredException("Task batch size must be at least 1 but was %s", taskBatchSize);
+		}
+		this.taskBatchSize = taskBatchSize;
+	}
+
+	public int getTaskBatchSize() {
+		return taskBatchSize;
+	}
+
+	/**
+	 * Sets the rate limits tasks are run within. A task received faster than its limit allows is deferred again, with
+	 * a delay if the queue provider is a {@link DelayingQueueProvider}, rather than holding up a worker. Null runs
+	 * every task as soon as it is received.
+	 */
+	public void setRateLimiter(RateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	public RateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	/**
+	 * Reports how full this service's queue is, so that callers can shed load, for instance by turning requests away,
+	 * before deferring tasks starts to fail or block.
+	 *
+	 * @return from 0 when the queue is empty or unbounded to 1 when it is full
+	 * @see BoundedQueueProvider
+	 */
+	public double pressure() {
+		return queueProvider instanceof BoundedQueueProvider ? ((BoundedQueueProvider) queueProvider).pressure() : 0;
+	}
+
+	/**
+	 * Registers a listener to be notified as tasks are enqueued, received, run, retried and fail.
+	 */
+	public void addListener(DeferredTaskListener listener) {
+		listeners.add(listener);
+	}
+
+	public boolean removeListener(DeferredTaskListener listener) {
+		return listeners.remove(listener);
+	}
+
+	/**
+	 * Moves up to the given number of messages from the dead letter queue back to the task queue.
+	 *
+	 * @return the number of messages moved
+	 * @throws ThundrDeferredException if no dead letter queue is configured
+	 */
+	public int redriveDeadLetters(int max) {
+		if (deadLetterQueue == null) {
+			throw new ThundrDeferredException("No dead letter queue is configured");
+		}
+		return deadLetterQueue.redrive(queueProvider, max);
+	}
+
+	/**
+	 * Defers a task to the queue it is routed to, see {@link QueueRouter}. A {@link DeduplicatedDeferredTask} is
+	 * dropped if the queue provider is a {@link DeduplicatingQueueProvider} and a copy is already waiting on the queue.
+	 */
 	public void defer(DeferredTask deferredTask) {
-		String serialized = serializer.serialize(deferredTask);
-		queueProvider.send(serialized);
+		route(deferredTask).enqueueUnique(deferredTask);
+	}
+
+	/**
+	 * Defers a task to the named queue, whichever queue it would otherwise be routed to.
+	 *
+	 * @throws ThundrDeferredException if there is no such queue
+	 */
+	public void defer(String queueName, DeferredTask deferredTask) {
+		queue(queueName).enqueueUnique(deferredTask);
+	}
+
+	/**
+	 * Defers a task with the given priority to the queue it is routed to. Priority is a hint: if the queue provider is
+	 * not a {@link PrioritizingQueueProvider} the task is deferred as normal. Retries of the task are deferred at normal
+	 * priority.
+	 */
+	public void defer(DeferredTask deferredTask, Priority priority) {
+		route(deferredTask).enqueue(deferredTask, priority);
+	}
+
+	/**
+	 * As {@link #defer(DeferredTask, Priority)}, but to the named queue.
+	 *
+	 * @throws ThundrDeferredException if there is no such queue
+	 */
+	public void defer(String queueName, DeferredTask deferredTask, Priority priority) {
+		queue(queueName).enqueue(deferredTask, priority);
+	}
+
+	/**
+	 * Defers a task which will not be run until the given delay has elapsed. The task is held by the queue until it is
+	 * due, so it costs no worker time while waiting. Delayed tasks run at normal priority.
+	 *
+	 * @throws ThundrDeferredException if the queue provider is not a {@link DelayingQueueProvider}
+	 */
+	public void defer(DeferredTask deferredTask, long delay, TimeUnit unit) {
+		route(deferredTask).enqueue(deferredTask, delay, unit);
+	}
+
+	/**
+	 * As {@link #defer(DeferredTask, long, TimeUnit)}, but to the named queue.
+	 *
+	 * @throws ThundrDeferredException if there is no such queue
+	 */
+	public void defer(String queueName, DeferredTask deferredTask, long delay, TimeUnit unit) {
+		queue(queueName).enqueue(deferredTask, delay, unit);
+	}
+
+	/**
+	 * Defers a task which will not be run until the given time. A time in the past runs the task as soon as possible.
+	 *
+	 * @throws ThundrDeferredException if the queue provider is not a {@link DelayingQueueProvider}
+	 */
+	public void defer(DeferredTask deferredTask, DateTime runAt) {
+		defer(deferredTask, runAt.getMillis() - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
 	}
 
-	public void processQueue() {
-		List<String> messages = queueProvider.receive();
-		for (String message : messages) {
-			run(message);
+	private DeferredTaskService route(DeferredTask deferredTask) {
+		QueueRouter queueRouter = router;
+		return queueRouter == null ? this : queueRouter.serviceFor(deferredTask);
+	}
+
+	private DeferredTaskService queue(String queueName) {
+		QueueRouter queueRouter = router;
+		if (queueRouter == null) {
+			if (QueueRouter.DefaultQueue.equals(queueName)) {
+				return this;
+			}
+			throw new ThundrDeferredException("No such queue: %s", queueName);
 		}
+		return queueRouter.get(queueName);
 	}
 
-	private void run(String message) {
-		DeferredTask deferredTask = null;
+	private void enqueueUnique(DeferredTask deferredTask) {
+		String key = dedupeKeyOf(deferredTask);
+		if (key == null || !isDeduplicating()) {
+			enqueue(deferredTask);
+			return;
+		}
+		String encoded = payloadCodec.encode(serializer.serialize(deferredTask));
+		boolean sent;
 		try {
-			deferredTask = serializer.deserialize(message);
-			deferredTask.run();
+			sent = ((DeduplicatingQueueProvider) queueProvider).send(encoded, key);
+		} catch (RuntimeException e) {
+			unsent(encoded, e);
+			return;
+		}
+		if (sent) {
+			listeners.enqueued(deferredTask.getClass(), encoded.length());
+		} else {
+			Logger.debug("Dropped deferred task %s, a copy is already queued", key);
+			payloadCodec.release(encoded);
+			listeners.deduplicated(deferredTask.getClass());
+		}
+	}
+
+	private void enqueue(DeferredTask deferredTask) {
+		String encoded = payloadCodec.encode(serializer.serialize(deferredTask));
+		try {
+			queueProvider.send(encoded);
+		} catch (RuntimeException e) {
+			unsent(encoded, e);
+			return;
+		}
+		listeners.enqueued(deferredTask.getClass(), encoded.length());
+	}
+
+	private void enqueue(DeferredTask deferredTask, Priority priority) {
+		if (priority == Priority.Normal || !(queueProvider instanceof PrioritizingQueueProvider)) {
+			enqueue(deferredTask);
+			return;
+		}
+		String encoded = payloadCodec.encode(serializer.serialize(deferredTask));
+		try {
+			((PrioritizingQueueProvider) queueProvider).send(encoded, priority);
+		} catch (RuntimeException e) {
+			unsent(encoded, e);
+			return;
+		}
+		listeners.enqueued(deferredTask.getClass(), encoded.length());
+	}
+
+	private void enqueue(DeferredTask deferredTask, long delay, TimeUnit unit) {
+		if (delay <= 0) {
+			enqueue(deferredTask);
+			return;
+		}
+		if (!isDelaying()) {
+			throw new ThundrDeferredException("Queue provider %s does not support delayed tasks", queueProvider.getClass().getName());
+		}
+		String encoded = payloadCodec.encode(serializer.serialize(deferredTask));
+		try {
+			((DelayingQueueProvider) queueProvider).send(encoded, delay, unit);
+		} catch (RuntimeException e) {
+			unsent(encoded, e);
+			return;
+		}
+		listeners.enqueued(deferredTask.getClass(), encoded.length());
+	}
+
+	/**
+	 * Deletes the payload of a message which was not queued, then rethrows the failure. A message dropped by the
+	 * queue's overflow policy is not a failure, so that is not rethrown.
+	 */
+	private void unsent(String encoded, RuntimeException failure) {
+		payloadCodec.release(encoded);
+		if (!(failure instanceof MessageDroppedException)) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Receives a batch of messages from the queue and runs them in parallel on the worker pool. Returns once every
+	 * task in the batch has completed. If any task failed permanently the first such failure is rethrown, but only
+	 * after the rest of the batch has run.
+	 * <p>
+	 * If the queue provider is an {@link AcknowledgingQueueProvider}, messages are acknowledged once their task has
+	 * completed or failed permanently. Messages that could not be run at all are handed back to the queue. Any payload
+	 * offloaded to the blob store is deleted once its message has been completed.
+	 * <p>
+	 * If a dead letter queue is configured, messages whose task failed permanently or whose task class could not be
+	 * found are moved to it instead of being reported as failures.
+	 * <p>
+	 * Tasks received faster than their rate limit allows are deferred again instead of being run, see
+	 * {@link #setRateLimiter(RateLimiter)}.
+	 * <p>
+	 * Received {@link BatchableDeferredTask}s are set aside until the other tasks have run, then run together with tasks
+	 * of the same class, see {@link #setTaskBatchSize(int)}.
+	 *
+	 * @return the number of messages received
+	 */
+	public int processQueue() {
+		return processQueue(0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * As {@link #processQueue()}, but if the queue is empty waits up to the given timeout for a message to arrive.
+	 * The timeout only applies to a {@link BlockingQueueProvider}, other providers return immediately.
+	 *
+	 * @return the number of messages received
+	 */
+	public int processQueue(long timeout, TimeUnit unit) {
+		List<ReceivedMessage> messages = receive(timeout, unit);
+		final long receivedAt = System.currentTimeMillis();
+		if (!messages.isEmpty()) {
+			listeners.received(messages.size());
+		}
+		final Outcomes outcomes = new Outcomes();
+		final boolean batching = taskBatchSize > 1 && messages.size() > 1;
+		final Batched[] batchable = new Batched[messages.size()];
+		List<Future<Void>> results = new ArrayList<Future<Void>>(messages.size());
+		for (int i = 0; i < messages.size(); i++) {
+			final ReceivedMessage message = messages.get(i);
+			final int index = i;
+			submit(results, Collections.singletonList(message), outcomes, new Callable<Void>() {
+				@Override
+				public Void call() {
+					try {
+						DeferredTask deferredTask = read(message.getBody(), receivedAt);
+						if (batching && deferredTask instanceof BatchableDeferredTask) {
+							batchable[index] = new Batched(message, deferredTask);
+						} else {
+							runIfAllowed(deferredTask);
+							outcomes.completed.add(message);
+						}
+					} catch (RuntimeException e) {
+						settle(message, e, receivedAt, outcomes);
+					}
+					return null;
+				}
+			});
+		}
+
+		try {
+			if (batching) {
+				awaitQuietly(results);
+				for (final List<Batched> batch : batches(batchable)) {
+					submit(results, messagesOf(batch), outcomes, new Callable<Void>() {
+						@Override
+						public Void call() {
+							runBatch(batch, receivedAt, outcomes);
+							return null;
+						}
+					});
+				}
+			}
+			awaitCompletion(results);
+		} finally {
+			List<ReceivedMessage> removed = new ArrayList<ReceivedMessage>(outcomes.completed);
+			removed.addAll(outcomes.deadLettered);
+			acknowledge(removed, outcomes.released);
+			releasePayloads(outcomes.completed);
+		}
+		return messages.size();
+	}
+
+	private void submit(List<Future<Void>> results, List<ReceivedMessage> messages, Outcomes outcomes, Callable<Void> work) {
+		try {
+			results.add(workerPool.submit(work));
+		} catch (RejectedExecutionException e) {
+			Logger.warn("Worker pool is saturated, returning task to the queue.");
+			for (ReceivedMessage message : messages) {
+				if (isAcknowledging()) {
+					outcomes.released.add(message);
+				} else {
+					queueProvider.send(message.getBody());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Records what becomes of a message whose task could not be run, then rethrows the failure unless the message was
+	 * moved to the dead letter queue.
+	 */
+	private void settle(ReceivedMessage message, RuntimeException failure, long receivedAt, Outcomes outcomes) {
+		if (failure instanceof DeferredTaskFailedException) {
+			if (deadLetter(message, failure, ((DeferredTaskFailedException) failure).getAttempts(), receivedAt)) {
+				outcomes.deadLettered.add(message);
+				return;
+			}
+			outcomes.completed.add(message);
+			throw failure;
+		}
+		if (failure.getCause() instanceof ClassNotFoundException && deadLetter(message, failure, 0, receivedAt)) {
+			outcomes.deadLettered.add(message);
+			return;
+		}
+		outcomes.released.add(message);
+		throw failure;
+	}
+
+	/**
+	 * Groups batchable tasks by class, in the order they were received, into batches of at most the task batch size.
+	 */
+	private List<List<Batched>> batches(Batched[] batchable) {
+		Map<Class<?>, List<Batched>> byType = new LinkedHashMap<Class<?>, List<Batched>>();
+		for (Batched batched : batchable) {
+			if (batched == null) {
+				continue;
+			}
+			List<Batched> ofType = byType.get(batched.task.getClass());
+			if (ofType == null) {
+				ofType = new ArrayList<Batched>();
+				byType.put(batched.task.getClass(), ofType);
+			}
+			ofType.add(batched);
+		}
+		int batchSize = taskBatchSize;
+		List<List<Batched>> batches = new ArrayList<List<Batched>>();
+		for (List<Batched> ofType : byType.values()) {
+			for (int from = 0; from < ofType.size(); from += batchSize) {
+				batches.add(ofType.subList(from, Math.min(from + batchSize, ofType.size())));
+			}
+		}
+		return batches;
+	}
+
+	private static List<ReceivedMessage> messagesOf(List<Batched> batch) {
+		List<ReceivedMessage> messages = new ArrayList<ReceivedMessage>(batch.size());
+		for (Batched batched : batch) {
+			messages.add(batched.message);
+		}
+		return messages;
+	}
+
+	/**
+	 * @throws ReceiveFailedException if the queue provider could not be read, so callers can tell it from a task failure
+	 */
+	private List<ReceivedMessage> receive(long timeout, TimeUnit unit) {
+		try {
+			return receiveMessages(timeout, unit);
+		} catch (RuntimeException e) {
+			throw new ReceiveFailedException(e, "Unable to receive deferred tasks. Reason: %s", e.getMessage());
+		}
+	}
+
+	private List<ReceivedMessage> receiveMessages(long timeout, TimeUnit unit) {
+		if (isAcknowledging()) {
+			return ((AcknowledgingQueueProvider) queueProvider).receiveMessages();
+		}
+		List<String> bodies = receiveBodies(timeout, unit);
+		List<ReceivedMessage> messages = new ArrayList<ReceivedMessage>(bodies.size());
+		for (String body : bodies) {
+			messages.add(new ReceivedMessage(body, null));
+		}
+		return messages;
+	}
+
+	private List<String> receiveBodies(long timeout, TimeUnit unit) {
+		if (timeout > 0 && queueProvider instanceof BlockingQueueProvider) {
+			try {
+				return ((BlockingQueueProvider) queueProvider).receive(timeout, unit);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return new ArrayList<String>();
+			}
+		}
+		return queueProvider.receive();
+	}
+
+	/**
+	 * @return true if the message was moved to the dead letter queue
+	 */
+	private boolean deadLetter(ReceivedMessage message, RuntimeException failure, int attempts, long receivedAt) {
+		if (deadLetterQueue == null) {
+			return false;
+		}
+		try {
+			deadLetterQueue.add(message.getBody(), failure, attempts, receivedAt);
+			Logger.warn("Moved message to the dead letter queue. Reason: %s", failure.getMessage());
+			return true;
+		} catch (RuntimeException e) {
+			Logger.error("Failed to move message to the dead letter queue. Reason: %s", e.getMessage());
+			return false;
+		}
+	}
+
+	private void acknowledge(List<ReceivedMessage> completed, Queue<ReceivedMessage> released) {
+		if (!isAcknowledging()) {
+			return;
+		}
+		AcknowledgingQueueProvider acknowledgingQueueProvider = (AcknowledgingQueueProvider) queueProvider;
+		if (!completed.isEmpty()) {
+			acknowledgingQueueProvider.ack(new ArrayList<ReceivedMessage>(completed));
+		}
+		if (!released.isEmpty()) {
+			acknowledgingQueueProvider.nack(new ArrayList<ReceivedMessage>(released));
+		}
+	}
+
+	private void releasePayloads(Queue<ReceivedMessage> completed) {
+		for (ReceivedMessage message : completed) {
+			try {
+				payloadCodec.release(message.getBody());
+			} catch (RuntimeException e) {
+				Logger.warn("Failed to release task payload: %s", e.getMessage());
+			}
+		}
+	}
+
+	private boolean isDelaying() {
+		return queueProvider instanceof DelayingQueueProvider;
+	}
+
+	private boolean isDeduplicating() {
+		return queueProvider instanceof DeduplicatingQueueProvider;
+	}
+
+	/**
+	 * @return the task's dedupe key scoped to its class, or null if it has none
+	 */
+	private static String dedupeKeyOf(DeferredTask deferredTask) {
+		if (!(deferredTask instanceof DeduplicatedDeferredTask)) {
+			return null;
+		}
+		String key = ((DeduplicatedDeferredTask) deferredTask).dedupeKey();
+		return key == null ? null : deferredTask.getClass().getName() + ":" + key;
+	}
+
+	private boolean isAcknowledging() {
+		return queueProvider instanceof AcknowledgingQueueProvider;
+	}
+
+	private void awaitCompletion(List<Future<Void>> results) {
+		ThundrDeferredException failure = null;
+		for (Future<Void> result : results) {
+			try {
+				result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ThundrDeferredException(e, "Interrupted waiting for deferred tasks to complete.");
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = asDeferredException(e.getCause());
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Waits for the tasks to finish without rethrowing their failures, which are left for {@link #awaitCompletion}.
+	 */
+	private void awaitQuietly(List<Future<Void>> results) {
+		for (Future<Void> result : results) {
+			try {
+				result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ThundrDeferredException(e, "Interrupted waiting for deferred tasks to complete.");
+			} catch (ExecutionException e) {
+				// rethrown by awaitCompletion
+			}
+		}
+	}
+
+	private ThundrDeferredException asDeferredException(Throwable cause) {
+		if (cause instanceof ThundrDeferredException) {
+			return (ThundrDeferredException) cause;
+		}
+		return new ThundrDeferredException(cause, "Running deferred task failed unexpectedly. Reason: %s", cause.getMessage());
+	}
+
+	/**
+	 * Decodes and deserializes a received message. A message which cannot be read will never succeed, whether its
+	 * payload cannot be decoded, such as a corrupt compressed body or a missing claim-check blob, or its task cannot be
+	 * deserialized, so it fails permanently.
+	 */
+	private DeferredTask read(String message, long receivedAt) {
+		try {
+			return deserialize(payloadCodec.decode(message), receivedAt);
 		} catch (ClassNotFoundException e) {
 			String errorMessage = "Unable to deserialize task from queue. Class %s not found.";
 			Logger.error(errorMessage, e.getMessage());
-			throw new ThundrDeferredException(e, errorMessage, e.getMessage());
+			ThundrDeferredException failure = new ThundrDeferredException(e, errorMessage, e.getMessage());
+			listeners.failed(null, failure);
+			throw failure;
+		} catch (Exception e) {
+			Logger.error("Unable to deserialize task from queue. Cause: %s", ExceptionUtils.getStackTrace(e));
+			DeferredTaskFailedException failure = new DeferredTaskFailedException(e, "Running deferred task failed permanently. Reason: %s", e.getMessage()).withAttempts(0);
+			listeners.failed(null, failure);
+			throw failure;
+		}
+	}
+
+	private void runIfAllowed(DeferredTask deferredTask) {
+		if (isAllowed(deferredTask)) {
+			listeners.started(deferredTask.getClass());
+			execute(deferredTask);
+		}
+	}
+
+	/**
+	 * Duplicates are skipped before the rate limit is checked, so they do not use up their class's permits. A task
+	 * which is rate limited is deferred again, so its dedupe key is forgotten for the copy which comes back.
+	 */
+	private boolean isAllowed(DeferredTask deferredTask) {
+		if (isDuplicate(deferredTask)) {
+			return false;
+		}
+		if (isRateLimited(deferredTask)) {
+			forgetSeen(deferredTask);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Runs a batch of tasks of the same class with a single call to {@link BatchableDeferredTask#runBatch(List)}. If
+	 * that fails each task is run on its own, and the first task to fail permanently is rethrown once all have run.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void runBatch(List<Batched> batch, long receivedAt, Outcomes outcomes) {
+		List<Batched> running = new ArrayList<Batched>(batch.size());
+		List<DeferredTask> tasks = new ArrayList<DeferredTask>(batch.size());
+		for (Batched batched : batch) {
+			if (!isAllowed(batched.task)) {
+				outcomes.completed.add(batched.message);
+			} else {
+				running.add(batched);
+				tasks.add(batched.task);
+				listeners.started(batched.task.getClass());
+			}
+		}
+		if (tasks.size() > 1) {
+			Class<? extends DeferredTask> type = tasks.get(0).getClass();
+			try {
+				long start = System.nanoTime();
+				((BatchableDeferredTask) tasks.get(0)).runBatch(tasks);
+				long nanos = (System.nanoTime() - start) / tasks.size();
+				for (Batched batched : running) {
+					listeners.completed(type, nanos);
+					outcomes.completed.add(batched.message);
+				}
+				return;
+			} catch (Exception e) {
+				Logger.warn("Running a batch of %s %s tasks failed, running them one at a time. Reason: %s", tasks.size(), type.getName(), e.getMessage());
+			}
+		}
+		RuntimeException failure = null;
+		for (Batched batched : running) {
+			try {
+				execute(batched.task);
+				outcomes.completed.add(batched.message);
+			} catch (RuntimeException e) {
+				try {
+					settle(batched.message, e, receivedAt, outcomes);
+				} catch (RuntimeException settled) {
+					failure = failure == null ? settled : failure;
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Takes a permit to run the task from the rate limiter. If none is left the task is deferred again, to run once
+	 * one should be.
+	 *
+	 * @return true if the task was deferred again and should not be run now
+	 */
+	private boolean isRateLimited(DeferredTask deferredTask) {
+		RateLimiter limiter = rateLimiter;
+		long delayNanos = limiter == null ? 0 : limiter.tryAcquire(deferredTask.getClass());
+		if (delayNanos == 0) {
+			return false;
+		}
+		if (isDelaying()) {
+			long delay = Math.max(1, TimeUnit.NANOSECONDS.toMillis(delayNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+			Logger.debug("Rate limit reached for %s, deferring it by %sms", deferredTask.getClass().getName(), delay);
+			listeners.rateLimited(deferredTask.getClass(), delay);
+			enqueue(deferredTask, delay, TimeUnit.MILLISECONDS);
+		} else {
+			Logger.debug("Rate limit reached for %s, returning it to the queue", deferredTask.getClass().getName());
+			listeners.rateLimited(deferredTask.getClass(), 0);
+			enqueue(deferredTask);
+		}
+		return true;
+	}
+
+	/**
+	 * Marks the task's dedupe key as seen.
+	 *
+	 * @return true if a copy with the same key ran within the dedupe window, in which case the task should be skipped
+	 */
+	private boolean isDuplicate(DeferredTask deferredTask) {
+		SeenKeyCache seen = isDeduplicating() ? null : seenKeys;
+		String key = seen == null ? null : dedupeKeyOf(deferredTask);
+		if (key != null && !seen.markSeen(key)) {
+			Logger.debug("Skipped deferred task %s, a copy ran in the last %sms", key, seen.getWindowMillis());
+			listeners.deduplicated(deferredTask.getClass());
+			return true;
+		}
+		return false;
+	}
+
+	private void forgetSeen(DeferredTask deferredTask) {
+		SeenKeyCache seen = isDeduplicating() ? null : seenKeys;
+		String key = seen == null ? null : dedupeKeyOf(deferredTask);
+		if (key != null) {
+			seen.forget(key);
+		}
+	}
+
+	private void execute(DeferredTask deferredTask) {
+		try {
+			long start = System.nanoTime();
+			deferredTask.run();
+			listeners.completed(deferredTask.getClass(), System.nanoTime() - start);
 		} catch (Exception e) {
+			forgetSeen(deferredTask);
 			Logger.error("Running deferred task failed. Cause: %s", ExceptionUtils.getStackTrace(e));
-			if (deferredTask != null && deferredTask instanceof RetryableDeferredTask) {
+			if (deferredTask instanceof RetryableDeferredTask) {
 				Logger.info("Task is retryable, attempting to schedule retry...", e.getMessage());
 				attemptRetry(((RetryableDeferredTask) deferredTask));
 			} else {
 				Logger.warn("Task is not retryable. Giving up!");
-				throw new ThundrDeferredException(e, "Running deferred task failed permanently. Reason: %s", e.getMessage());
+				DeferredTaskFailedException failure = new DeferredTaskFailedException(e, "Running deferred task failed permanently. Reason: %s", e.getMessage()).withAttempts(1);
+				listeners.failed(deferredTask.getClass(), failure);
+				throw failure;
 			}
 		}
 	}
 
+	private DeferredTask deserialize(String message, long receivedAt) throws ClassNotFoundException {
+		long start = System.nanoTime();
+		ReceivedTask received = serializer.deserializeReceived(message);
+		long deserializeNanos = System.nanoTime() - start;
+		long enqueuedAt = received.getEnqueuedAt();
+		listeners.deserialized(received.getTask().getClass(), deserializeNanos, enqueuedAt > 0 ? Math.max(0, receivedAt - enqueuedAt) : -1);
+		return received.getTask();
+	}
+
+	/**
+	 * Retries go back to the queue the task was received from, even if it would now be routed elsewhere.
+	 */
 	private void attemptRetry(RetryableDeferredTask task) {
 		if (task.shouldRetry()) {
-			Logger.info("Scheduling retry #%s for task.", task.retries() + 1);
-			defer(task);
+			long delay = task instanceof DelayedRetryDeferredTask ? ((DelayedRetryDeferredTask) task).nextRetryDelayMillis() : 0;
+			boolean delayed = delay > 0 && isDelaying();
+			listeners.retried(task.getClass(), task.retries(), delayed ? delay : 0);
+			if (delayed) {
+				Logger.info("Scheduling retry #%s for task in %sms.", task.retries() + 1, delay);
+				enqueue(task, delay, TimeUnit.MILLISECONDS);
+			} else {
+				Logger.info("Scheduling retry #%s for task.", task.retries() + 1);
+				enqueue(task);
+			}
 		} else {
 			String message = "Max retries[%s] exceeded. Giving up!";
 			Logger.error(message, task.maxRetries());
-			throw new ThundrDeferredException(message, task.maxRetries());
+			DeferredTaskFailedException failure = new DeferredTaskFailedException(message, task.maxRetries()).withAttempts(task.retries());
+			listeners.failed(task.getClass(), failure);
+			throw failure;
+		}
+	}
+
+	private static class Outcomes {
+		private final Queue<ReceivedMessage> completed = new ConcurrentLinkedQueue<ReceivedMessage>();
+		private final Queue<ReceivedMessage> released = new ConcurrentLinkedQueue<ReceivedMessage>();
+		private final Queue<ReceivedMessage> deadLettered = new ConcurrentLinkedQueue<ReceivedMessage>();
+	}
+
+	private static class Batched {
+		private final ReceivedMessage message;
+		private final DeferredTask task;
+
+		private Batched(ReceivedMessage message, DeferredTask task) {
+			this.message = message;
+			this.task = task;
 		}
 	}
 }
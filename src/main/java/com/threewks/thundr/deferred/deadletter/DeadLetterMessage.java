@@ -0,0 +1,82 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.deadletter;
+
+/**
+ * A message which could not be processed, along with why. The body is the message exactly as it was received, so it
+ * can be sent back to the task queue unchanged.
+ */
+public class DeadLetterMessage {
+	private String body;
+	private String exceptionClass;
+	private String exceptionMessage;
+	private String stackTrace;
+	private int attempts;
+	private long receivedAt;
+	private long failedAt;
+
+	public DeadLetterMessage() {
+	}
+
+	public DeadLetterMessage(String body, String exceptionClass, String exceptionMessage, String stackTrace, int attempts, long receivedAt, long failedAt) {
+		this.body = body;
+		this.exceptionClass = exceptionClass;
+		this.exceptionMessage = exceptionMessage;
+		this.stackTrace = stackTrace;
+		this.attempts = attempts;
+		this.receivedAt = receivedAt;
+		this.failedAt = failedAt;
+	}
+
+	public String getBody() {
+		return body;
+	}
+
+	public String getExceptionClass() {
+		return exceptionClass;
+	}
+
+	public String getExceptionMessage() {
+		return exceptionMessage;
+	}
+
+	public String getStackTrace() {
+		return stackTrace;
+	}
+
+	/**
+	 * @return the number of times the task was run before it was dead lettered
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * @return when the failed message was received, in milliseconds since the epoch
+	 */
+	public long getReceivedAt() {
+		return receivedAt;
+	}
+
+	/**
+	 * @return when the message was dead lettered, in milliseconds since the epoch
+	 */
+	public long getFailedAt() {
+		return failedAt;
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.deadletter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+
+import com.threewks.thundr.deferred.ThundrDeferredException;
+import com.threewks.thundr.deferred.provider.AcknowledgingQueueProvider;
+import com.threewks.thundr.deferred.provider.QueueProvider;
+import com.threewks.thundr.deferred.provider.ReceivedMessage;
+import com.threewks.thundr.deferred.serializer.JsonSerializer;
+import com.threewks.thundr.deferred.serializer.Serializer;
+import com.threewks.thundr.logger.Logger;
+
+/**
+ * Holds messages which could not be processed, so that one bad message cannot hold up the rest of the queue. Dead
+ * letters are kept on a separate queue provider along with the reason they failed, and can be sent back to the task
+ * queue with {@link #redrive(QueueProvider, int)} once the cause has been fixed.
+ */
+public class DeadLetterQueue {
+	private final QueueProvider queueProvider;
+	private final Serializer serializer;
+
+	public DeadLetterQueue(QueueProvider queueProvider) {
+		this(queueProvider, new JsonSerializer());
+	}
+
+	/**
+	 * @param serializer writes and reads the dead letters, along with their failure details
+	 */
+	public DeadLetterQueue(QueueProvider queueProvider, Serializer serializer) {
+		this.queueProvider = queueProvider;
+		this.serializer = serializer;
+	}
+
+	public QueueProvider getQueueProvider() {
+		return queueProvider;
+	}
+
+	/**
+	 * Sends a message which failed to the dead letter queue.
+	 *
+	 * @param body the message as it was received
+	 * @param failure why it failed
+	 * @param attempts how many times its task was run
+	 * @param receivedAt when the message was received, in milliseconds since the epoch
+	 */
+	public void add(String body, Throwable failure, int attempts, long receivedAt) {
+		DeadLetterMessage message = new DeadLetterMessage(body, failure.getClass().getName(), failure.getMessage(),
+				ExceptionUtils.getStackTrace(failure), attempts, receivedAt, System.currentTimeMillis());
+		queueProvider.send(serializer.serialize(message));
+	}
+
+	/**
+	 * Moves up to the given number of dead letters back to the task queue. If a message cannot be read or sent the
+	 * messages moved so far are acknowledged, the rest are returned to the dead letter queue and the failure is thrown.
+	 *
+	 * @return the number of messages moved
+	 */
+	public int redrive(QueueProvider target, int max) {
+		int moved = 0;
+		while (moved < max) {
+			List<ReceivedMessage> received = receive();
+			if (received.isEmpty()) {
+				break;
+			}
+			List<ReceivedMessage> done = new ArrayList<ReceivedMessage>(received.size());
+			try {
+				for (ReceivedMessage message : received) {
+					if (moved == max) {
+						break;
+					}
+					target.send(parse(message.getBody()).getBody());
+					done.add(message);
+					moved++;
+				}
+			} finally {
+				acknowledge(done, received.subList(done.size(), received.size()));
+			}
+		}
+		Logger.info("Redrove %s dead letters", moved);
+		return moved;
+	}
+
+	DeadLetterMessage parse(String data) {
+		try {
+			return serializer.deserialize(DeadLetterMessage.class, data);
+		} catch (ClassNotFoundException e) {
+			throw new ThundrDeferredException(e, "Unable to read dead letter. Reason: %s", e.getMessage());
+		} catch (RuntimeException e) {
+			throw new ThundrDeferredException(e, "Unable to read dead letter. Reason: %s", e.getMessage());
+		}
+	}
+
+	private List<ReceivedMessage> receive() {
+		if (queueProvider instanceof AcknowledgingQueueProvider) {
+			return ((AcknowledgingQueueProvider) queueProvider).receiveMessages();
+		}
+		List<ReceivedMessage> received = new ArrayList<ReceivedMessage>();
+		for (String body : queueProvider.receive()) {
+			received.add(new ReceivedMessage(body, null));
+		}
+		return received;
+	}
+
+	private void acknowledge(List<ReceivedMessage> done, List<ReceivedMessage> remaining) {
+		if (queueProvider instanceof AcknowledgingQueueProvider) {
+			AcknowledgingQueueProvider acknowledgingQueueProvider = (AcknowledgingQueueProvider) queueProvider;
+			if (!done.isEmpty()) {
+				acknowledgingQueueProvider.ack(done);
+			}
+			if (!remaining.isEmpty()) {
+				acknowledgingQueueProvider.nack(remaining);
+			}
+		} else {
+			for (ReceivedMessage message : remaining) {
+				queueProvider.send(message.getBody());
+			}
+		}
+	}
+}
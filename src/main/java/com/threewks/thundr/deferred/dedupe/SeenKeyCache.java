@@ -0,0 +1,95 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.dedupe;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers which dedupe keys have been seen recently. A key is forgotten once the window has passed since it was
+ * first seen, or sooner if more keys than the cache can hold are seen within the window, oldest first.
+ */
+public class SeenKeyCache {
+	private final long windowMillis;
+	private final int maxKeys;
+	private final LinkedHashMap<String, Long> seen = new LinkedHashMap<String, Long>();
+
+	/**
+	 * @param windowMillis how long a key is remembered for
+	 * @param maxKeys the most keys remembered at once
+	 */
+	public SeenKeyCache(long windowMillis, int maxKeys) {
+		this.windowMillis = windowMillis;
+		this.maxKeys = maxKeys;
+	}
+
+	/**
+	 * Records that the key has been seen now.
+	 *
+	 * @return false if the key had already been seen within the window
+	 */
+	public boolean markSeen(String key) {
+		return markSeen(key, System.currentTimeMillis());
+	}
+
+	/**
+	 * Forgets a key, so that it is next seen as new. Used when the task that saw it failed.
+	 */
+	public synchronized void forget(String key) {
+		seen.remove(key);
+	}
+
+	public synchronized int size() {
+		return seen.size();
+	}
+
+	public long getWindowMillis() {
+		return windowMillis;
+	}
+
+	public int getMaxKeys() {
+		return maxKeys;
+	}
+
+	synchronized boolean markSeen(String key, long now) {
+		evict(now);
+		if (seen.containsKey(key)) {
+			return false;
+		}
+		seen.put(key, now);
+		if (seen.size() > maxKeys) {
+			Iterator<String> oldest = seen.keySet().iterator();
+			oldest.next();
+			oldest.remove();
+		}
+		return true;
+	}
+
+	/**
+	 * Keys are held in the order they were seen, so expired keys are always at the head.
+	 */
+	private void evict(long now) {
+		for (Iterator<Map.Entry<String, Long>> iterator = seen.entrySet().iterator(); iterator.hasNext();) {
+			if (now - iterator.next().getValue() < windowMillis) {
+				return;
+			}
+			iterator.remove();
+		}
+	}
+}
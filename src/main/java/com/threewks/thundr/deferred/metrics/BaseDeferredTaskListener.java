@@ -0,0 +1,61 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.metrics;
+
+import com.threewks.thundr.deferred.task.DeferredTask;
+
+/**
+ * A {@link DeferredTaskListener} which ignores every event. Extend it and override the events you need.
+ */
+public class BaseDeferredTaskListener implements DeferredTaskListener {
+	@Override
+	public void enqueued(Class<? extends DeferredTask> type, int messageLength) {
+	}
+
+	@Override
+	public void deduplicated(Class<? extends DeferredTask> type) {
+	}
+
+	@Override
+	public void received(int batchSize) {
+	}
+
+	@Override
+	public void deserialized(Class<? extends DeferredTask> type, long deserializeNanos, long queueWaitMillis) {
+	}
+
+	@Override
+	public void started(Class<? extends DeferredTask> type) {
+	}
+
+	@Override
+	public void completed(Class<? extends DeferredTask> type, long runNanos) {
+	}
+
+	@Override
+	public void retried(Class<? extends DeferredTask> type, int attempt, long delayMillis) {
+	}
+
+	@Override
+	public void rateLimited(Class<? extends DeferredTask> type, long delayMillis) {
+	}
+
+	@Override
+	public void failed(Class<? extends DeferredTask> type, Throwable failure) {
+	}
+}
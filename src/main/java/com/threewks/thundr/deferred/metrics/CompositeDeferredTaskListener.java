@@ -0,0 +1,147 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.metrics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.threewks.thundr.deferred.task.DeferredTask;
+import com.threewks.thundr.logger.Logger;
+
+/**
+ * Passes each event on to every registered listener. A listener which throws does not stop the others being notified,
+ * nor does it affect the task.
+ */
+public class CompositeDeferredTaskListener implements DeferredTaskListener {
+	private final List<DeferredTaskListener> listeners = new CopyOnWriteArrayList<DeferredTaskListener>();
+
+	public void add(DeferredTaskListener listener) {
+		listeners.add(listener);
+	}
+
+	public boolean remove(DeferredTaskListener listener) {
+		return listeners.remove(listener);
+	}
+
+	public boolean isEmpty() {
+		return listeners.isEmpty();
+	}
+
+	@Override
+	public void enqueued(Class<? extends DeferredTask> type, int messageLength) {
+		for (DeferredTaskListener listener : listeners) {
+			try {
+				listener.enqueued(type, messageLength);
+			} catch (RuntimeException e) {
+				warn(listener, e);
+			}
+		}
+	}
+
+	@Override
+	public void deduplicated(Class<? extends DeferredTask> type) {
+		for (DeferredTaskListener listener : listeners) {
+			try {
+				listener.deduplicated(type);
+			} catch (RuntimeException e) {
+				warn(listener, e);
+			}
+		}
+	}
+
+	@Override
+	public void received(int batchSize) {
+		for (DeferredTaskListener listener : listeners) {
+			try {
+				listener.received(batchSize);
+			} catch (RuntimeException e) {
+				warn(listener, e);
+			}
+		}
+	}
+
+	@Override
+	public void deserialized(Class<? extends DeferredTask> type, long deserializeNanos, long queueWaitMillis) {
+		for (DeferredTaskListener listener : listeners) {
+			try {
+				listener.deserialized(type, deserializeNanos, queueWaitMillis);
+			} catch (RuntimeException e) {
+				warn(listener, e);
+			}
+		}
+	}
+
+	@Override
+	public void started(Class<? extends DeferredTask> type) {
+		for (DeferredTaskListener listener : listeners) {
+			try {
+				listener.started(type);
+			} catch (RuntimeException e) {
+				warn(listener, e);
+			}
+		}
+	}
+
+	@Override
+	public void completed(Class<? extends DeferredTask> type, long runNanos) {
+		for (DeferredTaskListener listener : listeners) {
+			try {
+				listener.completed(type, runNanos);
+			} catch (RuntimeException e) {
+				warn(listener, e);
+			}
+		}
+	}
+
+	@Override
+	public void retried(Class<? extends DeferredTask> type, int attempt, long delayMillis) {
+		for (DeferredTaskListener listener : listeners) {
+			try {
+				listener.retried(type, attempt, delayMillis);
+			} catch (RuntimeException e) {
+				warn(listener, e);
+			}
+		}
+	}
+
+	@Override
+	public void rateLimited(Class<? extends DeferredTask> type, long delayMillis) {
+		for (DeferredTaskListener listener : listeners) {
+			try {
+				listener.rateLimited(type, delayMillis);
+			} catch (RuntimeException e) {
+				warn(listener, e);
+			}
+		}
+	}
+
+	@Override
+	public void failed(Class<? extends DeferredTask> type, Throwable failure) {
+		for (DeferredTaskListener listener : listeners) {
+			try {
+				listener.failed(type, failure);
+			} catch (RuntimeException e) {
+				warn(listener, e);
+			}
+		}
+	}
+
+	private void warn(DeferredTaskListener listener, RuntimeException e) {
+		Logger.warn("Deferred task listener %s failed. Reason: %s", listener.getClass().getName(), e.getMessage());
+	}
+}
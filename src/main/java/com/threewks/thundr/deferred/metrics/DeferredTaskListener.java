@@ -0,0 +1,92 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.metrics;
+
+import com.threewks.thundr.deferred.task.DeferredTask;
+
+/**
+ * Notified as tasks move through the deferred pipeline. Listeners are called synchronously on the thread doing the
+ * work, so implementations should be quick and must be thread safe. Exceptions thrown by a listener are logged and
+ * otherwise ignored.
+ * <p>
+ * Extend {@link BaseDeferredTaskListener} to only handle the events you are interested in.
+ *
+ * @see com.threewks.thundr.deferred.DeferredTaskService#addListener(DeferredTaskListener)
+ */
+public interface DeferredTaskListener {
+	/**
+	 * A task was sent to the queue.
+	 *
+	 * @param messageLength the length of the queue message after encoding
+	 */
+	void enqueued(Class<? extends DeferredTask> type, int messageLength);
+
+	/**
+	 * A task was dropped because a copy with the same dedupe key was already waiting on the queue, or had just run.
+	 *
+	 * @see com.threewks.thundr.deferred.task.DeduplicatedDeferredTask
+	 */
+	void deduplicated(Class<? extends DeferredTask> type);
+
+	/**
+	 * A non-empty batch of messages was received from the queue.
+	 */
+	void received(int batchSize);
+
+	/**
+	 * A task was read from its queue message.
+	 *
+	 * @param deserializeNanos how long reading the task took
+	 * @param queueWaitMillis how long the task waited on the queue, or -1 if the message did not record when it was
+	 *            enqueued
+	 */
+	void deserialized(Class<? extends DeferredTask> type, long deserializeNanos, long queueWaitMillis);
+
+	/**
+	 * A task is about to run.
+	 */
+	void started(Class<? extends DeferredTask> type);
+
+	/**
+	 * A task ran successfully.
+	 */
+	void completed(Class<? extends DeferredTask> type, long runNanos);
+
+	/**
+	 * A task failed and has been deferred again to retry.
+	 *
+	 * @param attempt the retry being scheduled, starting from 1
+	 * @param delayMillis how long the retry is delayed for
+	 */
+	void retried(Class<? extends DeferredTask> type, int attempt, long delayMillis);
+
+	/**
+	 * A task was received faster than its rate limit allows and has been deferred again to run later.
+	 *
+	 * @param delayMillis how long the task is delayed for, or 0 if the queue provider cannot delay tasks
+	 * @see com.threewks.thundr.deferred.ratelimit.RateLimiter
+	 */
+	void rateLimited(Class<? extends DeferredTask> type, long delayMillis);
+
+	/**
+	 * A task failed permanently, or a message could not be read as a task at all.
+	 *
+	 * @param type the task type, or null if the message could not be read
+	 */
+	void failed(Class<? extends DeferredTask> type, Throwable failure);
+}
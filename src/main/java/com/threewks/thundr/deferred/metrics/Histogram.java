@@ -0,0 +1,102 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of non-negative values, cheap enough to record on every task. Values are counted in
+ * power of two buckets, so percentiles are accurate to within a factor of two, while the count, sum and maximum are
+ * exact. Negative values are counted as zero.
+ */
+public class Histogram {
+	private static final int Buckets = 64;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(Buckets);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		buckets.incrementAndGet(bucketOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getSum() {
+		return sum.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * @param quantile between 0 and 1, for example 0.99 for the 99th percentile
+	 * @return the upper bound of the bucket holding the given quantile, capped at the maximum recorded value, or 0 if
+	 *         nothing has been recorded
+	 */
+	public long getPercentile(double quantile) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(Math.min(Math.max(quantile, 0), 1) * n);
+		long seen = 0;
+		for (int i = 0; i < Buckets; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank && seen > 0) {
+				return Math.min(upperBoundOf(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Bucket 0 holds 0, bucket i holds values from 2^(i-1) to 2^i - 1.
+	 */
+	static int bucketOf(long value) {
+		return Math.min(Buckets - 1, 64 - Long.numberOfLeadingZeros(value));
+	}
+
+	static long upperBoundOf(int bucket) {
+		return bucket >= Buckets - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%s mean=%.1f p50=%s p99=%s max=%s", getCount(), getMean(), getPercentile(0.5), getPercentile(0.99), getMax());
+	}
+}
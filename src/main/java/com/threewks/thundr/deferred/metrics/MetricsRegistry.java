@@ -0,0 +1,174 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.threewks.thundr.deferred.task.DeferredTask;
+
+/**
+ * An in-process {@link DeferredTaskListener} which keeps counts of tasks through the pipeline and histograms of how
+ * long they waited on the queue, how long they took to read and run, and how many arrived in each batch.
+ * <p>
+ * Queue wait is only known for messages which record when they were enqueued, see
+ * {@link com.threewks.thundr.deferred.serializer.TaskSerializer#setRecordEnqueueTime(boolean)}. It is measured against
+ * the clock of the machine which enqueued the task, so skew between machines shows up in it.
+ */
+public class MetricsRegistry implements DeferredTaskListener {
+	private final AtomicLong enqueued = new AtomicLong();
+	private final AtomicLong deduplicated = new AtomicLong();
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong retried = new AtomicLong();
+	private final AtomicLong rateLimited = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final Histogram batchSize = new Histogram();
+	private final Histogram queueWaitMillis = new Histogram();
+	private final Histogram deserializeMicros = new Histogram();
+	private final ConcurrentMap<String, Histogram> runMicros = new ConcurrentHashMap<String, Histogram>();
+
+	@Override
+	public void enqueued(Class<? extends DeferredTask> type, int messageLength) {
+		enqueued.incrementAndGet();
+	}
+
+	@Override
+	public void deduplicated(Class<? extends DeferredTask> type) {
+		deduplicated.incrementAndGet();
+	}
+
+	@Override
+	public void received(int batchSize) {
+		received.addAndGet(batchSize);
+		this.batchSize.record(batchSize);
+	}
+
+	@Override
+	public void deserialized(Class<? extends DeferredTask> type, long deserializeNanos, long queueWaitMillis) {
+		deserializeMicros.record(TimeUnit.NANOSECONDS.toMicros(deserializeNanos));
+		if (queueWaitMillis >= 0) {
+			this.queueWaitMillis.record(queueWaitMillis);
+		}
+	}
+
+	@Override
+	public void started(Class<? extends DeferredTask> type) {
+	}
+
+	@Override
+	public void completed(Class<? extends DeferredTask> type, long runNanos) {
+		completed.incrementAndGet();
+		runTimeOf(type.getName()).record(TimeUnit.NANOSECONDS.toMicros(runNanos));
+	}
+
+	@Override
+	public void retried(Class<? extends DeferredTask> type, int attempt, long delayMillis) {
+		retried.incrementAndGet();
+	}
+
+	@Override
+	public void rateLimited(Class<? extends DeferredTask> type, long delayMillis) {
+		rateLimited.incrementAndGet();
+	}
+
+	@Override
+	public void failed(Class<? extends DeferredTask> type, Throwable failure) {
+		failed.incrementAndGet();
+	}
+
+	public long getEnqueued() {
+		return enqueued.get();
+	}
+
+	public long getDeduplicated() {
+		return deduplicated.get();
+	}
+
+	public long getReceived() {
+		return received.get();
+	}
+
+	public long getCompleted() {
+		return completed.get();
+	}
+
+	public long getRetried() {
+		return retried.get();
+	}
+
+	public long getRateLimited() {
+		return rateLimited.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return the number of messages in each non-empty batch received
+	 */
+	public Histogram getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @return milliseconds between a task being enqueued and received
+	 */
+	public Histogram getQueueWait() {
+		return queueWaitMillis;
+	}
+
+	/**
+	 * @return microseconds taken to read each task from its message
+	 */
+	public Histogram getDeserializeTime() {
+		return deserializeMicros;
+	}
+
+	/**
+	 * @return microseconds taken by each successful run of the given task type, empty if none have completed
+	 */
+	public Histogram getRunTime(Class<? extends DeferredTask> type) {
+		Histogram histogram = runMicros.get(type.getName());
+		return histogram == null ? new Histogram() : histogram;
+	}
+
+	/**
+	 * @return run time histograms keyed by task class name
+	 */
+	public Map<String, Histogram> getRunTimes() {
+		return Collections.unmodifiableMap(runMicros);
+	}
+
+	private Histogram runTimeOf(String type) {
+		Histogram histogram = runMicros.get(type);
+		if (histogram == null) {
+			Histogram created = new Histogram();
+			histogram = runMicros.putIfAbsent(type, created);
+			if (histogram == null) {
+				histogram = created;
+			}
+		}
+		return histogram;
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.monitor.loop;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.threewks.thundr.deferred.DeferredTaskService;
+import com.threewks.thundr.deferred.Defaults;
+import com.threewks.thundr.deferred.ThundrDeferredException;
+import com.threewks.thundr.deferred.monitor.QueueMonitor;
+import com.threewks.thundr.deferred.provider.BlockingQueueProvider;
+import com.threewks.thundr.deferred.provider.ReceiveFailedException;
+import com.threewks.thundr.logger.Logger;
+
+/**
+ * Queue monitor which runs dedicated consumer threads rather than polling on a schedule. Each consumer polls again as
+ * soon as a batch has completed, so a busy queue is drained without waiting for the next tick. When the queue is empty
+ * or cannot be read the consumer backs off exponentially, from {@link Defaults#ConsumerMinBackoffMillis} up to the
+ * configured maximum. If the queue provider is a {@link BlockingQueueProvider} the consumer waits on the queue instead
+ * of sleeping, so new messages are picked up as soon as they arrive.
+ * <p>
+ * A consumer never starts a poll until its previous batch has completed. With more than one consumer thread batches
+ * are received and run concurrently.
+ */
+public class ConsumerLoopQueueMonitor implements QueueMonitor, Closeable {
+	private static final long ShutdownTimeoutMillis = 30000;
+
+	private final DeferredTaskService deferredTaskService;
+	private final int consumers;
+	private final long maxBackoffMillis;
+	private final List<Thread> threads = new ArrayList<Thread>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition stopped = lock.newCondition();
+	private volatile boolean running;
+
+	public ConsumerLoopQueueMonitor(DeferredTaskService deferredTaskService) {
+		this(deferredTaskService, Defaults.ConsumerThreads, Defaults.ConsumerMaxBackoffMillis);
+	}
+
+	public ConsumerLoopQueueMonitor(DeferredTaskService deferredTaskService, String deferredConsumerThreads, String deferredConsumerMaxBackoff) {
+		this(deferredTaskService, Integer.parseInt(deferredConsumerThreads.trim()), Long.parseLong(deferredConsumerMaxBackoff.trim()));
+	}
+
+	/**
+	 * @param consumers number of consumer threads
+	 * @param maxBackoffMillis longest time a consumer waits between polls of an empty queue
+	 */
+	public ConsumerLoopQueueMonitor(DeferredTaskService deferredTaskService, int consumers, long maxBackoffMillis) {
+		if (consumers < 1) {
+			throw new ThundrDeferredException("Queue monitor needs at least one consumer thread but was: %s", consumers);
+		}
+		this.deferredTaskService = deferredTaskService;
+		this.consumers = consumers;
+		this.maxBackoffMillis = Math.max(Defaults.ConsumerMinBackoffMillis, maxBackoffMillis);
+	}
+
+	@Override
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		for (int i = 0; i < consumers; i++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					consume();
+				}
+			}, "deferred-consumer-" + (i + 1));
+			thread.setDaemon(true);
+			thread.start();
+			threads.add(thread);
+		}
+	}
+
+	/**
+	 * Stops the consumer threads, waiting for any batch in progress to complete.
+	 */
+	@Override
+	public synchronized void close() {
+		running = false;
+		lock.lock();
+		try {
+			stopped.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		for (Thread thread : threads) {
+			try {
+				thread.join(ShutdownTimeoutMillis);
+				if (thread.isAlive()) {
+					Logger.warn("Consumer %s did not stop in time, interrupting it.", thread.getName());
+					thread.interrupt();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		threads.clear();
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	public int getConsumers() {
+		return consumers;
+	}
+
+	public long getMaxBackoffMillis() {
+		return maxBackoffMillis;
+	}
+
+	void consume() {
+		boolean waitsOnQueue = deferredTaskService.getQueueProvider() instanceof BlockingQueueProvider;
+		long backoff = Defaults.ConsumerMinBackoffMillis;
+		while (running && !Thread.currentThread().isInterrupted()) {
+			int received;
+			boolean waited = waitsOnQueue;
+			try {
+				received = deferredTaskService.processQueue(waitsOnQueue ? backoff : 0, TimeUnit.MILLISECONDS);
+			} catch (ReceiveFailedException e) {
+				// back off rather than spin against a queue that is unavailable
+				Logger.error("An unexpected error occurred receiving deferred tasks. Reason: %s", e.getMessage());
+				received = 0;
+				waited = false;
+			} catch (ThundrDeferredException e) {
+				// the batch was received and run, but at least one of its tasks failed
+				Logger.error("An unexpected error occurred running deferred tasks. Reason: %s", e.getMessage());
+				received = 1;
+			} catch (RuntimeException e) {
+				Logger.error("An unexpected error occurred receiving deferred tasks. Reason: %s", e.getMessage());
+				received = 0;
+				waited = false;
+			}
+
+			if (received > 0) {
+				backoff = Defaults.ConsumerMinBackoffMillis;
+			} else {
+				if (!waited) {
+					pause(backoff);
+				}
+				backoff = Math.min(backoff * 2, maxBackoffMillis);
+			}
+		}
+	}
+
+	private void pause(long millis) {
+		lock.lock();
+		try {
+			long nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+			while (running && nanos > 0) {
+				nanos = stopped.awaitNanos(nanos);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			running = false;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.monitor.quartz;
+
+/**
+ * Polling interval which adapts to how busy the queue is. Each poll which receives a full batch halves the interval,
+ * down to the minimum, so bursts are drained quickly. Each poll which comes back empty doubles it, up to the maximum, so
+ * an idle queue costs few requests. A partial batch means the queue is keeping up, so the interval is left alone.
+ */
+public class AdaptivePollingInterval {
+	private final long minIntervalMillis;
+	private final long maxIntervalMillis;
+	private volatile long intervalMillis;
+
+	public AdaptivePollingInterval(long initialIntervalMillis, long minIntervalMillis, long maxIntervalMillis) {
+		this.minIntervalMillis = Math.max(1, minIntervalMillis);
+		this.maxIntervalMillis = Math.max(this.minIntervalMillis, maxIntervalMillis);
+		this.intervalMillis = clamp(initialIntervalMillis);
+	}
+
+	/**
+	 * Adjusts the interval for the outcome of a poll.
+	 *
+	 * @param received number of messages the poll received
+	 * @param batchSize most messages a poll can receive
+	 * @return the new interval in milliseconds
+	 */
+	public long record(int received, int batchSize) {
+		if (received > 0 && received < batchSize) {
+			return intervalMillis;
+		}
+		long next = clamp(received > 0 ? intervalMillis / 2 : intervalMillis * 2);
+		intervalMillis = next;
+		return next;
+	}
+
+	public long getIntervalMillis() {
+		return intervalMillis;
+	}
+
+	public long getMinIntervalMillis() {
+		return minIntervalMillis;
+	}
+
+	public long getMaxIntervalMillis() {
+		return maxIntervalMillis;
+	}
+
+	private long clamp(long interval) {
+		return Math.min(maxIntervalMillis, Math.max(minIntervalMillis, interval));
+	}
+}
@@ -25,6 +25,7 @@ import org.quartz.*;
 public class QuartzQueueMonitor implements QueueMonitor {
 	private QuartzScheduler scheduler;
 	private int monitorInterval = Defaults.QueueMonitorInterval;
+	private AdaptivePollingInterval adaptivePollingInterval;
 
 	public QuartzQueueMonitor(QuartzScheduler scheduler) {
 		this.scheduler = scheduler;
@@ -35,6 +36,19 @@ public class QuartzQueueMonitor implements QueueMonitor {
 		monitorInterval = Integer.parseInt(deferredQueueMonitorInterval);
 	}
 
+	/**
+	 * Polls at an interval which adapts to how busy the queue is, starting from the adaptive interval's initial value.
+	 */
+	public QuartzQueueMonitor(QuartzScheduler scheduler, AdaptivePollingInterval adaptivePollingInterval) {
+		this(scheduler);
+		this.adaptivePollingInterval = adaptivePollingInterval;
+	}
+
+	public QuartzQueueMonitor(QuartzScheduler scheduler, String deferredQueueMonitorInterval, AdaptivePollingInterval adaptivePollingInterval) {
+		this(scheduler, deferredQueueMonitorInterval);
+		this.adaptivePollingInterval = adaptivePollingInterval;
+	}
+
 	@Override
 	public void start() {
 		JobDetail monitorJob = JobBuilder.newJob(QuartzQueueMonitorJob.class)
@@ -46,10 +60,17 @@ public class QuartzQueueMonitor implements QueueMonitor {
 				.withIdentity("QueueMonitorJobTrigger")
 				.withSchedule(
 						SimpleScheduleBuilder.simpleSchedule()
-								.withIntervalInSeconds(monitorInterval)
+								.withIntervalInMilliseconds(getIntervalMillis())
 								.repeatForever())
 				.build();
 
 		scheduler.scheduleJob(monitorJob, trigger);
 	}
+
+	/**
+	 * @return the current polling interval in milliseconds
+	 */
+	public long getIntervalMillis() {
+		return adaptivePollingInterval == null ? monitorInterval * 1000L : adaptivePollingInterval.getIntervalMillis();
+	}
 }
@@ -17,29 +17,102 @@
  */
 package com.threewks.thundr.deferred.monitor.quartz;
 
+import java.util.Date;
+
+import org.quartz.DisallowConcurrentExecution;
 import org.quartz.JobExecutionContext;
 import org.quartz.JobExecutionException;
+import org.quartz.SchedulerException;
+import org.quartz.SimpleScheduleBuilder;
+import org.quartz.Trigger;
+import org.quartz.TriggerBuilder;
 
 import com.threewks.thundr.deferred.DeferredTaskService;
+import com.threewks.thundr.deferred.provider.InMemoryQueueProvider;
+import com.threewks.thundr.deferred.provider.JdbcQueueProvider;
+import com.threewks.thundr.deferred.provider.JournalQueueProvider;
+import com.threewks.thundr.deferred.provider.QueueProvider;
+import com.threewks.thundr.deferred.provider.SqsQueueProvider;
 import com.threewks.thundr.injection.InjectionContext;
+import com.threewks.thundr.logger.Logger;
 import com.threewks.thundr.quartz.BaseQuartzJob;
 
+@DisallowConcurrentExecution
 public class QuartzQueueMonitorJob extends BaseQuartzJob {
 	private DeferredTaskService deferredTaskService;
+	private AdaptivePollingInterval adaptivePollingInterval;
+	private int batchSize;
 
 	@Override
 	public void setInjectionContext(InjectionContext injectionContext) {
 		super.setInjectionContext(injectionContext);
 		deferredTaskService = injectionContext.get(DeferredTaskService.class);
+		if (injectionContext.contains(AdaptivePollingInterval.class)) {
+			adaptivePollingInterval = injectionContext.get(AdaptivePollingInterval.class);
+			batchSize = batchSize(deferredTaskService.getQueueProvider());
+		}
 	}
 
 	@Override
 	public void execute(JobExecutionContext context) throws JobExecutionException {
+		int received;
 		try {
-			deferredTaskService.processQueue();
+			received = deferredTaskService.processQueue();
 		} catch (Exception e) {
 			String msg = String.format("An unexpected error occurred running deferred tasks. Reason: %s", e.getMessage());
 			throw new JobExecutionException(msg, e);
 		}
+		adapt(context, received);
+	}
+
+	private void adapt(JobExecutionContext context, int received) {
+		if (adaptivePollingInterval == null || context == null) {
+			return;
+		}
+		long previous = adaptivePollingInterval.getIntervalMillis();
+		long interval = adaptivePollingInterval.record(received, batchSize);
+		if (interval != previous) {
+			Logger.debug("Changing queue monitor interval from %sms to %sms", previous, interval);
+			reschedule(context, interval);
+		}
+	}
+
+	/**
+	 * @return the most messages one poll of the provider can receive, or 1 where that is not known so that any
+	 *         messages count as a full batch
+	 */
+	static int batchSize(QueueProvider queueProvider) {
+		if (queueProvider instanceof InMemoryQueueProvider) {
+			return ((InMemoryQueueProvider) queueProvider).getBatchSize();
+		}
+		if (queueProvider instanceof JournalQueueProvider) {
+			return ((JournalQueueProvider) queueProvider).getSettings().getBatchSize();
+		}
+		if (queueProvider instanceof JdbcQueueProvider) {
+			return ((JdbcQueueProvider) queueProvider).getSettings().getBatchSize();
+		}
+		if (queueProvider instanceof SqsQueueProvider) {
+			return ((SqsQueueProvider) queueProvider).getSettings().getMaxMessages();
+		}
+		return 1;
+	}
+
+	private void reschedule(JobExecutionContext context, long interval) {
+		Trigger current = context.getTrigger();
+		Trigger trigger = TriggerBuilder
+				.newTrigger()
+				.withIdentity(current.getKey())
+				.forJob(current.getJobKey())
+				.startAt(new Date(System.currentTimeMillis() + interval))
+				.withSchedule(
+						SimpleScheduleBuilder.simpleSchedule()
+								.withIntervalInMilliseconds(interval)
+								.repeatForever())
+				.build();
+		try {
+			context.getScheduler().rescheduleJob(current.getKey(), trigger);
+		} catch (SchedulerException e) {
+			Logger.warn("Failed to change queue monitor interval to %sms. Reason: %s", interval, e.getMessage());
+		}
 	}
 }
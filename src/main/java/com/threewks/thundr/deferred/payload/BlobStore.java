@@ -0,0 +1,41 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.payload;
+
+/**
+ * Stores task payloads that are too large to send through the queue. Only a reference to the stored payload is put on
+ * the queue (the claim-check pattern), so every node consuming the queue must be able to read from the store.
+ */
+public interface BlobStore {
+	/**
+	 * Stores the given data.
+	 *
+	 * @return the key the data can be retrieved with
+	 */
+	String put(byte[] data);
+
+	/**
+	 * @return the data stored under the given key
+	 */
+	byte[] get(String key);
+
+	/**
+	 * Deletes the data stored under the given key, if any.
+	 */
+	void delete(String key);
+}
@@ -0,0 +1,105 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.payload;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+import com.threewks.thundr.deferred.ThundrDeferredException;
+
+/**
+ * Blob store which keeps payloads as files in a local directory. Intended for testing and single node deployments, or
+ * for a directory on a shared file system.
+ */
+public class FileSystemBlobStore implements BlobStore {
+	private final File directory;
+
+	public FileSystemBlobStore(String deferredBlobStoreDirectory) {
+		this(new File(deferredBlobStoreDirectory));
+	}
+
+	public FileSystemBlobStore(File directory) {
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new ThundrDeferredException("Unable to create blob store directory %s", directory.getAbsolutePath());
+		}
+	}
+
+	@Override
+	public String put(byte[] data) {
+		String key = UUID.randomUUID().toString();
+		File temp = new File(directory, key + ".tmp");
+		try {
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(data);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			temp.delete();
+			throw new ThundrDeferredException(e, "Unable to write blob %s. Reason: %s", key, e.getMessage());
+		}
+		if (!temp.renameTo(fileFor(key))) {
+			temp.delete();
+			throw new ThundrDeferredException("Unable to write blob %s", key);
+		}
+		return key;
+	}
+
+	@Override
+	public byte[] get(String key) {
+		File file = fileFor(key);
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				byte[] data = new byte[(int) file.length()];
+				int read = 0;
+				while (read < data.length) {
+					int count = in.read(data, read, data.length - read);
+					if (count < 0) {
+						break;
+					}
+					read += count;
+				}
+				return data;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new ThundrDeferredException(e, "Unable to read blob %s. Reason: %s", key, e.getMessage());
+		}
+	}
+
+	@Override
+	public void delete(String key) {
+		fileFor(key).delete();
+	}
+
+	private File fileFor(String key) {
+		if (key.indexOf('/') >= 0 || key.indexOf('\\') >= 0 || key.startsWith(".")) {
+			throw new ThundrDeferredException("Invalid blob key %s", key);
+		}
+		return new File(directory, key);
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.payload;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.threewks.thundr.deferred.Defaults;
+import com.threewks.thundr.deferred.ThundrDeferredException;
+import com.threewks.thundr.logger.Logger;
+
+/**
+ * Sits between the task serializer and the queue provider, keeping large messages small enough to queue.
+ * <p>
+ * Messages longer than the compression threshold are deflated and sent as <code>z1:base64</code>, provided that is
+ * actually smaller. Messages which are still longer than the claim-check threshold, compressed or not, are put in the
+ * {@link BlobStore} and only <code>c1:key</code> is sent. Anything else is sent unchanged. Decoding reverses whichever of these was applied.
+ */
+public class PayloadCodec {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String CompressedPrefix = "z1:";
+	private static final String ClaimCheckPrefix = "c1:";
+
+	private final int compressThreshold;
+	private final int claimCheckThreshold;
+	private final BlobStore blobStore;
+
+	public PayloadCodec() {
+		this(Defaults.CompressThreshold, Defaults.ClaimCheckThreshold, null);
+	}
+
+	/**
+	 * @param compressThreshold messages longer than this are compressed. Zero or less disables compression.
+	 * @param claimCheckThreshold messages still longer than this after any compression are put in the blob store,
+	 *            whether or not compression is enabled
+	 * @param blobStore where large messages are stored, or null to always send them inline
+	 */
+	public PayloadCodec(int compressThreshold, int claimCheckThreshold, BlobStore blobStore) {
+		this.compressThreshold = compressThreshold;
+		this.claimCheckThreshold = claimCheckThreshold;
+		this.blobStore = blobStore;
+	}
+
+	public int getCompressThreshold() {
+		return compressThreshold;
+	}
+
+	public int getClaimCheckThreshold() {
+		return claimCheckThreshold;
+	}
+
+	public BlobStore getBlobStore() {
+		return blobStore;
+	}
+
+	public String encode(String message) {
+		String encoded = message;
+		byte[] compressed = null;
+		if (compressThreshold > 0 && message.length() > compressThreshold) {
+			compressed = deflate(message.getBytes(UTF8));
+			String deflated = CompressedPrefix + new String(Base64.encodeBase64(compressed), UTF8);
+			if (deflated.length() < message.length()) {
+				encoded = deflated;
+			}
+		}
+		if (blobStore != null && encoded.length() > claimCheckThreshold) {
+			if (compressed == null) {
+				// blobs are always stored deflated, whether or not the message would have been compressed inline
+				compressed = deflate(message.getBytes(UTF8));
+			}
+			String key = blobStore.put(compressed);
+			Logger.debug("Stored %s byte task payload in blob store as %s", compressed.length, key);
+			return ClaimCheckPrefix + key;
+		}
+		return encoded;
+	}
+
+	public String decode(String encoded) {
+		if (encoded.startsWith(CompressedPrefix)) {
+			return inflate(Base64.decodeBase64(encoded.substring(CompressedPrefix.length()).getBytes(UTF8)));
+		}
+		if (encoded.startsWith(ClaimCheckPrefix)) {
+			return inflate(blobStore().get(encoded.substring(ClaimCheckPrefix.length())));
+		}
+		return encoded;
+	}
+
+	/**
+	 * Deletes anything stored in the blob store for the given encoded message. Call once the message has been
+	 * processed and will not be delivered again.
+	 */
+	public void release(String encoded) {
+		if (encoded.startsWith(ClaimCheckPrefix)) {
+			blobStore().delete(encoded.substring(ClaimCheckPrefix.length()));
+		}
+	}
+
+	private BlobStore blobStore() {
+		if (blobStore == null) {
+			throw new ThundrDeferredException("Received a claim-check task message but no blob store is configured");
+		}
+		return blobStore;
+	}
+
+	private static byte[] deflate(byte[] data) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished()) {
+				out.write(buffer, 0, deflater.deflate(buffer));
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static String inflate(byte[] data) {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+			byte[] buffer = new byte[8192];
+			while (!inflater.finished()) {
+				int count = inflater.inflate(buffer);
+				if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new ThundrDeferredException("Compressed task payload is truncated");
+				}
+				out.write(buffer, 0, count);
+			}
+			return new String(out.toByteArray(), UTF8);
+		} catch (DataFormatException e) {
+			throw new ThundrDeferredException(e, "Compressed task payload is corrupt. Reason: %s", e.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.provider;
+
+import java.util.List;
+
+/**
+ * A queue provider whose messages stay on the queue after being received until they are explicitly acknowledged.
+ * Messages that are never acknowledged, for instance because the node processing them died, are delivered again.
+ */
+public interface AcknowledgingQueueProvider extends QueueProvider {
+	/**
+	 * Receives messages without removing them from the queue.
+	 */
+	public List<ReceivedMessage> receiveMessages();
+
+	/**
+	 * Removes messages that have been processed from the queue.
+	 */
+	public void ack(List<ReceivedMessage> messages);
+
+	/**
+	 * Returns messages that could not be processed to the queue so that they can be delivered again.
+	 */
+	public void nack(List<ReceivedMessage> messages);
+}
@@ -0,0 +1,77 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.provider;
+
+import com.threewks.thundr.deferred.Defaults;
+
+/**
+ * Limits on how much the {@link InMemoryQueueProvider} holds, and what it does with messages sent once it is full.
+ * When the in memory queue provider is configured, {@link com.threewks.thundr.deferred.DeferredModule} populates these
+ * from the `deferredInMemory*` and `deferredOverflow*` properties in your application.properties.
+ */
+public class AdmissionSettings {
+	private int capacity = Defaults.InMemoryQueueCapacity;
+	private long maxBytes = Defaults.InMemoryMaxBytes;
+	private OverflowPolicy overflowPolicy = Defaults.OverflowPolicy;
+	private long blockTimeoutMillis = Defaults.OverflowBlockTimeoutMillis;
+
+	/**
+	 * Maximum number of pending messages, including delayed messages. Zero or less means unbounded.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public void setCapacity(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Maximum total size in bytes of pending messages encoded as UTF-8, including delayed messages. Zero or less means
+	 * unbounded. A single message bigger than this is still admitted when nothing else is pending.
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * What happens to a message sent while the queue is full.
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * Milliseconds sending waits for room under {@link OverflowPolicy#Block}.
+	 */
+	public long getBlockTimeoutMillis() {
+		return blockTimeoutMillis;
+	}
+
+	public void setBlockTimeoutMillis(long blockTimeoutMillis) {
+		this.blockTimeoutMillis = blockTimeoutMillis;
+	}
+}
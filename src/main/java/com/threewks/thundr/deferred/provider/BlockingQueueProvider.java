@@ -0,0 +1,44 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.provider;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A queue provider which can hand out bounded batches and let a consumer wait for messages to arrive, rather than
+ * relying on the queue monitor's next poll.
+ */
+public interface BlockingQueueProvider extends QueueProvider {
+	/**
+	 * Receives at most the given number of messages without waiting.
+	 */
+	public List<String> receive(int maxMessages);
+
+	/**
+	 * Receives at most the given number of messages, waiting up to the given timeout for at least one to arrive. An
+	 * empty list is returned if the timeout elapses first.
+	 */
+	public List<String> receive(int maxMessages, long timeout, TimeUnit unit) throws InterruptedException;
+
+	/**
+	 * Receives a batch of messages as {@link #receive()} would, waiting up to the given timeout for at least one to
+	 * arrive. An empty list is returned if the timeout elapses first.
+	 */
+	public List<String> receive(long timeout, TimeUnit unit) throws InterruptedException;
+}
@@ -0,0 +1,44 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.provider;
+
+/**
+ * A queue provider which only admits messages while it has room for them, and can report how close it is to full.
+ * <p>
+ * A new message its overflow policy drops instead of queuing is reported by sending it failing with a
+ * {@link MessageDroppedException}. Messages already queued which are dropped to make room are reported to the
+ * {@link DropListener}.
+ */
+public interface BoundedQueueProvider extends QueueProvider {
+	/**
+	 * @return how full the queue is, from 0 when empty or unbounded to 1 when full
+	 */
+	double pressure();
+
+	/**
+	 * Sets the listener told about queued messages dropped to make room, replacing any set before.
+	 */
+	void setDropListener(DropListener listener);
+
+	interface DropListener {
+		/**
+		 * Called with a message which was queued and has been dropped, so anything it refers to can be released.
+		 */
+		void dropped(String message);
+	}
+}
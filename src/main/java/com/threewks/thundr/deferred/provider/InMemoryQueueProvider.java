@@ -17,23 +17,532 @@
  */
 package com.threewks.thundr.deferred.provider;
 
+import java.io.Closeable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class InMemoryQueueProvider implements QueueProvider {
-	private List<String> queue = new ArrayList<String>();
+import com.threewks.thundr.deferred.Defaults;
+import com.threewks.thundr.logger.Logger;
+
+/**
+ * Queue provider backed by lock-free queues in local memory, one per {@link Priority}. Sending never takes a lock, the
+ * lock is only used to wake consumers that are blocked waiting for messages. Delayed messages are held on a
+ * {@link TimerWheel} until they are due, and are then queued at normal priority.
+ * <p>
+ * While only normal priority messages are waiting, receiving does not consult the {@link PriorityPolicy} at all.
+ * <p>
+ * The queue can be bounded by number of messages and by their total size in UTF-8 bytes, see
+ * {@link AdmissionSettings}. Once full, messages sent are handled by the {@link OverflowPolicy}.
+ */
+public class InMemoryQueueProvider implements BlockingQueueProvider, DelayingQueueProvider, PrioritizingQueueProvider, DeduplicatingQueueProvider, BoundedQueueProvider, Closeable {
+	private static final int NormalLevel = Priority.Normal.ordinal();
+	private static final long TimerTickMillis = 10;
+	private static final int TimerWheelSize = 512;
+
+	private final List<Queue<String>> levels = new ArrayList<Queue<String>>(PriorityScheduler.Levels);
+	private final AtomicIntegerArray queued = new AtomicIntegerArray(PriorityScheduler.Levels);
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicInteger waiting = new AtomicInteger();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicInteger blocked = new AtomicInteger();
+	private final AtomicLong dropped = new AtomicLong();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final int capacity;
+	private final long maxBytes;
+	private final OverflowPolicy overflowPolicy;
+	private final long blockTimeoutMillis;
+	private final int batchSize;
+	private final PriorityScheduler scheduler;
+	private final ConcurrentMap<String, String> pendingKeys = new ConcurrentHashMap<String, String>();
+	private final ConcurrentMap<String, String> keysByMessage = new ConcurrentHashMap<String, String>();
+	private volatile DropListener dropListener;
+	private final TimerWheel<String> delayed = new TimerWheel<String>(TimerTickMillis, TimeUnit.MILLISECONDS, TimerWheelSize, new TimerWheel.Expiry<String>() {
+		@Override
+		public void expired(String message) {
+			enqueue(message, NormalLevel);
+		}
+	});
+
+	public InMemoryQueueProvider() {
+		this(Defaults.InMemoryQueueCapacity, Defaults.InMemoryBatchSize);
+	}
+
+	public InMemoryQueueProvider(String deferredInMemoryQueueCapacity) {
+		this(Integer.parseInt(deferredInMemoryQueueCapacity), Defaults.InMemoryBatchSize);
+	}
+
+	public InMemoryQueueProvider(String deferredInMemoryQueueCapacity, String deferredInMemoryBatchSize) {
+		this(Integer.parseInt(deferredInMemoryQueueCapacity), Integer.parseInt(deferredInMemoryBatchSize));
+	}
+
+	public InMemoryQueueProvider(String deferredInMemoryQueueCapacity, String deferredInMemoryBatchSize, String deferredPriorityPolicy, String deferredPriorityWeights) {
+		this(Integer.parseInt(deferredInMemoryQueueCapacity), Integer.parseInt(deferredInMemoryBatchSize),
+				PriorityPolicy.valueOf(deferredPriorityPolicy), PriorityScheduler.parseWeights(deferredPriorityWeights));
+	}
+
+	/**
+	 * @param capacity maximum number of pending messages. Zero or less means unbounded.
+	 * @param batchSize maximum number of messages returned by {@link #receive()}
+	 */
+	public InMemoryQueueProvider(int capacity, int batchSize) {
+		this(capacity, batchSize, Defaults.PriorityPolicy, Defaults.PriorityWeights);
+	}
+
+	/**
+	 * @param priorityPolicy how each batch is shared between priorities
+	 * @param priorityWeights the share of each batch for high, normal and low priority messages when the policy is
+	 *            {@link PriorityPolicy#Weighted}
+	 */
+	public InMemoryQueueProvider(int capacity, int batchSize, PriorityPolicy priorityPolicy, int[] priorityWeights) {
+		this(admission(capacity), batchSize, priorityPolicy, priorityWeights);
+	}
+
+	/**
+	 * @param admission how much the queue holds and what happens to messages sent once it is full
+	 */
+	public InMemoryQueueProvider(AdmissionSettings admission, int batchSize, PriorityPolicy priorityPolicy, int[] priorityWeights) {
+		this.capacity = admission.getCapacity();
+		this.maxBytes = admission.getMaxBytes();
+		this.overflowPolicy = admission.getOverflowPolicy();
+		this.blockTimeoutMillis = admission.getBlockTimeoutMillis();
+		this.batchSize = batchSize;
+		this.scheduler = new PriorityScheduler(priorityPolicy, priorityWeights);
+		for (int level = 0; level < PriorityScheduler.Levels; level++) {
+			levels.add(new ConcurrentLinkedQueue<String>());
+		}
+	}
 
 	@Override
 	public void send(String message) {
-		queue.add(message);
+		offer(message, NormalLevel);
+	}
+
+	/**
+	 * Messages with the same body always have the same key, so the key of a pending message is found by its body when
+	 * it is received.
+	 */
+	@Override
+	public boolean send(String message, String key) {
+		if (pendingKeys.putIfAbsent(key, message) != null) {
+			return false;
+		}
+		keysByMessage.put(message, key);
+		try {
+			offer(message, NormalLevel);
+		} catch (RuntimeException e) {
+			keysByMessage.remove(message);
+			pendingKeys.remove(key, message);
+			throw e;
+		}
+		return true;
+	}
+
+	@Override
+	public void send(String message, Priority priority) {
+		offer(message, priority.ordinal());
+	}
+
+	/**
+	 * Holds the message back until the delay has elapsed. Delayed messages count towards the queue's capacity.
+	 */
+	@Override
+	public void send(String message, long delay, TimeUnit unit) {
+		if (delay <= 0) {
+			send(message);
+			return;
+		}
+		admit(message, NormalLevel);
+		delayed.schedule(message, delay, unit);
 	}
 
 	@Override
 	public List<String> receive() {
-		List<String> items = new ArrayList<String>(queue);
+		return receive(batchSize);
+	}
+
+	@Override
+	public List<String> receive(int maxMessages) {
+		List<String> items = take(maxMessages);
+		if (!keysByMessage.isEmpty()) {
+			releaseKeys(items);
+		}
+		return items;
+	}
+
+	private List<String> take(int maxMessages) {
+		if (queued.get(Priority.High.ordinal()) <= 0 && queued.get(Priority.Low.ordinal()) <= 0) {
+			return orEmpty(poll(null, NormalLevel, maxMessages));
+		}
+		int[] available = new int[PriorityScheduler.Levels];
+		for (int level = 0; level < available.length; level++) {
+			available[level] = queued.get(level);
+		}
+		int[] allocation = scheduler.allocate(maxMessages, available);
+		List<String> items = null;
+		for (int level = 0; level < allocation.length; level++) {
+			items = poll(items, level, allocation[level]);
+		}
+		// other consumers may have taken some of what was allocated, so top up from the highest priority down
+		for (int level = 0; level < allocation.length && size(items) < maxMessages; level++) {
+			items = poll(items, level, maxMessages - size(items));
+		}
+		return orEmpty(items);
+	}
+
+	@Override
+	public List<String> receive(long timeout, TimeUnit unit) throws InterruptedException {
+		return receive(batchSize, timeout, unit);
+	}
+
+	@Override
+	public List<String> receive(int maxMessages, long timeout, TimeUnit unit) throws InterruptedException {
+		List<String> items = receive(maxMessages);
+		if (!items.isEmpty()) {
+			return items;
+		}
+
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			waiting.incrementAndGet();
+			try {
+				while (isEmpty() && nanos > 0) {
+					nanos = notEmpty.awaitNanos(nanos);
+				}
+			} finally {
+				waiting.decrementAndGet();
+			}
+		} finally {
+			lock.unlock();
+		}
+		return receive(maxMessages);
+	}
+
+	/**
+	 * @return the number of consumers blocked waiting for a message
+	 */
+	int waiting() {
+		return waiting.get();
+	}
+
+	/**
+	 * @return the number of messages waiting to be received, including delayed messages which are not yet due
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * @return the total size in UTF-8 bytes of messages waiting to be received, or 0 if the queue is not bounded by
+	 *         size
+	 */
+	public long bytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * @return the number of messages dropped by the overflow policy to keep within the queue's bounds
+	 */
+	public long dropped() {
+		return dropped.get();
+	}
+
+	@Override
+	public void setDropListener(DropListener dropListener) {
+		this.dropListener = dropListener;
+	}
+
+	@Override
+	public double pressure() {
+		double pressure = 0;
+		if (capacity > 0) {
+			pressure = (double) size.get() / capacity;
+		}
+		if (maxBytes > 0) {
+			pressure = Math.max(pressure, (double) bytes.get() / maxBytes);
+		}
+		return Math.min(1, pressure);
+	}
+
+	/**
+	 * @return the number of delayed messages which are not yet due
+	 */
+	public int delayed() {
+		return delayed.pending();
+	}
+
+	/**
+	 * Stops releasing delayed messages.
+	 */
+	@Override
+	public void close() {
+		delayed.close();
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
 
-		queue.clear();
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public long getBlockTimeoutMillis() {
+		return blockTimeoutMillis;
+	}
+
+	public PriorityPolicy getPriorityPolicy() {
+		return scheduler.getPolicy();
+	}
+
+	public int[] getPriorityWeights() {
+		return scheduler.getWeights();
+	}
 
+	/**
+	 * Takes up to the given number of messages from one level, adding them to items. Items are only allocated once
+	 * there is a message to add.
+	 */
+	private List<String> poll(List<String> items, int level, int maxMessages) {
+		Queue<String> queue = levels.get(level);
+		int taken = 0;
+		String message;
+		while (taken < maxMessages && (message = queue.poll()) != null) {
+			queued.decrementAndGet(level);
+			release(message);
+			if (items == null) {
+				items = new ArrayList<String>(Math.min(maxMessages, size.get() + 1));
+			}
+			items.add(message);
+			taken++;
+		}
+		if (taken > 0 && blocked.get() > 0) {
+			signal(notFull);
+		}
 		return items;
 	}
+
+	private void releaseKeys(List<String> items) {
+		for (String message : items) {
+			String key = keysByMessage.remove(message);
+			if (key != null) {
+				pendingKeys.remove(key, message);
+			}
+		}
+	}
+
+	private static int size(List<String> items) {
+		return items == null ? 0 : items.size();
+	}
+
+	private static List<String> orEmpty(List<String> items) {
+		return items == null ? Collections.<String> emptyList() : items;
+	}
+
+	private boolean isEmpty() {
+		for (Queue<String> queue : levels) {
+			if (!queue.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void offer(String message, int level) {
+		admit(message, level);
+		enqueue(message, level);
+	}
+
+	/**
+	 * Reserves room for the message, applying the overflow policy if there is none.
+	 *
+	 * @throws MessageDroppedException if the overflow policy dropped the message instead
+	 */
+	private void admit(String message, int level) {
+		long length = maxBytes > 0 ? utf8Length(message) : 0;
+		if (tryReserve(length)) {
+			return;
+		}
+		switch (overflowPolicy) {
+		case Block:
+			awaitRoom(length);
+			return;
+		case DropOldest:
+		case DropLowestPriority:
+			do {
+				if (!dropFor(level)) {
+					if (overflowPolicy == OverflowPolicy.DropLowestPriority) {
+						dropped.incrementAndGet();
+						Logger.warn("In memory queue is full, dropped a new %s priority message", Priority.values()[level]);
+						throw new MessageDroppedException("In memory queue is full, dropped a new %s priority message", Priority.values()[level]);
+					}
+					throw full();
+				}
+			} while (!tryReserve(length));
+			return;
+		default:
+			throw full();
+		}
+	}
+
+	private boolean tryReserve(long length) {
+		if (capacity > 0) {
+			int current;
+			do {
+				current = size.get();
+				if (current >= capacity) {
+					return false;
+				}
+			} while (!size.compareAndSet(current, current + 1));
+		} else {
+			size.incrementAndGet();
+		}
+		if (maxBytes > 0) {
+			long total = bytes.addAndGet(length);
+			if (total > maxBytes && total > length) {
+				bytes.addAndGet(-length);
+				size.decrementAndGet();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void release(String message) {
+		size.decrementAndGet();
+		if (maxBytes > 0) {
+			bytes.addAndGet(-utf8Length(message));
+		}
+	}
+
+	private void awaitRoom(long length) {
+		long nanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+		blocked.incrementAndGet();
+		lock.lock();
+		try {
+			while (!tryReserve(length)) {
+				if (nanos <= 0) {
+					throw full();
+				}
+				nanos = notFull.awaitNanos(nanos);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new QueueFullException(e, "Interrupted waiting for room in the in memory queue");
+		} finally {
+			lock.unlock();
+			blocked.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Drops a waiting message to make room for one of the given priority level. Delayed messages are never dropped.
+	 *
+	 * @return false if there was no message the overflow policy allows to be dropped
+	 */
+	private boolean dropFor(int level) {
+		if (overflowPolicy == OverflowPolicy.DropOldest && drop(level)) {
+			return true;
+		}
+		int highest = overflowPolicy == OverflowPolicy.DropOldest ? 0 : level;
+		for (int candidate = PriorityScheduler.Levels - 1; candidate >= highest; candidate--) {
+			if (drop(candidate)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean drop(int level) {
+		String message = levels.get(level).poll();
+		if (message == null) {
+			return false;
+		}
+		queued.decrementAndGet(level);
+		release(message);
+		if (!keysByMessage.isEmpty()) {
+			releaseKeys(Collections.singletonList(message));
+		}
+		dropped.incrementAndGet();
+		Logger.warn("In memory queue is full, dropped the oldest %s priority message", Priority.values()[level]);
+		DropListener listener = dropListener;
+		if (listener != null) {
+			listener.dropped(message);
+		}
+		return true;
+	}
+
+	private QueueFullException full() {
+		if (maxBytes > 0) {
+			return new QueueFullException("In memory queue is full. Capacity: %s, max bytes: %s", capacity, maxBytes);
+		}
+		return new QueueFullException("In memory queue is full. Capacity: %s", capacity);
+	}
+
+	private void enqueue(String message, int level) {
+		levels.get(level).offer(message);
+		queued.incrementAndGet(level);
+		if (waiting.get() > 0) {
+			signal(notEmpty);
+		}
+	}
+
+	private void signal(Condition condition) {
+		lock.lock();
+		try {
+			condition.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the length of the message encoded as UTF-8, without encoding it
+	 */
+	static long utf8Length(String message) {
+		long length = 0;
+		for (int i = 0; i < message.length(); i++) {
+			char c = message.charAt(i);
+			if (c < 0x80) {
+				length++;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < message.length() && Character.isLowSurrogate(message.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	private static AdmissionSettings admission(int capacity) {
+		AdmissionSettings admission = new AdmissionSettings();
+		admission.setCapacity(capacity);
+		admission.setMaxBytes(0);
+		admission.setOverflowPolicy(OverflowPolicy.Reject);
+		return admission;
+	}
 }
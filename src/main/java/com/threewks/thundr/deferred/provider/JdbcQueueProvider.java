@@ -0,0 +1,537 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.provider;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.sql.DataSource;
+
+import com.threewks.thundr.deferred.ThundrDeferredException;
+import com.threewks.thundr.logger.Logger;
+
+/**
+ * Queue provider which keeps messages in a database table, so that every node using the same database shares the
+ * work. Each queue is a set of rows in the table, identified by the queue name.
+ * <p>
+ * A message is claimed by setting a lease on its row, which hides it from other nodes until the lease expires.
+ * Claiming is a conditional update, so it works on any database. Each receive chooses at random among the oldest
+ * messages available, so concurrent receivers rarely compete for the same rows. Acknowledging a message deletes its
+ * row and a message that is never acknowledged can be claimed again once its lease expires.
+ * <p>
+ * Messages sent at the same time are inserted together. The first sender inserts everything waiting in one batch
+ * and one transaction, while the others wait for it to commit. Sending returns once the message has been committed.
+ * To enqueue tasks as part of your own transaction instead, see {@link #joinTransaction(Connection)}.
+ * <p>
+ * Use {@link #createTable()} to create the table, or create it yourself with the columns id VARCHAR(36) primary key,
+ * queue_name VARCHAR(255), body (a large text column), visible_at BIGINT and lease VARCHAR(36), and an index on
+ * (queue_name, visible_at).
+ */
+public class JdbcQueueProvider implements AcknowledgingQueueProvider, DelayingQueueProvider {
+	public static final String DefaultQueueName = "default";
+
+	/**
+	 * How many more candidates than the batch size to choose claims from.
+	 */
+	private static final int CandidateFactor = 4;
+	private static final AtomicInteger sequence = new AtomicInteger();
+	private static final Random random = new Random();
+
+	private final DataSource dataSource;
+	private final String queueName;
+	private final JdbcSettings settings;
+	private final Queue<PendingInsert> pending = new ConcurrentLinkedQueue<PendingInsert>();
+	private final ReentrantLock insertLock = new ReentrantLock();
+	private final ThreadLocal<Connection> joined = new ThreadLocal<Connection>();
+	private final String insertSql;
+	private final String candidatesSql;
+	private final String claimSql;
+	private final String claimedSql;
+	private final String deleteSql;
+	private final String releaseSql;
+	private final String countSql;
+
+	public JdbcQueueProvider(DataSource dataSource) {
+		this(dataSource, DefaultQueueName, new JdbcSettings());
+	}
+
+	public JdbcQueueProvider(DataSource dataSource, String queueName, JdbcSettings settings) {
+		this.dataSource = dataSource;
+		this.queueName = queueName;
+		this.settings = settings;
+		String table = settings.getTable();
+		this.insertSql = "INSERT INTO " + table + " (id, queue_name, body, visible_at, lease) VALUES (?, ?, ?, ?, NULL)";
+		this.candidatesSql = "SELECT id FROM " + table + " WHERE queue_name = ? AND visible_at <= ? ORDER BY visible_at, id";
+		this.claimSql = "UPDATE " + table + " SET lease = ?, visible_at = ? WHERE id = ? AND visible_at <= ?";
+		this.claimedSql = "SELECT id, body FROM " + table + " WHERE lease = ? AND id IN (";
+		this.deleteSql = "DELETE FROM " + table + " WHERE id = ?";
+		this.releaseSql = "UPDATE " + table + " SET lease = NULL, visible_at = ? WHERE id = ? AND lease = ?";
+		this.countSql = "SELECT COUNT(*) FROM " + table + " WHERE queue_name = ?";
+	}
+
+	/**
+	 * @return a provider for another queue in the same table, sharing this provider's data source and settings
+	 */
+	public JdbcQueueProvider forQueue(String queueName) {
+		return new JdbcQueueProvider(dataSource, queueName, settings);
+	}
+
+	/**
+	 * Creates the table and its index, unless the table already exists. The body column is a CLOB, so on databases
+	 * without CLOB (e.g. PostgreSQL and MySQL) create the table yourself with a TEXT body instead.
+	 */
+	public void createTable() {
+		final String table = settings.getTable();
+		try {
+			transaction(new Work<Void>() {
+				@Override
+				public Void execute(Connection connection) throws SQLException {
+					Statement statement = connection.createStatement();
+					try {
+						statement.execute("CREATE TABLE " + table + " (id VARCHAR(36) NOT NULL PRIMARY KEY, queue_name VARCHAR(255) NOT NULL, "
+								+ "body CLOB NOT NULL, visible_at BIGINT NOT NULL, lease VARCHAR(36))");
+						statement.execute("CREATE INDEX " + table + "_visible ON " + table + " (queue_name, visible_at)");
+					} finally {
+						statement.close();
+					}
+					return null;
+				}
+			});
+			Logger.info("Created deferred queue table %s", table);
+		} catch (SQLException e) {
+			if (tableExists()) {
+				return;
+			}
+			throw new ThundrDeferredException(e, "Unable to create deferred queue table %s: %s", table, e.getMessage());
+		}
+	}
+
+	/**
+	 * Makes sends on the current thread use the given connection, until {@link #leaveTransaction()} is called. They
+	 * are inserted without being committed, so the messages are only queued if the caller commits the connection's
+	 * transaction, and are discarded if it rolls back.
+	 */
+	public void joinTransaction(Connection connection) {
+		joined.set(connection);
+	}
+
+	/**
+	 * Stops sends on the current thread using the connection given to {@link #joinTransaction(Connection)}.
+	 */
+	public void leaveTransaction() {
+		joined.remove();
+	}
+
+	@Override
+	public void send(String message) {
+		insert(new PendingInsert(message, 0));
+	}
+
+	@Override
+	public void send(String message, long delay, TimeUnit unit) {
+		insert(new PendingInsert(message, Math.max(0, unit.toMillis(delay))));
+	}
+
+	/**
+	 * Claims a batch of messages and acknowledges them straight away, so they will not be delivered again.
+	 */
+	@Override
+	public List<String> receive() {
+		List<ReceivedMessage> messages = receiveMessages();
+		ack(messages);
+		List<String> bodies = new ArrayList<String>(messages.size());
+		for (ReceivedMessage message : messages) {
+			bodies.add(message.getBody());
+		}
+		return bodies;
+	}
+
+	@Override
+	public List<ReceivedMessage> receiveMessages() {
+		final long now = System.currentTimeMillis();
+		final String lease = UUID.randomUUID().toString();
+		try {
+			return transaction(new Work<List<ReceivedMessage>>() {
+				@Override
+				public List<ReceivedMessage> execute(Connection connection) throws SQLException {
+					List<String> candidates = selectCandidates(connection, now);
+					if (candidates.isEmpty()) {
+						return Collections.emptyList();
+					}
+					List<String> ids = choose(candidates);
+					PreparedStatement claim = connection.prepareStatement(claimSql);
+					try {
+						for (String id : ids) {
+							claim.setString(1, lease);
+							claim.setLong(2, now + TimeUnit.SECONDS.toMillis(settings.getLeaseSeconds()));
+							claim.setString(3, id);
+							claim.setLong(4, now);
+							claim.addBatch();
+						}
+						claim.executeBatch();
+					} finally {
+						claim.close();
+					}
+					Map<String, String> claimed = selectClaimed(connection, lease, ids);
+					List<ReceivedMessage> messages = new ArrayList<ReceivedMessage>(claimed.size());
+					for (String id : ids) {
+						String body = claimed.get(id);
+						if (body != null) {
+							messages.add(new ReceivedMessage(body, id + ":" + lease));
+						}
+					}
+					return messages;
+				}
+			});
+		} catch (SQLException e) {
+			throw new ThundrDeferredException(e, "Unable to receive messages from queue %s: %s", queueName, e.getMessage());
+		}
+	}
+
+	/**
+	 * Deletes the rows of processed messages, in one batch.
+	 */
+	@Override
+	public void ack(final List<ReceivedMessage> messages) {
+		if (messages.isEmpty()) {
+			return;
+		}
+		try {
+			transaction(new Work<Void>() {
+				@Override
+				public Void execute(Connection connection) throws SQLException {
+					PreparedStatement delete = connection.prepareStatement(deleteSql);
+					try {
+						for (ReceivedMessage message : messages) {
+							delete.setString(1, idOf(message));
+							delete.addBatch();
+						}
+						delete.executeBatch();
+					} finally {
+						delete.close();
+					}
+					return null;
+				}
+			});
+		} catch (SQLException e) {
+			throw new ThundrDeferredException(e, "Unable to acknowledge %s messages on queue %s: %s", messages.size(), queueName, e.getMessage());
+		}
+	}
+
+	/**
+	 * Releases the lease on messages that could not be processed, so they can be claimed again after the nack delay.
+	 * Messages whose lease has already been taken by another node are left alone.
+	 */
+	@Override
+	public void nack(final List<ReceivedMessage> messages) {
+		if (messages.isEmpty()) {
+			return;
+		}
+		final long visibleAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(settings.getNackDelaySeconds());
+		try {
+			transaction(new Work<Void>() {
+				@Override
+				public Void execute(Connection connection) throws SQLException {
+					PreparedStatement release = connection.prepareStatement(releaseSql);
+					try {
+						for (ReceivedMessage message : messages) {
+							release.setLong(1, visibleAt);
+							release.setString(2, idOf(message));
+							release.setString(3, leaseOf(message));
+							release.addBatch();
+						}
+						release.executeBatch();
+					} finally {
+						release.close();
+					}
+					return null;
+				}
+			});
+		} catch (SQLException e) {
+			throw new ThundrDeferredException(e, "Unable to release %s messages on queue %s: %s", messages.size(), queueName, e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the number of messages on this queue, including delayed messages and messages claimed but not yet
+	 *         acknowledged
+	 */
+	public int size() {
+		try {
+			return transaction(new Work<Integer>() {
+				@Override
+				public Integer execute(Connection connection) throws SQLException {
+					PreparedStatement count = connection.prepareStatement(countSql);
+					try {
+						count.setString(1, queueName);
+						ResultSet results = count.executeQuery();
+						results.next();
+						return results.getInt(1);
+					} finally {
+						count.close();
+					}
+				}
+			});
+		} catch (SQLException e) {
+			throw new ThundrDeferredException(e, "Unable to count messages on queue %s: %s", queueName, e.getMessage());
+		}
+	}
+
+	public String getQueueName() {
+		return queueName;
+	}
+
+	public JdbcSettings getSettings() {
+		return settings;
+	}
+
+	private void insert(PendingInsert insert) {
+		Connection connection = joined.get();
+		if (connection != null) {
+			try {
+				insertBatch(connection, Collections.singletonList(insert), System.currentTimeMillis());
+			} catch (SQLException e) {
+				throw new ThundrDeferredException(e, "Unable to send message to queue %s in the current transaction: %s", queueName, e.getMessage());
+			}
+			return;
+		}
+		pending.add(insert);
+		insertLock.lock();
+		try {
+			while (!insert.done) {
+				insertPending();
+			}
+		} finally {
+			insertLock.unlock();
+		}
+		if (insert.failure != null) {
+			throw insert.failure;
+		}
+	}
+
+	/**
+	 * Inserts everything waiting to be sent, up to the insert batch size, in one transaction. Must hold the insert
+	 * lock.
+	 */
+	private void insertPending() {
+		final List<PendingInsert> batch = new ArrayList<PendingInsert>();
+		PendingInsert next;
+		while (batch.size() < settings.getInsertBatchSize() && (next = pending.poll()) != null) {
+			batch.add(next);
+		}
+		if (batch.isEmpty()) {
+			return;
+		}
+		final long now = System.currentTimeMillis();
+		ThundrDeferredException failure = null;
+		try {
+			transaction(new Work<Void>() {
+				@Override
+				public Void execute(Connection connection) throws SQLException {
+					insertBatch(connection, batch, now);
+					return null;
+				}
+			});
+		} catch (SQLException e) {
+			failure = new ThundrDeferredException(e, "Unable to send %s messages to queue %s: %s", batch.size(), queueName, e.getMessage());
+		}
+		for (PendingInsert message : batch) {
+			message.failure = failure;
+			message.done = true;
+		}
+	}
+
+	private void insertBatch(Connection connection, List<PendingInsert> batch, long now) throws SQLException {
+		PreparedStatement insert = connection.prepareStatement(insertSql);
+		try {
+			for (PendingInsert message : batch) {
+				insert.setString(1, newId(now));
+				insert.setString(2, queueName);
+				insert.setString(3, message.body);
+				insert.setLong(4, now + message.delayMillis);
+				insert.addBatch();
+			}
+			insert.executeBatch();
+		} finally {
+			insert.close();
+		}
+	}
+
+	private List<String> selectCandidates(Connection connection, long now) throws SQLException {
+		PreparedStatement select = connection.prepareStatement(candidatesSql);
+		try {
+			select.setMaxRows(settings.getBatchSize() * CandidateFactor);
+			select.setString(1, queueName);
+			select.setLong(2, now);
+			ResultSet results = select.executeQuery();
+			List<String> ids = new ArrayList<String>();
+			while (results.next()) {
+				ids.add(results.getString(1));
+			}
+			return ids;
+		} finally {
+			select.close();
+		}
+	}
+
+	/**
+	 * Reads back the claimed messages by id, as the lease column is not indexed.
+	 */
+	private Map<String, String> selectClaimed(Connection connection, String lease, List<String> ids) throws SQLException {
+		StringBuilder sql = new StringBuilder(claimedSql);
+		for (int i = 0; i < ids.size(); i++) {
+			sql.append(i == 0 ? "?" : ", ?");
+		}
+		PreparedStatement select = connection.prepareStatement(sql.append(")").toString());
+		try {
+			select.setString(1, lease);
+			for (int i = 0; i < ids.size(); i++) {
+				select.setString(i + 2, ids.get(i));
+			}
+			ResultSet results = select.executeQuery();
+			Map<String, String> claimed = new HashMap<String, String>();
+			while (results.next()) {
+				claimed.put(results.getString(1), results.getString(2));
+			}
+			return claimed;
+		} finally {
+			select.close();
+		}
+	}
+
+	/**
+	 * Chooses a batch at random from the candidates, keeping the order they were given in.
+	 */
+	private List<String> choose(List<String> candidates) {
+		int batchSize = settings.getBatchSize();
+		if (candidates.size() <= batchSize) {
+			return candidates;
+		}
+		List<Integer> indexes = new ArrayList<Integer>(candidates.size());
+		for (int i = 0; i < candidates.size(); i++) {
+			indexes.add(i);
+		}
+		Collections.shuffle(indexes);
+		indexes = indexes.subList(0, batchSize);
+		Collections.sort(indexes);
+		List<String> chosen = new ArrayList<String>(batchSize);
+		for (Integer index : indexes) {
+			chosen.add(candidates.get(index));
+		}
+		return chosen;
+	}
+
+	private boolean tableExists() {
+		try {
+			return transaction(new Work<Boolean>() {
+				@Override
+				public Boolean execute(Connection connection) throws SQLException {
+					Statement statement = connection.createStatement();
+					try {
+						statement.executeQuery("SELECT COUNT(*) FROM " + settings.getTable() + " WHERE 1 = 0").close();
+						return true;
+					} finally {
+						statement.close();
+					}
+				}
+			});
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private <T> T transaction(Work<T> work) throws SQLException {
+		Connection connection = dataSource.getConnection();
+		try {
+			boolean autoCommit = connection.getAutoCommit();
+			connection.setAutoCommit(false);
+			try {
+				T result = work.execute(connection);
+				connection.commit();
+				return result;
+			} catch (SQLException e) {
+				rollback(connection);
+				throw e;
+			} catch (RuntimeException e) {
+				rollback(connection);
+				throw e;
+			} finally {
+				connection.setAutoCommit(autoCommit);
+			}
+		} finally {
+			connection.close();
+		}
+	}
+
+	private void rollback(Connection connection) {
+		try {
+			connection.rollback();
+		} catch (SQLException e) {
+			Logger.warn("Unable to roll back deferred queue transaction: %s", e.getMessage());
+		}
+	}
+
+	/**
+	 * Ids start with the time and a sequence number, so messages sent in the same millisecond are received in the
+	 * order they were sent. The random remainder keeps ids from different nodes apart.
+	 */
+	private static String newId(long now) {
+		return String.format("%012x%08x%016x", now, sequence.getAndIncrement(), random.nextLong());
+	}
+
+	private static String idOf(ReceivedMessage message) {
+		String handle = message.getHandle();
+		return handle.substring(0, handle.indexOf(':'));
+	}
+
+	private static String leaseOf(ReceivedMessage message) {
+		String handle = message.getHandle();
+		return handle.substring(handle.indexOf(':') + 1);
+	}
+
+	private interface Work<T> {
+		T execute(Connection connection) throws SQLException;
+	}
+
+	private static class PendingInsert {
+		private final String body;
+		private final long delayMillis;
+		private boolean done;
+		private ThundrDeferredException failure;
+
+		private PendingInsert(String body, long delayMillis) {
+			this.body = body;
+			this.delayMillis = delayMillis;
+		}
+	}
+}
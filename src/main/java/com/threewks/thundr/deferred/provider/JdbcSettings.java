@@ -0,0 +1,89 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.provider;
+
+import com.threewks.thundr.deferred.Defaults;
+
+/**
+ * Tuning options for the {@link JdbcQueueProvider}. When the JDBC queue provider is configured, {@link
+ * com.threewks.thundr.deferred.DeferredModule} populates these from the `deferredJdbc*` properties in your
+ * application.properties.
+ */
+public class JdbcSettings {
+	private String table = Defaults.JdbcTable;
+	private int batchSize = Defaults.JdbcBatchSize;
+	private int leaseSeconds = Defaults.JdbcLeaseSeconds;
+	private int nackDelaySeconds = Defaults.JdbcNackDelaySeconds;
+	private int insertBatchSize = Defaults.JdbcInsertBatchSize;
+
+	/**
+	 * The table messages are kept in. Every queue shares the table.
+	 */
+	public String getTable() {
+		return table;
+	}
+
+	public void setTable(String table) {
+		this.table = table;
+	}
+
+	/**
+	 * Maximum number of messages claimed per receive.
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Seconds a claimed message stays hidden from other nodes. A message which has not been acknowledged by then, for
+	 * instance because the node processing it died, can be claimed again.
+	 */
+	public int getLeaseSeconds() {
+		return leaseSeconds;
+	}
+
+	public void setLeaseSeconds(int leaseSeconds) {
+		this.leaseSeconds = leaseSeconds;
+	}
+
+	/**
+	 * Seconds before a message that could not be processed can be claimed again. Zero makes it available immediately.
+	 */
+	public int getNackDelaySeconds() {
+		return nackDelaySeconds;
+	}
+
+	public void setNackDelaySeconds(int nackDelaySeconds) {
+		this.nackDelaySeconds = nackDelaySeconds;
+	}
+
+	/**
+	 * Maximum number of messages sent at the same time that are inserted together in one batch.
+	 */
+	public int getInsertBatchSize() {
+		return insertBatchSize;
+	}
+
+	public void setInsertBatchSize(int insertBatchSize) {
+		this.insertBatchSize = insertBatchSize;
+	}
+}
@@ -0,0 +1,545 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.provider;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.threewks.thundr.deferred.ThundrDeferredException;
+import com.threewks.thundr.logger.Logger;
+
+/**
+ * Queue provider backed by an append-only journal of memory mapped segment files on local disk. Messages survive a
+ * restart, and anything received but not acknowledged when the process stopped is delivered again.
+ * <p>
+ * Sending appends the message to the current segment and, with {@link JournalSync#Commit}, waits for a background
+ * thread to force it to disk. Concurrent senders share a single sync. Acknowledgements are appended without waiting,
+ * so an acknowledgement lost in a crash only means the message is delivered again. Once a segment is full a new one is
+ * started. The oldest segment is deleted when nothing in it is left unacknowledged, or compacted by copying its
+ * remaining messages to the end of the journal once few enough of them are left.
+ * <p>
+ * On startup every segment is read back to rebuild the queue. Reading a segment stops at the first torn or corrupt
+ * record, which can only be the last record written before a crash.
+ * <p>
+ * Each journal belongs to one process. The journal is local to the node, so it does not share work between nodes.
+ */
+public class JournalQueueProvider implements AcknowledgingQueueProvider, DelayingQueueProvider, Closeable {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] Empty = new byte[0];
+	private static final long TimerTickMillis = 10;
+	private static final int TimerWheelSize = 512;
+
+	private final File directory;
+	private final JournalSettings settings;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition syncNeeded = lock.newCondition();
+	private final Condition synced = lock.newCondition();
+	private final LinkedList<JournalSegment> segments = new LinkedList<JournalSegment>();
+	private final Set<JournalSegment> dirty = new LinkedHashSet<JournalSegment>();
+	private final Map<Long, Entry> entries = new LinkedHashMap<Long, Entry>();
+	private final Deque<Entry> ready = new ArrayDeque<Entry>();
+	private final TimerWheel<Entry> delayed = new TimerWheel<Entry>(TimerTickMillis, TimeUnit.MILLISECONDS, TimerWheelSize, new TimerWheel.Expiry<Entry>() {
+		@Override
+		public void expired(Entry entry) {
+			release(entry);
+		}
+	});
+	private final Thread syncer;
+	private long nextId = 1;
+	private long written;
+	private long syncedTo;
+	private boolean syncRequested;
+	private boolean closed;
+	private boolean stopped;
+
+	public JournalQueueProvider(File directory) {
+		this(directory, new JournalSettings());
+	}
+
+	public JournalQueueProvider(File directory, JournalSettings settings) {
+		this.directory = directory;
+		this.settings = settings;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new ThundrDeferredException("Unable to create journal directory %s", directory.getAbsolutePath());
+		}
+		try {
+			recover();
+		} catch (IOException e) {
+			closeSegments();
+			throw new ThundrDeferredException(e, "Unable to open journal in %s: %s", directory.getAbsolutePath(), e.getMessage());
+		}
+		syncer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				syncUntilClosed();
+			}
+		}, "deferred-journal-sync");
+		syncer.setDaemon(true);
+		syncer.start();
+	}
+
+	@Override
+	public void send(String message) {
+		send(message, 0, 0);
+	}
+
+	@Override
+	public void send(String message, long delay, TimeUnit unit) {
+		long delayMillis = unit.toMillis(delay);
+		if (delayMillis <= 0) {
+			send(message);
+		} else {
+			send(message, System.currentTimeMillis() + delayMillis, delayMillis);
+		}
+	}
+
+	/**
+	 * Receives a batch of messages and acknowledges them straight away, so they will not be delivered again.
+	 */
+	@Override
+	public List<String> receive() {
+		List<ReceivedMessage> messages = receiveMessages();
+		ack(messages);
+		List<String> bodies = new ArrayList<String>(messages.size());
+		for (ReceivedMessage message : messages) {
+			bodies.add(message.getBody());
+		}
+		return bodies;
+	}
+
+	@Override
+	public List<ReceivedMessage> receiveMessages() {
+		lock.lock();
+		try {
+			checkOpen();
+			List<ReceivedMessage> messages = new ArrayList<ReceivedMessage>(Math.min(ready.size(), settings.getBatchSize()));
+			Entry entry;
+			while (messages.size() < settings.getBatchSize() && (entry = ready.poll()) != null) {
+				entry.inFlight = true;
+				String body = new String(entry.segment.read(entry.offset), UTF8);
+				messages.add(new ReceivedMessage(body, String.valueOf(entry.id)));
+			}
+			return messages;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void ack(List<ReceivedMessage> messages) {
+		lock.lock();
+		try {
+			checkOpen();
+			for (ReceivedMessage message : messages) {
+				Entry entry = entries.remove(Long.parseLong(message.getHandle()));
+				if (entry != null) {
+					entry.segment.removeLive();
+					append(JournalSegment.Ack, entry.id, 0, Empty);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns messages to the queue once the nack delay has passed, so that a message which keeps failing is not
+	 * received again straight away. With no nack delay they go back on the front of the queue, in the order they were
+	 * given, so that they are received next.
+	 */
+	@Override
+	public void nack(List<ReceivedMessage> messages) {
+		long delayMillis = settings.getNackDelayMillis();
+		List<Entry> released = new ArrayList<Entry>(messages.size());
+		lock.lock();
+		try {
+			for (int i = messages.size() - 1; i >= 0; i--) {
+				Entry entry = entries.get(Long.parseLong(messages.get(i).getHandle()));
+				if (entry != null && entry.inFlight) {
+					entry.inFlight = false;
+					if (delayMillis > 0) {
+						released.add(0, entry);
+					} else {
+						ready.addFirst(entry);
+					}
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		for (Entry entry : released) {
+			delayed.schedule(entry, delayMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * @return the number of messages which have not been acknowledged, including delayed messages and messages which
+	 *         have been received but not yet acknowledged
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public JournalSettings getSettings() {
+		return settings;
+	}
+
+	/**
+	 * Stops the sync thread once it has forced everything written so far to disk, then closes the journal.
+	 */
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			syncNeeded.signal();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			syncer.join(TimeUnit.SECONDS.toMillis(30));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		delayed.close();
+		lock.lock();
+		try {
+			closeSegments();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Deletes the oldest segments while nothing in them is left unacknowledged. If only a few messages are left in the
+	 * oldest segment they are copied to the end of the journal first. The segment being written to is never deleted.
+	 */
+	void compact() {
+		lock.lock();
+		try {
+			while (!closed && segments.size() > 1) {
+				JournalSegment oldest = segments.getFirst();
+				if (oldest.getLive() > 0) {
+					if (oldest.getLive() * 100L > oldest.getRecords() * (long) settings.getCompactPercent()) {
+						return;
+					}
+					int copied = copyForward(oldest);
+					// the copies must be on disk before the only other copy is deleted
+					forceDirty();
+					Logger.debug("Compacted journal segment %s, copying %s messages", oldest.getFile().getName(), copied);
+				}
+				segments.removeFirst();
+				dirty.remove(oldest);
+				try {
+					if (!oldest.delete()) {
+						Logger.warn("Unable to delete journal segment %s", oldest.getFile().getAbsolutePath());
+					}
+				} catch (IOException e) {
+					Logger.warn("Unable to delete journal segment %s: %s", oldest.getFile().getAbsolutePath(), e.getMessage());
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void send(String message, long due, long delayMillis) {
+		byte[] body = message.getBytes(UTF8);
+		Entry entry;
+		long target;
+		lock.lock();
+		try {
+			checkOpen();
+			long id = nextId++;
+			int offset = append(JournalSegment.Message, id, due, body);
+			entry = new Entry(id, due, segments.getLast(), offset);
+			entries.put(id, entry);
+			if (due == 0) {
+				ready.add(entry);
+			}
+			target = written;
+		} finally {
+			lock.unlock();
+		}
+		if (due != 0) {
+			delayed.schedule(entry, delayMillis, TimeUnit.MILLISECONDS);
+		}
+		if (settings.getSync() == JournalSync.Commit) {
+			awaitSync(target);
+		}
+	}
+
+	/**
+	 * Appends a record to the current segment, starting a new segment if it is full. Must hold the lock.
+	 *
+	 * @return the offset of the record in the last segment
+	 */
+	private int append(byte type, long id, long due, byte[] body) {
+		JournalSegment current = segments.getLast();
+		int offset = current.append(type, id, due, body);
+		if (offset < 0) {
+			int length = JournalSegment.HeaderSize + body.length;
+			if (length > settings.getSegmentSize()) {
+				throw new ThundrDeferredException("Message of %s bytes is too large for journal segments of %s bytes", body.length, settings.getSegmentSize());
+			}
+			current = addSegment(current.getId() + 1);
+			offset = current.append(type, id, due, body);
+		}
+		if (type == JournalSegment.Message) {
+			current.addLive();
+		}
+		written += JournalSegment.HeaderSize + body.length;
+		dirty.add(current);
+		return offset;
+	}
+
+	private JournalSegment addSegment(long id) {
+		try {
+			JournalSegment segment = JournalSegment.create(directory, id, settings.getSegmentSize());
+			segments.add(segment);
+			return segment;
+		} catch (IOException e) {
+			throw new ThundrDeferredException(e, "Unable to create journal segment in %s: %s", directory.getAbsolutePath(), e.getMessage());
+		}
+	}
+
+	private int copyForward(JournalSegment oldest) {
+		int copied = 0;
+		for (Entry entry : entries.values()) {
+			if (entry.segment == oldest) {
+				int offset = append(JournalSegment.Message, entry.id, entry.due, oldest.read(entry.offset));
+				oldest.removeLive();
+				entry.segment = segments.getLast();
+				entry.offset = offset;
+				copied++;
+			}
+		}
+		return copied;
+	}
+
+	private void release(Entry entry) {
+		lock.lock();
+		try {
+			if (entries.get(entry.id) == entry && !entry.inFlight) {
+				ready.add(entry);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void awaitSync(long target) {
+		lock.lock();
+		try {
+			while (syncedTo < target && !stopped) {
+				syncRequested = true;
+				syncNeeded.signal();
+				synced.awaitUninterruptibly();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void syncUntilClosed() {
+		try {
+			boolean closing = false;
+			while (!closing) {
+				List<JournalSegment> forcing;
+				long target;
+				lock.lock();
+				try {
+					if (!closed && !syncRequested) {
+						syncNeeded.await(settings.getSyncIntervalMillis(), TimeUnit.MILLISECONDS);
+					}
+					closing = closed;
+					syncRequested = false;
+					target = written;
+					forcing = new ArrayList<JournalSegment>(dirty);
+					dirty.clear();
+				} finally {
+					lock.unlock();
+				}
+				try {
+					for (JournalSegment segment : forcing) {
+						segment.force();
+					}
+				} catch (RuntimeException e) {
+					Logger.error("Unable to sync journal in %s: %s", directory.getAbsolutePath(), e.getMessage());
+				}
+				synced(target);
+				if (!closing) {
+					compact();
+				}
+			}
+		} catch (InterruptedException e) {
+			Logger.warn("Journal sync interrupted, unsynced messages in %s may be lost", directory.getAbsolutePath());
+		} finally {
+			lock.lock();
+			try {
+				stopped = true;
+				synced.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Forces every segment written to since the last sync. Must hold the lock.
+	 */
+	private void forceDirty() {
+		for (JournalSegment segment : dirty) {
+			segment.force();
+		}
+		dirty.clear();
+		synced(written);
+	}
+
+	private void synced(long target) {
+		lock.lock();
+		try {
+			syncedTo = Math.max(syncedTo, target);
+			synced.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void recover() throws IOException {
+		long start = System.currentTimeMillis();
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return JournalSegment.isSegment(name);
+			}
+		});
+		Arrays.sort(files);
+		long lastId = 0;
+		for (File file : files) {
+			JournalSegment segment = JournalSegment.open(file);
+			segments.add(segment);
+			RecoveryVisitor visitor = new RecoveryVisitor();
+			if (!segment.scan(visitor)) {
+				Logger.warn("Journal segment %s ends with a torn or corrupt record at %s, ignoring the rest of it", file.getName(), segment.getPosition());
+				segment.terminate();
+			}
+			lastId = Math.max(lastId, visitor.lastId);
+		}
+		nextId = lastId + 1;
+		if (segments.isEmpty()) {
+			addSegment(0);
+		}
+
+		long now = System.currentTimeMillis();
+		for (Entry entry : entries.values()) {
+			if (entry.due > now) {
+				delayed.schedule(entry, entry.due - now, TimeUnit.MILLISECONDS);
+			} else {
+				ready.add(entry);
+			}
+		}
+		Logger.info("Recovered %s messages from %s journal segments in %s in %sms", entries.size(), segments.size(), directory.getAbsolutePath(), System.currentTimeMillis() - start);
+	}
+
+	private void closeSegments() {
+		for (Iterator<JournalSegment> iterator = segments.iterator(); iterator.hasNext();) {
+			JournalSegment segment = iterator.next();
+			try {
+				segment.close();
+			} catch (IOException e) {
+				Logger.warn("Unable to close journal segment %s: %s", segment.getFile().getName(), e.getMessage());
+			}
+			iterator.remove();
+		}
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new ThundrDeferredException("Journal in %s has been closed", directory.getAbsolutePath());
+		}
+	}
+
+	private class RecoveryVisitor implements JournalSegment.Visitor {
+		private long lastId;
+
+		@Override
+		public void record(JournalSegment segment, byte type, long id, long due, int offset) {
+			lastId = Math.max(lastId, id);
+			Entry entry = entries.get(id);
+			if (type == JournalSegment.Message) {
+				segment.addLive();
+				if (entry == null) {
+					entries.put(id, new Entry(id, due, segment, offset));
+				} else {
+					// a copy made when an older segment was compacted
+					entry.segment.removeLive();
+					entry.segment = segment;
+					entry.offset = offset;
+				}
+			} else if (type == JournalSegment.Ack && entry != null) {
+				entries.remove(id);
+				entry.segment.removeLive();
+			}
+		}
+	}
+
+	private static class Entry {
+		private final long id;
+		private final long due;
+		private JournalSegment segment;
+		private int offset;
+		private boolean inFlight;
+
+		private Entry(long id, long due, JournalSegment segment, int offset) {
+			this.id = id;
+			this.due = due;
+			this.segment = segment;
+			this.offset = offset;
+		}
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.provider;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * One file of a {@link JournalQueueProvider}'s journal, memory mapped in full. Records are appended one after the
+ * other, each made up of its length (including the header), a CRC32 checksum of the rest of the record, its type, the
+ * message id, when the message is due and then the message body.
+ * <p>
+ * Segments are created at their full size, so the unwritten remainder of a segment reads as zeros. A zero length is
+ * written after every record, marking the end of the segment even if it is being reused after a torn write.
+ */
+class JournalSegment implements Closeable {
+	interface Visitor {
+		void record(JournalSegment segment, byte type, long id, long due, int offset);
+	}
+
+	static final byte Message = 1;
+	static final byte Ack = 2;
+	static final int HeaderSize = 4 + 4 + 1 + 8 + 8;
+	static final String Suffix = ".journal";
+
+	private final long id;
+	private final File file;
+	private final RandomAccessFile raf;
+	private final MappedByteBuffer buffer;
+	private int position;
+	private int records;
+	private int live;
+
+	private JournalSegment(long id, File file, RandomAccessFile raf) throws IOException {
+		this.id = id;
+		this.file = file;
+		this.raf = raf;
+		this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+	}
+
+	static JournalSegment create(File directory, long id, int size) throws IOException {
+		File file = new File(directory, String.format("%019d%s", id, Suffix));
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(size);
+			return new JournalSegment(id, file, raf);
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	static JournalSegment open(File file) throws IOException {
+		String name = file.getName();
+		long id = Long.parseLong(name.substring(0, name.length() - Suffix.length()));
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			return new JournalSegment(id, file, raf);
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	static boolean isSegment(String fileName) {
+		return fileName.endsWith(Suffix) && fileName.length() > Suffix.length();
+	}
+
+	/**
+	 * Reads every intact record from the start of the segment, leaving the segment positioned after the last of them.
+	 *
+	 * @return false if reading stopped at a torn or corrupt record rather than the end of the segment
+	 */
+	boolean scan(Visitor visitor) {
+		position = 0;
+		int capacity = buffer.capacity();
+		while (position + HeaderSize <= capacity) {
+			int length = buffer.getInt(position);
+			if (length == 0) {
+				return true;
+			}
+			if (length < HeaderSize || length > capacity - position) {
+				return false;
+			}
+			byte[] record = new byte[length];
+			ByteBuffer view = buffer.duplicate();
+			view.position(position);
+			view.get(record);
+			ByteBuffer header = ByteBuffer.wrap(record);
+			if (header.getInt(4) != checksum(record)) {
+				return false;
+			}
+			visitor.record(this, header.get(8), header.getLong(9), header.getLong(17), position);
+			position += length;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the offset the record was written at, or -1 if there is no room left for it in this segment
+	 */
+	int append(byte type, long id, long due, byte[] body) {
+		int length = HeaderSize + body.length;
+		if (length > buffer.capacity() - position) {
+			return -1;
+		}
+		byte[] record = new byte[length];
+		ByteBuffer header = ByteBuffer.wrap(record);
+		header.putInt(0, length);
+		header.put(8, type);
+		header.putLong(9, id);
+		header.putLong(17, due);
+		System.arraycopy(body, 0, record, HeaderSize, body.length);
+		header.putInt(4, checksum(record));
+
+		int offset = position;
+		position += length;
+		terminate();
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset);
+		view.put(record);
+		return offset;
+	}
+
+	/**
+	 * Marks the current position as the end of the segment, so that anything left after it by a torn write is ignored.
+	 */
+	void terminate() {
+		if (position + 4 <= buffer.capacity()) {
+			buffer.putInt(position, 0);
+		}
+	}
+
+	byte[] read(int offset) {
+		byte[] body = new byte[buffer.getInt(offset) - HeaderSize];
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset + HeaderSize);
+		view.get(body);
+		return body;
+	}
+
+	void force() {
+		buffer.force();
+	}
+
+	/**
+	 * Counts a message written to this segment which has not yet been acknowledged.
+	 */
+	void addLive() {
+		records++;
+		live++;
+	}
+
+	/**
+	 * Counts a message in this segment as acknowledged, or as having been copied to a later segment.
+	 */
+	void removeLive() {
+		live--;
+	}
+
+	long getId() {
+		return id;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	int getPosition() {
+		return position;
+	}
+
+	int getRecords() {
+		return records;
+	}
+
+	int getLive() {
+		return live;
+	}
+
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	/**
+	 * @return true if the segment's file was deleted
+	 */
+	boolean delete() throws IOException {
+		close();
+		return file.delete();
+	}
+
+	private static int checksum(byte[] record) {
+		CRC32 crc = new CRC32();
+		crc.update(record, 8, record.length - 8);
+		return (int) crc.getValue();
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.provider;
+
+import com.threewks.thundr.deferred.Defaults;
+
+/**
+ * Tuning options for the {@link JournalQueueProvider}. When the journal queue provider is configured, {@link
+ * com.threewks.thundr.deferred.DeferredModule} populates these from the `deferredJournal*` properties in your
+ * application.properties.
+ */
+public class JournalSettings {
+	private int segmentSize = Defaults.JournalSegmentSize;
+	private JournalSync sync = Defaults.JournalSync;
+	private long syncIntervalMillis = Defaults.JournalSyncIntervalMillis;
+	private int batchSize = Defaults.JournalBatchSize;
+	private int compactPercent = Defaults.JournalCompactPercent;
+	private long nackDelayMillis = Defaults.JournalNackDelayMillis;
+
+	/**
+	 * Size in bytes of each journal segment file. A message must fit in a single segment.
+	 */
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	public void setSegmentSize(int segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Whether sending waits for the journal to be forced to disk.
+	 */
+	public JournalSync getSync() {
+		return sync;
+	}
+
+	public void setSync(JournalSync sync) {
+		this.sync = sync;
+	}
+
+	/**
+	 * How often the journal is forced to disk and compacted when nothing is waiting on a sync.
+	 */
+	public long getSyncIntervalMillis() {
+		return syncIntervalMillis;
+	}
+
+	public void setSyncIntervalMillis(long syncIntervalMillis) {
+		this.syncIntervalMillis = syncIntervalMillis;
+	}
+
+	/**
+	 * Maximum number of messages handed out per receive.
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * The oldest segment is compacted once no more than this percentage of the messages in it remain unacknowledged.
+	 * Its remaining messages are copied to the end of the journal so that it can be deleted. Segments with no
+	 * unacknowledged messages are always deleted.
+	 */
+	public int getCompactPercent() {
+		return compactPercent;
+	}
+
+	public void setCompactPercent(int compactPercent) {
+		this.compactPercent = compactPercent;
+	}
+
+	/**
+	 * Milliseconds before a message that could not be processed is received again. Zero returns it to the front of
+	 * the queue immediately.
+	 */
+	public long getNackDelayMillis() {
+		return nackDelayMillis;
+	}
+
+	public void setNackDelayMillis(long nackDelayMillis) {
+		this.nackDelayMillis = nackDelayMillis;
+	}
+}
@@ -0,0 +1,34 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.provider;
+
+/**
+ * When the {@link JournalQueueProvider} forces its journal to disk.
+ */
+public enum JournalSync {
+	/**
+	 * Sending waits until the message has been forced to disk. Senders waiting at the same time share one sync, so
+	 * the cost of a sync is spread across everything written while the previous one was in progress.
+	 */
+	Commit,
+	/**
+	 * The journal is forced to disk on an interval and sending does not wait. Messages survive the process dying, but
+	 * those written since the last sync can be lost if the machine itself fails.
+	 */
+	Periodic;
+}
@@ -0,0 +1,31 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.provider;
+
+/**
+ * Thrown when a bounded queue's {@link OverflowPolicy} drops a new message instead of queuing it. Unlike other
+ * {@link QueueFullException}s this is the policy working as configured, so
+ * {@link com.threewks.thundr.deferred.DeferredTaskService} logs it rather than failing the send.
+ */
+public class MessageDroppedException extends QueueFullException {
+	private static final long serialVersionUID = 1L;
+
+	public MessageDroppedException(String format, Object... formatArgs) {
+		super(format, formatArgs);
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.provider;
+
+/**
+ * What a bounded queue does with a message sent while it is full.
+ *
+ * @see AdmissionSettings
+ */
+public enum OverflowPolicy {
+	/**
+	 * Sending fails with a {@link QueueFullException}.
+	 */
+	Reject,
+	/**
+	 * Sending waits for room, failing with a {@link QueueFullException} if there is still none after the block timeout.
+	 */
+	Block,
+	/**
+	 * The message that has waited longest at the same priority is dropped to make room, or failing that the oldest
+	 * message of the lowest priority waiting.
+	 */
+	DropOldest,
+	/**
+	 * The oldest message of the lowest priority waiting is dropped to make room, as long as that priority is no higher
+	 * than the new message's. Otherwise the new message is dropped instead.
+	 */
+	DropLowestPriority;
+}
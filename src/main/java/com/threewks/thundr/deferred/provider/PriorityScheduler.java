@@ -0,0 +1,135 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.provider;
+
+import java.util.Arrays;
+
+import com.threewks.thundr.deferred.ThundrDeferredException;
+
+/**
+ * Decides which priority levels a batch of messages is taken from. Weighted scheduling uses smooth weighted round
+ * robin, carrying credit over between batches, so even batches of a single message are shared fairly over time.
+ */
+class PriorityScheduler {
+	static final int Levels = Priority.values().length;
+
+	private final PriorityPolicy policy;
+	private final int[] weights;
+	private final int[] credit = new int[Levels];
+
+	PriorityScheduler(PriorityPolicy policy, int[] weights) {
+		if (weights == null || weights.length != Levels) {
+			throw new ThundrDeferredException("Priority weights must be given for each of %s", Arrays.toString(Priority.values()));
+		}
+		for (int weight : weights) {
+			if (weight < 1) {
+				throw new ThundrDeferredException("Priority weights must be at least 1 but were: %s", Arrays.toString(weights));
+			}
+		}
+		this.policy = policy;
+		this.weights = weights.clone();
+	}
+
+	/**
+	 * @param batchSize the most messages to take
+	 * @param available how many messages are waiting at each level, highest priority first
+	 * @return how many messages to take from each level
+	 */
+	synchronized int[] allocate(int batchSize, int[] available) {
+		int[] remaining = available.clone();
+		int[] allocation = new int[Levels];
+		for (int taken = 0; taken < batchSize; taken++) {
+			int level = policy == PriorityPolicy.Strict ? highest(remaining) : nextWeighted(remaining);
+			if (level < 0) {
+				break;
+			}
+			allocation[level]++;
+			remaining[level]--;
+		}
+		return allocation;
+	}
+
+	/**
+	 * @return the order in which to poll levels whose size is unknown. The first level is chosen by the policy, the
+	 *         rest follow from highest priority to lowest.
+	 */
+	synchronized int[] order() {
+		int[] all = new int[Levels];
+		Arrays.fill(all, 1);
+		int first = policy == PriorityPolicy.Strict ? 0 : nextWeighted(all);
+		int[] order = new int[Levels];
+		order[0] = first;
+		for (int level = 0, i = 1; level < Levels; level++) {
+			if (level != first) {
+				order[i++] = level;
+			}
+		}
+		return order;
+	}
+
+	PriorityPolicy getPolicy() {
+		return policy;
+	}
+
+	int[] getWeights() {
+		return weights.clone();
+	}
+
+	private int highest(int[] remaining) {
+		for (int level = 0; level < Levels; level++) {
+			if (remaining[level] > 0) {
+				return level;
+			}
+		}
+		return -1;
+	}
+
+	private int nextWeighted(int[] remaining) {
+		int total = 0;
+		int best = -1;
+		for (int level = 0; level < Levels; level++) {
+			if (remaining[level] > 0) {
+				credit[level] += weights[level];
+				total += weights[level];
+				if (best < 0 || credit[level] > credit[best]) {
+					best = level;
+				}
+			}
+		}
+		if (best >= 0) {
+			credit[best] -= total;
+		}
+		return best;
+	}
+
+	/**
+	 * Parses weights written highest priority first, e.g. "6,3,1".
+	 */
+	static int[] parseWeights(String weights) {
+		String[] parts = weights.split(",");
+		int[] parsed = new int[parts.length];
+		try {
+			for (int i = 0; i < parts.length; i++) {
+				parsed[i] = Integer.parseInt(parts[i].trim());
+			}
+		} catch (NumberFormatException e) {
+			throw new ThundrDeferredException(e, "Priority weights must be whole numbers but were: %s", weights);
+		}
+		return parsed;
+	}
+}
@@ -24,11 +24,22 @@ public class QueueMessage {
 	private String taskClassName;
 	private String taskData;
 
+	private static final Gson gson = new Gson();
+
 	private QueueMessage() {}
 
+	public QueueMessage(String taskClassName, String taskData) {
+		this.taskClassName = taskClassName;
+		this.taskData = taskData;
+	}
+
+	/**
+	 * @deprecated serializes the task with a plain {@link Gson} rather than the configured serializer. Use
+	 * {@link com.threewks.thundr.deferred.serializer.TaskSerializer} instead.
+	 */
+	@Deprecated
 	public QueueMessage(DeferredTask deferredTask) {
-		taskClassName = deferredTask.getClass().getName();
-		taskData = new Gson().toJson(deferredTask);
+		this(deferredTask.getClass().getName(), gson.toJson(deferredTask));
 	}
 
 	public String getTaskClassName() {
@@ -0,0 +1,43 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.provider;
+
+/**
+ * A message received from a queue along with the provider specific handle needed to acknowledge it.
+ */
+public class ReceivedMessage {
+	private final String body;
+	private final String handle;
+
+	public ReceivedMessage(String body, String handle) {
+		this.body = body;
+		this.handle = handle;
+	}
+
+	public String getBody() {
+		return body;
+	}
+
+	/**
+	 * @return the handle used to acknowledge this message, e.g. an SQS receipt handle. May be null for providers that
+	 * do not support acknowledgement.
+	 */
+	public String getHandle() {
+		return handle;
+	}
+}
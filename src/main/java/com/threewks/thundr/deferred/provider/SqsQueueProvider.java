@@ -17,9 +17,20 @@
  */
 package com.threewks.thundr.deferred.provider;
 
+import java.io.Closeable;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.regions.Region;
@@ -27,19 +38,53 @@ import com.amazonaws.regions.RegionUtils;
 import com.amazonaws.services.sqs.AmazonSQSClient;
 import com.amazonaws.services.sqs.model.*;
 import com.threewks.thundr.configuration.Environment;
+import com.threewks.thundr.deferred.ThundrDeferredException;
+import com.threewks.thundr.logger.Logger;
 
-public class SqsQueueProvider implements QueueProvider {
+/**
+ * Queue provider backed by Amazon SQS.
+ * <p>
+ * Delays of up to 15 minutes use the message's DelaySeconds. Longer delays are sent with the maximum delay and the
+ * time the message is due embedded in the body. Each time such a message is received early its visibility timeout is
+ * extended, by up to 12 hours at a time, until it is due. Delays must therefore be shorter than the queue's message
+ * retention period.
+ * <p>
+ * When {@link SqsSettings#isPriorities()} is enabled, high and low priority messages are sent to sibling queues. Each
+ * poll tries first the queue chosen by the {@link PriorityPolicy}, then the others from highest priority to lowest.
+ * Only the last queue tried is long polled, so an empty priority queue does not hold up the others.
+ */
+public class SqsQueueProvider implements AcknowledgingQueueProvider, DelayingQueueProvider, PrioritizingQueueProvider, Closeable {
 	public static final String DefaultDeferredSqsQueueName = "thundr-deferred";
+	static final int MaxDelaySeconds = 900;
+	static final int MaxVisibilityTimeoutSeconds = 43200;
+	private static final String DelayedPrefix = "d1:";
 
 	private AmazonSQSClient sqs;
 	private String queueUrl;
+	private SqsSettings settings;
+	private SqsSendBuffer sendBuffer;
+	private ExecutorService receivers;
+	private List<SqsQueueProvider> levels;
+	private PriorityScheduler scheduler;
 
 	public SqsQueueProvider(AmazonSQSClient client) {
-		init(client, getDefaultQueueName());
+		init(client, getDefaultQueueName(), new SqsSettings());
 	}
 
 	public SqsQueueProvider(AmazonSQSClient client, String deferredSqsQueueName) {
-		init(client, deferredSqsQueueName);
+		init(client, deferredSqsQueueName, new SqsSettings());
+	}
+
+	public SqsQueueProvider(AmazonSQSClient client, String deferredSqsQueueName, SqsSettings sqsSettings) {
+		init(client, deferredSqsQueueName, sqsSettings);
+	}
+
+	private SqsQueueProvider(AmazonSQSClient client, String deferredSqsQueueName, SqsSettings sqsSettings, boolean prioritized) {
+		if (prioritized) {
+			init(client, deferredSqsQueueName, sqsSettings);
+		} else {
+			initQueue(client, deferredSqsQueueName, sqsSettings);
+		}
 	}
 
 	public SqsQueueProvider(AWSCredentials credentials, Region region) {
@@ -50,43 +95,317 @@ public class SqsQueueProvider implements QueueProvider {
 		this(deferredSqsAccessKey, deferredSqsSecretKey, deferredSqsRegion, getDefaultQueueName());
 	}
 
+	public SqsQueueProvider(String deferredSqsAccessKey, String deferredSqsSecretKey, String deferredSqsRegion, SqsSettings sqsSettings) {
+		this(deferredSqsAccessKey, deferredSqsSecretKey, deferredSqsRegion, getDefaultQueueName(), sqsSettings);
+	}
+
 	public SqsQueueProvider(String deferredSqsAccessKey, String deferredSqsSecretKey, String deferredSqsRegion, String deferredSqsQueueName) {
+		this(deferredSqsAccessKey, deferredSqsSecretKey, deferredSqsRegion, deferredSqsQueueName, new SqsSettings());
+	}
+
+	public SqsQueueProvider(String deferredSqsAccessKey, String deferredSqsSecretKey, String deferredSqsRegion, String deferredSqsQueueName, SqsSettings sqsSettings) {
 		this(new BasicAWSCredentials(deferredSqsAccessKey, deferredSqsSecretKey),
-				RegionUtils.getRegion(deferredSqsRegion), deferredSqsQueueName);
+				RegionUtils.getRegion(deferredSqsRegion), deferredSqsQueueName, sqsSettings);
 	}
 
 	public SqsQueueProvider(AWSCredentials credentials, Region region, String deferredSqsQueueName) {
+		this(credentials, region, deferredSqsQueueName, new SqsSettings());
+	}
+
+	public SqsQueueProvider(AWSCredentials credentials, Region region, String deferredSqsQueueName, SqsSettings sqsSettings) {
 		AmazonSQSClient client = new AmazonSQSClient(credentials);
 		client.setRegion(region);
-		init(client, deferredSqsQueueName);
+		init(client, deferredSqsQueueName, sqsSettings);
 	}
 
-	@SuppressWarnings("unused")
 	@Override
 	public void send(String message) {
-		SendMessageResult result = sqs.sendMessage(new SendMessageRequest(queueUrl, message));
+		if (sendBuffer != null) {
+			sendBuffer.add(message);
+		} else {
+			sqs.sendMessage(new SendMessageRequest(queueUrl, message));
+		}
 	}
 
+	/**
+	 * Sends the message to the queue for its priority. Without priority queues every message goes to the main queue.
+	 */
 	@Override
-	public List<String> receive() {
-		ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(queueUrl);
-		List<Message> messages = sqs.receiveMessage(receiveMessageRequest).getMessages();
+	public void send(String message, Priority priority) {
+		if (levels == null || priority == Priority.Normal) {
+			send(message);
+		} else {
+			levels.get(priority.ordinal()).send(message);
+		}
+	}
 
-		List<String> received = new ArrayList<String>();
-		for (Message message : messages) {
+	@Override
+	public void send(String message, long delay, TimeUnit unit) {
+		long delaySeconds = (unit.toMillis(delay) + 999) / 1000;
+		if (delaySeconds <= 0) {
+			send(message);
+		} else if (delaySeconds <= MaxDelaySeconds) {
+			sqs.sendMessage(new SendMessageRequest(queueUrl, message).withDelaySeconds((int) delaySeconds));
+		} else {
+			long due = System.currentTimeMillis() + unit.toMillis(delay);
+			sqs.sendMessage(new SendMessageRequest(queueUrl, DelayedPrefix + due + ":" + message).withDelaySeconds(MaxDelaySeconds));
+		}
+	}
+
+	/**
+	 * Receives messages and deletes them from the queue straight away. Prefer {@link #receiveMessages()} and
+	 * acknowledging messages once they have been processed.
+	 */
+	@Override
+	public List<String> receive() {
+		List<ReceivedMessage> messages = receiveMessages();
+		List<String> received = new ArrayList<String>(messages.size());
+		for (ReceivedMessage message : messages) {
 			received.add(message.getBody());
+		}
+		ack(messages);
+		return received;
+	}
+
+	/**
+	 * Receives up to the configured maximum number of messages per receiver. When more than one receiver is
+	 * configured the receive requests are made concurrently and their results combined.
+	 */
+	@Override
+	public List<ReceivedMessage> receiveMessages() {
+		if (levels == null) {
+			return receiveMessages(settings.getWaitTimeSeconds());
+		}
+		int[] order = scheduler.order();
+		for (int i = 0; i < order.length; i++) {
+			SqsQueueProvider level = levels.get(order[i]);
+			List<ReceivedMessage> received = level.receiveMessages(i == order.length - 1 ? settings.getWaitTimeSeconds() : 0);
+			if (!received.isEmpty()) {
+				return level == this ? received : from(level, received);
+			}
+		}
+		return new ArrayList<ReceivedMessage>(0);
+	}
+
+	private List<ReceivedMessage> receiveMessages(final int waitTimeSeconds) {
+		if (receivers == null) {
+			return receiveBatch(waitTimeSeconds);
+		}
 
-			// Delete message once read off queue
-			sqs.deleteMessage(new DeleteMessageRequest(queueUrl, message.getReceiptHandle()));
+		List<Future<List<ReceivedMessage>>> futures = new ArrayList<Future<List<ReceivedMessage>>>();
+		for (int i = 1; i < settings.getReceivers(); i++) {
+			futures.add(receivers.submit(new Callable<List<ReceivedMessage>>() {
+				@Override
+				public List<ReceivedMessage> call() {
+					return receiveBatch(waitTimeSeconds);
+				}
+			}));
 		}
+		List<ReceivedMessage> received = new ArrayList<ReceivedMessage>(receiveBatch(waitTimeSeconds));
+		for (Future<List<ReceivedMessage>> future : futures) {
+			try {
+				received.addAll(future.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ThundrDeferredException(e, "Interrupted receiving messages from SQS");
+			} catch (ExecutionException e) {
+				Logger.warn("Concurrent SQS receive failed. Reason: %s", e.getCause().getMessage());
+			}
+		}
+		return received;
+	}
 
+	private List<ReceivedMessage> receiveBatch(int waitTimeSeconds) {
+		ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(queueUrl)
+				.withMaxNumberOfMessages(settings.getMaxMessages())
+				.withWaitTimeSeconds(waitTimeSeconds)
+				.withVisibilityTimeout(settings.getVisibilityTimeout());
+		List<Message> messages;
+		try {
+			messages = sqs.receiveMessage(receiveMessageRequest).getMessages();
+		} catch (AmazonClientException e) {
+			throw new ThundrDeferredException(e, "Failed to receive messages from SQS. Reason: %s", e.getMessage());
+		}
+
+		List<ReceivedMessage> received = new ArrayList<ReceivedMessage>(messages.size());
+		List<ChangeMessageVisibilityBatchRequestEntry> early = new ArrayList<ChangeMessageVisibilityBatchRequestEntry>();
+		long now = System.currentTimeMillis();
+		for (Message message : messages) {
+			String body = message.getBody();
+			if (body.startsWith(DelayedPrefix)) {
+				int end = body.indexOf(':', DelayedPrefix.length());
+				long due = Long.parseLong(body.substring(DelayedPrefix.length(), end));
+				if (due > now) {
+					int hidden = (int) Math.min(MaxVisibilityTimeoutSeconds, (due - now + 999) / 1000);
+					early.add(new ChangeMessageVisibilityBatchRequestEntry(String.valueOf(early.size()), message.getReceiptHandle())
+							.withVisibilityTimeout(hidden));
+					continue;
+				}
+				body = body.substring(end + 1);
+			}
+			received.add(new ReceivedMessage(body, message.getReceiptHandle()));
+		}
+		if (!early.isEmpty()) {
+			ChangeMessageVisibilityBatchResult result = sqs.changeMessageVisibilityBatch(new ChangeMessageVisibilityBatchRequest(queueUrl, early));
+			logFailures("extend visibility of", result.getFailed());
+		}
 		return received;
 	}
 
-	private void init(AmazonSQSClient client, String deferredSqsQueueName) {
+	/**
+	 * Deletes processed messages from the queue using DeleteMessageBatch, 10 messages per request.
+	 */
+	@Override
+	public void ack(List<ReceivedMessage> messages) {
+		if (levels != null) {
+			for (Map.Entry<SqsQueueProvider, List<ReceivedMessage>> entry : bySource(messages).entrySet()) {
+				entry.getKey().delete(entry.getValue());
+			}
+		} else {
+			delete(messages);
+		}
+	}
+
+	private void delete(List<ReceivedMessage> messages) {
+		for (List<ReceivedMessage> batch : batches(messages)) {
+			List<DeleteMessageBatchRequestEntry> entries = new ArrayList<DeleteMessageBatchRequestEntry>(batch.size());
+			for (int i = 0; i < batch.size(); i++) {
+				entries.add(new DeleteMessageBatchRequestEntry(String.valueOf(i), batch.get(i).getHandle()));
+			}
+			DeleteMessageBatchResult result = sqs.deleteMessageBatch(new DeleteMessageBatchRequest(queueUrl, entries));
+			logFailures("delete", result.getFailed());
+		}
+	}
+
+	/**
+	 * Changes the visibility of messages which could not be processed so that they are delivered again once the
+	 * configured nack visibility timeout has elapsed.
+	 */
+	@Override
+	public void nack(List<ReceivedMessage> messages) {
+		if (levels != null) {
+			for (Map.Entry<SqsQueueProvider, List<ReceivedMessage>> entry : bySource(messages).entrySet()) {
+				entry.getKey().release(entry.getValue());
+			}
+		} else {
+			release(messages);
+		}
+	}
+
+	private void release(List<ReceivedMessage> messages) {
+		for (List<ReceivedMessage> batch : batches(messages)) {
+			List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<ChangeMessageVisibilityBatchRequestEntry>(batch.size());
+			for (int i = 0; i < batch.size(); i++) {
+				entries.add(new ChangeMessageVisibilityBatchRequestEntry(String.valueOf(i), batch.get(i).getHandle())
+						.withVisibilityTimeout(settings.getNackVisibilityTimeout()));
+			}
+			ChangeMessageVisibilityBatchResult result = sqs.changeMessageVisibilityBatch(new ChangeMessageVisibilityBatchRequest(queueUrl, entries));
+			logFailures("change visibility of", result.getFailed());
+		}
+	}
+
+	/**
+	 * Sends any buffered messages and stops the send buffer, if batched sending is enabled, and stops any concurrent
+	 * receivers.
+	 */
+	@Override
+	public void close() {
+		if (levels != null) {
+			for (SqsQueueProvider level : levels) {
+				if (level != this) {
+					level.close();
+				}
+			}
+		}
+		try {
+			if (sendBuffer != null) {
+				sendBuffer.close();
+			}
+		} finally {
+			if (receivers != null) {
+				receivers.shutdown();
+			}
+		}
+	}
+
+	public SqsSettings getSettings() {
+		return settings;
+	}
+
+	/**
+	 * @return a provider for another queue, sharing this provider's client and settings
+	 */
+	public SqsQueueProvider forQueue(String queueName) {
+		return new SqsQueueProvider(sqs, queueName, settings, false);
+	}
+
+	private static List<ReceivedMessage> from(SqsQueueProvider source, List<ReceivedMessage> messages) {
+		List<ReceivedMessage> tagged = new ArrayList<ReceivedMessage>(messages.size());
+		for (ReceivedMessage message : messages) {
+			tagged.add(new SqsReceivedMessage(message, source));
+		}
+		return tagged;
+	}
+
+	private Map<SqsQueueProvider, List<ReceivedMessage>> bySource(List<ReceivedMessage> messages) {
+		Map<SqsQueueProvider, List<ReceivedMessage>> bySource = new LinkedHashMap<SqsQueueProvider, List<ReceivedMessage>>();
+		for (ReceivedMessage message : messages) {
+			SqsQueueProvider source = message instanceof SqsReceivedMessage ? ((SqsReceivedMessage) message).getSource() : this;
+			List<ReceivedMessage> fromSource = bySource.get(source);
+			if (fromSource == null) {
+				fromSource = new ArrayList<ReceivedMessage>();
+				bySource.put(source, fromSource);
+			}
+			fromSource.add(message);
+		}
+		return bySource;
+	}
+
+	private static List<List<ReceivedMessage>> batches(List<ReceivedMessage> messages) {
+		List<List<ReceivedMessage>> batches = new ArrayList<List<ReceivedMessage>>();
+		for (int i = 0; i < messages.size(); i += SqsSendBuffer.MaxBatchEntries) {
+			batches.add(messages.subList(i, Math.min(messages.size(), i + SqsSendBuffer.MaxBatchEntries)));
+		}
+		return batches;
+	}
+
+	private static void logFailures(String operation, List<BatchResultErrorEntry> failed) {
+		if (failed != null && !failed.isEmpty()) {
+			for (BatchResultErrorEntry entry : failed) {
+				Logger.warn("Failed to %s SQS message. Code: %s, reason: %s", operation, entry.getCode(), entry.getMessage());
+			}
+		}
+	}
+
+	private void init(AmazonSQSClient client, String deferredSqsQueueName, SqsSettings sqsSettings) {
+		initQueue(client, deferredSqsQueueName, sqsSettings);
+		if (settings.isPriorities()) {
+			scheduler = new PriorityScheduler(settings.getPriorityPolicy(), settings.getPriorityWeights());
+			levels = new ArrayList<SqsQueueProvider>(PriorityScheduler.Levels);
+			levels.add(forQueue(deferredSqsQueueName + "-high"));
+			levels.add(this);
+			levels.add(forQueue(deferredSqsQueueName + "-low"));
+		}
+	}
+
+	private void initQueue(AmazonSQSClient client, String deferredSqsQueueName, SqsSettings sqsSettings) {
 		sqs = client;
+		settings = sqsSettings;
 		GetQueueUrlRequest queueUrlRequest = new GetQueueUrlRequest(deferredSqsQueueName);
 		queueUrl = sqs.getQueueUrl(queueUrlRequest).getQueueUrl();
+		if (settings.isBatchSend()) {
+			sendBuffer = new SqsSendBuffer(sqs, queueUrl, settings.getBatchLingerMillis(), settings.getBatchRetries(), settings.getBatchBufferCapacity());
+		}
+		if (settings.getReceivers() > 1) {
+			receivers = Executors.newFixedThreadPool(settings.getReceivers() - 1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "deferred-sqs-receiver");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
 	}
 
 	private static String getDefaultQueueName() {
@@ -96,4 +415,15 @@ public class SqsQueueProvider implements QueueProvider {
 		}
 		return queueName;
 	}
+
+	/**
+	 * @return the default SQS queue name for a named deferred queue, thundr-deferred-[name]-[env]
+	 */
+	public static String getDefaultQueueName(String name) {
+		String queueName = DefaultDeferredSqsQueueName + "-" + name;
+		if (Environment.get() != null) {
+			queueName += "-" + Environment.get();
+		}
+		return queueName;
+	}
 }
@@ -0,0 +1,276 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.provider;
+
+import java.io.Closeable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.threewks.thundr.deferred.ThundrDeferredException;
+import com.threewks.thundr.logger.Logger;
+
+/**
+ * Buffers outgoing SQS messages and sends them with SendMessageBatch from a background thread. A batch is sent as
+ * soon as it holds 10 entries, would exceed the 256KB request limit or its first entry has lingered long enough.
+ * Entries that fail within a batch are retried, entries SQS rejects as malformed are logged and dropped.
+ * <p>
+ * The buffer is bounded, adding to a full buffer waits for room. Entries still failing once their retries are used up
+ * are kept, and resent on the thread of the next caller to add a message or close the buffer, which gets the failure
+ * if they cannot be sent then either.
+ */
+class SqsSendBuffer implements Closeable {
+	static final int MaxBatchEntries = 10;
+	static final int MaxBatchBytes = 256 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final AmazonSQSClient sqs;
+	private final String queueUrl;
+	private final long lingerMillis;
+	private final int maxRetries;
+	private final BlockingQueue<String> pending;
+	private final Queue<String> undelivered = new ConcurrentLinkedQueue<String>();
+	private final Thread flusher;
+	private volatile boolean closed = false;
+	private String carried;
+
+	SqsSendBuffer(AmazonSQSClient sqs, String queueUrl, long lingerMillis, int maxRetries, int capacity) {
+		this.sqs = sqs;
+		this.pending = new LinkedBlockingQueue<String>(capacity);
+		this.queueUrl = queueUrl;
+		this.lingerMillis = lingerMillis;
+		this.maxRetries = maxRetries;
+		flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flushUntilClosed();
+			}
+		}, "deferred-sqs-send-buffer");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Buffers the message, waiting while the buffer is full.
+	 *
+	 * @throws ThundrDeferredException if messages the background thread gave up on still cannot be sent
+	 */
+	public void add(String message) {
+		if (closed) {
+			throw new ThundrDeferredException("SQS send buffer has been closed");
+		}
+		if (!undelivered.isEmpty()) {
+			redeliver();
+		}
+		try {
+			while (!pending.offer(message, 100, TimeUnit.MILLISECONDS)) {
+				if (closed) {
+					throw new ThundrDeferredException("SQS send buffer has been closed");
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ThundrDeferredException(e, "Interrupted waiting for room in the SQS send buffer");
+		}
+	}
+
+	/**
+	 * Stops accepting messages and waits for everything buffered so far to be sent.
+	 *
+	 * @throws ThundrDeferredException if some messages could not be sent
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			flusher.join(TimeUnit.SECONDS.toMillis(30));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (!undelivered.isEmpty()) {
+			redeliver();
+		}
+	}
+
+	/**
+	 * Sends the messages the background thread gave up on from the calling thread. Any that still fail are kept for
+	 * the next attempt.
+	 */
+	private synchronized void redeliver() {
+		List<String> messages = new ArrayList<String>();
+		String message;
+		while ((message = undelivered.poll()) != null) {
+			messages.add(message);
+		}
+		Map<String, String> failed = new LinkedHashMap<String, String>();
+		AmazonClientException failure = null;
+		for (List<String> batch : batches(messages)) {
+			Map<String, String> outstanding = numbered(batch);
+			if (failure == null) {
+				try {
+					outstanding = failures(outstanding, sqs.sendMessageBatch(new SendMessageBatchRequest(queueUrl, entries(outstanding))));
+				} catch (AmazonClientException e) {
+					failure = e;
+				}
+			}
+			for (String unsent : outstanding.values()) {
+				failed.put(String.valueOf(failed.size()), unsent);
+			}
+		}
+		if (!failed.isEmpty()) {
+			undelivered.addAll(failed.values());
+			String reason = failure == null ? "SQS failed the entries" : failure.getMessage();
+			throw new ThundrDeferredException(failure, "%s buffered messages could not be sent to SQS. Reason: %s", failed.size(), reason);
+		}
+	}
+
+	private void flushUntilClosed() {
+		while (!closed || carried != null || !pending.isEmpty()) {
+			try {
+				List<String> batch = nextBatch();
+				if (!batch.isEmpty()) {
+					send(batch);
+				}
+			} catch (InterruptedException e) {
+				Logger.warn("SQS send buffer interrupted, %s messages were not sent", pending.size());
+				return;
+			} catch (RuntimeException e) {
+				Logger.error("Unexpected error sending batch to SQS: %s", e.getMessage());
+			}
+		}
+	}
+
+	private List<String> nextBatch() throws InterruptedException {
+		List<String> batch = new ArrayList<String>(MaxBatchEntries);
+		String first = carried != null ? carried : pending.poll(100, TimeUnit.MILLISECONDS);
+		carried = null;
+		if (first == null) {
+			return batch;
+		}
+		batch.add(first);
+		int bytes = sizeOf(first);
+
+		long deadline = System.currentTimeMillis() + lingerMillis;
+		while (batch.size() < MaxBatchEntries) {
+			long remaining = closed ? 0 : deadline - System.currentTimeMillis();
+			String next = remaining > 0 ? pending.poll(remaining, TimeUnit.MILLISECONDS) : pending.poll();
+			if (next == null) {
+				break;
+			}
+			int size = sizeOf(next);
+			if (bytes + size > MaxBatchBytes) {
+				carried = next;
+				break;
+			}
+			batch.add(next);
+			bytes += size;
+		}
+		return batch;
+	}
+
+	private void send(List<String> batch) throws InterruptedException {
+		Map<String, String> outstanding = numbered(batch);
+
+		for (int attempt = 0; attempt <= maxRetries && !outstanding.isEmpty(); attempt++) {
+			if (attempt > 0) {
+				Thread.sleep(50L << Math.min(attempt, 6));
+			}
+			try {
+				SendMessageBatchResult result = sqs.sendMessageBatch(new SendMessageBatchRequest(queueUrl, entries(outstanding)));
+				outstanding = failures(outstanding, result);
+			} catch (AmazonClientException e) {
+				Logger.warn("Sending batch of %s messages to SQS failed, attempt %s. Reason: %s", outstanding.size(), attempt + 1, e.getMessage());
+			}
+		}
+
+		if (!outstanding.isEmpty()) {
+			Logger.error("Failed to send %s messages to SQS after %s attempts, they will be resent with the next message", outstanding.size(), maxRetries + 1);
+			undelivered.addAll(outstanding.values());
+		}
+	}
+
+	private static Map<String, String> numbered(List<String> batch) {
+		Map<String, String> numbered = new LinkedHashMap<String, String>();
+		for (int i = 0; i < batch.size(); i++) {
+			numbered.put(String.valueOf(i), batch.get(i));
+		}
+		return numbered;
+	}
+
+	private static List<List<String>> batches(List<String> messages) {
+		List<List<String>> batches = new ArrayList<List<String>>();
+		List<String> batch = new ArrayList<String>(MaxBatchEntries);
+		int bytes = 0;
+		for (String message : messages) {
+			int size = sizeOf(message);
+			if (!batch.isEmpty() && (batch.size() == MaxBatchEntries || bytes + size > MaxBatchBytes)) {
+				batches.add(batch);
+				batch = new ArrayList<String>(MaxBatchEntries);
+				bytes = 0;
+			}
+			batch.add(message);
+			bytes += size;
+		}
+		if (!batch.isEmpty()) {
+			batches.add(batch);
+		}
+		return batches;
+	}
+
+	private Map<String, String> failures(Map<String, String> sent, SendMessageBatchResult result) {
+		Map<String, String> retry = new LinkedHashMap<String, String>();
+		List<BatchResultErrorEntry> failed = result.getFailed();
+		if (failed == null) {
+			return retry;
+		}
+		for (BatchResultErrorEntry entry : failed) {
+			if (Boolean.TRUE.equals(entry.getSenderFault())) {
+				Logger.error("SQS rejected deferred task message. Code: %s, reason: %s", entry.getCode(), entry.getMessage());
+			} else if (sent.containsKey(entry.getId())) {
+				retry.put(entry.getId(), sent.get(entry.getId()));
+			}
+		}
+		return retry;
+	}
+
+	private static List<SendMessageBatchRequestEntry> entries(Map<String, String> messages) {
+		List<SendMessageBatchRequestEntry> entries = new ArrayList<SendMessageBatchRequestEntry>(messages.size());
+		for (Map.Entry<String, String> message : messages.entrySet()) {
+			entries.add(new SendMessageBatchRequestEntry(message.getKey(), message.getValue()));
+		}
+		return entries;
+	}
+
+	private static int sizeOf(String message) {
+		return message.getBytes(UTF8).length;
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.provider;
+
+import com.threewks.thundr.deferred.Defaults;
+
+/**
+ * Tuning options for the {@link SqsQueueProvider}. When the SQS queue provider is configured, {@link
+ * com.threewks.thundr.deferred.DeferredModule} populates these from the `deferredSqs*` properties in your
+ * application.properties.
+ */
+public class SqsSettings {
+	private boolean batchSend = Defaults.SqsBatchSend;
+	private long batchLingerMillis = Defaults.SqsBatchLingerMillis;
+	private int batchRetries = Defaults.SqsBatchRetries;
+	private int batchBufferCapacity = Defaults.SqsBatchBufferCapacity;
+	private int nackVisibilityTimeout = Defaults.SqsNackVisibilityTimeout;
+	private int maxMessages = Defaults.SqsMaxMessages;
+	private int waitTimeSeconds = Defaults.SqsWaitTimeSeconds;
+	private Integer visibilityTimeout = null;
+	private int receivers = Defaults.SqsReceivers;
+	private boolean priorities = false;
+	private PriorityPolicy priorityPolicy = Defaults.PriorityPolicy;
+	private int[] priorityWeights = Defaults.PriorityWeights.clone();
+
+	/**
+	 * When enabled, messages are buffered and sent in batches of up to 10 on a background thread rather than being
+	 * sent one at a time on the calling thread.
+	 */
+	public boolean isBatchSend() {
+		return batchSend;
+	}
+
+	public void setBatchSend(boolean batchSend) {
+		this.batchSend = batchSend;
+	}
+
+	/**
+	 * How long a buffered message may wait for others to join its batch before the batch is sent anyway.
+	 */
+	public long getBatchLingerMillis() {
+		return batchLingerMillis;
+	}
+
+	public void setBatchLingerMillis(long batchLingerMillis) {
+		this.batchLingerMillis = batchLingerMillis;
+	}
+
+	/**
+	 * How many times entries that fail within a batch are resent by the background thread. Entries still failing are
+	 * resent on the thread of the next message sent, which gets the failure if they cannot be sent then either.
+	 */
+	public int getBatchRetries() {
+		return batchRetries;
+	}
+
+	public void setBatchRetries(int batchRetries) {
+		this.batchRetries = batchRetries;
+	}
+
+	/**
+	 * The most messages buffered for sending at once. Sending waits while the buffer is full.
+	 */
+	public int getBatchBufferCapacity() {
+		return batchBufferCapacity;
+	}
+
+	public void setBatchBufferCapacity(int batchBufferCapacity) {
+		this.batchBufferCapacity = batchBufferCapacity;
+	}
+
+	/**
+	 * Seconds before a message that could not be processed becomes visible on the queue again. Zero makes it visible
+	 * immediately.
+	 */
+	public int getNackVisibilityTimeout() {
+		return nackVisibilityTimeout;
+	}
+
+	public void setNackVisibilityTimeout(int nackVisibilityTimeout) {
+		this.nackVisibilityTimeout = nackVisibilityTimeout;
+	}
+
+	/**
+	 * Maximum number of messages returned by a single receive request, between 1 and 10.
+	 */
+	public int getMaxMessages() {
+		return maxMessages;
+	}
+
+	public void setMaxMessages(int maxMessages) {
+		if (maxMessages < 1 || maxMessages > 10) {
+			throw new IllegalArgumentException("SQS max messages must be between 1 and 10 but was " + maxMessages);
+		}
+		this.maxMessages = maxMessages;
+	}
+
+	/**
+	 * Seconds a receive request waits for messages to arrive (long polling), between 0 and 20. Zero means short
+	 * polling.
+	 */
+	public int getWaitTimeSeconds() {
+		return waitTimeSeconds;
+	}
+
+	public void setWaitTimeSeconds(int waitTimeSeconds) {
+		if (waitTimeSeconds < 0 || waitTimeSeconds > 20) {
+			throw new IllegalArgumentException("SQS wait time must be between 0 and 20 seconds but was " + waitTimeSeconds);
+		}
+		this.waitTimeSeconds = waitTimeSeconds;
+	}
+
+	/**
+	 * Seconds received messages stay hidden from other consumers, or null to use the queue's own setting.
+	 */
+	public Integer getVisibilityTimeout() {
+		return visibilityTimeout;
+	}
+
+	public void setVisibilityTimeout(Integer visibilityTimeout) {
+		this.visibilityTimeout = visibilityTimeout;
+	}
+
+	/**
+	 * Number of receive requests made concurrently per poll.
+	 */
+	public int getReceivers() {
+		return receivers;
+	}
+
+	public void setReceivers(int receivers) {
+		if (receivers < 1) {
+			throw new IllegalArgumentException("SQS receivers must be at least 1 but was " + receivers);
+		}
+		this.receivers = receivers;
+	}
+
+	/**
+	 * When enabled, high and low priority messages are sent to their own queues, named after the main queue with a
+	 * "-high" or "-low" suffix, which must already exist. Normal priority messages use the main queue.
+	 */
+	public boolean isPriorities() {
+		return priorities;
+	}
+
+	public void setPriorities(boolean priorities) {
+		this.priorities = priorities;
+	}
+
+	/**
+	 * How polls are shared between the priority queues.
+	 */
+	public PriorityPolicy getPriorityPolicy() {
+		return priorityPolicy;
+	}
+
+	public void setPriorityPolicy(PriorityPolicy priorityPolicy) {
+		this.priorityPolicy = priorityPolicy;
+	}
+
+	/**
+	 * The share of polls for the high, normal and low priority queues when the policy is
+	 * {@link PriorityPolicy#Weighted}.
+	 */
+	public int[] getPriorityWeights() {
+		return priorityWeights.clone();
+	}
+
+	public void setPriorityWeights(int... priorityWeights) {
+		this.priorityWeights = priorityWeights.clone();
+	}
+}
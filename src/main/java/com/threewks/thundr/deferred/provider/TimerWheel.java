@@ -0,0 +1,173 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.provider;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.threewks.thundr.logger.Logger;
+
+/**
+ * A hashed timer wheel, which expires items after a delay at a cost that does not grow with the number of items
+ * pending. Time is divided into ticks and each slot of the wheel holds the items due in that tick, along with how many
+ * more turns of the wheel they must wait. Items expire up to one tick late.
+ * <p>
+ * A single daemon thread turns the wheel, it is started when the first item is scheduled.
+ */
+class TimerWheel<T> implements Closeable {
+	interface Expiry<T> {
+		void expired(T item);
+	}
+
+	private final long tickNanos;
+	private final List<Timeout<T>>[] wheel;
+	private final int mask;
+	private final Expiry<T> expiry;
+	private final Queue<Timeout<T>> scheduled = new ConcurrentLinkedQueue<Timeout<T>>();
+	private final AtomicInteger pending = new AtomicInteger();
+	private final Object lock = new Object();
+	private volatile boolean running = true;
+	private Thread worker;
+	private volatile long startNanos;
+
+	/**
+	 * @param tick duration of one tick
+	 * @param wheelSize number of slots in the wheel, rounded up to a power of two
+	 * @param expiry called on the wheel's thread for each item as it becomes due
+	 */
+	@SuppressWarnings("unchecked")
+	TimerWheel(long tick, TimeUnit unit, int wheelSize, Expiry<T> expiry) {
+		int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+		this.tickNanos = Math.max(1, unit.toNanos(tick));
+		this.wheel = new List[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new LinkedList<Timeout<T>>();
+		}
+		this.mask = size - 1;
+		this.expiry = expiry;
+	}
+
+	void schedule(T item, long delay, TimeUnit unit) {
+		start();
+		pending.incrementAndGet();
+		scheduled.add(new Timeout<T>(item, System.nanoTime() - startNanos + unit.toNanos(delay)));
+	}
+
+	/**
+	 * @return the number of items which have not yet expired
+	 */
+	int pending() {
+		return pending.get();
+	}
+
+	@Override
+	public void close() {
+		Thread thread;
+		synchronized (lock) {
+			running = false;
+			thread = worker;
+		}
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	private void start() {
+		synchronized (lock) {
+			if (worker == null && running) {
+				startNanos = System.nanoTime();
+				worker = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						turn();
+					}
+				}, "deferred-timer-wheel");
+				worker.setDaemon(true);
+				worker.start();
+			}
+		}
+	}
+
+	private void turn() {
+		long tick = 0;
+		while (running) {
+			long deadline = tickNanos * (tick + 1);
+			long sleepNanos = deadline - (System.nanoTime() - startNanos);
+			if (sleepNanos > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleepNanos);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			transferScheduled(tick);
+			expire(wheel[(int) (tick & mask)], deadline);
+			tick++;
+		}
+	}
+
+	private void transferScheduled(long currentTick) {
+		Timeout<T> timeout;
+		while ((timeout = scheduled.poll()) != null) {
+			long dueTick = timeout.deadline / tickNanos;
+			timeout.rounds = (dueTick - currentTick) / wheel.length;
+			long ticks = Math.max(dueTick, currentTick);
+			wheel[(int) (ticks & mask)].add(timeout);
+		}
+	}
+
+	private void expire(List<Timeout<T>> slot, long deadline) {
+		List<T> due = new ArrayList<T>();
+		Iterator<Timeout<T>> iterator = slot.iterator();
+		while (iterator.hasNext()) {
+			Timeout<T> timeout = iterator.next();
+			if (timeout.rounds <= 0 && timeout.deadline <= deadline) {
+				iterator.remove();
+				due.add(timeout.item);
+			} else {
+				timeout.rounds--;
+			}
+		}
+		for (T item : due) {
+			pending.decrementAndGet();
+			try {
+				expiry.expired(item);
+			} catch (RuntimeException e) {
+				Logger.error("Failed to release delayed item. Reason: %s", e.getMessage());
+			}
+		}
+	}
+
+	private static class Timeout<T> {
+		private final T item;
+		private final long deadline;
+		private long rounds;
+
+		Timeout(T item, long deadline) {
+			this.item = item;
+			this.deadline = deadline;
+		}
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.queue;
+
+import com.threewks.thundr.deferred.DeferredTaskService;
+import com.threewks.thundr.deferred.monitor.QueueMonitor;
+
+/**
+ * A queue along with the service which defers and runs its tasks, and the monitor which polls it. Each named queue has
+ * its own provider and worker pool, so slow tasks on one queue cannot hold up another.
+ */
+public class NamedQueue {
+	private final String name;
+	private final DeferredTaskService deferredTaskService;
+	private final QueueMonitor queueMonitor;
+
+	public NamedQueue(String name, DeferredTaskService deferredTaskService, QueueMonitor queueMonitor) {
+		this.name = name;
+		this.deferredTaskService = deferredTaskService;
+		this.queueMonitor = queueMonitor;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public DeferredTaskService getDeferredTaskService() {
+		return deferredTaskService;
+	}
+
+	public QueueMonitor getQueueMonitor() {
+		return queueMonitor;
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.queue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.threewks.thundr.deferred.DeferredTaskService;
+import com.threewks.thundr.deferred.ThundrDeferredException;
+import com.threewks.thundr.deferred.task.DeferredQueue;
+import com.threewks.thundr.deferred.task.DeferredTask;
+
+/**
+ * Picks the queue each task is deferred to. A task class routed explicitly with {@link #route(Class, String)} goes to
+ * that queue, otherwise a class annotated with {@link DeferredQueue} goes to the queue it names. Everything else goes
+ * to the {@link #DefaultQueue}. The queue chosen for each class is cached.
+ */
+public class QueueRouter {
+	public static final String DefaultQueue = "default";
+
+	private final ConcurrentMap<String, NamedQueue> queues = new ConcurrentHashMap<String, NamedQueue>();
+	private final ConcurrentMap<Class<?>, String> routes = new ConcurrentHashMap<Class<?>, String>();
+
+	/**
+	 * Adds a queue and routes tasks deferred through its service via this router.
+	 */
+	public void addQueue(NamedQueue queue) {
+		queues.put(queue.getName(), queue);
+		queue.getDeferredTaskService().setRouter(this);
+	}
+
+	/**
+	 * Sends tasks of the given class to the named queue, whatever the class is annotated with.
+	 */
+	public void route(Class<? extends DeferredTask> type, String queueName) {
+		routes.put(type, queueName);
+	}
+
+	/**
+	 * @return the name of the queue tasks of the given class are deferred to
+	 */
+	public String queueFor(Class<? extends DeferredTask> type) {
+		String queueName = routes.get(type);
+		if (queueName == null) {
+			DeferredQueue annotation = type.getAnnotation(DeferredQueue.class);
+			queueName = annotation == null ? DefaultQueue : annotation.value();
+			String existing = routes.putIfAbsent(type, queueName);
+			if (existing != null) {
+				queueName = existing;
+			}
+		}
+		return queueName;
+	}
+
+	/**
+	 * @return the service for the queue the given task is deferred to
+	 * @throws ThundrDeferredException if the task is routed to a queue which does not exist
+	 */
+	public DeferredTaskService serviceFor(DeferredTask task) {
+		return get(queueFor(task.getClass()));
+	}
+
+	/**
+	 * @throws ThundrDeferredException if there is no such queue
+	 */
+	public DeferredTaskService get(String queueName) {
+		NamedQueue queue = queues.get(queueName);
+		if (queue == null) {
+			throw new ThundrDeferredException("No such queue: %s", queueName);
+		}
+		return queue.getDeferredTaskService();
+	}
+
+	public boolean contains(String queueName) {
+		return queues.containsKey(queueName);
+	}
+
+	public Collection<NamedQueue> getQueues() {
+		return new ArrayList<NamedQueue>(queues.values());
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.ratelimit;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.threewks.thundr.deferred.task.DeferredTask;
+
+/**
+ * Limits how often tasks of each class are run, with a {@link TokenBucket} per class. Limits are either set for a
+ * class here or read from its {@link RateLimit} annotation. Classes with neither are not limited.
+ * <p>
+ * Buckets are held in memory, so each node enforces its limits separately.
+ */
+public class RateLimiter {
+	private static final TokenBucket Unlimited = new TokenBucket(1, 1);
+
+	private final ConcurrentMap<Class<?>, TokenBucket> buckets = new ConcurrentHashMap<Class<?>, TokenBucket>();
+
+	/**
+	 * Limits tasks of the given class, replacing any limit set before or read from its annotation.
+	 *
+	 * @param burst the most tasks run at once after none have run for a while, or 0 to allow one second's worth
+	 */
+	public void setLimit(Class<? extends DeferredTask> type, double perSecond, int burst) {
+		buckets.put(type, new TokenBucket(perSecond, burst > 0 ? burst : defaultBurst(perSecond)));
+	}
+
+	/**
+	 * @return the bucket limiting tasks of the given class, or null if they are not limited
+	 */
+	public TokenBucket getBucket(Class<? extends DeferredTask> type) {
+		TokenBucket bucket = buckets.get(type);
+		if (bucket == null) {
+			RateLimit limit = type.getAnnotation(RateLimit.class);
+			bucket = limit == null ? Unlimited : new TokenBucket(limit.perSecond(), limit.burst() > 0 ? limit.burst() : defaultBurst(limit.perSecond()));
+			TokenBucket existing = buckets.putIfAbsent(type, bucket);
+			bucket = existing == null ? bucket : existing;
+		}
+		return bucket == Unlimited ? null : bucket;
+	}
+
+	/**
+	 * Takes a permit to run a task of the given class.
+	 *
+	 * @return 0 if the task may run now, otherwise how many nanoseconds it should be delayed for
+	 */
+	public long tryAcquire(Class<? extends DeferredTask> type) {
+		TokenBucket bucket = getBucket(type);
+		return bucket == null ? 0 : bucket.tryAcquire();
+	}
+
+	private static int defaultBurst(double perSecond) {
+		return (int) Math.max(1, Math.ceil(perSecond));
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.ratelimit;
+
+import java.util.concurrent.TimeUnit;
+
+import com.threewks.thundr.deferred.ThundrDeferredException;
+
+/**
+ * Hands out permits at a steady rate, allowing short bursts up to its capacity. A caller turned away is told how long
+ * to wait, and each caller turned away in a row is told to wait one interval longer than the last, so that callers
+ * which come back when told do not all come back at once.
+ * <p>
+ * The wait is only a hint and does not reserve a permit. A new caller arriving just before one which was told to wait
+ * takes the permit, so while callers keep arriving faster than the rate a caller can be turned away again and again.
+ */
+public class TokenBucket {
+	private final double permitsPerSecond;
+	private final int burst;
+	private final long intervalNanos;
+	private double tokens;
+	private long refilledAt;
+	private long nextSlot;
+
+	/**
+	 * @param permitsPerSecond the steady rate permits are handed out at
+	 * @param burst the most permits that can be handed out at once after the bucket has been idle
+	 */
+	public TokenBucket(double permitsPerSecond, int burst) {
+		this(permitsPerSecond, burst, System.nanoTime());
+	}
+
+	TokenBucket(double permitsPerSecond, int burst, long now) {
+		if (!(permitsPerSecond > 0) || burst < 1) {
+			throw new ThundrDeferredException("Rate limit must allow more than 0 per second with a burst of at least 1 but was %s per second with a burst of %s", permitsPerSecond, burst);
+		}
+		this.permitsPerSecond = permitsPerSecond;
+		this.burst = burst;
+		this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+		this.tokens = burst;
+		this.refilledAt = now;
+		this.nextSlot = now;
+	}
+
+	/**
+	 * Takes a permit if one is available.
+	 *
+	 * @return 0 if a permit was taken, otherwise how many nanoseconds to wait before trying again
+	 */
+	public long tryAcquire() {
+		return tryAcquire(System.nanoTime());
+	}
+
+	public double getPermitsPerSecond() {
+		return permitsPerSecond;
+	}
+
+	public int getBurst() {
+		return burst;
+	}
+
+	synchronized long tryAcquire(long now) {
+		refill(now);
+		if (tokens >= 1) {
+			tokens -= 1;
+			return 0;
+		}
+		long slot = Math.max(nextSlot, now + (long) ((1 - tokens) * intervalNanos));
+		nextSlot = slot + intervalNanos;
+		return slot - now;
+	}
+
+	private void refill(long now) {
+		long elapsed = now - refilledAt;
+		if (elapsed > 0) {
+			tokens = Math.min(burst, tokens + (double) elapsed / intervalNanos);
+			refilledAt = now;
+		}
+	}
+}
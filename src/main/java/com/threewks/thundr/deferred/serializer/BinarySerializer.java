@@ -0,0 +1,695 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.serializer;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.codec.binary.Base64;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import com.google.gson.internal.UnsafeAllocator;
+import com.threewks.thundr.deferred.ThundrDeferredException;
+
+/**
+ * A compact, schema-less binary serializer. Every value is written with a one byte type tag, integers are written as
+ * variable length, and objects are written as their class followed by name/value pairs for each non-null field.
+ * Fields that are added to or removed from a class between writing and reading are tolerated, just as they are with
+ * JSON.
+ * <p>
+ * Classes are identified by name the first time they appear in a message and by a back reference after that. Classes
+ * registered with {@link #register(Class)} are identified by a small number instead, so every node must register the
+ * same classes in the same order.
+ * <p>
+ * Because a message names the classes it contains, reading only creates objects whose class is assignable to the type
+ * declared for them (the task type, a field type or an array, collection or map element type). Where nothing more
+ * specific than {@link Object} is declared, the class must have been registered or allowed with {@link #allow(Class)}.
+ * <p>
+ * Like Gson, transient, static and synthetic fields are skipped and object graphs must not contain cycles.
+ */
+public class BinarySerializer implements ByteSerializer {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int TagNull = 0;
+	private static final int TagTrue = 1;
+	private static final int TagFalse = 2;
+	private static final int TagInt = 3;
+	private static final int TagLong = 4;
+	private static final int TagDouble = 5;
+	private static final int TagFloat = 6;
+	private static final int TagShort = 7;
+	private static final int TagByte = 8;
+	private static final int TagChar = 9;
+	private static final int TagString = 10;
+	private static final int TagBytes = 11;
+	private static final int TagArray = 12;
+	private static final int TagCollection = 13;
+	private static final int TagMap = 14;
+	private static final int TagEnum = 15;
+	private static final int TagObject = 16;
+	private static final int TagDateTime = 17;
+	private static final int TagDate = 18;
+	private static final int TagBigDecimal = 19;
+	private static final int TagBigInteger = 20;
+
+	private static final Map<String, Class<?>> primitives = new HashMap<String, Class<?>>();
+	static {
+		for (Class<?> type : new Class<?>[] { boolean.class, byte.class, short.class, char.class, int.class, long.class, float.class, double.class }) {
+			primitives.put(type.getName(), type);
+		}
+	}
+
+	private static final Set<Class<?>> safeComponents = new HashSet<Class<?>>(Arrays.<Class<?>> asList(Object.class, String.class, Boolean.class, Integer.class, Long.class,
+			Double.class, Float.class, Short.class, Byte.class, Character.class, Date.class, DateTime.class, BigDecimal.class, BigInteger.class));
+
+	private final List<Class<?>> registered = new CopyOnWriteArrayList<Class<?>>();
+	private final ConcurrentMap<Class<?>, Integer> registeredIds = new ConcurrentHashMap<Class<?>, Integer>();
+	private final Set<Class<?>> allowed = Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
+	private final ConcurrentMap<Class<?>, Map<String, Field>> fields = new ConcurrentHashMap<Class<?>, Map<String, Field>>();
+	private final ConcurrentMap<Class<?>, Constructor<?>> constructors = new ConcurrentHashMap<Class<?>, Constructor<?>>();
+	private final UnsafeAllocator allocator = UnsafeAllocator.create();
+
+	/**
+	 * Registers a class so that it is written as a small number rather than its name.
+	 */
+	public synchronized BinarySerializer register(Class<?> type) {
+		if (!registeredIds.containsKey(type)) {
+			registeredIds.put(type, registered.size());
+			registered.add(type);
+		}
+		return this;
+	}
+
+	/**
+	 * Allows a class to be read where only {@link Object} is declared, such as a value in a {@code Map<String, Object>},
+	 * without registering it. Registered classes are always allowed.
+	 */
+	public BinarySerializer allow(Class<?> type) {
+		allowed.add(type);
+		return this;
+	}
+
+	@Override
+	public <T> String serialize(T object) {
+		return new String(Base64.encodeBase64(serializeToBytes(object)), UTF8);
+	}
+
+	@Override
+	public <T> T deserialize(Class<T> type, String data) throws ClassNotFoundException {
+		return deserialize(type, Base64.decodeBase64(data.getBytes(UTF8)));
+	}
+
+	@Override
+	public <T> byte[] serializeToBytes(T object) {
+		Output out = new Output();
+		write(out, object);
+		return out.toByteArray();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> T deserialize(Class<T> type, byte[] data) throws ClassNotFoundException {
+		Input in = new Input(data);
+		return (T) read(in, type);
+	}
+
+	private void write(Output out, Object value) {
+		if (value == null) {
+			out.write(TagNull);
+		} else if (value instanceof String) {
+			out.write(TagString);
+			out.writeString((String) value);
+		} else if (value instanceof Integer) {
+			out.write(TagInt);
+			out.writeSignedVarLong((Integer) value);
+		} else if (value instanceof Long) {
+			out.write(TagLong);
+			out.writeSignedVarLong((Long) value);
+		} else if (value instanceof Boolean) {
+			out.write((Boolean) value ? TagTrue : TagFalse);
+		} else if (value instanceof Double) {
+			out.write(TagDouble);
+			out.writeFixedLong(Double.doubleToLongBits((Double) value));
+		} else if (value instanceof Float) {
+			out.write(TagFloat);
+			out.writeFixedInt(Float.floatToIntBits((Float) value));
+		} else if (value instanceof Short) {
+			out.write(TagShort);
+			out.writeSignedVarLong((Short) value);
+		} else if (value instanceof Byte) {
+			out.write(TagByte);
+			out.write((Byte) value);
+		} else if (value instanceof Character) {
+			out.write(TagChar);
+			out.writeVarLong((Character) value);
+		} else if (value instanceof byte[]) {
+			byte[] bytes = (byte[]) value;
+			out.write(TagBytes);
+			out.writeVarLong(bytes.length);
+			out.write(bytes, 0, bytes.length);
+		} else if (value instanceof Enum) {
+			out.write(TagEnum);
+			writeClass(out, ((Enum<?>) value).getDeclaringClass());
+			out.writeString(((Enum<?>) value).name());
+		} else if (value instanceof DateTime) {
+			out.write(TagDateTime);
+			out.writeSignedVarLong(((DateTime) value).getMillis());
+			out.writeString(((DateTime) value).getZone().getID());
+		} else if (value instanceof Date) {
+			out.write(TagDate);
+			out.writeSignedVarLong(((Date) value).getTime());
+		} else if (value instanceof BigDecimal) {
+			out.write(TagBigDecimal);
+			out.writeString(value.toString());
+		} else if (value instanceof BigInteger) {
+			out.write(TagBigInteger);
+			out.writeString(value.toString());
+		} else if (value.getClass().isArray()) {
+			writeArray(out, value);
+		} else if (value instanceof Collection) {
+			Collection<?> collection = (Collection<?>) value;
+			out.write(TagCollection);
+			out.writeVarLong(collection.size());
+			for (Object element : collection) {
+				write(out, element);
+			}
+		} else if (value instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>) value;
+			out.write(TagMap);
+			out.writeVarLong(map.size());
+			for (Map.Entry<?, ?> entry : map.entrySet()) {
+				write(out, entry.getKey());
+				write(out, entry.getValue());
+			}
+		} else {
+			writeObject(out, value);
+		}
+	}
+
+	private void writeArray(Output out, Object array) {
+		int length = Array.getLength(array);
+		out.write(TagArray);
+		writeClass(out, array.getClass().getComponentType());
+		out.writeVarLong(length);
+		for (int i = 0; i < length; i++) {
+			write(out, Array.get(array, i));
+		}
+	}
+
+	private void writeObject(Output out, Object object) {
+		Map<String, Field> objectFields = fieldsOf(object.getClass());
+		List<Object> values = new ArrayList<Object>(objectFields.size() * 2);
+		for (Map.Entry<String, Field> field : objectFields.entrySet()) {
+			Object value = get(field.getValue(), object);
+			if (value != null) {
+				values.add(field.getKey());
+				values.add(value);
+			}
+		}
+
+		out.write(TagObject);
+		writeClass(out, object.getClass());
+		out.writeVarLong(values.size() / 2);
+		for (int i = 0; i < values.size(); i += 2) {
+			out.writeStringRef((String) values.get(i));
+			write(out, values.get(i + 1));
+		}
+	}
+
+	private void writeClass(Output out, Class<?> type) {
+		Integer id = registeredIds.get(type);
+		if (id != null) {
+			out.writeVarLong(((long) id << 1) | 1);
+			return;
+		}
+		Integer index = out.classes.get(type);
+		if (index != null) {
+			out.writeVarLong((long) (index + 1) << 1);
+		} else {
+			out.writeVarLong(0);
+			out.writeString(type.getName());
+			out.classes.put(type, out.classes.size());
+		}
+	}
+
+	private Object read(Input in, Type declaredType) throws ClassNotFoundException {
+		Class<?> declared = rawType(declaredType);
+		int tag = in.read();
+		switch (tag) {
+			case TagNull:
+				return null;
+			case TagTrue:
+				return Boolean.TRUE;
+			case TagFalse:
+				return Boolean.FALSE;
+			case TagInt:
+				return (int) in.readSignedVarLong();
+			case TagLong:
+				return in.readSignedVarLong();
+			case TagDouble:
+				return Double.longBitsToDouble(in.readFixedLong());
+			case TagFloat:
+				return Float.intBitsToFloat(in.readFixedInt());
+			case TagShort:
+				return (short) in.readSignedVarLong();
+			case TagByte:
+				return (byte) in.read();
+			case TagChar:
+				return (char) in.readVarLong();
+			case TagString:
+				return in.readString();
+			case TagBytes:
+				return in.readBytes(in.readLength());
+			case TagEnum:
+				return readEnum(in, declared);
+			case TagDateTime:
+				long millis = in.readSignedVarLong();
+				return new DateTime(millis, DateTimeZone.forID(in.readString()));
+			case TagDate:
+				return new Date(in.readSignedVarLong());
+			case TagBigDecimal:
+				return new BigDecimal(in.readString());
+			case TagBigInteger:
+				return new BigInteger(in.readString());
+			case TagArray:
+				return readArray(in, declared);
+			case TagCollection:
+				return readCollection(in, declared, typeArgument(declaredType, 0));
+			case TagMap:
+				return readMap(in, declared, typeArgument(declaredType, 0), typeArgument(declaredType, 1));
+			case TagObject:
+				return readObject(in, declared);
+			default:
+				throw new ThundrDeferredException("Corrupt binary message. Unknown type tag %s at position %s", tag, in.position - 1);
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Object readEnum(Input in, Class<?> declared) throws ClassNotFoundException {
+		Class type = readClass(in);
+		if (!type.isEnum()) {
+			throw new ThundrDeferredException("Binary message refers to %s as an enum, but it is not one", type.getName());
+		}
+		checkReadable(type, declared);
+		return Enum.valueOf(type, in.readString());
+	}
+
+	/**
+	 * The array's component type must fit the declared component type, so its elements, which are read as that type,
+	 * are held to the declared type too.
+	 */
+	private Object readArray(Input in, Class<?> declared) throws ClassNotFoundException {
+		Class<?> componentType = readClass(in);
+		Class<?> declaredComponent = declared.isArray() ? declared.getComponentType() : Object.class;
+		if (!isSafeComponent(componentType)) {
+			checkReadable(componentType, declaredComponent);
+		}
+		int length = in.readLength();
+		Object array = Array.newInstance(componentType, length);
+		for (int i = 0; i < length; i++) {
+			Array.set(array, i, coerce(read(in, componentType), componentType));
+		}
+		return array;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Object readCollection(Input in, Class<?> declared, Type element) throws ClassNotFoundException {
+		int size = in.readLength();
+		Collection<Object> collection = (Collection<Object>) newContainer(declared, Collection.class, size);
+		for (int i = 0; i < size; i++) {
+			collection.add(read(in, element));
+		}
+		return collection;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Object readMap(Input in, Class<?> declared, Type keyType, Type valueType) throws ClassNotFoundException {
+		int size = in.readLength();
+		Map<Object, Object> map = (Map<Object, Object>) newContainer(declared, Map.class, size);
+		for (int i = 0; i < size; i++) {
+			Object key = read(in, keyType);
+			map.put(key, read(in, valueType));
+		}
+		return map;
+	}
+
+	private Object readObject(Input in, Class<?> declared) throws ClassNotFoundException {
+		Class<?> type = readClass(in);
+		checkReadable(type, declared);
+		Object object = instantiate(type);
+		Map<String, Field> objectFields = fieldsOf(type);
+		int count = in.readLength();
+		for (int i = 0; i < count; i++) {
+			String name = in.readStringRef();
+			Field field = objectFields.get(name);
+			Object value = read(in, field == null ? Object.class : field.getGenericType());
+			if (field != null) {
+				set(field, object, coerce(value, field.getType()));
+			}
+		}
+		return object;
+	}
+
+	private Class<?> readClass(Input in) throws ClassNotFoundException {
+		long ref = in.readVarLong();
+		if ((ref & 1) == 1) {
+			int id = (int) (ref >>> 1);
+			if (id >= registered.size()) {
+				throw new ThundrDeferredException("Binary message refers to unregistered class id %s", id);
+			}
+			return registered.get(id);
+		}
+		if (ref == 0) {
+			String name = in.readString();
+			Class<?> type = primitives.get(name);
+			if (type == null) {
+				// not initialised here, so static initialisers of unexpected classes never run
+				type = Class.forName(name, false, BinarySerializer.class.getClassLoader());
+			}
+			in.classes.add(type);
+			return type;
+		}
+		long index = (ref >>> 1) - 1;
+		if (index >= in.classes.size()) {
+			throw new ThundrDeferredException("Corrupt binary message. Unknown class reference %s at position %s", index, in.position);
+		}
+		return in.classes.get((int) index);
+	}
+
+	private void checkReadable(Class<?> type, Class<?> declared) {
+		if (!isReadable(type, declared)) {
+			throw new ThundrDeferredException("Binary message contains a %s where a %s was expected. Register or allow the class to read it", type.getName(), declared.getName());
+		}
+	}
+
+	/**
+	 * Arrays of primitives, of {@link Object} and of the types written with their own tag can always be created, as
+	 * creating them creates no other object. Their elements are still checked as they are read.
+	 */
+	private static boolean isSafeComponent(Class<?> componentType) {
+		while (componentType.isArray()) {
+			componentType = componentType.getComponentType();
+		}
+		return componentType.isPrimitive() || safeComponents.contains(componentType);
+	}
+
+	private boolean isReadable(Class<?> type, Class<?> declared) {
+		if (declared != Object.class && declared.isAssignableFrom(type)) {
+			return true;
+		}
+		return registeredIds.containsKey(type) || allowed.contains(type);
+	}
+
+	private static Class<?> rawType(Type type) {
+		if (type instanceof Class) {
+			return (Class<?>) type;
+		}
+		if (type instanceof ParameterizedType) {
+			return rawType(((ParameterizedType) type).getRawType());
+		}
+		return Object.class;
+	}
+
+	private static Type typeArgument(Type type, int index) {
+		if (type instanceof ParameterizedType) {
+			Type[] arguments = ((ParameterizedType) type).getActualTypeArguments();
+			if (index < arguments.length) {
+				return arguments[index];
+			}
+		}
+		return Object.class;
+	}
+
+	private Object newContainer(Class<?> declared, Class<?> kind, int size) {
+		if (declared != null && kind.isAssignableFrom(declared) && !declared.isInterface() && !Modifier.isAbstract(declared.getModifiers())) {
+			return instantiate(declared);
+		}
+		if (kind == Map.class) {
+			return declared != null && SortedMap.class.isAssignableFrom(declared) ? new TreeMap<Object, Object>() : new LinkedHashMap<Object, Object>(Math.max(16, size * 2));
+		}
+		if (declared != null && SortedSet.class.isAssignableFrom(declared)) {
+			return new TreeSet<Object>();
+		}
+		if (declared != null && Set.class.isAssignableFrom(declared)) {
+			return new LinkedHashSet<Object>(Math.max(16, size * 2));
+		}
+		return new ArrayList<Object>(size);
+	}
+
+	private Object instantiate(Class<?> type) {
+		try {
+			Constructor<?> constructor = constructors.get(type);
+			if (constructor == null && !constructors.containsKey(type)) {
+				try {
+					constructor = type.getDeclaredConstructor();
+					constructor.setAccessible(true);
+					constructors.putIfAbsent(type, constructor);
+				} catch (NoSuchMethodException e) {
+					// fall through to allocating without a constructor, as Gson does
+				}
+			}
+			return constructor != null ? constructor.newInstance() : allocator.newInstance(type);
+		} catch (Exception e) {
+			throw new ThundrDeferredException(e, "Unable to create an instance of %s. Reason: %s", type.getName(), e.getMessage());
+		}
+	}
+
+	private Map<String, Field> fieldsOf(Class<?> type) {
+		Map<String, Field> typeFields = fields.get(type);
+		if (typeFields == null) {
+			typeFields = new LinkedHashMap<String, Field>();
+			for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+				for (Field field : current.getDeclaredFields()) {
+					int modifiers = field.getModifiers();
+					if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic() || typeFields.containsKey(field.getName())) {
+						continue;
+					}
+					field.setAccessible(true);
+					typeFields.put(field.getName(), field);
+				}
+			}
+			fields.putIfAbsent(type, typeFields);
+		}
+		return typeFields;
+	}
+
+	private static Object coerce(Object value, Class<?> type) {
+		if (!(value instanceof Number) || type.isInstance(value)) {
+			return value;
+		}
+		Number number = (Number) value;
+		if (type == int.class || type == Integer.class) {
+			return number.intValue();
+		} else if (type == long.class || type == Long.class) {
+			return number.longValue();
+		} else if (type == double.class || type == Double.class) {
+			return number.doubleValue();
+		} else if (type == float.class || type == Float.class) {
+			return number.floatValue();
+		} else if (type == short.class || type == Short.class) {
+			return number.shortValue();
+		} else if (type == byte.class || type == Byte.class) {
+			return number.byteValue();
+		}
+		return value;
+	}
+
+	private static Object get(Field field, Object object) {
+		try {
+			return field.get(object);
+		} catch (IllegalAccessException e) {
+			throw new ThundrDeferredException(e, "Unable to read field %s. Reason: %s", field, e.getMessage());
+		}
+	}
+
+	private static void set(Field field, Object object, Object value) {
+		if (value == null && field.getType().isPrimitive()) {
+			return;
+		}
+		try {
+			field.set(object, value);
+		} catch (IllegalAccessException e) {
+			throw new ThundrDeferredException(e, "Unable to set field %s. Reason: %s", field, e.getMessage());
+		} catch (IllegalArgumentException e) {
+			throw new ThundrDeferredException(e, "Unable to set field %s to a %s", field, value.getClass().getName());
+		}
+	}
+
+	private static class Output extends ByteArrayOutputStream {
+		private final Map<Class<?>, Integer> classes = new IdentityHashMap<Class<?>, Integer>();
+		private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+		private Output() {
+			super(256);
+		}
+
+		private void writeVarLong(long value) {
+			while ((value & ~0x7FL) != 0) {
+				write((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			write((int) value);
+		}
+
+		private void writeSignedVarLong(long value) {
+			writeVarLong((value << 1) ^ (value >> 63));
+		}
+
+		private void writeFixedLong(long value) {
+			writeFixedInt((int) (value >>> 32));
+			writeFixedInt((int) value);
+		}
+
+		private void writeFixedInt(int value) {
+			for (int shift = 24; shift >= 0; shift -= 8) {
+				write(value >>> shift);
+			}
+		}
+
+		private void writeString(String value) {
+			byte[] bytes = value.getBytes(UTF8);
+			writeVarLong(bytes.length);
+			write(bytes, 0, bytes.length);
+		}
+
+		private void writeStringRef(String value) {
+			Integer index = strings.get(value);
+			if (index != null) {
+				writeVarLong(index + 1);
+			} else {
+				writeVarLong(0);
+				writeString(value);
+				strings.put(value, strings.size());
+			}
+		}
+	}
+
+	private static class Input {
+		private final byte[] data;
+		private int position = 0;
+		private final List<Class<?>> classes = new ArrayList<Class<?>>();
+		private final List<String> strings = new ArrayList<String>();
+
+		private Input(byte[] data) {
+			this.data = data;
+		}
+
+		private int read() {
+			if (position >= data.length) {
+				throw new ThundrDeferredException("Corrupt binary message. Unexpected end of data at position %s", position);
+			}
+			return data[position++] & 0xFF;
+		}
+
+		private long readVarLong() {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = read();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new ThundrDeferredException("Corrupt binary message. Malformed number at position %s", position);
+		}
+
+		private long readSignedVarLong() {
+			long value = readVarLong();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		private long readFixedLong() {
+			return ((long) readFixedInt() << 32) | (readFixedInt() & 0xFFFFFFFFL);
+		}
+
+		private int readFixedInt() {
+			int value = 0;
+			for (int i = 0; i < 4; i++) {
+				value = (value << 8) | read();
+			}
+			return value;
+		}
+
+		/**
+		 * Reads a length or element count, which can never exceed the bytes left as every element takes at least one.
+		 */
+		private int readLength() {
+			long length = readVarLong();
+			if (length < 0 || length > data.length - position) {
+				throw new ThundrDeferredException("Corrupt binary message. Length %s at position %s exceeds data", length, position);
+			}
+			return (int) length;
+		}
+
+		private byte[] readBytes(int length) {
+			byte[] bytes = new byte[length];
+			System.arraycopy(data, position, bytes, 0, length);
+			position += length;
+			return bytes;
+		}
+
+		private String readString() {
+			int length = readLength();
+			String value = new String(data, position, length, UTF8);
+			position += length;
+			return value;
+		}
+
+		private String readStringRef() {
+			long ref = readVarLong();
+			if (ref == 0) {
+				String value = readString();
+				strings.add(value);
+				return value;
+			}
+			if (ref < 0 || ref > strings.size()) {
+				throw new ThundrDeferredException("Corrupt binary message. Unknown string reference %s at position %s", ref, position);
+			}
+			return strings.get((int) ref - 1);
+		}
+	}
+}
@@ -0,0 +1,28 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.serializer;
+
+/**
+ * A {@link Serializer} whose native representation is bytes rather than text. The {@link Serializer} methods of an
+ * implementation should return Base64 encoded text so that it can still be used wherever a String is expected.
+ */
+public interface ByteSerializer extends Serializer {
+	<T> byte[] serializeToBytes(T object);
+
+	<T> T deserialize(Class<T> type, byte[] data) throws ClassNotFoundException;
+}
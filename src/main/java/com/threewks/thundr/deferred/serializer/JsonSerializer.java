@@ -17,26 +17,93 @@
  */
 package com.threewks.thundr.deferred.serializer;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import org.joda.time.DateTime;
 
+import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import com.threewks.thundr.json.DateTimeTypeConvertor;
 
+/**
+ * Serializes objects to and from JSON using a single, shared {@link Gson} instance. Type adapters are looked up once per
+ * class and cached. Instances are thread safe.
+ */
 public class JsonSerializer implements Serializer {
-	private final GsonBuilder builder;
+	private final Gson gson;
+	private final ConcurrentMap<Class<?>, TypeAdapter<?>> adapters = new ConcurrentHashMap<Class<?>, TypeAdapter<?>>();
 
 	public JsonSerializer() {
-		builder = new GsonBuilder();
+		GsonBuilder builder = new GsonBuilder();
 		builder.registerTypeAdapter(DateTime.class, new DateTimeTypeConvertor());
+		gson = builder.create();
 	}
 
+	@SuppressWarnings("unchecked")
 	@Override
 	public <T> String serialize(T object) {
-		return builder.create().toJson(object);
+		if (object == null) {
+			return gson.toJson(null);
+		}
+		TypeAdapter<T> adapter = (TypeAdapter<T>) adapterFor(object.getClass());
+		StringWriter out = new StringWriter();
+		try {
+			adapter.write(newWriter(out), object);
+		} catch (IOException e) {
+			throw new JsonIOException(e);
+		}
+		return out.toString();
 	}
 
 	@Override
 	public <T> T deserialize(Class<T> type, String data) throws ClassNotFoundException {
-		return builder.create().fromJson(data, type);
+		try {
+			return adapterFor(type).read(newReader(data));
+		} catch (IOException e) {
+			throw new JsonSyntaxException(e);
+		}
+	}
+
+	/**
+	 * @return the cached type adapter for the given type
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> TypeAdapter<T> adapterFor(Class<T> type) {
+		TypeAdapter<T> adapter = (TypeAdapter<T>) adapters.get(type);
+		if (adapter == null) {
+			adapter = gson.getAdapter(type);
+			adapters.putIfAbsent(type, adapter);
+		}
+		return adapter;
+	}
+
+	public Gson getGson() {
+		return gson;
+	}
+
+	/**
+	 * @return a writer configured the same way {@link Gson#toJson(Object)} configures its own
+	 */
+	JsonWriter newWriter(StringWriter out) {
+		JsonWriter writer = new JsonWriter(out);
+		writer.setLenient(true);
+		writer.setHtmlSafe(true);
+		writer.setSerializeNulls(false);
+		return writer;
+	}
+
+	JsonReader newReader(String data) {
+		JsonReader reader = new JsonReader(new StringReader(data));
+		reader.setLenient(true);
+		return reader;
 	}
 }
@@ -0,0 +1,131 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.serializer;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.threewks.thundr.deferred.ThundrDeferredException;
+import com.threewks.thundr.deferred.task.DeferredTask;
+
+/**
+ * Reads and writes the JSON task envelope in a single pass.
+ * <p>
+ * Version 2 envelopes embed the task as a nested object, e.g. <code>{"v":2,"type":"com.example.MyTask","task":{...}}</code>.
+ * Since the type is written before the task, the task body is parsed straight into the task class as it is read. The
+ * envelope may also record when the task was enqueued, in milliseconds since the epoch, as <code>"at"</code>.
+ * <p>
+ * Version 1 envelopes, <code>{"taskClassName":"com.example.MyTask","taskData":"{...}"}</code>, carry the task as an
+ * escaped JSON string. They are still read so that messages queued by earlier versions are not lost.
+ */
+class JsonTaskEnvelope {
+	static final int CurrentVersion = 2;
+
+	private final JsonSerializer serializer;
+	private final TaskTypeRegistry registry;
+
+	JsonTaskEnvelope(JsonSerializer serializer, TaskTypeRegistry registry) {
+		this.serializer = serializer;
+		this.registry = registry;
+	}
+
+	@SuppressWarnings("unchecked")
+	String write(DeferredTask task, long enqueuedAt) {
+		TypeAdapter<DeferredTask> adapter = (TypeAdapter<DeferredTask>) serializer.adapterFor(task.getClass());
+		StringWriter out = new StringWriter();
+		try {
+			JsonWriter writer = serializer.newWriter(out);
+			writer.beginObject();
+			writer.name("v").value(CurrentVersion);
+			writer.name("type").value(registry.nameOf(task.getClass()));
+			if (enqueuedAt > 0) {
+				writer.name("at").value(enqueuedAt);
+			}
+			writer.name("task");
+			adapter.write(writer, task);
+			writer.endObject();
+		} catch (IOException e) {
+			throw new JsonIOException(e);
+		}
+		return out.toString();
+	}
+
+	ReceivedTask read(String data) throws ClassNotFoundException {
+		try {
+			JsonReader reader = serializer.newReader(data);
+			String type = null;
+			DeferredTask task = null;
+			JsonElement deferredBody = null;
+			String deferredData = null;
+			int version = 1;
+			long enqueuedAt = 0;
+
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if ("v".equals(name)) {
+					version = reader.nextInt();
+					if (version > CurrentVersion) {
+						throw new ThundrDeferredException("Unsupported task message version %s. Latest supported version is %s.", version, CurrentVersion);
+					}
+				} else if ("type".equals(name) || "taskClassName".equals(name)) {
+					type = reader.nextString();
+				} else if ("at".equals(name)) {
+					enqueuedAt = reader.nextLong();
+				} else if ("task".equals(name)) {
+					if (type != null) {
+						task = serializer.adapterFor(registry.resolve(type)).read(reader);
+					} else {
+						deferredBody = new JsonParser().parse(reader);
+					}
+				} else if ("taskData".equals(name) && reader.peek() == JsonToken.STRING) {
+					String taskData = reader.nextString();
+					if (type != null) {
+						task = serializer.deserialize(registry.resolve(type), taskData);
+					} else {
+						deferredData = taskData;
+					}
+				} else {
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+
+			if (type == null) {
+				throw new ThundrDeferredException("Task message version %s has no task type", version);
+			}
+			if (task == null && deferredBody != null) {
+				task = serializer.adapterFor(registry.resolve(type)).fromJsonTree(deferredBody);
+			}
+			if (task == null && deferredData != null) {
+				task = serializer.deserialize(registry.resolve(type), deferredData);
+			}
+			return new ReceivedTask(task, enqueuedAt);
+		} catch (IOException e) {
+			throw new JsonSyntaxException(e);
+		}
+	}
+}
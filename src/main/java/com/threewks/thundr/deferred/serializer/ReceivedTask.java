@@ -0,0 +1,44 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.serializer;
+
+import com.threewks.thundr.deferred.task.DeferredTask;
+
+/**
+ * A task read from a queue message, along with when it was enqueued if the message recorded it.
+ */
+public class ReceivedTask {
+	private final DeferredTask task;
+	private final long enqueuedAt;
+
+	public ReceivedTask(DeferredTask task, long enqueuedAt) {
+		this.task = task;
+		this.enqueuedAt = enqueuedAt;
+	}
+
+	public DeferredTask getTask() {
+		return task;
+	}
+
+	/**
+	 * @return when the task was enqueued in milliseconds since the epoch, or 0 if unknown
+	 */
+	public long getEnqueuedAt() {
+		return enqueuedAt;
+	}
+}
@@ -17,24 +17,123 @@
  */
 package com.threewks.thundr.deferred.serializer;
 
+import java.nio.charset.Charset;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.threewks.thundr.deferred.ThundrDeferredException;
 import com.threewks.thundr.deferred.provider.QueueMessage;
 import com.threewks.thundr.deferred.task.DeferredTask;
 
+/**
+ * Turns deferred tasks into queue messages and back again. With a {@link JsonSerializer} tasks are written in the
+ * single pass version 2 envelope, unless version 1 is requested in order to stay readable by nodes running earlier
+ * versions. With a {@link ByteSerializer} tasks are written as <code>b1:type:base64</code>.
+ * <p>
+ * JSON envelopes of either version are always read, whichever serializer is configured, so you can switch to a binary
+ * serializer without draining the queue first.
+ * <p>
+ * Version 2 envelopes can also record when each task was enqueued, so that the time spent waiting on the queue can be
+ * measured. This is off by default.
+ */
 public class TaskSerializer {
-	private Serializer serializer;
+	private static final String BinaryPrefix = "b1:";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final Serializer serializer;
+	private final TaskTypeRegistry registry;
+	private final JsonTaskEnvelope jsonEnvelope;
+	private final int envelopeVersion;
+	private volatile boolean recordEnqueueTime;
 
 	public TaskSerializer(Serializer serializer) {
+		this(serializer, new TaskTypeRegistry());
+	}
+
+	public TaskSerializer(Serializer serializer, TaskTypeRegistry registry) {
+		this(serializer, registry, JsonTaskEnvelope.CurrentVersion);
+	}
+
+	/**
+	 * @param envelopeVersion the envelope version to write, 1 or 2
+	 */
+	public TaskSerializer(Serializer serializer, TaskTypeRegistry registry, int envelopeVersion) {
+		if (envelopeVersion < 1 || envelopeVersion > JsonTaskEnvelope.CurrentVersion) {
+			throw new ThundrDeferredException("Unsupported task message version %s", envelopeVersion);
+		}
 		this.serializer = serializer;
+		this.registry = registry;
+		this.envelopeVersion = envelopeVersion;
+		JsonSerializer jsonSerializer = serializer instanceof JsonSerializer ? (JsonSerializer) serializer : new JsonSerializer();
+		this.jsonEnvelope = new JsonTaskEnvelope(jsonSerializer, registry);
 	}
 
 	public String serialize(DeferredTask deferredTask) {
-		QueueMessage message = new QueueMessage(deferredTask);
+		if (serializer instanceof ByteSerializer) {
+			return serializeBinary((ByteSerializer) serializer, deferredTask);
+		}
+		if (serializer instanceof JsonSerializer && envelopeVersion > 1) {
+			return jsonEnvelope.write(deferredTask, recordEnqueueTime ? System.currentTimeMillis() : 0);
+		}
+		String taskClassName = registry.nameOf(deferredTask.getClass());
+		QueueMessage message = new QueueMessage(taskClassName, serializer.serialize(deferredTask));
 		return serializer.serialize(message);
 	}
 
 	public DeferredTask deserialize(String data) throws ClassNotFoundException {
+		return deserializeReceived(data).getTask();
+	}
+
+	/**
+	 * Reads a task, along with when it was enqueued if the message recorded it.
+	 */
+	public ReceivedTask deserializeReceived(String data) throws ClassNotFoundException {
+		if (data.startsWith(BinaryPrefix)) {
+			return new ReceivedTask(deserializeBinary(data), 0);
+		}
+		if (serializer instanceof JsonSerializer || serializer instanceof ByteSerializer) {
+			return jsonEnvelope.read(data);
+		}
 		QueueMessage taskMessage = serializer.deserialize(QueueMessage.class, data);
-		Class<?> type = Class.forName(taskMessage.getTaskClassName());
-		return (DeferredTask) serializer.deserialize(type, taskMessage.getTaskData());
+		Class<? extends DeferredTask> type = registry.resolve(taskMessage.getTaskClassName());
+		return new ReceivedTask(serializer.deserialize(type, taskMessage.getTaskData()), 0);
+	}
+
+	/**
+	 * @param recordEnqueueTime whether version 2 envelopes record when the task was enqueued
+	 */
+	public void setRecordEnqueueTime(boolean recordEnqueueTime) {
+		this.recordEnqueueTime = recordEnqueueTime;
+	}
+
+	public boolean isRecordEnqueueTime() {
+		return recordEnqueueTime;
+	}
+
+	public TaskTypeRegistry getRegistry() {
+		return registry;
+	}
+
+	public Serializer getSerializer() {
+		return serializer;
+	}
+
+	private String serializeBinary(ByteSerializer byteSerializer, DeferredTask deferredTask) {
+		byte[] body = byteSerializer.serializeToBytes(deferredTask);
+		String type = registry.nameOf(deferredTask.getClass());
+		return BinaryPrefix + type + ":" + new String(Base64.encodeBase64(body), UTF8);
+	}
+
+	private DeferredTask deserializeBinary(String data) throws ClassNotFoundException {
+		if (!(serializer instanceof ByteSerializer)) {
+			throw new ThundrDeferredException("Received a binary task message but %s is not a %s", serializer.getClass().getName(), ByteSerializer.class.getSimpleName());
+		}
+		int separator = data.lastIndexOf(':');
+		if (separator <= BinaryPrefix.length()) {
+			throw new ThundrDeferredException("Malformed binary task message");
+		}
+		Class<? extends DeferredTask> type = registry.resolve(data.substring(BinaryPrefix.length(), separator));
+		byte[] body = Base64.decodeBase64(data.substring(separator + 1).getBytes(UTF8));
+		return ((ByteSerializer) serializer).deserialize(type, body);
 	}
 }
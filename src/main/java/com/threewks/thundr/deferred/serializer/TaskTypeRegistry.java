@@ -0,0 +1,79 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.serializer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.threewks.thundr.deferred.ThundrDeferredException;
+import com.threewks.thundr.deferred.task.DeferredTask;
+
+/**
+ * Resolves the task type names carried in queue messages to task classes, caching each lookup. Task classes can also
+ * be registered up front, optionally under a short alias which is then written to messages in place of the class name.
+ */
+public class TaskTypeRegistry {
+	private final ConcurrentMap<String, Class<? extends DeferredTask>> types = new ConcurrentHashMap<String, Class<? extends DeferredTask>>();
+	private final ConcurrentMap<Class<?>, String> names = new ConcurrentHashMap<Class<?>, String>();
+
+	public TaskTypeRegistry register(Class<? extends DeferredTask> type) {
+		types.put(type.getName(), type);
+		return this;
+	}
+
+	/**
+	 * Registers a task class under an alias. Messages for this task type will carry the alias instead of the class
+	 * name, so every node consuming the queue must register the same alias.
+	 */
+	public TaskTypeRegistry register(String alias, Class<? extends DeferredTask> type) {
+		Class<? extends DeferredTask> existing = types.get(alias);
+		if (existing != null && existing != type) {
+			throw new ThundrDeferredException("Task alias %s is already registered to %s", alias, existing.getName());
+		}
+		types.put(alias, type);
+		types.put(type.getName(), type);
+		names.put(type, alias);
+		return this;
+	}
+
+	/**
+	 * @return the name written to messages for the given task type
+	 */
+	public String nameOf(Class<?> type) {
+		String alias = names.get(type);
+		return alias == null ? type.getName() : alias;
+	}
+
+	/**
+	 * @return the task class for the given alias or class name
+	 * @throws ClassNotFoundException if no such class exists
+	 */
+	@SuppressWarnings("unchecked")
+	public Class<? extends DeferredTask> resolve(String name) throws ClassNotFoundException {
+		Class<? extends DeferredTask> type = types.get(name);
+		if (type == null) {
+			Class<?> loaded = Class.forName(name);
+			if (!DeferredTask.class.isAssignableFrom(loaded)) {
+				throw new ThundrDeferredException("Class %s is not a %s", name, DeferredTask.class.getName());
+			}
+			type = (Class<? extends DeferredTask>) loaded;
+			types.putIfAbsent(name, type);
+		}
+		return type;
+	}
+}
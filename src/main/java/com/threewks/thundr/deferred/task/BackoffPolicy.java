@@ -0,0 +1,121 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.task;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How long to wait before retrying a failed task. Delays grow exponentially from the base delay by the multiplier on
+ * each attempt, up to the maximum delay, and are then spread out by the {@link Jitter} so that tasks which failed
+ * together do not all retry together.
+ */
+public class BackoffPolicy {
+	/**
+	 * Retry straight away.
+	 */
+	public static final BackoffPolicy None = new BackoffPolicy(0, 1, 0, Jitter.None);
+
+	public enum Jitter {
+		/**
+		 * Wait exactly the exponential delay.
+		 */
+		None,
+
+		/**
+		 * Wait a random time between zero and the exponential delay.
+		 */
+		Full,
+
+		/**
+		 * Wait a random time between the base delay and the multiplier times the previous delay. Spreads retries out
+		 * as well as full jitter, but without ever retrying straight away.
+		 */
+		Decorrelated
+	}
+
+	private final long baseDelayMillis;
+	private final double multiplier;
+	private final long maxDelayMillis;
+	private final Jitter jitter;
+
+	/**
+	 * @param baseDelayMillis delay before the first retry
+	 * @param multiplier how much the delay grows by on each retry
+	 * @param maxDelayMillis longest delay before a retry
+	 * @param jitter how delays are randomised
+	 */
+	public BackoffPolicy(long baseDelayMillis, double multiplier, long maxDelayMillis, Jitter jitter) {
+		if (baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis) {
+			throw new IllegalArgumentException("Backoff delays must satisfy 0 <= base delay <= max delay");
+		}
+		if (multiplier < 1) {
+			throw new IllegalArgumentException("Backoff multiplier must be at least 1");
+		}
+		this.baseDelayMillis = baseDelayMillis;
+		this.multiplier = multiplier;
+		this.maxDelayMillis = maxDelayMillis;
+		this.jitter = jitter;
+	}
+
+	/**
+	 * @param attempt the retry about to be made, starting from 1
+	 * @param previousDelayMillis the delay before the previous retry, or 0 if there was none
+	 * @return how long to wait in milliseconds before making the retry
+	 */
+	public long nextDelayMillis(int attempt, long previousDelayMillis) {
+		return nextDelayMillis(attempt, previousDelayMillis, ThreadLocalRandom.current());
+	}
+
+	long nextDelayMillis(int attempt, long previousDelayMillis, Random random) {
+		if (maxDelayMillis == 0) {
+			return 0;
+		}
+		switch (jitter) {
+			case Full:
+				return (long) (random.nextDouble() * (exponentialDelay(attempt) + 1));
+			case Decorrelated:
+				long upper = Math.min(maxDelayMillis, (long) (Math.max(baseDelayMillis, previousDelayMillis) * multiplier));
+				return baseDelayMillis + (long) (random.nextDouble() * (upper - baseDelayMillis + 1));
+			case None:
+			default:
+				return exponentialDelay(attempt);
+		}
+	}
+
+	public long getBaseDelayMillis() {
+		return baseDelayMillis;
+	}
+
+	public double getMultiplier() {
+		return multiplier;
+	}
+
+	public long getMaxDelayMillis() {
+		return maxDelayMillis;
+	}
+
+	public Jitter getJitter() {
+		return jitter;
+	}
+
+	private long exponentialDelay(int attempt) {
+		double delay = baseDelayMillis * Math.pow(multiplier, Math.max(0, attempt - 1));
+		return delay >= maxDelayMillis ? maxDelayMillis : (long) delay;
+	}
+}
@@ -17,9 +17,10 @@
  */
 package com.threewks.thundr.deferred.task;
 
-public abstract class BaseRetryableDeferredTask implements RetryableDeferredTask {
+public abstract class BaseRetryableDeferredTask implements DelayedRetryDeferredTask {
 	private transient int maxRetries = -1;
 	private int retries = 0;
+	private long retryDelay = 0;
 
 	@Override
 	public boolean shouldRetry() {
@@ -36,6 +37,22 @@ public abstract class BaseRetryableDeferredTask implements RetryableDeferredTask
 		return maxRetries;
 	}
 
+	/**
+	 * Delays each retry according to {@link #backoffPolicy()}.
+	 */
+	@Override
+	public long nextRetryDelayMillis() {
+		retryDelay = backoffPolicy().nextDelayMillis(retries(), retryDelay);
+		return retryDelay;
+	}
+
+	/**
+	 * Override to wait between retries. By default tasks are retried straight away.
+	 */
+	protected BackoffPolicy backoffPolicy() {
+		return BackoffPolicy.None;
+	}
+
 	@Override
 	public void run() {
 		retries++;
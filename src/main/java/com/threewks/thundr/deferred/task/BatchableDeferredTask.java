@@ -0,0 +1,38 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.task;
+
+import java.util.List;
+
+/**
+ * A task which can run together with other tasks of the same class in one go, such as incrementing a counter or
+ * writing an audit row, where running many at once saves a round trip per task.
+ * <p>
+ * Tasks of the same class received in one poll of the queue are grouped into batches of up to the configured task
+ * batch size, and {@link #runBatch(List)} is called on one task of each batch with the whole batch, including itself.
+ * If it throws, the tasks in the batch are run one at a time with {@link #run()} instead, so a single bad task does
+ * not fail the rest. Both should therefore have the same effect, and a batch should be safe to partly repeat.
+ *
+ * @param <T> the class implementing this interface
+ */
+public interface BatchableDeferredTask<T extends BatchableDeferredTask<T>> extends DeferredTask {
+	/**
+	 * @param batch the tasks to run, in the order they were received
+	 */
+	void runBatch(List<T> batch);
+}
@@ -0,0 +1,35 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.task;
+
+/**
+ * A task which only needs to run once for any number of copies deferred close together, such as reindexing an entity
+ * which was saved several times in quick succession. Copies are recognised by their dedupe key, which is scoped to the
+ * task's class.
+ * <p>
+ * If the queue provider is a {@link com.threewks.thundr.deferred.provider.DeduplicatingQueueProvider}, a copy
+ * deferred while another with the same key is still waiting on the queue is dropped. Otherwise each copy is sent, but
+ * a copy received within the dedupe window of another with the same key being run is skipped. Only implement this for
+ * tasks where that is safe, for instance because the task reads the latest state when it runs.
+ */
+public interface DeduplicatedDeferredTask extends DeferredTask {
+	/**
+	 * @return the key identifying copies of this task, or null if this copy should never be dropped
+	 */
+	String dedupeKey();
+}
@@ -17,10 +17,15 @@
  */
 package com.threewks.thundr.deferred.task;
 
-
 import com.threewks.thundr.deferred.ThundrDeferredException;
 
+/**
+ * Thrown when a deferred task has failed permanently and will not be run again.
+ */
 public class DeferredTaskFailedException extends ThundrDeferredException {
+	private static final long serialVersionUID = 1L;
+	private int attempts = 1;
+
 	public DeferredTaskFailedException(Throwable cause, String format, Object... formatArgs) {
 		super(cause, format, formatArgs);
 	}
@@ -28,4 +33,16 @@ public class DeferredTaskFailedException extends ThundrDeferredException {
 	public DeferredTaskFailedException(String format, Object... formatArgs) {
 		super(format, formatArgs);
 	}
+
+	/**
+	 * @return the number of times the task was run before giving up
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	public DeferredTaskFailedException withAttempts(int attempts) {
+		this.attempts = attempts;
+		return this;
+	}
 }
@@ -0,0 +1,38 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.worker;
+
+/**
+ * What a {@link WorkerPool} should do with a task when all of its threads are busy and its queue is full.
+ */
+public enum RejectionPolicy {
+	/**
+	 * Run the task on the thread that submitted it (i.e. the queue monitor), which naturally slows down polling.
+	 */
+	CallerRuns,
+
+	/**
+	 * Block the submitting thread until space becomes available in the queue.
+	 */
+	Block,
+
+	/**
+	 * Refuse the task. The message is put back on the queue to be picked up by a later poll.
+	 */
+	Abort
+}
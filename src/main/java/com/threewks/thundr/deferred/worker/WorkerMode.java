@@ -0,0 +1,34 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.worker;
+
+/**
+ * How a {@link WorkerPool} runs deferred tasks.
+ */
+public enum WorkerMode {
+	/**
+	 * A fixed number of platform threads with a bounded queue in front of them. Suits CPU bound tasks.
+	 */
+	Pooled,
+
+	/**
+	 * A new virtual thread for every task, with a cap on how many may run at once. Suits tasks which spend most of
+	 * their time blocked on I/O. Requires a JDK with virtual threads, otherwise falls back to {@link #Pooled}.
+	 */
+	Virtual
+}
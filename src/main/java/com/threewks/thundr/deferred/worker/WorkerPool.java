@@ -0,0 +1,275 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.worker;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.threewks.thundr.deferred.Defaults;
+import com.threewks.thundr.logger.Logger;
+
+/**
+ * The pool of worker threads that deferred tasks are run on.
+ * <p>
+ * In {@link WorkerMode#Pooled} mode this is a fixed number of threads with a bounded queue in front of them, what
+ * happens when that queue is full is governed by its {@link RejectionPolicy}. In {@link WorkerMode#Virtual} mode each
+ * task gets its own virtual thread, and the rejection policy applies once the concurrency cap is reached.
+ */
+public class WorkerPool {
+	private final ExecutorService executor;
+	private final Semaphore permits;
+	private final RejectionPolicy rejectionPolicy;
+	private final int threads;
+
+	public WorkerPool() {
+		this(Defaults.WorkerThreads, Defaults.WorkerQueueCapacity, Defaults.WorkerRejectionPolicy);
+	}
+
+	/**
+	 * @param threads number of worker threads
+	 * @param queueCapacity number of tasks that may wait for a free worker. Zero or less means unbounded.
+	 * @param rejectionPolicy what to do with a task when the queue is full
+	 */
+	public WorkerPool(int threads, int queueCapacity, RejectionPolicy rejectionPolicy) {
+		this(WorkerMode.Pooled, threads, queueCapacity, threads, rejectionPolicy);
+	}
+
+	/**
+	 * @param mode how tasks are run. Virtual mode falls back to pooled mode if the JDK has no virtual threads.
+	 * @param threads number of worker threads in pooled mode
+	 * @param queueCapacity number of tasks that may wait for a free worker in pooled mode. Zero or less means unbounded.
+	 * @param maxConcurrency number of tasks that may run at once in virtual mode
+	 * @param rejectionPolicy what to do with a task when the pool is saturated
+	 */
+	public WorkerPool(WorkerMode mode, int threads, int queueCapacity, int maxConcurrency, RejectionPolicy rejectionPolicy) {
+		ExecutorService virtualThreadExecutor = null;
+		if (mode == WorkerMode.Virtual) {
+			virtualThreadExecutor = newVirtualThreadPerTaskExecutor();
+			if (virtualThreadExecutor == null) {
+				Logger.warn("Virtual threads are not supported by this JDK, using a pool of %s worker threads instead.", threads);
+			}
+		}
+		if (virtualThreadExecutor != null) {
+			if (maxConcurrency < 1) {
+				throw new IllegalArgumentException("Worker pool must allow at least one concurrent task");
+			}
+			this.executor = virtualThreadExecutor;
+			this.permits = new Semaphore(maxConcurrency);
+			this.threads = maxConcurrency;
+		} else {
+			if (threads < 1) {
+				throw new IllegalArgumentException("Worker pool must have at least one thread");
+			}
+			BlockingQueue<Runnable> queue = queueCapacity > 0
+					? new ArrayBlockingQueue<Runnable>(queueCapacity)
+					: new LinkedBlockingQueue<Runnable>();
+			this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, queue,
+					new WorkerThreadFactory(), rejectionHandler(rejectionPolicy));
+			this.permits = null;
+			this.threads = threads;
+		}
+		this.rejectionPolicy = rejectionPolicy;
+	}
+
+	/**
+	 * Runs tasks on an executor which starts a thread per task, allowing at most the given number to run at once.
+	 */
+	WorkerPool(ExecutorService threadPerTaskExecutor, int maxConcurrency, RejectionPolicy rejectionPolicy) {
+		if (maxConcurrency < 1) {
+			throw new IllegalArgumentException("Worker pool must allow at least one concurrent task");
+		}
+		this.executor = threadPerTaskExecutor;
+		this.permits = new Semaphore(maxConcurrency);
+		this.rejectionPolicy = rejectionPolicy;
+		this.threads = maxConcurrency;
+	}
+
+	/**
+	 * Submits a unit of work to the pool.
+	 *
+	 * @throws RejectedExecutionException if the pool is saturated and the rejection policy is
+	 * {@link RejectionPolicy#Abort}, or if the pool has been shut down.
+	 */
+	public <T> Future<T> submit(Callable<T> work) {
+		if (permits == null) {
+			return executor.submit(work);
+		}
+		if (executor.isShutdown()) {
+			throw new RejectedExecutionException("Worker pool has been shut down");
+		}
+		if (!acquire()) {
+			FutureTask<T> task = new FutureTask<T>(work);
+			task.run();
+			return task;
+		}
+		try {
+			return executor.submit(new Permitted<T>(work, permits));
+		} catch (RejectedExecutionException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the number of worker threads, or in virtual mode the number of tasks that may run at once
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	public WorkerMode getMode() {
+		return permits == null ? WorkerMode.Pooled : WorkerMode.Virtual;
+	}
+
+	/**
+	 * @return true if this JDK supports virtual threads
+	 */
+	public static boolean isVirtualThreadsSupported() {
+		return virtualThreadPerTaskExecutor() != null;
+	}
+
+	/**
+	 * @return true if a permit was acquired, false if the task should be run on the calling thread
+	 */
+	private boolean acquire() {
+		if (permits.tryAcquire()) {
+			return true;
+		}
+		switch (rejectionPolicy) {
+			case Block:
+				try {
+					permits.acquire();
+					return true;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RejectedExecutionException("Interrupted waiting for a free worker", e);
+				}
+			case Abort:
+				throw new RejectedExecutionException("Worker pool is saturated");
+			case CallerRuns:
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Stops accepting new work and waits briefly for running tasks to complete.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		Method factory = virtualThreadPerTaskExecutor();
+		if (factory == null) {
+			return null;
+		}
+		try {
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			Logger.warn("Unable to create virtual thread executor. Reason: %s", e.getMessage());
+			return null;
+		}
+	}
+
+	private static Method virtualThreadPerTaskExecutor() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	private static RejectedExecutionHandler rejectionHandler(RejectionPolicy rejectionPolicy) {
+		switch (rejectionPolicy) {
+			case Block:
+				return new BlockPolicy();
+			case Abort:
+				return new ThreadPoolExecutor.AbortPolicy();
+			case CallerRuns:
+			default:
+				return new ThreadPoolExecutor.CallerRunsPolicy();
+		}
+	}
+
+	private static class BlockPolicy implements RejectedExecutionHandler {
+		@Override
+		public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+				throw new RejectedExecutionException("Worker pool has been shut down");
+			}
+			try {
+				executor.getQueue().put(runnable);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException("Interrupted waiting for a free worker", e);
+			}
+		}
+	}
+
+	private static class Permitted<T> implements Callable<T> {
+		private final Callable<T> work;
+		private final Semaphore permits;
+
+		Permitted(Callable<T> work, Semaphore permits) {
+			this.work = work;
+			this.permits = permits;
+		}
+
+		@Override
+		public T call() throws Exception {
+			try {
+				return work.call();
+			} finally {
+				permits.release();
+			}
+		}
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private static final AtomicInteger poolNumber = new AtomicInteger();
+		private final AtomicInteger threadNumber = new AtomicInteger();
+		private final int pool = poolNumber.incrementAndGet();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, String.format("deferred-worker-%d-%d", pool, threadNumber.incrementAndGet()));
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
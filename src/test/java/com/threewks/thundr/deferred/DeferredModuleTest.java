@@ -20,19 +20,52 @@ package com.threewks.thundr.deferred;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
 import static org.hamcrest.core.Is.is;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcDataSource;
 
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 
+import com.threewks.thundr.deferred.deadletter.DeadLetterQueue;
+import com.threewks.thundr.deferred.dedupe.SeenKeyCache;
+import com.threewks.thundr.deferred.metrics.DeferredTaskListener;
+import com.threewks.thundr.deferred.metrics.MetricsRegistry;
 import com.threewks.thundr.deferred.monitor.MockQueueMonitor;
 import com.threewks.thundr.deferred.monitor.QueueMonitor;
+import com.threewks.thundr.deferred.monitor.loop.ConsumerLoopQueueMonitor;
+import com.threewks.thundr.deferred.monitor.quartz.AdaptivePollingInterval;
 import com.threewks.thundr.deferred.monitor.quartz.QuartzQueueMonitor;
+import com.threewks.thundr.deferred.payload.FileSystemBlobStore;
+import com.threewks.thundr.deferred.payload.PayloadCodec;
 import com.threewks.thundr.deferred.provider.InMemoryQueueProvider;
+import com.threewks.thundr.deferred.provider.JdbcQueueProvider;
+import com.threewks.thundr.deferred.provider.JournalQueueProvider;
+import com.threewks.thundr.deferred.provider.JournalSync;
 import com.threewks.thundr.deferred.provider.MockQueueProvider;
+import com.threewks.thundr.deferred.provider.OverflowPolicy;
+import com.threewks.thundr.deferred.provider.PriorityPolicy;
 import com.threewks.thundr.deferred.provider.QueueProvider;
+import com.threewks.thundr.deferred.queue.NamedQueue;
+import com.threewks.thundr.deferred.queue.QueueRouter;
+import com.threewks.thundr.deferred.ratelimit.RateLimiter;
+import com.threewks.thundr.deferred.serializer.BinarySerializer;
+import com.threewks.thundr.deferred.serializer.TaskSerializer;
+import com.threewks.thundr.deferred.test.MockDeferredTask;
+import com.threewks.thundr.deferred.test.MockReportDeferredTask;
+import com.threewks.thundr.deferred.test.MockRetryableDeferredTask;
+import com.threewks.thundr.deferred.worker.WorkerMode;
+import com.threewks.thundr.deferred.worker.WorkerPool;
 import com.threewks.thundr.injection.InjectionContextImpl;
 import com.threewks.thundr.injection.UpdatableInjectionContext;
 import com.threewks.thundr.quartz.QuartzScheduler;
@@ -40,6 +73,8 @@ import com.threewks.thundr.quartz.QuartzScheduler;
 public class DeferredModuleTest {
 	@Rule
 	public ExpectedException thrown = ExpectedException.none();
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
 
 	private DeferredModule module;
 	private UpdatableInjectionContext injectionContext;
@@ -138,4 +173,517 @@ public class DeferredModuleTest {
 		MockQueueMonitor monitor = (MockQueueMonitor) injectionContext.get(QueueMonitor.class);
 		assertThat(monitor.startCalled, is(true));
 	}
+
+	@Test
+	public void shouldConfigureWorkerPool() {
+		injectionContext.inject("3").named("deferredWorkerThreads").as(String.class);
+		injectionContext.inject("Block").named("deferredWorkerRejectionPolicy").as(String.class);
+		module.configure(injectionContext);
+
+		WorkerPool workerPool = injectionContext.get(WorkerPool.class);
+		assertThat(workerPool.getThreads(), is(3));
+	}
+
+	@Test
+	public void shouldFailWhenWorkerRejectionPolicyDoesNotExist() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("No such worker rejection policy: Sometimes");
+
+		injectionContext.inject("Sometimes").named("deferredWorkerRejectionPolicy").as(String.class);
+		module.configure(injectionContext);
+	}
+
+	@Test
+	public void shouldFailWhenWorkerThreadsIsNotANumber() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("Property deferredWorkerThreads must be a whole number but was: lots");
+
+		injectionContext.inject("lots").named("deferredWorkerThreads").as(String.class);
+		module.configure(injectionContext);
+	}
+
+	@Test
+	public void shouldOverrideDefaultSerializer() {
+		injectionContext.inject(BinarySerializer.class.getName()).named("deferredSerializer").as(String.class);
+		module.configure(injectionContext);
+
+		TaskSerializer taskSerializer = injectionContext.get(TaskSerializer.class);
+		assertThat(taskSerializer.getSerializer(), is(instanceOf(BinarySerializer.class)));
+	}
+
+	@Test
+	public void shouldFailWhenOverriddenSerializerClassDoesNotExist() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("No such serializer: com.example.FakeSerializer. Is it on the classpath?");
+
+		injectionContext.inject("com.example.FakeSerializer").named("deferredSerializer").as(String.class);
+		module.configure(injectionContext);
+	}
+
+	@Test
+	public void shouldConfigurePayloadCodec() {
+		injectionContext.inject("1024").named("deferredCompressThreshold").as(String.class);
+		injectionContext.inject("4096").named("deferredClaimCheckThreshold").as(String.class);
+		injectionContext.inject(FileSystemBlobStore.class.getName()).named("deferredBlobStore").as(String.class);
+		injectionContext.inject(System.getProperty("java.io.tmpdir")).named("deferredBlobStoreDirectory").as(String.class);
+		module.configure(injectionContext);
+
+		PayloadCodec payloadCodec = injectionContext.get(PayloadCodec.class);
+		assertThat(payloadCodec.getCompressThreshold(), is(1024));
+		assertThat(payloadCodec.getClaimCheckThreshold(), is(4096));
+		assertThat(payloadCodec.getBlobStore(), is(instanceOf(FileSystemBlobStore.class)));
+	}
+
+	@Test
+	public void shouldNotConfigureBlobStoreByDefault() {
+		module.configure(injectionContext);
+
+		assertThat(injectionContext.get(PayloadCodec.class).getBlobStore(), is(nullValue()));
+	}
+
+	@Test
+	public void shouldFailWhenBlobStoreClassDoesNotExist() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("No such blob store: com.example.FakeBlobStore. Is it on the classpath?");
+
+		injectionContext.inject("com.example.FakeBlobStore").named("deferredBlobStore").as(String.class);
+		module.configure(injectionContext);
+	}
+
+	@Test
+	public void shouldStopConsumerLoopQueueMonitor() {
+		injectionContext.inject(ConsumerLoopQueueMonitor.class.getName()).named("deferredQueueMonitor").as(String.class);
+		injectionContext.inject("2").named("deferredConsumerThreads").as(String.class);
+		injectionContext.inject("500").named("deferredConsumerMaxBackoff").as(String.class);
+		module.configure(injectionContext);
+		module.start(injectionContext);
+
+		ConsumerLoopQueueMonitor queueMonitor = (ConsumerLoopQueueMonitor) injectionContext.get(QueueMonitor.class);
+		assertThat(queueMonitor.getConsumers(), is(2));
+		assertThat(queueMonitor.getMaxBackoffMillis(), is(500L));
+		assertThat(queueMonitor.isRunning(), is(true));
+
+		module.stop(injectionContext);
+		assertThat(queueMonitor.isRunning(), is(false));
+	}
+
+	@Test
+	public void shouldConfigureAdaptiveQueueMonitorInterval() {
+		injectionContext.inject("true").named("deferredQueueMonitorAdaptive").as(String.class);
+		injectionContext.inject("2").named("deferredQueueMonitorInterval").as(String.class);
+		injectionContext.inject("250").named("deferredQueueMonitorMinInterval").as(String.class);
+		injectionContext.inject("60000").named("deferredQueueMonitorMaxInterval").as(String.class);
+		module.configure(injectionContext);
+
+		QuartzQueueMonitor queueMonitor = (QuartzQueueMonitor) injectionContext.get(QueueMonitor.class);
+		AdaptivePollingInterval interval = injectionContext.get(AdaptivePollingInterval.class);
+		assertThat(interval.getMinIntervalMillis(), is(250L));
+		assertThat(interval.getMaxIntervalMillis(), is(60000L));
+		assertThat(queueMonitor.getIntervalMillis(), is(2000L));
+		interval.record(0, 10);
+		assertThat(queueMonitor.getIntervalMillis(), is(4000L));
+	}
+
+	@Test
+	public void shouldUseFixedQueueMonitorIntervalByDefault() {
+		module.configure(injectionContext);
+
+		assertThat(injectionContext.contains(AdaptivePollingInterval.class), is(false));
+	}
+
+	@Test
+	public void shouldConfigureVirtualWorkerMode() {
+		injectionContext.inject("Virtual").named("deferredWorkerMode").as(String.class);
+		injectionContext.inject("2").named("deferredWorkerThreads").as(String.class);
+		injectionContext.inject("50").named("deferredWorkerMaxConcurrency").as(String.class);
+		module.configure(injectionContext);
+
+		WorkerPool workerPool = injectionContext.get(WorkerPool.class);
+		if (WorkerPool.isVirtualThreadsSupported()) {
+			assertThat(workerPool.getMode(), is(WorkerMode.Virtual));
+			assertThat(workerPool.getThreads(), is(50));
+		} else {
+			assertThat(workerPool.getMode(), is(WorkerMode.Pooled));
+			assertThat(workerPool.getThreads(), is(2));
+		}
+	}
+
+	@Test
+	public void shouldFailWhenWorkerModeDoesNotExist() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("No such worker mode: Green");
+
+		injectionContext.inject("Green").named("deferredWorkerMode").as(String.class);
+		module.configure(injectionContext);
+	}
+
+	@Test
+	public void shouldConfigureDeadLetterQueue() {
+		injectionContext.inject("thundr-deferred-dlq").named("deferredDeadLetterQueue").as(String.class);
+		module.configure(injectionContext);
+
+		DeferredTaskService deferredTaskService = injectionContext.get(DeferredTaskService.class);
+		assertThat(deferredTaskService.getDeadLetterQueue(), is(notNullValue()));
+		assertThat(deferredTaskService.getDeadLetterQueue().getQueueProvider(), is(instanceOf(InMemoryQueueProvider.class)));
+		assertThat(deferredTaskService.getDeadLetterQueue().getQueueProvider(), is(not(sameInstance(deferredTaskService.getQueueProvider()))));
+	}
+
+	@Test
+	public void shouldNotConfigureDeadLetterQueueByDefault() {
+		module.configure(injectionContext);
+
+		assertThat(injectionContext.get(DeferredTaskService.class).getDeadLetterQueue(), is(nullValue()));
+	}
+
+	@Test
+	public void shouldFailToCreateDeadLetterQueueForUnknownProvider() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("Unable to create a dead letter queue for " + MockQueueProvider.class.getName());
+
+		injectionContext.inject(MockQueueProvider.class.getName()).named("deferredQueueProvider").as(String.class);
+		injectionContext.inject("thundr-deferred-dlq").named("deferredDeadLetterQueue").as(String.class);
+		module.configure(injectionContext);
+	}
+
+	@Test
+	public void shouldRegisterMetricsWhenEnabled() {
+		injectionContext.inject("true").named("deferredMetrics").as(String.class);
+		injectionContext.inject("com.threewks.thundr.deferred.monitor.MockQueueMonitor").named("deferredQueueMonitor").as(String.class);
+		module.configure(injectionContext);
+		module.start(injectionContext);
+
+		MetricsRegistry metrics = injectionContext.get(MetricsRegistry.class);
+		injectionContext.get(DeferredTaskService.class).defer(new MockDeferredTask());
+
+		assertThat(metrics.getEnqueued(), is(1L));
+		assertThat(injectionContext.get(TaskSerializer.class).isRecordEnqueueTime(), is(true));
+	}
+
+	@Test
+	public void shouldNotRegisterMetricsByDefault() {
+		module.configure(injectionContext);
+
+		assertThat(injectionContext.contains(MetricsRegistry.class), is(false));
+		assertThat(injectionContext.get(TaskSerializer.class).isRecordEnqueueTime(), is(false));
+	}
+
+	@Test
+	public void shouldConfigureNamedQueuesWithTheirOwnProviderAndWorkerPool() {
+		injectionContext.inject("reports, notifications").named("deferredQueues").as(String.class);
+		injectionContext.inject("2").named("deferredWorkerThreads.reports").as(String.class);
+		injectionContext.inject("3").named("deferredConsumerThreads.notifications").as(String.class);
+		injectionContext.inject("com.threewks.thundr.deferred.test.MockDeferredTask").named("deferredQueueTasks.notifications").as(String.class);
+		module.configure(injectionContext);
+
+		QueueRouter router = injectionContext.get(QueueRouter.class);
+		DeferredTaskService reports = router.get("reports");
+		DeferredTaskService notifications = router.get("notifications");
+		assertThat(reports.getQueueProvider(), is(not(sameInstance(injectionContext.get(QueueProvider.class)))));
+		assertThat(reports.getWorkerPool(), is(not(sameInstance(injectionContext.get(WorkerPool.class)))));
+		assertThat(reports.getWorkerPool().getThreads(), is(2));
+		assertThat(router.queueFor(MockDeferredTask.class), is("notifications"));
+		for (NamedQueue queue : router.getQueues()) {
+			if (queue.getName().equals("notifications")) {
+				assertThat(((ConsumerLoopQueueMonitor) queue.getQueueMonitor()).getConsumers(), is(3));
+			}
+		}
+		assertThat(notifications.getRouter(), is(sameInstance(router)));
+	}
+
+	@Test
+	public void shouldConfigureDeadLetterQueuePerNamedQueue() {
+		injectionContext.inject("thundr-deferred-dlq").named("deferredDeadLetterQueue").as(String.class);
+		injectionContext.inject("reports").named("deferredQueues").as(String.class);
+		module.configure(injectionContext);
+
+		DeadLetterQueue reports = injectionContext.get(QueueRouter.class).get("reports").getDeadLetterQueue();
+		assertThat(reports, is(notNullValue()));
+		assertThat(reports, is(not(sameInstance(injectionContext.get(DeadLetterQueue.class)))));
+		assertThat(reports.getQueueProvider(), is(instanceOf(InMemoryQueueProvider.class)));
+	}
+
+	@Test
+	public void shouldShareBoundDeadLetterQueueWithNamedQueues() {
+		DeadLetterQueue deadLetterQueue = new DeadLetterQueue(new InMemoryQueueProvider());
+		injectionContext.inject(deadLetterQueue).as(DeadLetterQueue.class);
+		injectionContext.inject("reports").named("deferredQueues").as(String.class);
+		module.configure(injectionContext);
+
+		assertThat(injectionContext.get(QueueRouter.class).get("reports").getDeadLetterQueue(), is(sameInstance(deadLetterQueue)));
+	}
+
+	@Test
+	public void shouldRouteFromDefaultServiceOnceStarted() {
+		injectionContext.inject("reports").named("deferredQueues").as(String.class);
+		injectionContext.inject("com.threewks.thundr.deferred.monitor.MockQueueMonitor").named("deferredQueueMonitor").as(String.class);
+		module.configure(injectionContext);
+		DeferredTaskListener reportsListener = mock(DeferredTaskListener.class);
+		injectionContext.get(QueueRouter.class).get("reports").addListener(reportsListener);
+		module.start(injectionContext);
+
+		injectionContext.get(DeferredTaskService.class).defer(new MockReportDeferredTask());
+		module.stop(injectionContext);
+
+		verify(reportsListener).enqueued(eq(MockReportDeferredTask.class), anyInt());
+		assertThat(((InMemoryQueueProvider) injectionContext.get(QueueProvider.class)).size(), is(0));
+	}
+
+	@Test
+	public void shouldNotConfigureNamedQueuesByDefault() {
+		module.configure(injectionContext);
+
+		assertThat(injectionContext.contains(QueueRouter.class), is(false));
+	}
+
+	@Test
+	public void shouldFailWhenNamedQueueUsesDefaultName() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("Queue name default is reserved for the default queue");
+
+		injectionContext.inject("default").named("deferredQueues").as(String.class);
+		module.configure(injectionContext);
+	}
+
+	@Test
+	public void shouldFailWhenNamedQueueProviderCannotBeCreated() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("Unable to create deferred queue reports for com.threewks.thundr.deferred.provider.MockQueueProvider");
+
+		injectionContext.inject("com.threewks.thundr.deferred.provider.MockQueueProvider").named("deferredQueueProvider").as(String.class);
+		injectionContext.inject("reports").named("deferredQueues").as(String.class);
+		module.configure(injectionContext);
+	}
+
+	@Test
+	public void shouldConfigureInMemoryPriorities() {
+		injectionContext.inject("Strict").named("deferredPriorityPolicy").as(String.class);
+		injectionContext.inject("10,5,1").named("deferredPriorityWeights").as(String.class);
+		module.configure(injectionContext);
+
+		InMemoryQueueProvider queueProvider = (InMemoryQueueProvider) injectionContext.get(QueueProvider.class);
+		assertThat(queueProvider.getPriorityPolicy(), is(PriorityPolicy.Strict));
+		assertThat(queueProvider.getPriorityWeights(), is(new int[] { 10, 5, 1 }));
+	}
+
+	@Test
+	public void shouldUseWeightedPrioritiesByDefault() {
+		module.configure(injectionContext);
+
+		InMemoryQueueProvider queueProvider = (InMemoryQueueProvider) injectionContext.get(QueueProvider.class);
+		assertThat(queueProvider.getPriorityPolicy(), is(PriorityPolicy.Weighted));
+		assertThat(queueProvider.getPriorityWeights(), is(new int[] { 6, 3, 1 }));
+	}
+
+	@Test
+	public void shouldFailWhenPriorityPolicyDoesNotExist() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("No such priority policy: Fastest");
+
+		injectionContext.inject("Fastest").named("deferredPriorityPolicy").as(String.class);
+		module.configure(injectionContext);
+	}
+
+	@Test
+	public void shouldFailWhenPriorityWeightsAreNotNumbers() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("Property deferredPriorityWeights must be whole numbers separated by commas but was: high,low");
+
+		injectionContext.inject("high,low").named("deferredPriorityWeights").as(String.class);
+		module.configure(injectionContext);
+	}
+
+	@Test
+	public void shouldConfigureJournalQueueProvider() {
+		File directory = new File(folder.getRoot(), "journal");
+		injectionContext.inject(JournalQueueProvider.class.getName()).named("deferredQueueProvider").as(String.class);
+		injectionContext.inject(directory.getPath()).named("deferredJournalDirectory").as(String.class);
+		injectionContext.inject("Periodic").named("deferredJournalSync").as(String.class);
+		injectionContext.inject("1048576").named("deferredJournalSegmentSize").as(String.class);
+		injectionContext.inject("5000").named("deferredJournalNackDelay").as(String.class);
+		module.configure(injectionContext);
+
+		JournalQueueProvider queueProvider = (JournalQueueProvider) injectionContext.get(QueueProvider.class);
+		try {
+			assertThat(queueProvider.getDirectory(), is(directory));
+			assertThat(queueProvider.getSettings().getSync(), is(JournalSync.Periodic));
+			assertThat(queueProvider.getSettings().getSegmentSize(), is(1048576));
+			assertThat(queueProvider.getSettings().getNackDelayMillis(), is(5000L));
+		} finally {
+			queueProvider.close();
+		}
+	}
+
+	@Test
+	public void shouldKeepNamedQueueJournalsInTheirOwnDirectory() {
+		File directory = new File(folder.getRoot(), "journal");
+		injectionContext.inject(JournalQueueProvider.class.getName()).named("deferredQueueProvider").as(String.class);
+		injectionContext.inject(directory.getPath()).named("deferredJournalDirectory").as(String.class);
+		injectionContext.inject("reports").named("deferredQueues").as(String.class);
+		module.configure(injectionContext);
+
+		QueueProvider reportsProvider = injectionContext.get(QueueRouter.class).get("reports").getQueueProvider();
+		try {
+			assertThat(((JournalQueueProvider) reportsProvider).getDirectory(), is(new File(directory, "reports")));
+		} finally {
+			((JournalQueueProvider) reportsProvider).close();
+			((JournalQueueProvider) injectionContext.get(QueueProvider.class)).close();
+		}
+	}
+
+	@Test
+	public void shouldFailWhenJournalDirectoryIsMissing() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("Property deferredJournalDirectory is required by the journal queue provider");
+
+		injectionContext.inject(JournalQueueProvider.class.getName()).named("deferredQueueProvider").as(String.class);
+		module.configure(injectionContext);
+	}
+
+	@Test
+	public void shouldFailWhenJournalSyncDoesNotExist() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("No such journal sync: Sometimes");
+
+		injectionContext.inject(JournalQueueProvider.class.getName()).named("deferredQueueProvider").as(String.class);
+		injectionContext.inject(folder.getRoot().getPath()).named("deferredJournalDirectory").as(String.class);
+		injectionContext.inject("Sometimes").named("deferredJournalSync").as(String.class);
+		module.configure(injectionContext);
+	}
+
+	@Test
+	public void shouldConfigureJdbcQueueProvider() {
+		JdbcDataSource dataSource = new JdbcDataSource();
+		dataSource.setURL("jdbc:h2:mem:deferred-module;DB_CLOSE_DELAY=-1");
+		injectionContext.inject(dataSource).as(DataSource.class);
+		injectionContext.inject(JdbcQueueProvider.class.getName()).named("deferredQueueProvider").as(String.class);
+		injectionContext.inject("true").named("deferredJdbcCreateTable").as(String.class);
+		injectionContext.inject("60").named("deferredJdbcLeaseSeconds").as(String.class);
+		injectionContext.inject("reports").named("deferredQueues").as(String.class);
+		module.configure(injectionContext);
+
+		JdbcQueueProvider queueProvider = (JdbcQueueProvider) injectionContext.get(QueueProvider.class);
+		assertThat(queueProvider.getSettings().getLeaseSeconds(), is(60));
+		assertThat(queueProvider.size(), is(0));
+		JdbcQueueProvider reportsProvider = (JdbcQueueProvider) injectionContext.get(QueueRouter.class).get("reports").getQueueProvider();
+		assertThat(reportsProvider.getQueueName(), is("reports"));
+	}
+
+	@Test
+	public void shouldFailWhenJdbcQueueProviderHasNoDataSource() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("The JDBC queue provider needs a javax.sql.DataSource in the injection context");
+
+		injectionContext.inject(JdbcQueueProvider.class.getName()).named("deferredQueueProvider").as(String.class);
+		module.configure(injectionContext);
+	}
+
+	@Test
+	public void shouldConfigureDedupeWindow() {
+		injectionContext.inject(MockQueueMonitor.class.getName()).named("deferredQueueMonitor").as(String.class);
+		injectionContext.inject("30000").named("deferredDedupeWindow").as(String.class);
+		injectionContext.inject("500").named("deferredDedupeCacheSize").as(String.class);
+		module.configure(injectionContext);
+		module.start(injectionContext);
+
+		SeenKeyCache seenKeys = injectionContext.get(DeferredTaskService.class).getSeenKeyCache();
+		assertThat(seenKeys.getWindowMillis(), is(30000L));
+		assertThat(seenKeys.getMaxKeys(), is(500));
+	}
+
+	@Test
+	public void shouldDisableSeenKeyCacheWithZeroWindow() {
+		injectionContext.inject(MockQueueMonitor.class.getName()).named("deferredQueueMonitor").as(String.class);
+		injectionContext.inject("0").named("deferredDedupeWindow").as(String.class);
+		module.configure(injectionContext);
+		module.start(injectionContext);
+
+		assertThat(injectionContext.get(DeferredTaskService.class).getSeenKeyCache(), is(nullValue()));
+	}
+
+	@Test
+	public void shouldConfigureTaskBatchSize() {
+		injectionContext.inject(MockQueueMonitor.class.getName()).named("deferredQueueMonitor").as(String.class);
+		injectionContext.inject("20").named("deferredTaskBatchSize").as(String.class);
+		injectionContext.inject("reports").named("deferredQueues").as(String.class);
+		injectionContext.inject("5").named("deferredTaskBatchSize.reports").as(String.class);
+		module.configure(injectionContext);
+		module.start(injectionContext);
+
+		assertThat(injectionContext.get(DeferredTaskService.class).getTaskBatchSize(), is(20));
+		assertThat(injectionContext.get(QueueRouter.class).get("reports").getTaskBatchSize(), is(5));
+	}
+
+	@Test
+	public void shouldFailOnTaskBatchSizeBelowOne() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("Property deferredTaskBatchSize must be at least 1 but was: 0");
+
+		injectionContext.inject(MockQueueMonitor.class.getName()).named("deferredQueueMonitor").as(String.class);
+		injectionContext.inject("0").named("deferredTaskBatchSize").as(String.class);
+		module.configure(injectionContext);
+		module.start(injectionContext);
+	}
+
+	@Test
+	public void shouldConfigureRateLimits() {
+		injectionContext.inject(MockQueueMonitor.class.getName()).named("deferredQueueMonitor").as(String.class);
+		injectionContext.inject(MockDeferredTask.class.getName() + ":10:20, " + MockRetryableDeferredTask.class.getName() + ":0.5").named("deferredRateLimits").as(String.class);
+		module.configure(injectionContext);
+		module.start(injectionContext);
+
+		RateLimiter rateLimiter = injectionContext.get(DeferredTaskService.class).getRateLimiter();
+		assertThat(rateLimiter, is(sameInstance(injectionContext.get(RateLimiter.class))));
+		assertThat(rateLimiter.getBucket(MockDeferredTask.class).getPermitsPerSecond(), is(10.0));
+		assertThat(rateLimiter.getBucket(MockDeferredTask.class).getBurst(), is(20));
+		assertThat(rateLimiter.getBucket(MockRetryableDeferredTask.class).getPermitsPerSecond(), is(0.5));
+		assertThat(rateLimiter.getBucket(MockRetryableDeferredTask.class).getBurst(), is(1));
+	}
+
+	@Test
+	public void shouldFailOnMalformedRateLimit() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("Property deferredRateLimits must be task classes with a rate per second and optional burst, such as com.example.EmailTask:10:20, but was: " + MockDeferredTask.class.getName() + ":fast");
+
+		injectionContext.inject(MockDeferredTask.class.getName() + ":fast").named("deferredRateLimits").as(String.class);
+		module.configure(injectionContext);
+	}
+
+	@Test
+	public void shouldFailOnRateLimitForUnknownTask() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("No such task: foo.bar.MIA. Is it on the classpath?");
+
+		injectionContext.inject("foo.bar.MIA:10").named("deferredRateLimits").as(String.class);
+		module.configure(injectionContext);
+	}
+
+	@Test
+	public void shouldConfigureInMemoryAdmission() {
+		injectionContext.inject(InMemoryQueueProvider.class.getName()).named("deferredQueueProvider").as(String.class);
+		injectionContext.inject("1000").named("deferredInMemoryQueueCapacity").as(String.class);
+		injectionContext.inject("1048576").named("deferredInMemoryMaxBytes").as(String.class);
+		injectionContext.inject("DropLowestPriority").named("deferredOverflowPolicy").as(String.class);
+		injectionContext.inject("reports").named("deferredQueues").as(String.class);
+		injectionContext.inject("Block").named("deferredOverflowPolicy.reports").as(String.class);
+		injectionContext.inject("250").named("deferredOverflowBlockTimeout.reports").as(String.class);
+		module.configure(injectionContext);
+
+		InMemoryQueueProvider provider = (InMemoryQueueProvider) injectionContext.get(QueueProvider.class);
+		assertThat(provider.getCapacity(), is(1000));
+		assertThat(provider.getMaxBytes(), is(1048576L));
+		assertThat(provider.getOverflowPolicy(), is(OverflowPolicy.DropLowestPriority));
+		InMemoryQueueProvider reports = (InMemoryQueueProvider) injectionContext.get(QueueRouter.class).get("reports").getQueueProvider();
+		assertThat(reports.getOverflowPolicy(), is(OverflowPolicy.Block));
+		assertThat(reports.getBlockTimeoutMillis(), is(250L));
+	}
+
+	@Test
+	public void shouldFailOnUnknownOverflowPolicy() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("No such overflow policy: Sometimes");
+
+		injectionContext.inject(InMemoryQueueProvider.class.getName()).named("deferredQueueProvider").as(String.class);
+		injectionContext.inject("Sometimes").named("deferredOverflowPolicy").as(String.class);
+		module.configure(injectionContext);
+	}
 }
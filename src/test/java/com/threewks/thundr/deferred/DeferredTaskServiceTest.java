@@ -18,26 +18,71 @@
 package com.threewks.thundr.deferred;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.core.Is.is;
 import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.StringContains.containsString;
+import static org.junit.Assert.fail;
+import static org.mockito.AdditionalMatchers.gt;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
 
+import com.threewks.thundr.deferred.deadletter.DeadLetterQueue;
+import com.threewks.thundr.deferred.metrics.DeferredTaskListener;
+import com.threewks.thundr.deferred.metrics.MetricsRegistry;
+import com.threewks.thundr.deferred.monitor.QueueMonitor;
+import com.threewks.thundr.deferred.payload.FileSystemBlobStore;
+import com.threewks.thundr.deferred.payload.PayloadCodec;
+import com.threewks.thundr.deferred.queue.NamedQueue;
+import com.threewks.thundr.deferred.queue.QueueRouter;
+import com.threewks.thundr.deferred.provider.AcknowledgingQueueProvider;
+import com.threewks.thundr.deferred.provider.AdmissionSettings;
+import com.threewks.thundr.deferred.provider.DelayingQueueProvider;
 import com.threewks.thundr.deferred.provider.InMemoryQueueProvider;
+import com.threewks.thundr.deferred.provider.OverflowPolicy;
+import com.threewks.thundr.deferred.provider.Priority;
+import com.threewks.thundr.deferred.provider.PriorityPolicy;
+import com.threewks.thundr.deferred.provider.QueueFullException;
 import com.threewks.thundr.deferred.provider.QueueProvider;
+import com.threewks.thundr.deferred.provider.ReceivedMessage;
 import com.threewks.thundr.deferred.serializer.JsonSerializer;
 import com.threewks.thundr.deferred.serializer.TaskSerializer;
+import com.threewks.thundr.deferred.task.DeferredTaskFailedException;
+import com.threewks.thundr.deferred.test.MockBackoffDeferredTask;
+import com.threewks.thundr.deferred.test.MockBatchableDeferredTask;
+import com.threewks.thundr.deferred.test.MockDeduplicatedDeferredTask;
 import com.threewks.thundr.deferred.test.MockDeferredTask;
+import com.threewks.thundr.deferred.test.MockPlainRetryableDeferredTask;
+import com.threewks.thundr.deferred.test.MockRateLimitedDeferredTask;
 import com.threewks.thundr.deferred.test.MockExceptionThrowingDeferredTask;
+import com.threewks.thundr.deferred.test.MockRendezvousDeferredTask;
+import com.threewks.thundr.deferred.test.MockReportDeferredTask;
 import com.threewks.thundr.deferred.test.MockRetryableDeferredTask;
+import com.threewks.thundr.deferred.worker.RejectionPolicy;
+import com.threewks.thundr.deferred.worker.WorkerPool;
 
 public class DeferredTaskServiceTest {
 	@Rule
 	public ExpectedException thrown = ExpectedException.none();
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
 
 	private QueueProvider queueProvider;
 	private DeferredTaskService deferredTaskService;
@@ -102,4 +147,783 @@ public class DeferredTaskServiceTest {
 			deferredTaskService.processQueue();
 		}
 	}
+
+	@Test
+	public void shouldRunTasksInBatchConcurrently() {
+		deferredTaskService = new DeferredTaskService(queueProvider, new WorkerPool(3, 10, RejectionPolicy.CallerRuns));
+		MockRendezvousDeferredTask.reset(3);
+		for (int i = 0; i < 3; i++) {
+			deferredTaskService.defer(new MockRendezvousDeferredTask());
+		}
+		deferredTaskService.processQueue();
+
+		assertThat(MockRendezvousDeferredTask.met.get(), is(3));
+	}
+
+	@Test
+	public void shouldRunRemainingTasksInBatchBeforeRethrowingFailure() {
+		MockRendezvousDeferredTask.reset(1);
+		queueProvider.send(taskSerializer.serialize(new MockExceptionThrowingDeferredTask()));
+		queueProvider.send(taskSerializer.serialize(new MockRendezvousDeferredTask()));
+		try {
+			deferredTaskService.processQueue();
+		} catch (ThundrDeferredException e) {
+			assertThat(e.getMessage(), is("Running deferred task failed permanently. Reason: Expected baby!"));
+		}
+
+		assertThat(MockRendezvousDeferredTask.met.get(), is(1));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void shouldReturnMessageToQueueWhenWorkerPoolRejectsIt() {
+		WorkerPool workerPool = mock(WorkerPool.class);
+		when(workerPool.submit(any(Callable.class))).thenThrow(new RejectedExecutionException());
+		deferredTaskService = new DeferredTaskService(queueProvider, workerPool);
+		String message = taskSerializer.serialize(new MockDeferredTask());
+		queueProvider.send(message);
+
+		deferredTaskService.processQueue();
+
+		verify(queueProvider, times(2)).send(message);
+	}
+
+	@Test
+	public void shouldAcknowledgeMessagesOnceTheirTasksHaveRun() {
+		AcknowledgingQueueProvider acknowledgingQueueProvider = mock(AcknowledgingQueueProvider.class);
+		ReceivedMessage message = new ReceivedMessage(taskSerializer.serialize(new MockDeferredTask()), "handle");
+		when(acknowledgingQueueProvider.receiveMessages()).thenReturn(Arrays.asList(message));
+		deferredTaskService = new DeferredTaskService(acknowledgingQueueProvider);
+
+		deferredTaskService.processQueue();
+
+		verify(acknowledgingQueueProvider).ack(Arrays.asList(message));
+		verify(acknowledgingQueueProvider, never()).nack(anyListOf(ReceivedMessage.class));
+	}
+
+	@Test
+	public void shouldAcknowledgeMessagesWhoseTasksFailedPermanently() {
+		AcknowledgingQueueProvider acknowledgingQueueProvider = mock(AcknowledgingQueueProvider.class);
+		ReceivedMessage message = new ReceivedMessage(taskSerializer.serialize(new MockExceptionThrowingDeferredTask()), "handle");
+		when(acknowledgingQueueProvider.receiveMessages()).thenReturn(Arrays.asList(message));
+		deferredTaskService = new DeferredTaskService(acknowledgingQueueProvider);
+
+		try {
+			deferredTaskService.processQueue();
+		} catch (ThundrDeferredException e) {
+			// expected
+		}
+
+		verify(acknowledgingQueueProvider).ack(Arrays.asList(message));
+	}
+
+	@Test
+	public void shouldReturnMessagesThatCouldNotBeRunToTheQueue() {
+		AcknowledgingQueueProvider acknowledgingQueueProvider = mock(AcknowledgingQueueProvider.class);
+		ReceivedMessage message = new ReceivedMessage("{\"taskClassName\":\"foo.bar.MIA\",\"taskData\":\"{}\"}", "handle");
+		when(acknowledgingQueueProvider.receiveMessages()).thenReturn(Arrays.asList(message));
+		deferredTaskService = new DeferredTaskService(acknowledgingQueueProvider);
+
+		try {
+			deferredTaskService.processQueue();
+		} catch (ThundrDeferredException e) {
+			// expected
+		}
+
+		verify(acknowledgingQueueProvider).nack(Arrays.asList(message));
+		verify(acknowledgingQueueProvider, never()).ack(anyListOf(ReceivedMessage.class));
+	}
+
+	@Test
+	public void shouldOffloadLargePayloadsAndReleaseThemOnceRun() {
+		PayloadCodec payloadCodec = new PayloadCodec(1, 1, new FileSystemBlobStore(folder.getRoot()));
+		deferredTaskService = new DeferredTaskService(queueProvider, new WorkerPool(), taskSerializer, payloadCodec);
+
+		deferredTaskService.defer(new MockDeferredTask());
+		ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+		verify(queueProvider).send(captor.capture());
+		assertThat(captor.getValue().startsWith("c1:"), is(true));
+		assertThat(folder.getRoot().list().length, is(1));
+
+		deferredTaskService.processQueue();
+		assertThat(folder.getRoot().list().length, is(0));
+	}
+
+	@Test
+	public void shouldKeepLargePayloadWhenTaskCouldNotBeRun() {
+		PayloadCodec payloadCodec = new PayloadCodec(1, 1, new FileSystemBlobStore(folder.getRoot()));
+		deferredTaskService = new DeferredTaskService(queueProvider, new WorkerPool(), taskSerializer, payloadCodec);
+		queueProvider.send(payloadCodec.encode("{\"taskClassName\":\"foo.bar.MIA\",\"taskData\":\"{}\"}"));
+
+		try {
+			deferredTaskService.processQueue();
+		} catch (ThundrDeferredException e) {
+			assertThat(e.getMessage(), is("Unable to deserialize task from queue. Class foo.bar.MIA not found."));
+		}
+		assertThat(folder.getRoot().list().length, is(1));
+	}
+
+	@Test
+	public void shouldDeferTaskWithDelay() throws InterruptedException {
+		InMemoryQueueProvider provider = new InMemoryQueueProvider();
+		deferredTaskService = new DeferredTaskService(provider);
+		deferredTaskService.defer(new MockDeferredTask(), 50, TimeUnit.MILLISECONDS);
+
+		assertThat(deferredTaskService.processQueue(), is(0));
+		assertThat(deferredTaskService.processQueue(1, TimeUnit.SECONDS), is(1));
+	}
+
+	@Test
+	public void shouldDeferTaskUntilTime() {
+		InMemoryQueueProvider provider = new InMemoryQueueProvider();
+		deferredTaskService = new DeferredTaskService(provider);
+		deferredTaskService.defer(new MockDeferredTask(), new DateTime().plusMinutes(5));
+
+		assertThat(deferredTaskService.processQueue(), is(0));
+		assertThat(provider.delayed(), is(1));
+		provider.close();
+	}
+
+	@Test
+	public void shouldDeferTaskImmediatelyWhenTimeHasPassed() {
+		deferredTaskService.defer(new MockDeferredTask(), new DateTime().minusMinutes(5));
+
+		assertThat(deferredTaskService.processQueue(), is(1));
+	}
+
+	@Test
+	public void shouldFailToDelayTaskWhenProviderCannotDelay() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("does not support delayed tasks");
+
+		deferredTaskService = new DeferredTaskService(mock(QueueProvider.class));
+		deferredTaskService.defer(new MockDeferredTask(), 1, TimeUnit.MINUTES);
+	}
+
+	@Test
+	public void shouldDelayRetriesAccordingToBackoffPolicy() {
+		DelayingQueueProvider provider = spy(new InMemoryQueueProvider());
+		deferredTaskService = new DeferredTaskService(provider);
+		provider.send(taskSerializer.serialize(new MockBackoffDeferredTask()));
+
+		assertThat(deferredTaskService.processQueue(), is(1));
+		verify(provider).send(anyString(), eq(100L), eq(TimeUnit.MILLISECONDS));
+		assertThat(deferredTaskService.processQueue(1, TimeUnit.SECONDS), is(1));
+		verify(provider).send(anyString(), eq(200L), eq(TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void shouldRetryStraightAwayWhenTaskDoesNotDelayRetries() {
+		DelayingQueueProvider provider = spy(new InMemoryQueueProvider());
+		deferredTaskService = new DeferredTaskService(provider);
+		provider.send(taskSerializer.serialize(new MockPlainRetryableDeferredTask()));
+
+		assertThat(deferredTaskService.processQueue(), is(1));
+		verify(provider, times(2)).send(anyString());
+		verify(provider, never()).send(anyString(), anyLong(), any(TimeUnit.class));
+	}
+
+	@Test
+	public void shouldRetryStraightAwayWhenProviderCannotDelay() {
+		QueueProvider provider = mock(QueueProvider.class);
+		when(provider.receive()).thenReturn(Arrays.asList(taskSerializer.serialize(new MockBackoffDeferredTask())));
+		deferredTaskService = new DeferredTaskService(provider);
+
+		deferredTaskService.processQueue();
+
+		verify(provider).send(anyString());
+	}
+
+	@Test
+	public void shouldMovePermanentFailuresToDeadLetterQueueAndCarryOn() {
+		InMemoryQueueProvider deadLetters = new InMemoryQueueProvider();
+		deferredTaskService = deadLetteringService(queueProvider, deadLetters);
+		MockRendezvousDeferredTask.reset(1);
+		deferredTaskService.defer(new MockExceptionThrowingDeferredTask());
+		deferredTaskService.defer(new MockRendezvousDeferredTask());
+
+		assertThat(deferredTaskService.processQueue(), is(2));
+		assertThat(MockRendezvousDeferredTask.met.get(), is(1));
+		assertThat(deadLetters.size(), is(1));
+		assertThat(deadLetters.receive().get(0), containsString("Expected baby!"));
+	}
+
+	@Test
+	public void shouldMoveUnknownTaskClassesToDeadLetterQueue() {
+		InMemoryQueueProvider deadLetters = new InMemoryQueueProvider();
+		deferredTaskService = deadLetteringService(queueProvider, deadLetters);
+		queueProvider.send("{\"taskClassName\":\"foo.bar.MIA\",\"taskData\":\"{}\"}");
+
+		deferredTaskService.processQueue();
+
+		assertThat(deadLetters.receive().get(0), containsString("foo.bar.MIA"));
+	}
+
+	@Test
+	public void shouldMoveUndecodablePayloadsToDeadLetterQueue() {
+		InMemoryQueueProvider deadLetters = new InMemoryQueueProvider();
+		deferredTaskService = deadLetteringService(queueProvider, deadLetters);
+		DeferredTaskListener listener = mock(DeferredTaskListener.class);
+		deferredTaskService.addListener(listener);
+		queueProvider.send("z1:bm90IGRlZmxhdGVk");
+
+		deferredTaskService.processQueue();
+
+		assertThat(deadLetters.receive().get(0), containsString("Compressed task payload is"));
+		assertThat(queueProvider.receive().size(), is(0));
+		verify(listener).failed(isNull(Class.class), any(DeferredTaskFailedException.class));
+	}
+
+	@Test
+	public void shouldMoveTasksWhichExceedMaxRetriesToDeadLetterQueue() {
+		InMemoryQueueProvider deadLetters = new InMemoryQueueProvider();
+		deferredTaskService = deadLetteringService(queueProvider, deadLetters);
+		deferredTaskService.defer(new MockRetryableDeferredTask(2));
+
+		deferredTaskService.processQueue();
+		deferredTaskService.processQueue();
+
+		assertThat(deadLetters.receive().get(0), containsString("\"attempts\":2"));
+	}
+
+	@Test
+	public void shouldAcknowledgeDeadLetteredMessages() {
+		AcknowledgingQueueProvider provider = mock(AcknowledgingQueueProvider.class);
+		ReceivedMessage message = new ReceivedMessage(taskSerializer.serialize(new MockExceptionThrowingDeferredTask()), "handle");
+		when(provider.receiveMessages()).thenReturn(Arrays.asList(message));
+		deferredTaskService = deadLetteringService(provider, new InMemoryQueueProvider());
+
+		deferredTaskService.processQueue();
+
+		verify(provider).ack(Arrays.asList(message));
+		verify(provider, never()).nack(anyListOf(ReceivedMessage.class));
+	}
+
+	@Test
+	public void shouldRedriveDeadLetters() {
+		InMemoryQueueProvider deadLetters = new InMemoryQueueProvider();
+		deferredTaskService = deadLetteringService(queueProvider, deadLetters);
+		deferredTaskService.defer(new MockExceptionThrowingDeferredTask());
+		deferredTaskService.processQueue();
+
+		assertThat(deferredTaskService.redriveDeadLetters(10), is(1));
+		assertThat(deadLetters.size(), is(0));
+		assertThat(queueProvider.receive().get(0), containsString("MockExceptionThrowingDeferredTask"));
+	}
+
+	@Test
+	public void shouldFailToRedriveWithoutDeadLetterQueue() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("No dead letter queue is configured");
+
+		deferredTaskService.redriveDeadLetters(10);
+	}
+
+@Test
+	public void shouldNotifyListenersThroughThePipeline() {
+		DeferredTaskListener listener = mock(DeferredTaskListener.class);
+		deferredTaskService.addListener(listener);
+		deferredTaskService.defer(new MockDeferredTask());
+
+		deferredTaskService.processQueue();
+
+		verify(listener).enqueued(eq(MockDeferredTask.class), anyInt());
+		verify(listener).received(1);
+		verify(listener).deserialized(eq(MockDeferredTask.class), anyLong(), eq(-1L));
+		verify(listener).started(MockDeferredTask.class);
+		verify(listener).completed(eq(MockDeferredTask.class), anyLong());
+		verify(listener, never()).failed(any(Class.class), any(Throwable.class));
+	}
+
+	@Test
+	public void shouldNotifyListenersOfRetriesAndFailures() {
+		DeferredTaskListener listener = mock(DeferredTaskListener.class);
+		deferredTaskService.addListener(listener);
+		deferredTaskService.defer(new MockRetryableDeferredTask(2));
+
+		deferredTaskService.processQueue();
+		verify(listener).retried(MockRetryableDeferredTask.class, 1, 0L);
+
+		try {
+			deferredTaskService.processQueue();
+		} catch (DeferredTaskFailedException e) {
+			// expected
+		}
+		verify(listener).failed(eq(MockRetryableDeferredTask.class), any(DeferredTaskFailedException.class));
+	}
+
+	@Test
+	public void shouldNotifyListenersWhenTaskClassIsUnknown() {
+		DeferredTaskListener listener = mock(DeferredTaskListener.class);
+		deferredTaskService.addListener(listener);
+		queueProvider.send("{\"taskClassName\":\"foo.bar.MIA\",\"taskData\":\"{}\"}");
+
+		try {
+			deferredTaskService.processQueue();
+		} catch (ThundrDeferredException e) {
+			// expected
+		}
+
+		verify(listener).failed(isNull(Class.class), any(ThundrDeferredException.class));
+	}
+
+	@Test
+	public void shouldRunTasksWhenListenerFails() {
+		DeferredTaskListener listener = mock(DeferredTaskListener.class);
+		doThrow(new RuntimeException("listener")).when(listener).started(any(Class.class));
+		MetricsRegistry metrics = new MetricsRegistry();
+		deferredTaskService.addListener(listener);
+		deferredTaskService.addListener(metrics);
+		deferredTaskService.defer(new MockDeferredTask());
+
+		deferredTaskService.processQueue();
+
+		assertThat(metrics.getCompleted(), is(1L));
+	}
+
+	@Test
+	public void shouldMeasureQueueWaitWhenEnqueueTimeIsRecorded() {
+		taskSerializer.setRecordEnqueueTime(true);
+		MetricsRegistry metrics = new MetricsRegistry();
+		deferredTaskService = new DeferredTaskService(queueProvider, new WorkerPool(), taskSerializer);
+		deferredTaskService.addListener(metrics);
+		deferredTaskService.defer(new MockDeferredTask());
+
+		deferredTaskService.processQueue();
+
+		assertThat(metrics.getQueueWait().getCount(), is(1L));
+		assertThat(metrics.getRunTime(MockDeferredTask.class).getCount(), is(1L));
+	}
+
+	@Test
+	public void shouldStopNotifyingRemovedListeners() {
+		DeferredTaskListener listener = mock(DeferredTaskListener.class);
+		deferredTaskService.addListener(listener);
+
+		assertThat(deferredTaskService.removeListener(listener), is(true));
+		deferredTaskService.defer(new MockDeferredTask());
+
+		verifyZeroInteractions(listener);
+	}
+
+	@Test
+	public void shouldDeferTasksToTheQueueTheyAreRoutedTo() {
+		InMemoryQueueProvider reports = new InMemoryQueueProvider();
+		routeReportsTo(reports);
+
+		deferredTaskService.defer(new MockReportDeferredTask());
+		deferredTaskService.defer(new MockDeferredTask());
+
+		assertThat(reports.size(), is(1));
+		assertThat(((InMemoryQueueProvider) queueProvider).size(), is(1));
+	}
+
+	@Test
+	public void shouldDeferTaskToNamedQueue() {
+		InMemoryQueueProvider reports = new InMemoryQueueProvider();
+		routeReportsTo(reports);
+
+		deferredTaskService.defer("reports", new MockDeferredTask());
+		deferredTaskService.defer(QueueRouter.DefaultQueue, new MockReportDeferredTask());
+
+		assertThat(reports.receive().get(0), containsString("MockDeferredTask"));
+		assertThat(queueProvider.receive().get(0), containsString("MockReportDeferredTask"));
+	}
+
+	@Test
+	public void shouldDeferToDefaultQueueByNameWithoutRouter() {
+		deferredTaskService.defer(QueueRouter.DefaultQueue, new MockDeferredTask());
+
+		assertThat(((InMemoryQueueProvider) queueProvider).size(), is(1));
+	}
+
+	@Test
+	public void shouldFailToDeferToUnknownQueue() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("No such queue: reports");
+
+		deferredTaskService.defer("reports", new MockDeferredTask());
+	}
+
+	@Test
+	public void shouldRetryOnTheQueueTaskWasReceivedFrom() {
+		InMemoryQueueProvider reports = new InMemoryQueueProvider();
+		DeferredTaskService reportsService = routeReportsTo(reports);
+		reportsService.defer("reports", new MockRetryableDeferredTask(5));
+
+		reportsService.processQueue();
+
+		assertThat(reports.size(), is(1));
+		assertThat(((InMemoryQueueProvider) queueProvider).size(), is(0));
+	}
+
+	private DeferredTaskService routeReportsTo(QueueProvider reports) {
+		QueueRouter router = new QueueRouter();
+		DeferredTaskService reportsService = new DeferredTaskService(reports);
+		router.addQueue(new NamedQueue(QueueRouter.DefaultQueue, deferredTaskService, mock(QueueMonitor.class)));
+		router.addQueue(new NamedQueue("reports", reportsService, mock(QueueMonitor.class)));
+		return reportsService;
+	}
+
+	private static InMemoryQueueProvider bounded(int capacity, OverflowPolicy overflowPolicy) {
+		AdmissionSettings admission = new AdmissionSettings();
+		admission.setCapacity(capacity);
+		admission.setOverflowPolicy(overflowPolicy);
+		return new InMemoryQueueProvider(admission, 10, PriorityPolicy.Strict, new int[] { 6, 3, 1 });
+	}
+
+	private DeferredTaskService deadLetteringService(QueueProvider provider, QueueProvider deadLetters) {
+		return new DeferredTaskService(provider, new WorkerPool(), taskSerializer, new PayloadCodec(), new DeadLetterQueue(deadLetters));
+	}
+
+	@Test
+	public void shouldSendPrioritizedTaskWithItsPriority() {
+		InMemoryQueueProvider prioritizingProvider = spy(new InMemoryQueueProvider(0, 10, PriorityPolicy.Strict, new int[] { 6, 3, 1 }));
+		deferredTaskService = new DeferredTaskService(prioritizingProvider);
+
+		deferredTaskService.defer(new MockDeferredTask(), Priority.Low);
+		deferredTaskService.defer(new MockDeferredTask(), Priority.High);
+
+		String message = taskSerializer.serialize(new MockDeferredTask());
+		verify(prioritizingProvider).send(message, Priority.Low);
+		verify(prioritizingProvider).send(message, Priority.High);
+		assertThat(prioritizingProvider.size(), is(2));
+	}
+
+	@Test
+	public void shouldSendPrioritizedTaskNormallyWhenProviderCannotPrioritize() {
+		QueueProvider plainProvider = mock(QueueProvider.class);
+		deferredTaskService = new DeferredTaskService(plainProvider);
+
+		deferredTaskService.defer(new MockDeferredTask(), Priority.High);
+
+		verify(plainProvider).send(taskSerializer.serialize(new MockDeferredTask()));
+	}
+
+	@Test
+	public void shouldNotifyListenersOfPrioritizedTask() {
+		DeferredTaskListener listener = mock(DeferredTaskListener.class);
+		deferredTaskService.addListener(listener);
+
+		deferredTaskService.defer(new MockDeferredTask(), Priority.High);
+
+		verify(listener).enqueued(eq(MockDeferredTask.class), anyInt());
+	}
+
+	@Test
+	public void shouldDropTaskWhoseCopyIsAlreadyQueued() {
+		MockDeduplicatedDeferredTask.reset();
+		DeferredTaskListener listener = mock(DeferredTaskListener.class);
+		deferredTaskService.addListener(listener);
+
+		deferredTaskService.defer(new MockDeduplicatedDeferredTask("42"));
+		deferredTaskService.defer(new MockDeduplicatedDeferredTask("42"));
+		deferredTaskService.defer(new MockDeduplicatedDeferredTask("43"));
+		deferredTaskService.processQueue();
+
+		assertThat(MockDeduplicatedDeferredTask.runs.get(), is(2));
+		verify(listener).deduplicated(MockDeduplicatedDeferredTask.class);
+	}
+
+	@Test
+	public void shouldNotDropTasksWithoutDedupeKey() {
+		MockDeduplicatedDeferredTask.reset();
+
+		deferredTaskService.defer(new MockDeduplicatedDeferredTask(null));
+		deferredTaskService.defer(new MockDeduplicatedDeferredTask(null));
+		deferredTaskService.processQueue();
+
+		assertThat(MockDeduplicatedDeferredTask.runs.get(), is(2));
+	}
+
+	@Test
+	public void shouldSkipTaskWhoseCopyRanWithinDedupeWindow() {
+		MockDeduplicatedDeferredTask.reset();
+		deferredTaskService = new DeferredTaskService(plainQueueProvider());
+		DeferredTaskListener listener = mock(DeferredTaskListener.class);
+		deferredTaskService.addListener(listener);
+
+		deferredTaskService.defer(new MockDeduplicatedDeferredTask("42"));
+		deferredTaskService.defer(new MockDeduplicatedDeferredTask("42"));
+		deferredTaskService.processQueue();
+		deferredTaskService.defer(new MockDeduplicatedDeferredTask("42"));
+		deferredTaskService.processQueue();
+
+		assertThat(MockDeduplicatedDeferredTask.runs.get(), is(1));
+		verify(listener, times(2)).deduplicated(MockDeduplicatedDeferredTask.class);
+	}
+
+	@Test
+	public void shouldRunEveryCopyWithoutSeenKeyCache() {
+		MockDeduplicatedDeferredTask.reset();
+		deferredTaskService = new DeferredTaskService(plainQueueProvider());
+		deferredTaskService.setSeenKeyCache(null);
+
+		deferredTaskService.defer(new MockDeduplicatedDeferredTask("42"));
+		deferredTaskService.defer(new MockDeduplicatedDeferredTask("42"));
+		deferredTaskService.processQueue();
+
+		assertThat(MockDeduplicatedDeferredTask.runs.get(), is(2));
+	}
+
+	@Test
+	public void shouldRunCopyAgainWhenItFailed() {
+		MockDeduplicatedDeferredTask.reset();
+		deferredTaskService = new DeferredTaskService(plainQueueProvider());
+		MockDeduplicatedDeferredTask.failing = true;
+		deferredTaskService.defer(new MockDeduplicatedDeferredTask("42"));
+		try {
+			deferredTaskService.processQueue();
+		} catch (ThundrDeferredException e) {
+			// expected
+		}
+		MockDeduplicatedDeferredTask.failing = false;
+
+		deferredTaskService.defer(new MockDeduplicatedDeferredTask("42"));
+		deferredTaskService.processQueue();
+
+		assertThat(MockDeduplicatedDeferredTask.runs.get(), is(2));
+	}
+
+	@Test
+	public void shouldRunTasksOfTheSameClassInOneBatch() {
+		MockBatchableDeferredTask.reset();
+		DeferredTaskListener listener = mock(DeferredTaskListener.class);
+		deferredTaskService.addListener(listener);
+
+		for (int i = 1; i <= 5; i++) {
+			deferredTaskService.defer(new MockBatchableDeferredTask(i));
+		}
+		deferredTaskService.defer(new MockDeferredTask());
+		deferredTaskService.processQueue();
+
+		assertThat(MockBatchableDeferredTask.batchSizes, contains(5));
+		assertThat(MockBatchableDeferredTask.runs.get(), is(0));
+		assertThat(MockBatchableDeferredTask.total.get(), is(15));
+		verify(listener, times(5)).started(MockBatchableDeferredTask.class);
+		verify(listener, times(5)).completed(eq(MockBatchableDeferredTask.class), anyLong());
+		verify(listener).completed(eq(MockDeferredTask.class), anyLong());
+		assertThat(((InMemoryQueueProvider) queueProvider).size(), is(0));
+	}
+
+	@Test
+	public void shouldSplitBatchesAtTaskBatchSize() {
+		MockBatchableDeferredTask.reset();
+		deferredTaskService.setTaskBatchSize(2);
+
+		for (int i = 1; i <= 5; i++) {
+			deferredTaskService.defer(new MockBatchableDeferredTask(i));
+		}
+		deferredTaskService.processQueue();
+
+		assertThat(MockBatchableDeferredTask.batchSizes, contains(2, 2));
+		assertThat(MockBatchableDeferredTask.runs.get(), is(1));
+		assertThat(MockBatchableDeferredTask.total.get(), is(15));
+	}
+
+	@Test
+	public void shouldRunBatchedTasksOneAtATimeWhenBatchFails() {
+		MockBatchableDeferredTask.reset();
+		MockBatchableDeferredTask.failingAmount = 3;
+		DeferredTaskListener listener = mock(DeferredTaskListener.class);
+		deferredTaskService.addListener(listener);
+		for (int i = 1; i <= 4; i++) {
+			deferredTaskService.defer(new MockBatchableDeferredTask(i));
+		}
+
+		try {
+			deferredTaskService.processQueue();
+			fail("Expected the failing task to be rethrown");
+		} catch (DeferredTaskFailedException e) {
+			assertThat(e.getMessage(), is("Running deferred task failed permanently. Reason: Failing on purpose"));
+		}
+
+		assertThat(MockBatchableDeferredTask.batchSizes.isEmpty(), is(true));
+		assertThat(MockBatchableDeferredTask.runs.get(), is(4));
+		assertThat(MockBatchableDeferredTask.total.get(), is(7));
+		verify(listener, times(4)).started(MockBatchableDeferredTask.class);
+		verify(listener, times(3)).completed(eq(MockBatchableDeferredTask.class), anyLong());
+		verify(listener).failed(eq(MockBatchableDeferredTask.class), any(DeferredTaskFailedException.class));
+	}
+
+	@Test
+	public void shouldRunEachTaskWhenTaskBatchSizeIsOne() {
+		MockBatchableDeferredTask.reset();
+		deferredTaskService.setTaskBatchSize(1);
+
+		for (int i = 1; i <= 3; i++) {
+			deferredTaskService.defer(new MockBatchableDeferredTask(i));
+		}
+		deferredTaskService.processQueue();
+
+		assertThat(MockBatchableDeferredTask.batchSizes.isEmpty(), is(true));
+		assertThat(MockBatchableDeferredTask.runs.get(), is(3));
+		assertThat(MockBatchableDeferredTask.total.get(), is(6));
+	}
+
+	@Test
+	public void shouldRejectTaskBatchSizeBelowOne() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("Task batch size must be at least 1 but was 0");
+
+		deferredTaskService.setTaskBatchSize(0);
+	}
+
+	@Test
+	public void shouldDelayTasksReceivedFasterThanTheirRateLimit() {
+		MockRateLimitedDeferredTask.runs.set(0);
+		DeferredTaskListener listener = mock(DeferredTaskListener.class);
+		deferredTaskService.addListener(listener);
+
+		for (int i = 0; i < 3; i++) {
+			deferredTaskService.defer(new MockRateLimitedDeferredTask());
+		}
+		deferredTaskService.processQueue();
+
+		assertThat(MockRateLimitedDeferredTask.runs.get(), is(1));
+		verify(listener, times(2)).rateLimited(eq(MockRateLimitedDeferredTask.class), gt(0L));
+		assertThat(deferredTaskService.processQueue(), is(0));
+	}
+
+	@Test
+	public void shouldReturnRateLimitedTaskToQueueWhenProviderCannotDelay() {
+		MockRateLimitedDeferredTask.runs.set(0);
+		deferredTaskService = new DeferredTaskService(plainQueueProvider());
+		DeferredTaskListener listener = mock(DeferredTaskListener.class);
+		deferredTaskService.addListener(listener);
+
+		deferredTaskService.defer(new MockRateLimitedDeferredTask());
+		deferredTaskService.defer(new MockRateLimitedDeferredTask());
+		deferredTaskService.processQueue();
+
+		assertThat(MockRateLimitedDeferredTask.runs.get(), is(1));
+		verify(listener).rateLimited(MockRateLimitedDeferredTask.class, 0L);
+		assertThat(deferredTaskService.processQueue(), is(1));
+	}
+
+	@Test
+	public void shouldNotSpendRateLimitOnDuplicates() {
+		MockDeduplicatedDeferredTask.reset();
+		deferredTaskService = new DeferredTaskService(plainQueueProvider());
+		deferredTaskService.getRateLimiter().setLimit(MockDeduplicatedDeferredTask.class, 0.001, 2);
+		DeferredTaskListener listener = mock(DeferredTaskListener.class);
+		deferredTaskService.addListener(listener);
+
+		deferredTaskService.defer(new MockDeduplicatedDeferredTask("42"));
+		deferredTaskService.processQueue();
+		deferredTaskService.defer(new MockDeduplicatedDeferredTask("42"));
+		deferredTaskService.processQueue();
+		deferredTaskService.defer(new MockDeduplicatedDeferredTask("43"));
+		deferredTaskService.processQueue();
+
+		assertThat(MockDeduplicatedDeferredTask.runs.get(), is(2));
+		verify(listener).deduplicated(MockDeduplicatedDeferredTask.class);
+		verify(listener, never()).rateLimited(eq(MockDeduplicatedDeferredTask.class), anyLong());
+	}
+
+	@Test
+	public void shouldRunRateLimitedTaskWhenItComesBackDespiteDedupe() {
+		MockDeduplicatedDeferredTask.reset();
+		deferredTaskService = new DeferredTaskService(plainQueueProvider());
+		deferredTaskService.getRateLimiter().setLimit(MockDeduplicatedDeferredTask.class, 0.001, 1);
+
+		deferredTaskService.defer(new MockDeduplicatedDeferredTask("42"));
+		deferredTaskService.processQueue();
+		deferredTaskService.defer(new MockDeduplicatedDeferredTask("43"));
+		deferredTaskService.processQueue();
+		assertThat(MockDeduplicatedDeferredTask.runs.get(), is(1));
+
+		deferredTaskService.getRateLimiter().setLimit(MockDeduplicatedDeferredTask.class, 1000, 10);
+		deferredTaskService.processQueue();
+		assertThat(MockDeduplicatedDeferredTask.runs.get(), is(2));
+	}
+
+	@Test
+	public void shouldRunEveryTaskWithoutRateLimiter() {
+		MockRateLimitedDeferredTask.runs.set(0);
+		deferredTaskService.setRateLimiter(null);
+
+		for (int i = 0; i < 3; i++) {
+			deferredTaskService.defer(new MockRateLimitedDeferredTask());
+		}
+		deferredTaskService.processQueue();
+
+		assertThat(MockRateLimitedDeferredTask.runs.get(), is(3));
+	}
+
+	@Test
+	public void shouldReportPressureOfBoundedQueue() {
+		deferredTaskService = new DeferredTaskService(new InMemoryQueueProvider(4, 10));
+		assertThat(deferredTaskService.pressure(), is(0.0));
+
+		deferredTaskService.defer(new MockDeferredTask());
+		assertThat(deferredTaskService.pressure(), is(0.25));
+	}
+
+	@Test
+	public void shouldReleasePayloadWhenQueueIsFull() {
+		PayloadCodec payloadCodec = new PayloadCodec(1, 1, new FileSystemBlobStore(folder.getRoot()));
+		deferredTaskService = new DeferredTaskService(bounded(1, OverflowPolicy.Reject), new WorkerPool(), taskSerializer, payloadCodec);
+		deferredTaskService.defer(new MockDeferredTask());
+
+		try {
+			deferredTaskService.defer(new MockDeferredTask());
+			fail("Expected the queue to be full");
+		} catch (QueueFullException e) {
+			assertThat(folder.getRoot().list().length, is(1));
+		}
+	}
+
+	@Test
+	public void shouldReleasePayloadOfQueuedTaskDroppedToMakeRoom() {
+		PayloadCodec payloadCodec = new PayloadCodec(1, 1, new FileSystemBlobStore(folder.getRoot()));
+		InMemoryQueueProvider provider = bounded(1, OverflowPolicy.DropOldest);
+		deferredTaskService = new DeferredTaskService(provider, new WorkerPool(), taskSerializer, payloadCodec);
+
+		deferredTaskService.defer(new MockDeferredTask());
+		deferredTaskService.defer(new MockDeferredTask());
+
+		assertThat(provider.dropped(), is(1L));
+		assertThat(folder.getRoot().list().length, is(1));
+	}
+
+	@Test
+	public void shouldNotReportDroppedTaskAsEnqueued() {
+		PayloadCodec payloadCodec = new PayloadCodec(1, 1, new FileSystemBlobStore(folder.getRoot()));
+		deferredTaskService = new DeferredTaskService(bounded(1, OverflowPolicy.DropLowestPriority), new WorkerPool(), taskSerializer, payloadCodec);
+		DeferredTaskListener listener = mock(DeferredTaskListener.class);
+		deferredTaskService.addListener(listener);
+
+		deferredTaskService.defer(new MockDeferredTask(), Priority.High);
+		deferredTaskService.defer(new MockDeferredTask(), Priority.Low);
+
+		verify(listener, times(1)).enqueued(eq(MockDeferredTask.class), anyInt());
+		assertThat(folder.getRoot().list().length, is(1));
+	}
+
+	@Test
+	public void shouldReportNoPressureForUnboundedQueue() {
+		deferredTaskService = new DeferredTaskService(plainQueueProvider());
+		deferredTaskService.defer(new MockDeferredTask());
+
+		assertThat(deferredTaskService.pressure(), is(0.0));
+	}
+
+	/**
+	 * A queue provider with none of the optional capabilities of the in memory provider.
+	 */
+	private QueueProvider plainQueueProvider() {
+		final InMemoryQueueProvider queue = new InMemoryQueueProvider();
+		return new QueueProvider() {
+			@Override
+			public void send(String message) {
+				queue.send(message);
+			}
+
+			@Override
+			public List<String> receive() {
+				return queue.receive();
+			}
+		};
+	}
 }
@@ -0,0 +1,151 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.deadletter;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.threewks.thundr.deferred.ThundrDeferredException;
+import com.threewks.thundr.deferred.provider.AcknowledgingQueueProvider;
+import com.threewks.thundr.deferred.provider.InMemoryQueueProvider;
+import com.threewks.thundr.deferred.provider.QueueProvider;
+import com.threewks.thundr.deferred.provider.ReceivedMessage;
+import com.threewks.thundr.deferred.serializer.BinarySerializer;
+
+public class DeadLetterQueueTest {
+	private InMemoryQueueProvider deadLetters;
+	private InMemoryQueueProvider tasks;
+	private DeadLetterQueue deadLetterQueue;
+
+	@Before
+	public void before() {
+		deadLetters = new InMemoryQueueProvider();
+		tasks = new InMemoryQueueProvider();
+		deadLetterQueue = new DeadLetterQueue(deadLetters);
+	}
+
+	@Test
+	public void shouldRecordFailureMetadata() {
+		long before = System.currentTimeMillis();
+		deadLetterQueue.add("body", new IllegalStateException("Broken"), 3, 1234L);
+
+		DeadLetterMessage message = deadLetterQueue.parse(deadLetters.receive().get(0));
+		assertThat(message.getBody(), is("body"));
+		assertThat(message.getExceptionClass(), is(IllegalStateException.class.getName()));
+		assertThat(message.getExceptionMessage(), is("Broken"));
+		assertThat(message.getStackTrace(), containsString("DeadLetterQueueTest"));
+		assertThat(message.getAttempts(), is(3));
+		assertThat(message.getReceivedAt(), is(1234L));
+		assertThat(message.getFailedAt(), is(greaterThanOrEqualTo(before)));
+	}
+
+	@Test
+	public void shouldRedriveMessagesToTaskQueue() {
+		deadLetterQueue.add("one", new RuntimeException(), 1, 0);
+		deadLetterQueue.add("two", new RuntimeException(), 1, 0);
+
+		assertThat(deadLetterQueue.redrive(tasks, 10), is(2));
+		assertThat(tasks.receive(), contains("one", "two"));
+		assertThat(deadLetters.size(), is(0));
+	}
+
+	@Test
+	public void shouldRedriveAtMostMaxMessages() {
+		deadLetterQueue.add("one", new RuntimeException(), 1, 0);
+		deadLetterQueue.add("two", new RuntimeException(), 1, 0);
+		deadLetterQueue.add("three", new RuntimeException(), 1, 0);
+
+		assertThat(deadLetterQueue.redrive(tasks, 2), is(2));
+		assertThat(tasks.receive(), contains("one", "two"));
+		assertThat(deadLetters.size(), is(1));
+	}
+
+	@Test
+	public void shouldAcknowledgeRedrivenMessages() {
+		AcknowledgingQueueProvider provider = mock(AcknowledgingQueueProvider.class);
+		String deadLetter = "{\"body\":\"one\",\"attempts\":1}";
+		List<ReceivedMessage> received = Arrays.asList(new ReceivedMessage(deadLetter, "handle-1"), new ReceivedMessage(deadLetter, "handle-2"));
+		when(provider.receiveMessages()).thenReturn(received, Collections.<ReceivedMessage> emptyList());
+		deadLetterQueue = new DeadLetterQueue(provider);
+
+		assertThat(deadLetterQueue.redrive(tasks, 1), is(1));
+
+		verify(provider).ack(Arrays.asList(received.get(0)));
+		verify(provider).nack(Arrays.asList(received.get(1)));
+		verify(provider, never()).ack(Collections.<ReceivedMessage> emptyList());
+		verify(provider, times(1)).ack(anyListOf(ReceivedMessage.class));
+	}
+
+	@Test
+	public void shouldAcknowledgeMovedMessagesWhenRedriveFails() {
+		AcknowledgingQueueProvider provider = mock(AcknowledgingQueueProvider.class);
+		String deadLetter = "{\"body\":\"one\",\"attempts\":1}";
+		List<ReceivedMessage> received = Arrays.asList(new ReceivedMessage(deadLetter, "handle-1"), new ReceivedMessage("not json", "handle-2"),
+				new ReceivedMessage(deadLetter, "handle-3"));
+		when(provider.receiveMessages()).thenReturn(received);
+		deadLetterQueue = new DeadLetterQueue(provider);
+
+		try {
+			deadLetterQueue.redrive(tasks, 10);
+			fail("Expected the unreadable dead letter to fail the redrive");
+		} catch (ThundrDeferredException e) {
+			assertThat(e.getMessage(), containsString("Unable to read dead letter"));
+		}
+
+		verify(provider).ack(Arrays.asList(received.get(0)));
+		verify(provider).nack(Arrays.asList(received.get(1), received.get(2)));
+		assertThat(tasks.receive(), is(Arrays.asList("one")));
+	}
+
+	@Test
+	public void shouldReturnUnsentMessagesWhenRedriveFails() {
+		deadLetterQueue.add("one", new RuntimeException(), 1, 0);
+		deadLetterQueue.add("two", new RuntimeException(), 1, 0);
+		QueueProvider target = mock(QueueProvider.class);
+		doThrow(new IllegalStateException("Unavailable")).when(target).send("two");
+
+		try {
+			deadLetterQueue.redrive(target, 10);
+			fail("Expected the failed send to fail the redrive");
+		} catch (IllegalStateException e) {
+			assertThat(e.getMessage(), is("Unavailable"));
+		}
+
+		assertThat(deadLetters.size(), is(1));
+		assertThat(deadLetterQueue.parse(deadLetters.receive().get(0)).getBody(), is("two"));
+	}
+
+	@Test
+	public void shouldUseGivenSerializer() throws ClassNotFoundException {
+		BinarySerializer serializer = new BinarySerializer();
+		deadLetterQueue = new DeadLetterQueue(deadLetters, serializer);
+		deadLetterQueue.add("one", new RuntimeException(), 1, 0);
+
+		assertThat(serializer.deserialize(DeadLetterMessage.class, deadLetters.receive().get(0)).getBody(), is("one"));
+	}
+}
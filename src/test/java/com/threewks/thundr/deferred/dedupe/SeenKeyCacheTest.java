@@ -0,0 +1,73 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.dedupe;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import org.junit.Test;
+
+public class SeenKeyCacheTest {
+	private SeenKeyCache cache = new SeenKeyCache(1000, 3);
+
+	@Test
+	public void shouldReportKeySeenWithinWindow() {
+		assertThat(cache.markSeen("a", 0), is(true));
+		assertThat(cache.markSeen("a", 999), is(false));
+		assertThat(cache.markSeen("b", 999), is(true));
+	}
+
+	@Test
+	public void shouldForgetKeysOnceWindowHasPassed() {
+		cache.markSeen("a", 0);
+		cache.markSeen("b", 500);
+
+		assertThat(cache.markSeen("a", 1000), is(true));
+		assertThat(cache.size(), is(2));
+		assertThat(cache.markSeen("b", 1000), is(false));
+	}
+
+	@Test
+	public void shouldMeasureWindowFromWhenKeyWasFirstSeen() {
+		cache.markSeen("a", 0);
+		cache.markSeen("a", 900);
+
+		assertThat(cache.markSeen("a", 1000), is(true));
+	}
+
+	@Test
+	public void shouldEvictOldestKeysOnceFull() {
+		cache.markSeen("a", 0);
+		cache.markSeen("b", 1);
+		cache.markSeen("c", 2);
+		cache.markSeen("d", 3);
+
+		assertThat(cache.size(), is(3));
+		assertThat(cache.markSeen("a", 4), is(true));
+		assertThat(cache.markSeen("d", 4), is(false));
+	}
+
+	@Test
+	public void shouldForgetKey() {
+		cache.markSeen("a", 0);
+
+		cache.forget("a");
+
+		assertThat(cache.markSeen("a", 1), is(true));
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.metrics;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.Test;
+
+public class HistogramTest {
+	private Histogram histogram = new Histogram();
+
+	@Test
+	public void shouldBeEmptyInitially() {
+		assertThat(histogram.getCount(), is(0L));
+		assertThat(histogram.getMean(), is(0.0));
+		assertThat(histogram.getPercentile(0.99), is(0L));
+	}
+
+	@Test
+	public void shouldTrackCountSumAndMaxExactly() {
+		histogram.record(3);
+		histogram.record(10);
+		histogram.record(1000);
+
+		assertThat(histogram.getCount(), is(3L));
+		assertThat(histogram.getSum(), is(1013L));
+		assertThat(histogram.getMax(), is(1000L));
+		assertThat(histogram.getMean(), is(closeTo(337.67, 0.01)));
+	}
+
+	@Test
+	public void shouldEstimatePercentilesWithinAFactorOfTwo() {
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(i);
+		}
+
+		assertThat(histogram.getPercentile(0.5), is(both(greaterThanOrEqualTo(50L)).and(lessThan(100L))));
+		assertThat(histogram.getPercentile(0.99), is(100L));
+		assertThat(histogram.getPercentile(0), is(1L));
+	}
+
+	@Test
+	public void shouldCountNegativeValuesAsZero() {
+		histogram.record(-5);
+
+		assertThat(histogram.getSum(), is(0L));
+		assertThat(histogram.getPercentile(1), is(0L));
+	}
+
+	@Test
+	public void shouldBucketByPowerOfTwo() {
+		assertThat(Histogram.bucketOf(0), is(0));
+		assertThat(Histogram.bucketOf(1), is(1));
+		assertThat(Histogram.bucketOf(2), is(2));
+		assertThat(Histogram.bucketOf(3), is(2));
+		assertThat(Histogram.bucketOf(4), is(3));
+		assertThat(Histogram.bucketOf(Long.MAX_VALUE), is(63));
+		assertThat(Histogram.upperBoundOf(2), is(3L));
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.metrics;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.threewks.thundr.deferred.test.MockDeferredTask;
+import com.threewks.thundr.deferred.test.MockRetryableDeferredTask;
+
+public class MetricsRegistryTest {
+	private MetricsRegistry registry = new MetricsRegistry();
+
+	@Test
+	public void shouldCountTasksThroughThePipeline() {
+		registry.enqueued(MockDeferredTask.class, 10);
+		registry.enqueued(MockDeferredTask.class, 10);
+		registry.received(2);
+		registry.completed(MockDeferredTask.class, 0);
+		registry.retried(MockRetryableDeferredTask.class, 1, 0);
+		registry.failed(null, new RuntimeException());
+		registry.deduplicated(MockDeferredTask.class);
+		registry.rateLimited(MockDeferredTask.class, 100);
+
+		assertThat(registry.getEnqueued(), is(2L));
+		assertThat(registry.getDeduplicated(), is(1L));
+		assertThat(registry.getReceived(), is(2L));
+		assertThat(registry.getCompleted(), is(1L));
+		assertThat(registry.getRetried(), is(1L));
+		assertThat(registry.getRateLimited(), is(1L));
+		assertThat(registry.getFailed(), is(1L));
+		assertThat(registry.getBatchSize().getMax(), is(2L));
+	}
+
+	@Test
+	public void shouldRecordRunTimePerTaskClassInMicros() {
+		registry.completed(MockDeferredTask.class, TimeUnit.MILLISECONDS.toNanos(5));
+		registry.completed(MockRetryableDeferredTask.class, TimeUnit.MILLISECONDS.toNanos(1));
+
+		assertThat(registry.getRunTime(MockDeferredTask.class).getMax(), is(5000L));
+		assertThat(registry.getRunTime(MockRetryableDeferredTask.class).getCount(), is(1L));
+		assertThat(registry.getRunTimes().keySet(), hasItem(MockDeferredTask.class.getName()));
+	}
+
+	@Test
+	public void shouldReturnEmptyRunTimeForUnseenTaskClass() {
+		assertThat(registry.getRunTime(MockDeferredTask.class).getCount(), is(0L));
+	}
+
+	@Test
+	public void shouldOnlyRecordQueueWaitWhenKnown() {
+		registry.deserialized(MockDeferredTask.class, 2000, -1);
+		registry.deserialized(MockDeferredTask.class, 2000, 40);
+
+		assertThat(registry.getDeserializeTime().getCount(), is(2L));
+		assertThat(registry.getDeserializeTime().getMax(), is(2L));
+		assertThat(registry.getQueueWait().getCount(), is(1L));
+		assertThat(registry.getQueueWait().getMax(), is(40L));
+	}
+}
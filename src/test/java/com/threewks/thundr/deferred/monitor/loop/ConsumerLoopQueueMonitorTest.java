@@ -0,0 +1,161 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.monitor.loop;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.threewks.thundr.deferred.DeferredTaskService;
+import com.threewks.thundr.deferred.ThundrDeferredException;
+import com.threewks.thundr.deferred.provider.InMemoryQueueProvider;
+import com.threewks.thundr.deferred.provider.QueueProvider;
+import com.threewks.thundr.deferred.test.MockExceptionThrowingDeferredTask;
+import com.threewks.thundr.deferred.test.MockRendezvousDeferredTask;
+
+public class ConsumerLoopQueueMonitorTest {
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+
+	private DeferredTaskService deferredTaskService;
+	private ConsumerLoopQueueMonitor monitor;
+
+	@Before
+	public void before() {
+		MockRendezvousDeferredTask.reset(1);
+		deferredTaskService = new DeferredTaskService(new InMemoryQueueProvider());
+		monitor = new ConsumerLoopQueueMonitor(deferredTaskService, 1, 1000);
+	}
+
+	@After
+	public void after() {
+		monitor.close();
+	}
+
+	@Test
+	public void shouldRunTaskSoonAfterItIsDeferred() throws InterruptedException {
+		monitor.start();
+		Thread.sleep(200);
+
+		long deferredAt = System.currentTimeMillis();
+		deferredTaskService.defer(new MockRendezvousDeferredTask());
+		awaitRuns(1, 2000);
+
+		assertThat(System.currentTimeMillis() - deferredAt, is(lessThan(500L)));
+	}
+
+	@Test
+	public void shouldDrainQueue() throws InterruptedException {
+		for (int i = 0; i < 500; i++) {
+			deferredTaskService.defer(new MockRendezvousDeferredTask());
+		}
+		monitor.start();
+
+		awaitRuns(500, 5000);
+		assertThat(MockRendezvousDeferredTask.met.get(), is(500));
+	}
+
+	@Test
+	public void shouldKeepConsumingAfterTaskFails() throws InterruptedException {
+		deferredTaskService.defer(new MockExceptionThrowingDeferredTask());
+		deferredTaskService.defer(new MockRendezvousDeferredTask());
+		monitor.start();
+
+		awaitRuns(1, 2000);
+		assertThat(MockRendezvousDeferredTask.met.get(), is(1));
+	}
+
+	@Test
+	public void shouldBackOffWhenQueueIsEmpty() throws InterruptedException {
+		QueueProvider queueProvider = mock(QueueProvider.class);
+		when(queueProvider.receive()).thenReturn(Collections.<String> emptyList());
+		monitor = new ConsumerLoopQueueMonitor(new DeferredTaskService(queueProvider), 1, 50);
+		monitor.start();
+		Thread.sleep(300);
+		monitor.close();
+
+		verify(queueProvider, atLeast(3)).receive();
+		verify(queueProvider, atMost(15)).receive();
+	}
+
+	@Test
+	public void shouldBackOffWhenQueueCannotBeRead() throws InterruptedException {
+		QueueProvider queueProvider = mock(QueueProvider.class);
+		when(queueProvider.receive()).thenThrow(new ThundrDeferredException("Queue unavailable"));
+		monitor = new ConsumerLoopQueueMonitor(new DeferredTaskService(queueProvider), 1, 50);
+		monitor.start();
+		Thread.sleep(300);
+		monitor.close();
+
+		verify(queueProvider, atLeast(3)).receive();
+		verify(queueProvider, atMost(15)).receive();
+	}
+
+	@Test
+	public void shouldStopConsumersOnClose() throws InterruptedException {
+		monitor = new ConsumerLoopQueueMonitor(deferredTaskService, 3, 1000);
+		monitor.start();
+		assertThat(monitor.isRunning(), is(true));
+		assertThat(countConsumerThreads(), is(3));
+
+		monitor.close();
+		assertThat(monitor.isRunning(), is(false));
+		assertThat(countConsumerThreads(), is(0));
+	}
+
+	@Test
+	public void shouldOnlyStartOnce() {
+		monitor.start();
+		monitor.start();
+
+		assertThat(countConsumerThreads(), is(1));
+	}
+
+	@Test
+	public void shouldRequireAtLeastOneConsumer() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("Queue monitor needs at least one consumer thread but was: 0");
+
+		new ConsumerLoopQueueMonitor(deferredTaskService, "0", "1000");
+	}
+
+	private void awaitRuns(int runs, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (MockRendezvousDeferredTask.met.get() < runs && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+	}
+
+	private int countConsumerThreads() {
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().startsWith("deferred-consumer-") && thread.isAlive()) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,69 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.monitor.quartz;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import org.junit.Test;
+
+public class AdaptivePollingIntervalTest {
+	@Test
+	public void shouldHalveIntervalWhenFullBatchReceived() {
+		AdaptivePollingInterval interval = new AdaptivePollingInterval(1000, 100, 30000);
+
+		assertThat(interval.record(10, 10), is(500L));
+		assertThat(interval.record(1, 1), is(250L));
+		assertThat(interval.record(10, 10), is(125L));
+		assertThat(interval.record(10, 10), is(100L));
+		assertThat(interval.record(10, 10), is(100L));
+	}
+
+	@Test
+	public void shouldKeepIntervalWhenPartialBatchReceived() {
+		AdaptivePollingInterval interval = new AdaptivePollingInterval(1000, 100, 30000);
+
+		assertThat(interval.record(1, 10), is(1000L));
+		assertThat(interval.record(9, 10), is(1000L));
+		assertThat(interval.getIntervalMillis(), is(1000L));
+	}
+
+	@Test
+	public void shouldDoubleIntervalWhenQueueIsEmpty() {
+		AdaptivePollingInterval interval = new AdaptivePollingInterval(1000, 100, 5000);
+
+		assertThat(interval.record(0, 10), is(2000L));
+		assertThat(interval.record(0, 10), is(4000L));
+		assertThat(interval.record(0, 10), is(5000L));
+		assertThat(interval.getIntervalMillis(), is(5000L));
+	}
+
+	@Test
+	public void shouldClampInitialInterval() {
+		assertThat(new AdaptivePollingInterval(50, 100, 5000).getIntervalMillis(), is(100L));
+		assertThat(new AdaptivePollingInterval(9000, 100, 5000).getIntervalMillis(), is(5000L));
+	}
+
+	@Test
+	public void shouldNotAllowMaximumBelowMinimum() {
+		AdaptivePollingInterval interval = new AdaptivePollingInterval(1000, 500, 100);
+
+		assertThat(interval.getMaxIntervalMillis(), is(500L));
+		assertThat(interval.record(0, 10), is(500L));
+	}
+}
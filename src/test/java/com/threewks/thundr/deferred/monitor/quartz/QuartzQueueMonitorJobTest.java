@@ -17,5 +17,127 @@
  */
 package com.threewks.thundr.deferred.monitor.quartz;
 
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.Scheduler;
+import org.quartz.SimpleTrigger;
+import org.quartz.Trigger;
+import org.quartz.TriggerBuilder;
+import org.quartz.TriggerKey;
+
+import com.threewks.thundr.deferred.DeferredTaskService;
+import com.threewks.thundr.deferred.Defaults;
+import com.threewks.thundr.deferred.provider.InMemoryQueueProvider;
+import com.threewks.thundr.deferred.provider.QueueProvider;
+import com.threewks.thundr.deferred.test.MockDeferredTask;
+import com.threewks.thundr.injection.InjectionContextImpl;
+import com.threewks.thundr.injection.UpdatableInjectionContext;
+
 public class QuartzQueueMonitorJobTest {
+	private QueueProvider queueProvider;
+	private DeferredTaskService deferredTaskService;
+	private UpdatableInjectionContext injectionContext;
+	private JobExecutionContext context;
+	private Scheduler scheduler;
+	private QuartzQueueMonitorJob job;
+
+	@Before
+	public void before() {
+		queueProvider = new InMemoryQueueProvider();
+		deferredTaskService = new DeferredTaskService(queueProvider);
+		injectionContext = new InjectionContextImpl();
+		injectionContext.inject(deferredTaskService).as(DeferredTaskService.class);
+
+		Trigger trigger = TriggerBuilder.newTrigger().withIdentity("QueueMonitorJobTrigger").forJob("QueueMonitorJob").build();
+		scheduler = mock(Scheduler.class);
+		context = mock(JobExecutionContext.class);
+		when(context.getTrigger()).thenReturn(trigger);
+		when(context.getScheduler()).thenReturn(scheduler);
+
+		job = new QuartzQueueMonitorJob();
+	}
+
+	@Test
+	public void shouldNotRescheduleWithFixedInterval() throws Exception {
+		job.setInjectionContext(injectionContext);
+		job.execute(context);
+
+		verify(scheduler, never()).rescheduleJob(any(TriggerKey.class), any(Trigger.class));
+	}
+
+	@Test
+	public void shouldShortenIntervalWhenFullBatchReceived() throws Exception {
+		deferredTaskService = new DeferredTaskService(new InMemoryQueueProvider(Defaults.InMemoryQueueCapacity, 2));
+		injectionContext.inject(deferredTaskService).as(DeferredTaskService.class);
+		AdaptivePollingInterval interval = new AdaptivePollingInterval(1000, 100, 30000);
+		injectionContext.inject(interval).as(AdaptivePollingInterval.class);
+		job.setInjectionContext(injectionContext);
+		deferredTaskService.defer(new MockDeferredTask());
+		deferredTaskService.defer(new MockDeferredTask());
+
+		job.execute(context);
+
+		assertThat(interval.getIntervalMillis(), is(500L));
+		assertThat(rescheduledInterval(), is(500L));
+	}
+
+	@Test
+	public void shouldNotRescheduleWhenPartialBatchReceived() throws Exception {
+		AdaptivePollingInterval interval = new AdaptivePollingInterval(1000, 100, 30000);
+		injectionContext.inject(interval).as(AdaptivePollingInterval.class);
+		job.setInjectionContext(injectionContext);
+		deferredTaskService.defer(new MockDeferredTask());
+
+		job.execute(context);
+
+		assertThat(interval.getIntervalMillis(), is(1000L));
+		verify(scheduler, never()).rescheduleJob(any(TriggerKey.class), any(Trigger.class));
+	}
+
+	@Test
+	public void shouldLengthenIntervalWhenQueueIsEmpty() throws Exception {
+		AdaptivePollingInterval interval = new AdaptivePollingInterval(1000, 100, 30000);
+		injectionContext.inject(interval).as(AdaptivePollingInterval.class);
+		job.setInjectionContext(injectionContext);
+
+		job.execute(context);
+
+		assertThat(rescheduledInterval(), is(2000L));
+	}
+
+	@Test
+	public void shouldNotRescheduleWhenIntervalIsUnchanged() throws Exception {
+		injectionContext.inject(new AdaptivePollingInterval(30000, 100, 30000)).as(AdaptivePollingInterval.class);
+		job.setInjectionContext(injectionContext);
+
+		job.execute(context);
+
+		verify(scheduler, never()).rescheduleJob(any(TriggerKey.class), any(Trigger.class));
+	}
+
+	@Test(expected = JobExecutionException.class)
+	public void shouldWrapFailures() throws Exception {
+		QueueProvider failing = mock(QueueProvider.class);
+		when(failing.receive()).thenReturn(Collections.singletonList("{\"taskClassName\":\"foo.bar.MIA\",\"taskData\":\"{}\"}"));
+		injectionContext.inject(new DeferredTaskService(failing)).as(DeferredTaskService.class);
+		job.setInjectionContext(injectionContext);
+
+		job.execute(context);
+	}
+
+	private long rescheduledInterval() throws Exception {
+		ArgumentCaptor<Trigger> captor = ArgumentCaptor.forClass(Trigger.class);
+		verify(scheduler).rescheduleJob(eq(new TriggerKey("QueueMonitorJobTrigger")), captor.capture());
+		return ((SimpleTrigger) captor.getValue()).getRepeatInterval();
+	}
 }
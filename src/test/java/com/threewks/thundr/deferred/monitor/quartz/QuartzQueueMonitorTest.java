@@ -0,0 +1,67 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.monitor.quartz;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.quartz.JobDetail;
+import org.quartz.SimpleTrigger;
+import org.quartz.Trigger;
+
+import com.threewks.thundr.quartz.QuartzScheduler;
+
+public class QuartzQueueMonitorTest {
+	private QuartzScheduler scheduler;
+
+	@Before
+	public void before() {
+		scheduler = mock(QuartzScheduler.class);
+	}
+
+	@Test
+	public void shouldScheduleAtFixedInterval() {
+		QuartzQueueMonitor monitor = new QuartzQueueMonitor(scheduler, "5");
+		monitor.start();
+
+		assertThat(monitor.getIntervalMillis(), is(5000L));
+		assertThat(scheduledInterval(), is(5000L));
+	}
+
+	@Test
+	public void shouldScheduleAtAdaptiveInterval() {
+		AdaptivePollingInterval interval = new AdaptivePollingInterval(1000, 100, 30000);
+		QuartzQueueMonitor monitor = new QuartzQueueMonitor(scheduler, interval);
+		monitor.start();
+		assertThat(scheduledInterval(), is(1000L));
+
+		interval.record(5, 5);
+		assertThat(monitor.getIntervalMillis(), is(500L));
+	}
+
+	private long scheduledInterval() {
+		ArgumentCaptor<Trigger> captor = ArgumentCaptor.forClass(Trigger.class);
+		verify(scheduler).scheduleJob(any(JobDetail.class), captor.capture());
+		return ((SimpleTrigger) captor.getValue()).getRepeatInterval();
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.payload;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import com.threewks.thundr.deferred.ThundrDeferredException;
+
+public class FileSystemBlobStoreTest {
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FileSystemBlobStore blobStore;
+
+	@Before
+	public void before() {
+		blobStore = new FileSystemBlobStore(folder.getRoot());
+	}
+
+	@Test
+	public void shouldStoreAndRetrieveData() {
+		byte[] data = "some data".getBytes();
+		String key = blobStore.put(data);
+
+		assertThat(blobStore.get(key), is(data));
+	}
+
+	@Test
+	public void shouldDeleteData() {
+		String key = blobStore.put(new byte[] { 1, 2, 3 });
+		blobStore.delete(key);
+
+		assertThat(new File(folder.getRoot(), key).exists(), is(false));
+	}
+
+	@Test
+	public void shouldCreateDirectoryIfMissing() {
+		File directory = new File(folder.getRoot(), "nested/blobs");
+		new FileSystemBlobStore(directory.getAbsolutePath());
+
+		assertThat(directory.isDirectory(), is(true));
+	}
+
+	@Test
+	public void shouldFailWhenBlobDoesNotExist() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("Unable to read blob missing");
+
+		blobStore.get("missing");
+	}
+
+	@Test
+	public void shouldRejectKeysOutsideDirectory() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("Invalid blob key ../escape");
+
+		blobStore.get("../escape");
+	}
+}
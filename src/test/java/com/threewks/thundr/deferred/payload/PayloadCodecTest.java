@@ -0,0 +1,166 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.payload;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import com.threewks.thundr.deferred.ThundrDeferredException;
+
+public class PayloadCodecTest {
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FileSystemBlobStore blobStore;
+	private PayloadCodec codec;
+
+	@Before
+	public void before() {
+		blobStore = new FileSystemBlobStore(folder.getRoot());
+		codec = new PayloadCodec(100, 1000, blobStore);
+	}
+
+	@Test
+	public void shouldLeaveSmallMessagesUnchanged() {
+		String message = "{\"v\":2,\"type\":\"Task\",\"task\":{}}";
+
+		assertThat(codec.encode(message), is(message));
+		assertThat(codec.decode(message), is(message));
+	}
+
+	@Test
+	public void shouldCompressLargeMessages() {
+		String message = repeat("{\"name\":\"value\"},", 50);
+
+		String encoded = codec.encode(message);
+		assertThat(encoded, startsWith("z1:"));
+		assertThat(encoded.length(), is(lessThan(message.length())));
+		assertThat(codec.decode(encoded), is(message));
+	}
+
+	@Test
+	public void shouldNotCompressWhenItDoesNotMakeTheMessageSmaller() {
+		String message = random(200);
+
+		assertThat(codec.encode(message), is(message));
+	}
+
+	@Test
+	public void shouldNotCompressWhenThresholdIsDisabled() {
+		codec = new PayloadCodec(0, 10000, blobStore);
+		String message = repeat("abc", 1000);
+
+		assertThat(codec.encode(message), is(message));
+	}
+
+	@Test
+	public void shouldStoreVeryLargeMessagesInBlobStoreWhenCompressionIsDisabled() {
+		codec = new PayloadCodec(0, 1000, blobStore);
+		String message = repeat("abc", 1000);
+
+		String encoded = codec.encode(message);
+		assertThat(encoded, startsWith("c1:"));
+		assertThat(codec.decode(encoded), is(message));
+	}
+
+	@Test
+	public void shouldStoreMessagesInBlobStoreWhenClaimCheckThresholdIsBelowCompressThreshold() {
+		codec = new PayloadCodec(10000, 1000, blobStore);
+		String message = random(5000);
+
+		String encoded = codec.encode(message);
+		assertThat(encoded, startsWith("c1:"));
+		assertThat(codec.decode(encoded), is(message));
+	}
+
+	@Test
+	public void shouldStoreVeryLargeMessagesInBlobStore() {
+		String message = random(5000);
+
+		String encoded = codec.encode(message);
+		assertThat(encoded, startsWith("c1:"));
+		assertThat(codec.decode(encoded), is(message));
+		assertThat(folder.getRoot().list().length, is(1));
+	}
+
+	@Test
+	public void shouldSendVeryLargeMessagesInlineWithoutBlobStore() {
+		codec = new PayloadCodec(100, 1000, null);
+		String message = random(5000);
+
+		assertThat(codec.encode(message), is(message));
+	}
+
+	@Test
+	public void shouldDeleteBlobOnRelease() {
+		String encoded = codec.encode(random(5000));
+		codec.release(encoded);
+
+		assertThat(folder.getRoot().list().length, is(0));
+	}
+
+	@Test
+	public void shouldIgnoreReleaseOfInlineMessages() {
+		codec = new PayloadCodec(100, 1000, null);
+		codec.release("{}");
+		codec.release(codec.encode(repeat("abc", 1000)));
+	}
+
+	@Test
+	public void shouldFailToDecodeClaimCheckWithoutBlobStore() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("Received a claim-check task message but no blob store is configured");
+
+		new PayloadCodec(100, 1000, null).decode("c1:key");
+	}
+
+	@Test
+	public void shouldFailToDecodeCorruptPayload() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("Compressed task payload is");
+
+		codec.decode("z1:bm90IGRlZmxhdGVk");
+	}
+
+	private static String repeat(String value, int times) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < times; i++) {
+			sb.append(value);
+		}
+		return sb.toString();
+	}
+
+	private static String random(int length) {
+		Random random = new Random(1);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < length; i++) {
+			sb.append((char) (33 + random.nextInt(90)));
+		}
+		return sb.toString();
+	}
+}
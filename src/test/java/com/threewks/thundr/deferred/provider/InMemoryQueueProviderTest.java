@@ -19,13 +19,32 @@ package com.threewks.thundr.deferred.provider;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.threewks.thundr.deferred.ThundrDeferredException;
 
 public class InMemoryQueueProviderTest {
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+
 	private InMemoryQueueProvider provider;
 
 	@Before
@@ -50,4 +69,422 @@ public class InMemoryQueueProviderTest {
 		assertThat(messages, hasItems("Hello", "World"));
 
 	}
+
+	@Test
+	public void shouldReceiveNoMoreThanMaxMessages() {
+		provider.send("Hello");
+		provider.send("World");
+		provider.send("!");
+
+		assertThat(provider.receive(2), contains("Hello", "World"));
+		assertThat(provider.receive(2), contains("!"));
+		assertThat(provider.size(), is(0));
+	}
+
+	@Test
+	public void shouldRejectMessagesWhenFull() {
+		thrown.expect(QueueFullException.class);
+		thrown.expectMessage("In memory queue is full. Capacity: 1");
+
+		provider = new InMemoryQueueProvider(1, 10);
+		provider.send("Hello");
+		provider.send("World");
+	}
+
+	@Test
+	public void shouldReturnEmptyWhenTimedReceiveTimesOut() throws InterruptedException {
+		List<String> messages = provider.receive(10, 10, TimeUnit.MILLISECONDS);
+		assertThat(messages, is(empty()));
+	}
+
+	@Test
+	public void shouldNotCountReceiverInterruptedBeforeWaiting() {
+		Thread.currentThread().interrupt();
+		try {
+			provider.receive(10, 1, TimeUnit.SECONDS);
+			fail("Expected the receive to be interrupted");
+		} catch (InterruptedException e) {
+			// expected
+		}
+
+		assertThat(provider.waiting(), is(0));
+	}
+
+	@Test
+	public void shouldWakeBlockedReceiverWhenMessageArrives() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<List<String>> received = executor.submit(new Callable<List<String>>() {
+				@Override
+				public List<String> call() throws Exception {
+					return provider.receive(10, 10, TimeUnit.SECONDS);
+				}
+			});
+			Thread.sleep(50);
+			long sent = System.nanoTime();
+			provider.send("Hello");
+
+			assertThat(received.get(5, TimeUnit.SECONDS), contains("Hello"));
+			assertThat(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - sent), is(lessThan(5L)));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void shouldNotLoseOrDuplicateMessagesUnderConcurrentSendAndReceive() throws Exception {
+		final int senders = 4;
+		final int messagesPerSender = 5000;
+		final AtomicInteger receivedCount = new AtomicInteger();
+		final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(20);
+		ExecutorService executor = Executors.newFixedThreadPool(senders + 2);
+		try {
+			List<Future<List<String>>> receivers = new ArrayList<Future<List<String>>>();
+			for (int r = 0; r < 2; r++) {
+				receivers.add(executor.submit(new Callable<List<String>>() {
+					@Override
+					public List<String> call() throws Exception {
+						List<String> all = new ArrayList<String>();
+						while (receivedCount.get() < senders * messagesPerSender && System.currentTimeMillis() < deadline) {
+							List<String> batch = provider.receive(100, 10, TimeUnit.MILLISECONDS);
+							receivedCount.addAndGet(batch.size());
+							all.addAll(batch);
+						}
+						return all;
+					}
+				}));
+			}
+			for (int s = 0; s < senders; s++) {
+				final int sender = s;
+				executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						for (int i = 0; i < messagesPerSender; i++) {
+							provider.send(sender + ":" + i);
+						}
+					}
+				});
+			}
+
+			Set<String> unique = new HashSet<String>();
+			int total = 0;
+			for (Future<List<String>> receiver : receivers) {
+				List<String> messages = receiver.get(30, TimeUnit.SECONDS);
+				total += messages.size();
+				unique.addAll(messages);
+			}
+			assertThat(total, is(senders * messagesPerSender));
+			assertThat(unique.size(), is(senders * messagesPerSender));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void shouldHoldDelayedMessagesUntilDue() throws InterruptedException {
+		provider.send("later", 100, TimeUnit.MILLISECONDS);
+		provider.send("now");
+
+		assertThat(provider.receive(), contains("now"));
+		assertThat(provider.delayed(), is(1));
+		assertThat(provider.size(), is(1));
+
+		long start = System.nanoTime();
+		List<String> received = provider.receive(1, TimeUnit.SECONDS);
+		long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertThat(received, contains("later"));
+		assertThat(waited, is(both(greaterThanOrEqualTo(50L)).and(lessThan(900L))));
+		assertThat(provider.delayed(), is(0));
+		assertThat(provider.size(), is(0));
+	}
+
+	@Test
+	public void shouldReleaseDelayedMessagesInOrderOfDueTime() throws InterruptedException {
+		provider.send("third", 150, TimeUnit.MILLISECONDS);
+		provider.send("first", 20, TimeUnit.MILLISECONDS);
+		provider.send("second", 80, TimeUnit.MILLISECONDS);
+
+		List<String> received = new ArrayList<String>();
+		long deadline = System.currentTimeMillis() + 2000;
+		while (received.size() < 3 && System.currentTimeMillis() < deadline) {
+			received.addAll(provider.receive(1, 100, TimeUnit.MILLISECONDS));
+		}
+		assertThat(received, contains("first", "second", "third"));
+	}
+
+	@Test
+	public void shouldSendImmediatelyWithoutDelay() {
+		provider.send("now", 0, TimeUnit.SECONDS);
+
+		assertThat(provider.receive(), contains("now"));
+	}
+
+	@Test
+	public void shouldCountDelayedMessagesTowardsCapacity() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("In memory queue is full. Capacity: 1");
+
+		provider = new InMemoryQueueProvider(1, 10);
+		provider.send("later", 1, TimeUnit.MINUTES);
+		provider.send("now");
+	}
+
+	@Test
+	public void shouldReceiveHighPriorityMessagesFirstWhenStrict() {
+		provider = new InMemoryQueueProvider(0, 2, PriorityPolicy.Strict, new int[] { 6, 3, 1 });
+		provider.send("low", Priority.Low);
+		provider.send("normal");
+		provider.send("high", Priority.High);
+
+		assertThat(provider.receive(), contains("high", "normal"));
+		assertThat(provider.receive(), contains("low"));
+		assertThat(provider.size(), is(0));
+	}
+
+	@Test
+	public void shouldShareBatchesBetweenPrioritiesByWeight() {
+		provider = new InMemoryQueueProvider(0, 10, PriorityPolicy.Weighted, new int[] { 6, 3, 1 });
+		for (int i = 0; i < 20; i++) {
+			provider.send("high", Priority.High);
+			provider.send("normal", Priority.Normal);
+			provider.send("low", Priority.Low);
+		}
+
+		List<String> batch = provider.receive();
+
+		assertThat(batch.size(), is(10));
+		int low = 0;
+		for (String message : batch) {
+			if (message.equals("low")) {
+				low++;
+			}
+		}
+		assertThat(low, is(1));
+		assertThat(batch.get(0), is("high"));
+	}
+
+	@Test
+	public void shouldCountPrioritizedMessagesTowardsCapacity() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("In memory queue is full. Capacity: 1");
+
+		provider = new InMemoryQueueProvider(1, 10);
+		provider.send("one", Priority.Low);
+		provider.send("two", Priority.High);
+	}
+
+	@Test
+	public void shouldWakeBlockedReceiverForPrioritizedMessage() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<List<String>> received = executor.submit(new Callable<List<String>>() {
+				@Override
+				public List<String> call() throws Exception {
+					return provider.receive(5, TimeUnit.SECONDS);
+				}
+			});
+			Thread.sleep(50);
+			provider.send("urgent", Priority.High);
+
+			assertThat(received.get(1, TimeUnit.SECONDS), contains("urgent"));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void shouldDropMessageWhoseKeyIsAlreadyPending() {
+		assertThat(provider.send("reindex 42", "42"), is(true));
+		assertThat(provider.send("reindex 42 again", "42"), is(false));
+		assertThat(provider.send("reindex 43", "43"), is(true));
+
+		assertThat(provider.receive(), contains("reindex 42", "reindex 43"));
+	}
+
+	@Test
+	public void shouldAcceptKeyAgainOnceItsMessageIsReceived() {
+		provider.send("reindex 42", "42");
+		provider.receive();
+
+		assertThat(provider.send("reindex 42", "42"), is(true));
+		assertThat(provider.receive(), contains("reindex 42"));
+	}
+
+	@Test
+	public void shouldReleaseKeyWhenSendFails() {
+		provider = new InMemoryQueueProvider(1, 10);
+		provider.send("other");
+		try {
+			provider.send("reindex 42", "42");
+		} catch (ThundrDeferredException e) {
+			// expected, the queue is full
+		}
+		provider.receive();
+
+		assertThat(provider.send("reindex 42", "42"), is(true));
+	}
+
+	@Test
+	public void shouldRejectMessagesOverMaxBytes() {
+		thrown.expect(QueueFullException.class);
+		thrown.expectMessage("In memory queue is full. Capacity: 0, max bytes: 10");
+
+		provider = bounded(0, 10, OverflowPolicy.Reject, 0);
+		provider.send("12345");
+		provider.send("12345");
+		assertThat(provider.bytes(), is(10L));
+		provider.send("!");
+	}
+
+	@Test
+	public void shouldAdmitMessageOverMaxBytesWhenNothingElseIsPending() {
+		provider = bounded(0, 10, OverflowPolicy.Reject, 0);
+
+		provider.send("this is more than ten");
+
+		assertThat(provider.receive(), contains("this is more than ten"));
+		assertThat(provider.bytes(), is(0L));
+	}
+
+	@Test
+	public void shouldBlockSenderUntilThereIsRoom() throws Exception {
+		provider = bounded(1, 0, OverflowPolicy.Block, 5000);
+		provider.send("Hello");
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<?> sent = executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					provider.send("World");
+				}
+			});
+			Thread.sleep(50);
+			assertThat(sent.isDone(), is(false));
+
+			assertThat(provider.receive(), contains("Hello"));
+			sent.get(5, TimeUnit.SECONDS);
+			assertThat(provider.receive(), contains("World"));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void shouldFailWhenBlockedSenderTimesOut() {
+		thrown.expect(QueueFullException.class);
+		thrown.expectMessage("In memory queue is full. Capacity: 1");
+
+		provider = bounded(1, 0, OverflowPolicy.Block, 20);
+		provider.send("Hello");
+		provider.send("World");
+	}
+
+	@Test
+	public void shouldDropOldestMessageToMakeRoom() {
+		provider = bounded(2, 0, OverflowPolicy.DropOldest, 0);
+
+		provider.send("a");
+		provider.send("b");
+		provider.send("c");
+
+		assertThat(provider.dropped(), is(1L));
+		assertThat(provider.receive(), contains("b", "c"));
+	}
+
+	@Test
+	public void shouldDropOldestOfSamePriorityFirst() {
+		provider = bounded(2, 0, OverflowPolicy.DropOldest, 0);
+
+		provider.send("low", Priority.Low);
+		provider.send("high", Priority.High);
+		provider.send("high again", Priority.High);
+
+		assertThat(provider.receive(), contains("high again", "low"));
+	}
+
+	@Test
+	public void shouldDropLowestPriorityMessageToMakeRoom() {
+		provider = bounded(2, 0, OverflowPolicy.DropLowestPriority, 0);
+
+		provider.send("low", Priority.Low);
+		provider.send("normal");
+		provider.send("high", Priority.High);
+
+		assertThat(provider.dropped(), is(1L));
+		assertThat(provider.receive(), contains("high", "normal"));
+	}
+
+	@Test
+	public void shouldDropNewMessageWhenAllWaitingOutrankIt() {
+		provider = bounded(2, 0, OverflowPolicy.DropLowestPriority, 0);
+
+		provider.send("high", Priority.High);
+		provider.send("normal");
+		try {
+			provider.send("low", Priority.Low);
+			fail("Expected the new message to be dropped");
+		} catch (MessageDroppedException e) {
+			assertThat(e.getMessage(), is("In memory queue is full, dropped a new Low priority message"));
+		}
+
+		assertThat(provider.dropped(), is(1L));
+		assertThat(provider.receive(), contains("high", "normal"));
+	}
+
+	@Test
+	public void shouldTellDropListenerAboutQueuedMessagesDropped() {
+		provider = bounded(1, 0, OverflowPolicy.DropOldest, 0);
+		BoundedQueueProvider.DropListener listener = mock(BoundedQueueProvider.DropListener.class);
+		provider.setDropListener(listener);
+
+		provider.send("a");
+		provider.send("b");
+
+		verify(listener).dropped("a");
+	}
+
+	@Test
+	public void shouldCountSizeInUtf8Bytes() {
+		provider = bounded(0, 100, OverflowPolicy.Reject, 0);
+
+		provider.send("a\u00e9\u20ac\ud83d\ude00");
+
+		assertThat(provider.bytes(), is(10L));
+		provider.receive();
+		assertThat(provider.bytes(), is(0L));
+	}
+
+	@Test
+	public void shouldReleaseKeyOfDroppedMessage() {
+		provider = bounded(1, 0, OverflowPolicy.DropOldest, 0);
+
+		provider.send("reindex 42", "42");
+		provider.send("reindex 43", "43");
+
+		assertThat(provider.send("reindex 42", "42"), is(true));
+		assertThat(provider.receive(), contains("reindex 42"));
+	}
+
+	@Test
+	public void shouldReportPressure() {
+		assertThat(provider.pressure(), is(0.0));
+
+		provider = bounded(4, 0, OverflowPolicy.Reject, 0);
+		provider.send("a");
+		provider.send("b");
+		assertThat(provider.pressure(), is(0.5));
+
+		provider = bounded(4, 10, OverflowPolicy.Reject, 0);
+		provider.send("12345678");
+		assertThat(provider.pressure(), closeTo(0.8, 0.001));
+	}
+
+	private static InMemoryQueueProvider bounded(int capacity, long maxBytes, OverflowPolicy overflowPolicy, long blockTimeoutMillis) {
+		AdmissionSettings admission = new AdmissionSettings();
+		admission.setCapacity(capacity);
+		admission.setMaxBytes(maxBytes);
+		admission.setOverflowPolicy(overflowPolicy);
+		admission.setBlockTimeoutMillis(blockTimeoutMillis);
+		return new InMemoryQueueProvider(admission, 10, PriorityPolicy.Strict, new int[] { 6, 3, 1 });
+	}
 }
@@ -0,0 +1,278 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.provider;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.threewks.thundr.deferred.ThundrDeferredException;
+
+public class JdbcQueueProviderTest {
+	private static final AtomicInteger databases = new AtomicInteger();
+
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+
+	private JdbcDataSource dataSource;
+	private JdbcSettings settings;
+	private JdbcQueueProvider provider;
+
+	@Before
+	public void before() {
+		dataSource = new JdbcDataSource();
+		dataSource.setURL("jdbc:h2:mem:deferred" + databases.incrementAndGet() + ";DB_CLOSE_DELAY=-1");
+		settings = new JdbcSettings();
+		provider = new JdbcQueueProvider(dataSource, JdbcQueueProvider.DefaultQueueName, settings);
+		provider.createTable();
+	}
+
+	@Test
+	public void shouldNotFailCreatingTableThatAlreadyExists() {
+		provider.createTable();
+	}
+
+	@Test
+	public void shouldReceiveMessagesInOrderSent() {
+		provider.send("one");
+		provider.send("two");
+
+		assertThat(bodies(provider.receiveMessages()), contains("one", "two"));
+	}
+
+	@Test
+	public void shouldHideClaimedMessagesUntilAcknowledged() {
+		provider.send("one");
+
+		List<ReceivedMessage> received = provider.receiveMessages();
+		assertThat(provider.receiveMessages(), is(empty()));
+		assertThat(provider.size(), is(1));
+
+		provider.ack(received);
+		assertThat(provider.size(), is(0));
+	}
+
+	@Test
+	public void shouldClaimMessageAgainOnceLeaseExpires() {
+		settings.setLeaseSeconds(0);
+		provider.send("one");
+
+		provider.receiveMessages();
+
+		assertThat(bodies(provider.receiveMessages()), contains("one"));
+	}
+
+	@Test
+	public void shouldReleaseNackedMessages() {
+		provider.send("one");
+		List<ReceivedMessage> received = provider.receiveMessages();
+
+		provider.nack(received);
+
+		assertThat(bodies(provider.receiveMessages()), contains("one"));
+	}
+
+	@Test
+	public void shouldNotReleaseMessageClaimedAgainByAnotherReceiver() {
+		settings.setLeaseSeconds(0);
+		provider.send("one");
+		List<ReceivedMessage> expired = provider.receiveMessages();
+		settings.setLeaseSeconds(300);
+		assertThat(bodies(provider.receiveMessages()), contains("one"));
+
+		provider.nack(expired);
+
+		assertThat(provider.receiveMessages(), is(empty()));
+	}
+
+	@Test
+	public void shouldAcknowledgeMessagesReceivedWithoutHandles() {
+		provider.send("one");
+
+		assertThat(provider.receive(), contains("one"));
+		assertThat(provider.size(), is(0));
+	}
+
+	@Test
+	public void shouldHoldDelayedMessagesUntilDue() {
+		provider.send("later", 1, TimeUnit.HOURS);
+		provider.send("now", 0, TimeUnit.SECONDS);
+
+		assertThat(bodies(provider.receiveMessages()), contains("now"));
+		assertThat(provider.size(), is(2));
+	}
+
+	@Test
+	public void shouldLimitMessagesPerReceive() {
+		settings.setBatchSize(2);
+		for (int i = 0; i < 10; i++) {
+			provider.send("message " + i);
+		}
+
+		assertThat(provider.receiveMessages().size(), is(2));
+		assertThat(provider.size(), is(10));
+	}
+
+	@Test
+	public void shouldKeepQueuesApart() {
+		JdbcQueueProvider other = provider.forQueue("other");
+		provider.send("one");
+		other.send("two");
+
+		assertThat(bodies(other.receiveMessages()), contains("two"));
+		assertThat(bodies(provider.receiveMessages()), contains("one"));
+		assertThat(other.getQueueName(), is("other"));
+	}
+
+	@Test
+	public void shouldInsertConcurrentSends() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int i = 0; i < 8; i++) {
+				final int sender = i;
+				results.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for (int j = 0; j < 25; j++) {
+							provider.send(sender + ":" + j);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> result : results) {
+				result.get(10, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		assertThat(provider.size(), is(200));
+	}
+
+	@Test
+	public void shouldNotDeliverMessageToTwoConcurrentReceivers() throws Exception {
+		settings.setBatchSize(5);
+		for (int i = 0; i < 100; i++) {
+			provider.send("message " + i);
+		}
+		final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int i = 0; i < 4; i++) {
+				results.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						List<ReceivedMessage> messages;
+						while (!(messages = provider.receiveMessages()).isEmpty()) {
+							received.addAll(bodies(messages));
+							provider.ack(messages);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> result : results) {
+				result.get(10, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		Set<String> unique = new HashSet<String>(received);
+		assertThat(received.size(), is(100));
+		assertThat(unique.size(), is(100));
+		assertThat(provider.size(), is(0));
+	}
+
+	@Test
+	public void shouldQueueMessagesSentInTransactionOnceCommitted() throws SQLException {
+		Connection connection = dataSource.getConnection();
+		try {
+			connection.setAutoCommit(false);
+			provider.joinTransaction(connection);
+			provider.send("one");
+			provider.leaveTransaction();
+			connection.commit();
+		} finally {
+			connection.close();
+		}
+
+		assertThat(bodies(provider.receiveMessages()), contains("one"));
+	}
+
+	@Test
+	public void shouldDiscardMessagesSentInTransactionWhenRolledBack() throws SQLException {
+		Connection connection = dataSource.getConnection();
+		try {
+			connection.setAutoCommit(false);
+			provider.joinTransaction(connection);
+			provider.send("one");
+			connection.rollback();
+		} finally {
+			provider.leaveTransaction();
+			connection.close();
+		}
+		provider.send("two");
+
+		assertThat(bodies(provider.receiveMessages()), contains("two"));
+	}
+
+	@Test
+	public void shouldFailToSendWhenTableIsMissing() throws SQLException {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("Unable to send 1 messages to queue default");
+
+		Connection connection = dataSource.getConnection();
+		try {
+			connection.createStatement().execute("DROP TABLE " + settings.getTable());
+		} finally {
+			connection.close();
+		}
+		provider.send("one");
+	}
+
+	private static List<String> bodies(List<ReceivedMessage> messages) {
+		List<String> bodies = new ArrayList<String>();
+		for (ReceivedMessage message : messages) {
+			bodies.add(message.getBody());
+		}
+		return bodies;
+	}
+}
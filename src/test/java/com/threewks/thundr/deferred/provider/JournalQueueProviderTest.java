@@ -0,0 +1,372 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.provider;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import com.threewks.thundr.deferred.ThundrDeferredException;
+
+public class JournalQueueProviderTest {
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File directory;
+	private JournalSettings settings;
+	private JournalQueueProvider provider;
+
+	@Before
+	public void before() throws IOException {
+		directory = new File(folder.getRoot(), "journal");
+		settings = new JournalSettings();
+		settings.setSegmentSize(64 * 1024);
+		provider = new JournalQueueProvider(directory, settings);
+	}
+
+	@After
+	public void after() {
+		provider.close();
+	}
+
+	@Test
+	public void shouldReceiveMessagesInOrderSent() {
+		provider.send("one");
+		provider.send("two");
+
+		assertThat(bodies(provider.receiveMessages()), contains("one", "two"));
+		assertThat(provider.receiveMessages(), is(empty()));
+	}
+
+	@Test
+	public void shouldKeepMessagesUntilAcknowledged() {
+		provider.send("one");
+		provider.send("two");
+
+		List<ReceivedMessage> received = provider.receiveMessages();
+		assertThat(provider.size(), is(2));
+		provider.ack(received.subList(0, 1));
+
+		assertThat(provider.size(), is(1));
+	}
+
+	@Test
+	public void shouldReturnNackedMessagesToTheFrontOfTheQueueWithoutNackDelay() {
+		provider.close();
+		settings.setNackDelayMillis(0);
+		provider = new JournalQueueProvider(directory, settings);
+		provider.send("one");
+		provider.send("two");
+		List<ReceivedMessage> received = provider.receiveMessages();
+		provider.send("three");
+
+		provider.nack(received);
+
+		assertThat(bodies(provider.receiveMessages()), contains("one", "two", "three"));
+	}
+
+	@Test
+	public void shouldHoldNackedMessagesUntilNackDelayHasPassed() throws InterruptedException {
+		provider.close();
+		settings.setNackDelayMillis(100);
+		provider = new JournalQueueProvider(directory, settings);
+		provider.send("one");
+		provider.nack(provider.receiveMessages());
+
+		assertThat(provider.receiveMessages(), is(empty()));
+		assertThat(provider.size(), is(1));
+		Thread.sleep(250);
+		assertThat(bodies(provider.receiveMessages()), contains("one"));
+	}
+
+	@Test
+	public void shouldAcknowledgeMessagesReceivedWithoutHandles() {
+		provider.send("one");
+
+		assertThat(provider.receive(), contains("one"));
+		assertThat(provider.size(), is(0));
+	}
+
+	@Test
+	public void shouldLimitMessagesPerReceive() {
+		provider.close();
+		settings.setBatchSize(2);
+		provider = new JournalQueueProvider(directory, settings);
+		provider.send("one");
+		provider.send("two");
+		provider.send("three");
+
+		assertThat(bodies(provider.receiveMessages()), contains("one", "two"));
+		assertThat(bodies(provider.receiveMessages()), contains("three"));
+	}
+
+	@Test
+	public void shouldRecoverUnacknowledgedMessagesAfterRestart() {
+		provider.send("one");
+		provider.send("two");
+		provider.send("three");
+		List<ReceivedMessage> received = provider.receiveMessages();
+		provider.ack(received.subList(1, 2));
+		provider.close();
+
+		provider = new JournalQueueProvider(directory, settings);
+
+		assertThat(provider.size(), is(2));
+		assertThat(bodies(provider.receiveMessages()), contains("one", "three"));
+	}
+
+	@Test
+	public void shouldContinueJournalAfterRestart() {
+		provider.send("one");
+		provider.close();
+		provider = new JournalQueueProvider(directory, settings);
+		provider.send("two");
+		List<ReceivedMessage> received = provider.receiveMessages();
+		provider.ack(received.subList(0, 1));
+		provider.close();
+
+		provider = new JournalQueueProvider(directory, settings);
+
+		assertThat(bodies(provider.receiveMessages()), contains("two"));
+	}
+
+	@Test
+	public void shouldRecoverUpToATornRecord() throws IOException {
+		provider.send("one");
+		provider.send("two");
+		provider.close();
+		File segment = segmentFiles()[0];
+		int secondRecord = JournalSegment.HeaderSize + "one".length();
+		corrupt(segment, secondRecord + JournalSegment.HeaderSize);
+
+		provider = new JournalQueueProvider(directory, settings);
+		provider.send("three");
+		provider.close();
+		provider = new JournalQueueProvider(directory, settings);
+
+		assertThat(bodies(provider.receiveMessages()), contains("one", "three"));
+	}
+
+	@Test
+	public void shouldStartNewSegmentWhenCurrentSegmentIsFull() {
+		useSmallSegments();
+		List<String> sent = new ArrayList<String>();
+		for (int i = 0; i < 20; i++) {
+			String message = "message " + i;
+			provider.send(message);
+			sent.add(message);
+		}
+
+		assertThat(segmentFiles().length, is(greaterThan(1)));
+		provider.close();
+		provider = new JournalQueueProvider(directory, settings);
+		assertThat(bodies(provider.receiveMessages()), is(sent));
+	}
+
+	@Test
+	public void shouldDeleteSegmentsOnceEverythingInThemIsAcknowledged() {
+		useSmallSegments();
+		for (int i = 0; i < 20; i++) {
+			provider.send("message " + i);
+		}
+		provider.ack(provider.receiveMessages());
+
+		provider.compact();
+
+		assertThat(segmentFiles().length, is(1));
+		provider.close();
+		provider = new JournalQueueProvider(directory, settings);
+		assertThat(provider.size(), is(0));
+	}
+
+	@Test
+	public void shouldCopyRemainingMessagesForwardWhenCompacting() {
+		settings.setNackDelayMillis(0);
+		useSmallSegments();
+		for (int i = 0; i < 20; i++) {
+			provider.send("message " + i);
+		}
+		List<ReceivedMessage> received = provider.receiveMessages();
+		provider.ack(received.subList(1, received.size()));
+		File oldest = segmentFiles()[0];
+
+		provider.compact();
+
+		assertThat(oldest.exists(), is(false));
+		assertThat(segmentFiles().length, is(1));
+		provider.nack(received.subList(0, 1));
+		assertThat(bodies(provider.receiveMessages()), contains("message 0"));
+		provider.close();
+		provider = new JournalQueueProvider(directory, settings);
+		assertThat(bodies(provider.receiveMessages()), contains("message 0"));
+	}
+
+	@Test
+	public void shouldNotCompactSegmentWithManyMessagesRemaining() {
+		useSmallSegments();
+		for (int i = 0; i < 20; i++) {
+			provider.send("message " + i);
+		}
+		int segments = segmentFiles().length;
+
+		provider.compact();
+
+		assertThat(segmentFiles().length, is(segments));
+	}
+
+	@Test
+	public void shouldHoldDelayedMessagesUntilDue() throws InterruptedException {
+		provider.send("later", 100, TimeUnit.MILLISECONDS);
+		provider.send("now");
+
+		assertThat(bodies(provider.receiveMessages()), contains("now"));
+		Thread.sleep(300);
+		assertThat(bodies(provider.receiveMessages()), contains("later"));
+	}
+
+	@Test
+	public void shouldRecoverDelayedMessages() throws InterruptedException {
+		provider.send("later", 200, TimeUnit.MILLISECONDS);
+		provider.close();
+		provider = new JournalQueueProvider(directory, settings);
+
+		assertThat(provider.receiveMessages(), is(empty()));
+		Thread.sleep(400);
+		assertThat(bodies(provider.receiveMessages()), contains("later"));
+	}
+
+	@Test
+	public void shouldSendConcurrentlyWithGroupCommit() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int i = 0; i < 8; i++) {
+				final int sender = i;
+				results.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for (int j = 0; j < 50; j++) {
+							provider.send(sender + ":" + j);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> result : results) {
+				result.get(10, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		provider.close();
+		provider = new JournalQueueProvider(directory, settings);
+
+		assertThat(provider.size(), is(400));
+	}
+
+	@Test
+	public void shouldSendWithoutWaitingForPeriodicSync() {
+		provider.close();
+		settings.setSync(JournalSync.Periodic);
+		provider = new JournalQueueProvider(directory, settings);
+
+		provider.send("one");
+		provider.close();
+		provider = new JournalQueueProvider(directory, settings);
+
+		assertThat(bodies(provider.receiveMessages()), contains("one"));
+	}
+
+	@Test
+	public void shouldRejectMessageLargerThanSegment() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("Message of 1024 bytes is too large for journal segments of 256 bytes");
+
+		useSmallSegments();
+		char[] message = new char[1024];
+		Arrays.fill(message, 'a');
+		provider.send(new String(message));
+	}
+
+	@Test
+	public void shouldFailToSendOnceClosed() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("has been closed");
+
+		provider.close();
+		provider.send("one");
+	}
+
+	private void useSmallSegments() {
+		provider.close();
+		directory = new File(folder.getRoot(), "small");
+		settings.setSegmentSize(256);
+		provider = new JournalQueueProvider(directory, settings);
+	}
+
+	private File[] segmentFiles() {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return JournalSegment.isSegment(name);
+			}
+		});
+		Arrays.sort(files);
+		return files;
+	}
+
+	private void corrupt(File segment, int offset) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		try {
+			raf.seek(offset);
+			raf.write(new byte[] { 'X', 'X', 'X' });
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static List<String> bodies(List<ReceivedMessage> messages) {
+		List<String> bodies = new ArrayList<String>();
+		for (ReceivedMessage message : messages) {
+			bodies.add(message.getBody());
+		}
+		return bodies.isEmpty() ? Collections.<String> emptyList() : bodies;
+	}
+}
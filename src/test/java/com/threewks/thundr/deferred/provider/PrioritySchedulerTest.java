@@ -0,0 +1,99 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.provider;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.threewks.thundr.deferred.ThundrDeferredException;
+
+public class PrioritySchedulerTest {
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+
+	@Test
+	public void shouldTakeHighestPriorityFirstWhenStrict() {
+		PriorityScheduler scheduler = new PriorityScheduler(PriorityPolicy.Strict, new int[] { 6, 3, 1 });
+
+		assertThat(scheduler.allocate(10, new int[] { 4, 20, 20 }), is(new int[] { 4, 6, 0 }));
+		assertThat(scheduler.order(), is(new int[] { 0, 1, 2 }));
+	}
+
+	@Test
+	public void shouldShareBatchByWeight() {
+		PriorityScheduler scheduler = new PriorityScheduler(PriorityPolicy.Weighted, new int[] { 6, 3, 1 });
+
+		assertThat(scheduler.allocate(10, new int[] { 100, 100, 100 }), is(new int[] { 6, 3, 1 }));
+	}
+
+	@Test
+	public void shouldGiveUnusedShareToOtherLevels() {
+		PriorityScheduler scheduler = new PriorityScheduler(PriorityPolicy.Weighted, new int[] { 6, 3, 1 });
+
+		assertThat(scheduler.allocate(10, new int[] { 0, 100, 100 }), is(new int[] { 0, 8, 2 }));
+		assertThat(scheduler.allocate(10, new int[] { 2, 0, 0 }), is(new int[] { 2, 0, 0 }));
+	}
+
+	@Test
+	public void shouldNotStarveLowPriorityAcrossSingleMessageBatches() {
+		PriorityScheduler scheduler = new PriorityScheduler(PriorityPolicy.Weighted, new int[] { 6, 3, 1 });
+		int[] taken = new int[3];
+		for (int i = 0; i < 100; i++) {
+			int[] allocation = scheduler.allocate(1, new int[] { 1000, 1000, 1000 });
+			for (int level = 0; level < 3; level++) {
+				taken[level] += allocation[level];
+			}
+		}
+
+		assertThat(taken, is(new int[] { 60, 30, 10 }));
+	}
+
+	@Test
+	public void shouldPollLevelsInWeightedOrder() {
+		PriorityScheduler scheduler = new PriorityScheduler(PriorityPolicy.Weighted, new int[] { 1, 1, 1 });
+
+		assertThat(scheduler.order(), is(new int[] { 0, 1, 2 }));
+		assertThat(scheduler.order(), is(new int[] { 1, 0, 2 }));
+		assertThat(scheduler.order(), is(new int[] { 2, 0, 1 }));
+	}
+
+	@Test
+	public void shouldRejectWrongNumberOfWeights() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("Priority weights must be given for each of [High, Normal, Low]");
+
+		new PriorityScheduler(PriorityPolicy.Weighted, new int[] { 1, 1 });
+	}
+
+	@Test
+	public void shouldRejectWeightsBelowOne() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("Priority weights must be at least 1 but were: [1, 0, 1]");
+
+		new PriorityScheduler(PriorityPolicy.Weighted, new int[] { 1, 0, 1 });
+	}
+
+	@Test
+	public void shouldParseWeights() {
+		assertThat(PriorityScheduler.parseWeights("6, 3,1"), is(new int[] { 6, 3, 1 }));
+	}
+}
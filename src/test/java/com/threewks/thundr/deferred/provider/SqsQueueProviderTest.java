@@ -20,20 +20,38 @@ package com.threewks.thundr.deferred.provider;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
 import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.*;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.GetQueueUrlRequest;
 import com.amazonaws.services.sqs.model.Message;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
 import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.threewks.thundr.deferred.ThundrDeferredException;
 
 public class SqsQueueProviderTest {
 
@@ -68,4 +86,332 @@ public class SqsQueueProviderTest {
 		assertThat(messages.size(), is(1));
 		assertThat(messages, hasItem(body));
 	}
+
+	@Test
+	public void shouldSendBufferedMessagesInBatchesOfTen() {
+		when(sqsClient.sendMessageBatch(any(SendMessageBatchRequest.class))).thenReturn(new SendMessageBatchResult());
+		provider = new SqsQueueProvider(sqsClient, "queue", batchSendSettings());
+		for (int i = 0; i < 25; i++) {
+			provider.send("Message " + i);
+		}
+		provider.close();
+
+		ArgumentCaptor<SendMessageBatchRequest> argument = ArgumentCaptor.forClass(SendMessageBatchRequest.class);
+		verify(sqsClient, atLeast(3)).sendMessageBatch(argument.capture());
+		verify(sqsClient, never()).sendMessage(any(SendMessageRequest.class));
+
+		List<String> sent = new ArrayList<String>();
+		for (SendMessageBatchRequest request : argument.getAllValues()) {
+			assertThat(request.getEntries().size(), is(lessThanOrEqualTo(10)));
+			for (SendMessageBatchRequestEntry entry : request.getEntries()) {
+				sent.add(entry.getMessageBody());
+			}
+		}
+		assertThat(sent.size(), is(25));
+		assertThat(sent, hasItems("Message 0", "Message 24"));
+	}
+
+	@Test
+	public void shouldRetryEntriesThatFailWithinBatch() {
+		SendMessageBatchResult partialFailure = new SendMessageBatchResult()
+				.withFailed(new BatchResultErrorEntry().withId("1").withSenderFault(false).withCode("ServiceUnavailable"));
+		when(sqsClient.sendMessageBatch(any(SendMessageBatchRequest.class)))
+				.thenReturn(partialFailure)
+				.thenReturn(new SendMessageBatchResult());
+		provider = new SqsQueueProvider(sqsClient, "queue", batchSendSettings());
+		provider.send("First");
+		provider.send("Second");
+		provider.close();
+
+		ArgumentCaptor<SendMessageBatchRequest> argument = ArgumentCaptor.forClass(SendMessageBatchRequest.class);
+		verify(sqsClient, times(2)).sendMessageBatch(argument.capture());
+		List<SendMessageBatchRequestEntry> retried = argument.getAllValues().get(1).getEntries();
+		assertThat(retried.size(), is(1));
+		assertThat(retried.get(0).getMessageBody(), is("Second"));
+	}
+
+	@Test
+	public void shouldNotRetryEntriesRejectedAsSenderFault() {
+		SendMessageBatchResult rejected = new SendMessageBatchResult()
+				.withFailed(Collections.singletonList(new BatchResultErrorEntry().withId("0").withSenderFault(true).withCode("InvalidMessageContents")));
+		when(sqsClient.sendMessageBatch(any(SendMessageBatchRequest.class))).thenReturn(rejected);
+		provider = new SqsQueueProvider(sqsClient, "queue", batchSendSettings());
+		provider.send("Bad");
+		provider.close();
+
+		verify(sqsClient, times(1)).sendMessageBatch(any(SendMessageBatchRequest.class));
+	}
+
+	@Test
+	public void shouldResendMessagesGivenUpOnWhenClosing() {
+		when(sqsClient.sendMessageBatch(any(SendMessageBatchRequest.class)))
+				.thenThrow(new AmazonClientException("Unavailable"))
+				.thenReturn(new SendMessageBatchResult());
+		SqsSettings settings = batchSendSettings();
+		settings.setBatchRetries(0);
+		provider = new SqsQueueProvider(sqsClient, "queue", settings);
+		provider.send("First");
+		provider.close();
+
+		ArgumentCaptor<SendMessageBatchRequest> argument = ArgumentCaptor.forClass(SendMessageBatchRequest.class);
+		verify(sqsClient, times(2)).sendMessageBatch(argument.capture());
+		assertThat(argument.getAllValues().get(1).getEntries().get(0).getMessageBody(), is("First"));
+	}
+
+	@Test
+	public void shouldFailNextSendWhenMessagesGivenUpOnStillCannotBeSent() throws InterruptedException {
+		when(sqsClient.sendMessageBatch(any(SendMessageBatchRequest.class))).thenThrow(new AmazonClientException("Unavailable"));
+		SqsSettings settings = batchSendSettings();
+		settings.setBatchRetries(0);
+		provider = new SqsQueueProvider(sqsClient, "queue", settings);
+		provider.send("First");
+		verify(sqsClient, timeout(5000)).sendMessageBatch(any(SendMessageBatchRequest.class));
+		Thread.sleep(200);
+
+		try {
+			provider.send("Second");
+			fail("Expected the failure to reach the sender");
+		} catch (ThundrDeferredException e) {
+			assertThat(e.getMessage(), is("1 buffered messages could not be sent to SQS. Reason: Unavailable"));
+		}
+		verify(sqsClient, times(2)).sendMessageBatch(any(SendMessageBatchRequest.class));
+	}
+
+	@Test
+	public void shouldNotDeleteMessagesReceivedForAcknowledgement() {
+		when(sqsClient.receiveMessage(any(ReceiveMessageRequest.class)).getMessages())
+				.thenReturn(Arrays.asList(new Message().withBody("A message").withReceiptHandle("handle")));
+
+		List<ReceivedMessage> messages = provider.receiveMessages();
+		assertThat(messages.size(), is(1));
+		assertThat(messages.get(0).getBody(), is("A message"));
+		assertThat(messages.get(0).getHandle(), is("handle"));
+		verify(sqsClient, never()).deleteMessageBatch(any(DeleteMessageBatchRequest.class));
+		verify(sqsClient, never()).deleteMessage(any(DeleteMessageRequest.class));
+	}
+
+	@Test
+	public void shouldAcknowledgeMessagesWithDeleteMessageBatch() {
+		List<ReceivedMessage> messages = new ArrayList<ReceivedMessage>();
+		for (int i = 0; i < 12; i++) {
+			messages.add(new ReceivedMessage("Message " + i, "handle-" + i));
+		}
+		provider.ack(messages);
+
+		ArgumentCaptor<DeleteMessageBatchRequest> argument = ArgumentCaptor.forClass(DeleteMessageBatchRequest.class);
+		verify(sqsClient, times(2)).deleteMessageBatch(argument.capture());
+		assertThat(argument.getAllValues().get(0).getEntries().size(), is(10));
+		assertThat(argument.getAllValues().get(1).getEntries().size(), is(2));
+		assertThat(argument.getAllValues().get(1).getEntries().get(1).getReceiptHandle(), is("handle-11"));
+	}
+
+	@Test
+	public void shouldNegativelyAcknowledgeMessagesByChangingVisibility() {
+		provider.nack(Arrays.asList(new ReceivedMessage("A message", "handle")));
+
+		ArgumentCaptor<ChangeMessageVisibilityBatchRequest> argument = ArgumentCaptor.forClass(ChangeMessageVisibilityBatchRequest.class);
+		verify(sqsClient, times(1)).changeMessageVisibilityBatch(argument.capture());
+		assertThat(argument.getValue().getEntries().get(0).getReceiptHandle(), is("handle"));
+		assertThat(argument.getValue().getEntries().get(0).getVisibilityTimeout(), is(0));
+	}
+
+	@Test
+	public void shouldLongPollForConfiguredNumberOfMessages() {
+		SqsSettings settings = new SqsSettings();
+		settings.setMaxMessages(10);
+		settings.setWaitTimeSeconds(20);
+		settings.setVisibilityTimeout(60);
+		provider = new SqsQueueProvider(sqsClient, "queue", settings);
+
+		provider.receiveMessages();
+
+		ArgumentCaptor<ReceiveMessageRequest> argument = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+		verify(sqsClient, atLeastOnce()).receiveMessage(argument.capture());
+		ReceiveMessageRequest request = argument.getValue();
+		assertThat(request.getMaxNumberOfMessages(), is(10));
+		assertThat(request.getWaitTimeSeconds(), is(20));
+		assertThat(request.getVisibilityTimeout(), is(60));
+	}
+
+	@Test
+	public void shouldCombineMessagesFromConcurrentReceivers() {
+		when(sqsClient.receiveMessage(any(ReceiveMessageRequest.class)).getMessages())
+				.thenReturn(Arrays.asList(new Message().withBody("A message").withReceiptHandle("handle")));
+		SqsSettings settings = new SqsSettings();
+		settings.setReceivers(3);
+		provider = new SqsQueueProvider(sqsClient, "queue", settings);
+
+		List<ReceivedMessage> messages = provider.receiveMessages();
+		provider.close();
+
+		assertThat(messages.size(), is(3));
+	}
+
+	@Test
+	public void shouldSendShortDelaysUsingDelaySeconds() {
+		provider.send("A message", 90500, TimeUnit.MILLISECONDS);
+
+		ArgumentCaptor<SendMessageRequest> argument = ArgumentCaptor.forClass(SendMessageRequest.class);
+		verify(sqsClient).sendMessage(argument.capture());
+		assertThat(argument.getValue().getMessageBody(), is("A message"));
+		assertThat(argument.getValue().getDelaySeconds(), is(91));
+	}
+
+	@Test
+	public void shouldSendLongDelaysWithDueTimeInBody() {
+		long before = System.currentTimeMillis();
+		provider.send("A message", 2, TimeUnit.HOURS);
+
+		ArgumentCaptor<SendMessageRequest> argument = ArgumentCaptor.forClass(SendMessageRequest.class);
+		verify(sqsClient).sendMessage(argument.capture());
+		String body = argument.getValue().getMessageBody();
+		assertThat(argument.getValue().getDelaySeconds(), is(900));
+		assertThat(body.endsWith(":A message"), is(true));
+		long due = Long.parseLong(body.substring(3, body.indexOf(':', 3)));
+		assertThat(due, is(greaterThanOrEqualTo(before + TimeUnit.HOURS.toMillis(2))));
+	}
+
+	@Test
+	public void shouldHideDelayedMessagesReceivedEarly() {
+		long due = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+		when(sqsClient.receiveMessage(any(ReceiveMessageRequest.class)).getMessages())
+				.thenReturn(Arrays.asList(new Message().withBody("d1:" + due + ":A message").withReceiptHandle("handle")));
+
+		List<ReceivedMessage> messages = provider.receiveMessages();
+		assertThat(messages.isEmpty(), is(true));
+
+		ArgumentCaptor<ChangeMessageVisibilityBatchRequest> argument = ArgumentCaptor.forClass(ChangeMessageVisibilityBatchRequest.class);
+		verify(sqsClient).changeMessageVisibilityBatch(argument.capture());
+		ChangeMessageVisibilityBatchRequestEntry entry = argument.getValue().getEntries().get(0);
+		assertThat(entry.getReceiptHandle(), is("handle"));
+		assertThat(entry.getVisibilityTimeout(), is(both(greaterThan(3500)).and(lessThanOrEqualTo(3600))));
+	}
+
+	@Test
+	public void shouldExtendVisibilityByAtMostTwelveHours() {
+		long due = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(2);
+		when(sqsClient.receiveMessage(any(ReceiveMessageRequest.class)).getMessages())
+				.thenReturn(Arrays.asList(new Message().withBody("d1:" + due + ":A message").withReceiptHandle("handle")));
+
+		provider.receiveMessages();
+
+		ArgumentCaptor<ChangeMessageVisibilityBatchRequest> argument = ArgumentCaptor.forClass(ChangeMessageVisibilityBatchRequest.class);
+		verify(sqsClient).changeMessageVisibilityBatch(argument.capture());
+		assertThat(argument.getValue().getEntries().get(0).getVisibilityTimeout(), is(43200));
+	}
+
+	@Test
+	public void shouldReceiveDelayedMessagesOnceDue() {
+		long due = System.currentTimeMillis() - 1;
+		when(sqsClient.receiveMessage(any(ReceiveMessageRequest.class)).getMessages())
+				.thenReturn(Arrays.asList(new Message().withBody("d1:" + due + ":A message:with colons").withReceiptHandle("handle")));
+
+		List<ReceivedMessage> messages = provider.receiveMessages();
+
+		assertThat(messages.size(), is(1));
+		assertThat(messages.get(0).getBody(), is("A message:with colons"));
+		verify(sqsClient, never()).changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class));
+	}
+
+	@Test
+	public void shouldCreateProviderForAnotherQueueSharingSettings() {
+		SqsSettings settings = new SqsSettings();
+		settings.setMaxMessages(5);
+		provider = new SqsQueueProvider(sqsClient, "queue", settings);
+
+		SqsQueueProvider other = provider.forQueue("other-queue");
+
+		assertThat(other.getSettings(), is(sameInstance(settings)));
+		verify(sqsClient).getQueueUrl(new GetQueueUrlRequest("other-queue"));
+	}
+
+@Test
+	public void shouldSendPrioritizedMessagesToTheirOwnQueues() {
+		provider = prioritizedProvider(PriorityPolicy.Strict);
+
+		provider.send("urgent", Priority.High);
+		provider.send("normal", Priority.Normal);
+		provider.send("backfill", Priority.Low);
+
+		verify(sqsClient).sendMessage(new SendMessageRequest("url-high", "urgent"));
+		verify(sqsClient).sendMessage(new SendMessageRequest("url", "normal"));
+		verify(sqsClient).sendMessage(new SendMessageRequest("url-low", "backfill"));
+	}
+
+	@Test
+	public void shouldSendPrioritizedMessagesToMainQueueWithoutPriorities() {
+		when(sqsClient.getQueueUrl(new GetQueueUrlRequest("queue")).getQueueUrl()).thenReturn("url");
+		provider = new SqsQueueProvider(sqsClient, "queue", new SqsSettings());
+
+		provider.send("urgent", Priority.High);
+
+		verify(sqsClient).sendMessage(new SendMessageRequest("url", "urgent"));
+	}
+
+	@Test
+	public void shouldShortPollHigherPrioritiesAndAckMessagesOnTheQueueTheyCameFrom() {
+		SqsSettings settings = prioritySettings(PriorityPolicy.Strict);
+		settings.setWaitTimeSeconds(20);
+		provider = prioritizedProvider(settings);
+		when(sqsClient.receiveMessage(any(ReceiveMessageRequest.class))).thenAnswer(new Answer<ReceiveMessageResult>() {
+			@Override
+			public ReceiveMessageResult answer(InvocationOnMock invocation) {
+				ReceiveMessageRequest request = (ReceiveMessageRequest) invocation.getArguments()[0];
+				List<Message> messages = request.getQueueUrl().equals("url-low")
+						? Arrays.asList(new Message().withBody("backfill").withReceiptHandle("h-low"))
+						: Collections.<Message> emptyList();
+				return new ReceiveMessageResult().withMessages(messages);
+			}
+		});
+
+		List<ReceivedMessage> received = provider.receiveMessages();
+		provider.ack(received);
+
+		assertThat(received.size(), is(1));
+		assertThat(received.get(0).getBody(), is("backfill"));
+		ArgumentCaptor<ReceiveMessageRequest> receives = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+		verify(sqsClient, times(3)).receiveMessage(receives.capture());
+		assertThat(receives.getAllValues().get(0).getQueueUrl(), is("url-high"));
+		assertThat(receives.getAllValues().get(0).getWaitTimeSeconds(), is(0));
+		assertThat(receives.getAllValues().get(2).getQueueUrl(), is("url-low"));
+		assertThat(receives.getAllValues().get(2).getWaitTimeSeconds(), is(20));
+		ArgumentCaptor<DeleteMessageBatchRequest> deletes = ArgumentCaptor.forClass(DeleteMessageBatchRequest.class);
+		verify(sqsClient).deleteMessageBatch(deletes.capture());
+		assertThat(deletes.getValue().getQueueUrl(), is("url-low"));
+	}
+
+	@Test
+	public void shouldNotCreatePriorityQueuesForOtherQueues() {
+		provider = prioritizedProvider(PriorityPolicy.Strict);
+
+		SqsQueueProvider other = provider.forQueue("other-queue");
+		other.send("message", Priority.High);
+
+		verify(sqsClient, never()).getQueueUrl(new GetQueueUrlRequest("other-queue-high"));
+	}
+
+	private SqsQueueProvider prioritizedProvider(PriorityPolicy policy) {
+		return prioritizedProvider(prioritySettings(policy));
+	}
+
+	private SqsQueueProvider prioritizedProvider(SqsSettings settings) {
+		when(sqsClient.getQueueUrl(new GetQueueUrlRequest("queue")).getQueueUrl()).thenReturn("url");
+		when(sqsClient.getQueueUrl(new GetQueueUrlRequest("queue-high")).getQueueUrl()).thenReturn("url-high");
+		when(sqsClient.getQueueUrl(new GetQueueUrlRequest("queue-low")).getQueueUrl()).thenReturn("url-low");
+		return new SqsQueueProvider(sqsClient, "queue", settings);
+	}
+
+	private SqsSettings prioritySettings(PriorityPolicy policy) {
+		SqsSettings settings = new SqsSettings();
+		settings.setPriorities(true);
+		settings.setPriorityPolicy(policy);
+		return settings;
+	}
+
+		private SqsSettings batchSendSettings() {
+		SqsSettings settings = new SqsSettings();
+		settings.setBatchSend(true);
+		settings.setBatchLingerMillis(50);
+		return settings;
+	}
 }
@@ -0,0 +1,90 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.provider;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TimerWheelTest {
+	private final List<Integer> expired = Collections.synchronizedList(new ArrayList<Integer>());
+	private CountDownLatch latch;
+	private TimerWheel<Integer> wheel;
+
+	@After
+	public void after() {
+		wheel.close();
+	}
+
+	@Test
+	public void shouldExpireItemsAfterTheirDelay() throws InterruptedException {
+		wheel = newWheel(5, 8, 3);
+		long start = System.nanoTime();
+		wheel.schedule(1, 30, TimeUnit.MILLISECONDS);
+		wheel.schedule(2, 0, TimeUnit.MILLISECONDS);
+		wheel.schedule(3, 60, TimeUnit.MILLISECONDS);
+		assertThat(wheel.pending(), is(3));
+
+		assertThat(latch.await(2, TimeUnit.SECONDS), is(true));
+		assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), is(greaterThanOrEqualTo(60L)));
+		assertThat(expired, contains(2, 1, 3));
+		assertThat(wheel.pending(), is(0));
+	}
+
+	@Test
+	public void shouldExpireItemsDueAfterSeveralTurnsOfTheWheel() throws InterruptedException {
+		// 4 slots of 5ms, so an 80ms delay needs four turns
+		wheel = newWheel(5, 4, 2);
+		long start = System.nanoTime();
+		wheel.schedule(1, 80, TimeUnit.MILLISECONDS);
+		wheel.schedule(2, 12, TimeUnit.MILLISECONDS);
+
+		assertThat(latch.await(2, TimeUnit.SECONDS), is(true));
+		assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), is(greaterThanOrEqualTo(80L)));
+		assertThat(expired, contains(2, 1));
+	}
+
+	@Test
+	public void shouldNotExpireItemsAfterClose() throws InterruptedException {
+		wheel = newWheel(5, 8, 1);
+		wheel.schedule(1, 50, TimeUnit.MILLISECONDS);
+		wheel.close();
+
+		assertThat(latch.await(150, TimeUnit.MILLISECONDS), is(false));
+		assertThat(expired.isEmpty(), is(true));
+	}
+
+	private TimerWheel<Integer> newWheel(long tickMillis, int size, int expected) {
+		latch = new CountDownLatch(expected);
+		return new TimerWheel<Integer>(tickMillis, TimeUnit.MILLISECONDS, size, new TimerWheel.Expiry<Integer>() {
+			@Override
+			public void expired(Integer item) {
+				expired.add(item);
+				latch.countDown();
+			}
+		});
+	}
+}
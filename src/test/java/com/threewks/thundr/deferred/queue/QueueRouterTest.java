@@ -0,0 +1,93 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.queue;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.mock;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.threewks.thundr.deferred.DeferredTaskService;
+import com.threewks.thundr.deferred.ThundrDeferredException;
+import com.threewks.thundr.deferred.monitor.QueueMonitor;
+import com.threewks.thundr.deferred.provider.InMemoryQueueProvider;
+import com.threewks.thundr.deferred.test.MockDeferredTask;
+import com.threewks.thundr.deferred.test.MockReportDeferredTask;
+
+public class QueueRouterTest {
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+
+	private QueueRouter router;
+	private DeferredTaskService defaultService;
+	private DeferredTaskService reportsService;
+
+	@Before
+	public void before() {
+		router = new QueueRouter();
+		defaultService = new DeferredTaskService(new InMemoryQueueProvider());
+		reportsService = new DeferredTaskService(new InMemoryQueueProvider());
+		router.addQueue(new NamedQueue(QueueRouter.DefaultQueue, defaultService, mock(QueueMonitor.class)));
+		router.addQueue(new NamedQueue("reports", reportsService, mock(QueueMonitor.class)));
+	}
+
+	@Test
+	public void shouldRouteUnannotatedTasksToDefaultQueue() {
+		assertThat(router.queueFor(MockDeferredTask.class), is(QueueRouter.DefaultQueue));
+		assertThat(router.serviceFor(new MockDeferredTask()), is(sameInstance(defaultService)));
+	}
+
+	@Test
+	public void shouldRouteAnnotatedTasksToNamedQueue() {
+		assertThat(router.queueFor(MockReportDeferredTask.class), is("reports"));
+		assertThat(router.serviceFor(new MockReportDeferredTask()), is(sameInstance(reportsService)));
+	}
+
+	@Test
+	public void shouldPreferExplicitRouteOverAnnotation() {
+		router.route(MockReportDeferredTask.class, QueueRouter.DefaultQueue);
+
+		assertThat(router.queueFor(MockReportDeferredTask.class), is(QueueRouter.DefaultQueue));
+	}
+
+	@Test
+	public void shouldRouteServicesThroughRouterWhenAdded() {
+		assertThat(defaultService.getRouter(), is(sameInstance(router)));
+		assertThat(reportsService.getRouter(), is(sameInstance(router)));
+	}
+
+	@Test
+	public void shouldListQueues() {
+		assertThat(router.getQueues().size(), is(2));
+		assertThat(router.contains("reports"), is(true));
+		assertThat(router.contains("nope"), is(false));
+	}
+
+	@Test
+	public void shouldFailForUnknownQueue() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("No such queue: nope");
+
+		router.route(MockDeferredTask.class, "nope");
+		router.serviceFor(new MockDeferredTask());
+	}
+}
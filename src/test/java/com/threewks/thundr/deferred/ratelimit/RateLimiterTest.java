@@ -0,0 +1,71 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.ratelimit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.Test;
+
+import com.threewks.thundr.deferred.test.MockDeferredTask;
+import com.threewks.thundr.deferred.test.MockRateLimitedDeferredTask;
+
+public class RateLimiterTest {
+	private RateLimiter rateLimiter = new RateLimiter();
+
+	@Test
+	public void shouldNotLimitTaskWithoutLimit() {
+		assertThat(rateLimiter.getBucket(MockDeferredTask.class), is(nullValue()));
+		for (int i = 0; i < 100; i++) {
+			assertThat(rateLimiter.tryAcquire(MockDeferredTask.class), is(0L));
+		}
+	}
+
+	@Test
+	public void shouldReadLimitFromAnnotation() {
+		TokenBucket bucket = rateLimiter.getBucket(MockRateLimitedDeferredTask.class);
+
+		assertThat(bucket.getPermitsPerSecond(), is(2.0));
+		assertThat(bucket.getBurst(), is(1));
+		assertThat(rateLimiter.getBucket(MockRateLimitedDeferredTask.class), is(sameInstance(bucket)));
+	}
+
+	@Test
+	public void shouldPreferConfiguredLimitToAnnotation() {
+		rateLimiter.getBucket(MockRateLimitedDeferredTask.class);
+		rateLimiter.setLimit(MockRateLimitedDeferredTask.class, 50, 100);
+
+		assertThat(rateLimiter.getBucket(MockRateLimitedDeferredTask.class).getPermitsPerSecond(), is(50.0));
+		assertThat(rateLimiter.getBucket(MockRateLimitedDeferredTask.class).getBurst(), is(100));
+	}
+
+	@Test
+	public void shouldDefaultBurstToOneSecondOfPermits() {
+		rateLimiter.setLimit(MockDeferredTask.class, 2.5, 0);
+
+		assertThat(rateLimiter.getBucket(MockDeferredTask.class).getBurst(), is(3));
+	}
+
+	@Test
+	public void shouldLimitTaskOnceBurstIsUsed() {
+		rateLimiter.setLimit(MockDeferredTask.class, 1, 1);
+
+		assertThat(rateLimiter.tryAcquire(MockDeferredTask.class), is(0L));
+		assertThat(rateLimiter.tryAcquire(MockDeferredTask.class), is(greaterThan(0L)));
+	}
+}
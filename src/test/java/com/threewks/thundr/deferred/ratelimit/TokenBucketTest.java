@@ -0,0 +1,93 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.ratelimit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.threewks.thundr.deferred.ThundrDeferredException;
+
+public class TokenBucketTest {
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+
+	private static final long Millis = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private TokenBucket bucket = new TokenBucket(10, 2, 0);
+
+	@Test
+	public void shouldHandOutBurstAtOnce() {
+		assertThat(bucket.tryAcquire(0), is(0L));
+		assertThat(bucket.tryAcquire(0), is(0L));
+		assertThat(bucket.tryAcquire(0), is(100 * Millis));
+	}
+
+	@Test
+	public void shouldRefillAtRate() {
+		bucket.tryAcquire(0);
+		bucket.tryAcquire(0);
+
+		assertThat(bucket.tryAcquire(50 * Millis), is(50 * Millis));
+		assertThat(bucket.tryAcquire(100 * Millis), is(0L));
+		assertThat(bucket.tryAcquire(150 * Millis), is(50 * Millis));
+	}
+
+	@Test
+	public void shouldNotRefillBeyondBurst() {
+		bucket.tryAcquire(0);
+
+		assertThat(bucket.tryAcquire(TimeUnit.SECONDS.toNanos(10)), is(0L));
+		assertThat(bucket.tryAcquire(TimeUnit.SECONDS.toNanos(10)), is(0L));
+		assertThat(bucket.tryAcquire(TimeUnit.SECONDS.toNanos(10)), is(100 * Millis));
+	}
+
+	@Test
+	public void shouldSpaceOutCallersTurnedAway() {
+		bucket.tryAcquire(0);
+		bucket.tryAcquire(0);
+
+		assertThat(bucket.tryAcquire(0), is(100 * Millis));
+		assertThat(bucket.tryAcquire(0), is(200 * Millis));
+		assertThat(bucket.tryAcquire(10 * Millis), is(290 * Millis));
+	}
+
+	@Test
+	public void shouldFindPermitWaitingForCallerThatCameBackWhenTold() {
+		bucket.tryAcquire(0);
+		bucket.tryAcquire(0);
+		long first = bucket.tryAcquire(0);
+		long second = bucket.tryAcquire(0);
+
+		assertThat(bucket.tryAcquire(first), is(0L));
+		assertThat(bucket.tryAcquire(second), is(0L));
+	}
+
+	@Test
+	public void shouldRejectRateOfZero() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("Rate limit must allow more than 0 per second with a burst of at least 1 but was 0.0 per second with a burst of 1");
+
+		new TokenBucket(0, 1);
+	}
+}
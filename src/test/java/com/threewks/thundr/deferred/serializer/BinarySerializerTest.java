@@ -0,0 +1,261 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.serializer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.threewks.thundr.deferred.ThundrDeferredException;
+import com.threewks.thundr.deferred.task.DeferredTask;
+import com.threewks.thundr.deferred.test.MockDeferredTask;
+import com.threewks.thundr.deferred.test.MockRetryableDeferredTask;
+
+public class BinarySerializerTest {
+	@Rule public ExpectedException thrown = ExpectedException.none();
+
+	private BinarySerializer serializer;
+
+	@Before
+	public void before() {
+		serializer = new BinarySerializer();
+	}
+
+	@Test
+	public void shouldRoundTripObjectGraph() throws ClassNotFoundException {
+		Sample sample = new Sample();
+		sample.text = "héllo";
+		sample.count = -42;
+		sample.total = Long.MAX_VALUE;
+		sample.ratio = 0.25;
+		sample.scale = 1.5f;
+		sample.flag = true;
+		sample.unit = TimeUnit.MINUTES;
+		sample.when = new DateTime(2014, 3, 1, 12, 30, DateTimeZone.forID("Australia/Sydney"));
+		sample.amount = new BigDecimal("12.34");
+		sample.tags = new ArrayList<String>(Arrays.asList("a", "b"));
+		sample.ids = new HashSet<Long>(Arrays.asList(1L, 2L));
+		sample.attributes = new HashMap<String, Object>();
+		sample.attributes.put("nested", new Sample());
+		sample.numbers = new int[] { 1, 2, 3 };
+		sample.data = new byte[] { 1, 2 };
+		sample.secret = "not written";
+		serializer.allow(Sample.class);
+
+		Sample result = serializer.deserialize(Sample.class, serializer.serialize(sample));
+
+		assertThat(result.text, is("héllo"));
+		assertThat(result.count, is(-42));
+		assertThat(result.total, is(Long.MAX_VALUE));
+		assertThat(result.ratio, is(0.25));
+		assertThat(result.scale, is(1.5f));
+		assertThat(result.flag, is(true));
+		assertThat(result.unit, is(TimeUnit.MINUTES));
+		assertThat(result.when, is(sample.when));
+		assertThat(result.amount, is(new BigDecimal("12.34")));
+		assertThat(result.tags, contains("a", "b"));
+		assertThat(result.ids, containsInAnyOrder(1L, 2L));
+		assertThat(result.attributes.get("nested"), is(instanceOf(Sample.class)));
+		assertThat(result.numbers, is(new int[] { 1, 2, 3 }));
+		assertThat(result.data, is(new byte[] { 1, 2 }));
+		assertThat(result.secret, is(nullValue()));
+	}
+
+	@Test
+	public void shouldReadElementsOfDeclaredGenericType() throws ClassNotFoundException {
+		Sample sample = new Sample();
+		sample.children = new ArrayList<Sample>(Arrays.asList(new Sample()));
+
+		Sample result = serializer.deserialize(Sample.class, serializer.serializeToBytes(sample));
+
+		assertThat(result.children.get(0), is(instanceOf(Sample.class)));
+	}
+
+	@Test
+	public void shouldReadRegisteredClassWhereOnlyObjectIsDeclared() throws ClassNotFoundException {
+		serializer.register(Sample.class);
+
+		Object result = serializer.deserialize(Object.class, serializer.serializeToBytes(new Sample()));
+
+		assertThat(result, is(instanceOf(Sample.class)));
+	}
+
+	@Test
+	public void shouldRejectClassNotAssignableToDeclaredType() throws ClassNotFoundException {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("Binary message contains a " + MockDeferredTask.class.getName() + " where a " + Sample.class.getName() + " was expected");
+
+		serializer.deserialize(Sample.class, serializer.serializeToBytes(new MockDeferredTask()));
+	}
+
+	@Test
+	public void shouldRejectUnallowedClassWhereOnlyObjectIsDeclared() throws ClassNotFoundException {
+		Sample sample = new Sample();
+		sample.attributes = new HashMap<String, Object>();
+		sample.attributes.put("nested", new Sample());
+
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("where a java.lang.Object was expected");
+
+		serializer.deserialize(Sample.class, serializer.serializeToBytes(sample));
+	}
+
+	@Test
+	public void shouldRejectArrayOfUnallowedClassWhereOnlyObjectIsDeclared() throws ClassNotFoundException {
+		Sample sample = new Sample();
+		sample.attributes = new HashMap<String, Object>();
+		sample.attributes.put("nested", new Sample[] { new Sample() });
+
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("Binary message contains a " + Sample.class.getName() + " where a java.lang.Object was expected");
+
+		serializer.deserialize(Sample.class, serializer.serializeToBytes(sample));
+	}
+
+	@Test
+	public void shouldRejectEnumNotOfDeclaredType() throws ClassNotFoundException {
+		Sample sample = new Sample();
+		sample.attributes = new HashMap<String, Object>();
+		sample.attributes.put("unit", TimeUnit.SECONDS);
+
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("Binary message contains a java.util.concurrent.TimeUnit where a java.lang.Object was expected");
+
+		serializer.deserialize(Sample.class, serializer.serializeToBytes(sample));
+	}
+
+	@Test
+	public void shouldReadArraysOfAllowedAndBuiltInTypesWhereOnlyObjectIsDeclared() throws ClassNotFoundException {
+		serializer.allow(Sample.class);
+		Sample sample = new Sample();
+		sample.attributes = new HashMap<String, Object>();
+		sample.attributes.put("samples", new Sample[] { new Sample() });
+		sample.attributes.put("names", new String[] { "a" });
+
+		Sample result = serializer.deserialize(Sample.class, serializer.serializeToBytes(sample));
+
+		assertThat(result.attributes.get("samples"), is(instanceOf(Sample[].class)));
+		assertThat((String[]) result.attributes.get("names"), is(new String[] { "a" }));
+	}
+
+	@Test
+	public void shouldRejectLengthLongerThanMessage() throws ClassNotFoundException {
+		byte[] data = new byte[] { 13, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07 };
+
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("Corrupt binary message. Length 2147483647 at position 6 exceeds data");
+
+		serializer.deserialize(List.class, data);
+	}
+
+	@Test
+	public void shouldRejectNegativeLength() throws ClassNotFoundException {
+		byte[] data = new byte[] { 11, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01 };
+
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("Corrupt binary message. Length -1 at position 11 exceeds data");
+
+		serializer.deserialize(byte[].class, data);
+	}
+
+	@Test
+	public void shouldRoundTripClassesWithoutNoArgConstructor() throws ClassNotFoundException {
+		MockRetryableDeferredTask result = serializer.deserialize(MockRetryableDeferredTask.class, serializer.serialize(new MockRetryableDeferredTask(3)));
+
+		assertThat(result.maxRetries(), is(3));
+	}
+
+	@Test
+	public void shouldWriteRegisteredClassesMoreCompactly() {
+		int unregistered = serializer.serializeToBytes(new MockDeferredTask()).length;
+		serializer.register(MockDeferredTask.class);
+		int registered = serializer.serializeToBytes(new MockDeferredTask()).length;
+
+		assertThat(registered, is(lessThan(unregistered)));
+	}
+
+	@Test
+	public void shouldBeSmallerThanJson() {
+		Sample sample = new Sample();
+		sample.text = "hello";
+		sample.count = 7;
+		sample.total = 123456789L;
+		sample.tags = new ArrayList<String>(Arrays.asList("a", "b", "c"));
+		serializer.register(Sample.class);
+
+		int binary = serializer.serializeToBytes(sample).length;
+		int json = new JsonSerializer().serialize(sample).length();
+
+		assertThat(binary, is(lessThan(json)));
+	}
+
+	@Test
+	public void shouldRoundTripTaskThroughTaskSerializer() throws ClassNotFoundException {
+		TaskSerializer taskSerializer = new TaskSerializer(serializer);
+
+		String message = taskSerializer.serialize(new MockRetryableDeferredTask(9));
+		DeferredTask task = taskSerializer.deserialize(message);
+
+		assertThat(message, startsWith("b1:"));
+		assertThat(((MockRetryableDeferredTask) task).maxRetries(), is(9));
+	}
+
+	@Test
+	public void shouldReadJsonMessagesWhenConfiguredForBinary() throws ClassNotFoundException {
+		String json = new TaskSerializer(new JsonSerializer()).serialize(new MockDeferredTask());
+
+		DeferredTask task = new TaskSerializer(serializer).deserialize(json);
+
+		assertThat(task, is(instanceOf(MockDeferredTask.class)));
+	}
+
+	public static class Sample {
+		private String text;
+		private int count;
+		private Long total;
+		private double ratio;
+		private float scale;
+		private boolean flag;
+		private TimeUnit unit;
+		private DateTime when;
+		private BigDecimal amount;
+		private List<String> tags;
+		private Set<Long> ids;
+		private Map<String, Object> attributes;
+		private List<Sample> children;
+		private int[] numbers;
+		private byte[] data;
+		private transient String secret;
+	}
+}
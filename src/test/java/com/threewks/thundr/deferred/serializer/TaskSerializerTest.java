@@ -0,0 +1,146 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.serializer;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.threewks.thundr.deferred.ThundrDeferredException;
+import com.threewks.thundr.deferred.task.DeferredTask;
+import com.threewks.thundr.deferred.test.MockDeferredTask;
+import com.threewks.thundr.deferred.test.MockRetryableDeferredTask;
+
+public class TaskSerializerTest {
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+
+	private TaskTypeRegistry registry;
+	private TaskSerializer taskSerializer;
+
+	@Before
+	public void before() {
+		registry = new TaskTypeRegistry();
+		taskSerializer = new TaskSerializer(new JsonSerializer(), registry);
+	}
+
+	@Test
+	public void shouldRoundTripTask() throws ClassNotFoundException {
+		MockRetryableDeferredTask task = new MockRetryableDeferredTask(7);
+
+		DeferredTask deserialized = taskSerializer.deserialize(taskSerializer.serialize(task));
+
+		assertThat(deserialized, is(instanceOf(MockRetryableDeferredTask.class)));
+		assertThat(((MockRetryableDeferredTask) deserialized).maxRetries(), is(7));
+	}
+
+	@Test
+	public void shouldReadMessagesWrittenByEarlierVersions() throws ClassNotFoundException {
+		String message = "{\"taskClassName\":\"com.threewks.thundr.deferred.test.MockDeferredTask\",\"taskData\":\"{\\\"field\\\":\\\"foo\\\"}\"}";
+
+		DeferredTask deserialized = taskSerializer.deserialize(message);
+
+		assertThat(deserialized, is(instanceOf(MockDeferredTask.class)));
+	}
+
+	@Test
+	public void shouldWriteAliasInPlaceOfClassName() throws ClassNotFoundException {
+		registry.register("mock", MockDeferredTask.class);
+
+		String message = taskSerializer.serialize(new MockDeferredTask());
+
+		assertThat(message, containsString("\"mock\""));
+		assertThat(message, not(containsString(MockDeferredTask.class.getName())));
+		assertThat(taskSerializer.deserialize(message), is(instanceOf(MockDeferredTask.class)));
+	}
+
+	@Test
+	public void shouldFailToResolveClassThatIsNotATask() throws ClassNotFoundException {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("Class java.lang.String is not a " + DeferredTask.class.getName());
+
+		registry.resolve("java.lang.String");
+	}
+
+	@Test
+	public void shouldFailToRegisterAliasTwice() {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("Task alias mock is already registered to " + MockDeferredTask.class.getName());
+
+		registry.register("mock", MockDeferredTask.class);
+		registry.register("mock", MockRetryableDeferredTask.class);
+	}
+
+	@Test
+	public void shouldEmbedTaskAsNestedObject() {
+		String message = taskSerializer.serialize(new MockDeferredTask());
+
+		assertThat(message, is("{\"v\":2,\"type\":\"com.threewks.thundr.deferred.test.MockDeferredTask\",\"task\":{\"field\":\"foo\"}}"));
+	}
+
+	@Test
+	public void shouldWriteVersionOneEnvelopeWhenRequested() throws ClassNotFoundException {
+		taskSerializer = new TaskSerializer(new JsonSerializer(), registry, 1);
+
+		String message = taskSerializer.serialize(new MockDeferredTask());
+
+		assertThat(message, is("{\"taskClassName\":\"com.threewks.thundr.deferred.test.MockDeferredTask\",\"taskData\":\"{\\\"field\\\":\\\"foo\\\"}\"}"));
+		assertThat(taskSerializer.deserialize(message), is(instanceOf(MockDeferredTask.class)));
+	}
+
+	@Test
+	public void shouldReadEnvelopeWithTaskBeforeType() throws ClassNotFoundException {
+		String message = "{\"task\":{\"maxRetries\":4},\"v\":2,\"type\":\"com.threewks.thundr.deferred.test.MockRetryableDeferredTask\"}";
+
+		DeferredTask deserialized = taskSerializer.deserialize(message);
+
+		assertThat(((MockRetryableDeferredTask) deserialized).maxRetries(), is(4));
+	}
+
+	@Test
+	public void shouldRejectEnvelopeFromNewerVersion() throws ClassNotFoundException {
+		thrown.expect(ThundrDeferredException.class);
+		thrown.expectMessage("Unsupported task message version 3. Latest supported version is 2.");
+
+		taskSerializer.deserialize("{\"v\":3,\"type\":\"com.threewks.thundr.deferred.test.MockDeferredTask\",\"task\":{}}");
+	}
+
+	@Test
+	public void shouldRecordEnqueueTimeWhenRequested() throws ClassNotFoundException {
+		taskSerializer.setRecordEnqueueTime(true);
+		long before = System.currentTimeMillis();
+
+		String message = taskSerializer.serialize(new MockDeferredTask());
+		ReceivedTask received = taskSerializer.deserializeReceived(message);
+
+		assertThat(message, containsString("\"at\":"));
+		assertThat(received.getTask(), is(instanceOf(MockDeferredTask.class)));
+		assertThat(received.getEnqueuedAt(), is(both(greaterThanOrEqualTo(before)).and(lessThanOrEqualTo(System.currentTimeMillis()))));
+	}
+
+	@Test
+	public void shouldReportUnknownEnqueueTimeByDefault() throws ClassNotFoundException {
+		ReceivedTask received = taskSerializer.deserializeReceived(taskSerializer.serialize(new MockDeferredTask()));
+
+		assertThat(received.getEnqueuedAt(), is(0L));
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.task;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.threewks.thundr.deferred.task.BackoffPolicy.Jitter;
+
+public class BackoffPolicyTest {
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+
+	private Random random = new Random(42);
+
+	@Test
+	public void shouldGrowDelayExponentiallyUpToMaximum() {
+		BackoffPolicy policy = new BackoffPolicy(100, 2, 1000, Jitter.None);
+
+		assertThat(policy.nextDelayMillis(1, 0), is(100L));
+		assertThat(policy.nextDelayMillis(2, 100), is(200L));
+		assertThat(policy.nextDelayMillis(3, 200), is(400L));
+		assertThat(policy.nextDelayMillis(4, 400), is(800L));
+		assertThat(policy.nextDelayMillis(5, 800), is(1000L));
+		assertThat(policy.nextDelayMillis(100, 1000), is(1000L));
+	}
+
+	@Test
+	public void shouldNotDelayWithNoBackoff() {
+		assertThat(BackoffPolicy.None.nextDelayMillis(1, 0), is(0L));
+		assertThat(BackoffPolicy.None.nextDelayMillis(10, 0), is(0L));
+	}
+
+	@Test
+	public void shouldKeepFullJitterBetweenZeroAndExponentialDelay() {
+		BackoffPolicy policy = new BackoffPolicy(100, 2, 1000, Jitter.Full);
+
+		long total = 0;
+		for (int i = 0; i < 1000; i++) {
+			long delay = policy.nextDelayMillis(3, 0, random);
+			assertThat(delay, is(both(greaterThanOrEqualTo(0L)).and(lessThanOrEqualTo(400L))));
+			total += delay;
+		}
+		assertThat(total / 1000, is(both(greaterThan(150L)).and(lessThan(250L))));
+	}
+
+	@Test
+	public void shouldKeepDecorrelatedJitterBetweenBaseAndMultipleOfPreviousDelay() {
+		BackoffPolicy policy = new BackoffPolicy(100, 3, 5000, Jitter.Decorrelated);
+
+		long previous = 0;
+		for (int i = 0; i < 1000; i++) {
+			long delay = policy.nextDelayMillis(i + 1, previous, random);
+			assertThat(delay, is(greaterThanOrEqualTo(100L)));
+			assertThat(delay, is(lessThanOrEqualTo(Math.min(5000L, Math.max(100L, previous) * 3))));
+			previous = delay;
+		}
+	}
+
+	@Test
+	public void shouldRejectMaximumBelowBase() {
+		thrown.expect(IllegalArgumentException.class);
+
+		new BackoffPolicy(1000, 2, 100, Jitter.None);
+	}
+
+	@Test
+	public void shouldRejectMultiplierBelowOne() {
+		thrown.expect(IllegalArgumentException.class);
+
+		new BackoffPolicy(100, 0.5, 1000, Jitter.None);
+	}
+}
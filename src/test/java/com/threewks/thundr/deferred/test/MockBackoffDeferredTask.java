@@ -0,0 +1,42 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.test;
+
+import com.threewks.thundr.deferred.task.BackoffPolicy;
+import com.threewks.thundr.deferred.task.BackoffPolicy.Jitter;
+import com.threewks.thundr.deferred.task.BaseRetryableDeferredTask;
+
+/**
+ * Always fails, and backs off for 100ms, then 200ms and so on between retries.
+ */
+public class MockBackoffDeferredTask extends BaseRetryableDeferredTask {
+	@Override
+	public int maxRetries() {
+		return 3;
+	}
+
+	@Override
+	protected BackoffPolicy backoffPolicy() {
+		return new BackoffPolicy(100, 2, 10000, Jitter.None);
+	}
+
+	@Override
+	protected void runInternal() {
+		throw new RuntimeException("Failed intentionally! Retry count: " + retries());
+	}
+}
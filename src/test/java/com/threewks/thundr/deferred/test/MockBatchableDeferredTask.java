@@ -0,0 +1,73 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.threewks.thundr.deferred.task.BatchableDeferredTask;
+
+/**
+ * Adds its amount to {@link #total}, recording the size of each batch it runs in. A batch containing, or a run of, the
+ * task whose amount is {@link #failingAmount} fails.
+ */
+public class MockBatchableDeferredTask implements BatchableDeferredTask<MockBatchableDeferredTask> {
+	public static List<Integer> batchSizes = new CopyOnWriteArrayList<Integer>();
+	public static AtomicInteger runs = new AtomicInteger();
+	public static AtomicInteger total = new AtomicInteger();
+	public static volatile int failingAmount = -1;
+
+	private int amount;
+
+	public static void reset() {
+		batchSizes.clear();
+		runs.set(0);
+		total.set(0);
+		failingAmount = -1;
+	}
+
+	public MockBatchableDeferredTask() {
+	}
+
+	public MockBatchableDeferredTask(int amount) {
+		this.amount = amount;
+	}
+
+	@Override
+	public void runBatch(List<MockBatchableDeferredTask> batch) {
+		int sum = 0;
+		for (MockBatchableDeferredTask task : batch) {
+			if (task.amount == failingAmount) {
+				throw new IllegalStateException("Failing on purpose");
+			}
+			sum += task.amount;
+		}
+		batchSizes.add(batch.size());
+		total.addAndGet(sum);
+	}
+
+	@Override
+	public void run() {
+		runs.incrementAndGet();
+		if (amount == failingAmount) {
+			throw new IllegalStateException("Failing on purpose");
+		}
+		total.addAndGet(amount);
+	}
+}
@@ -0,0 +1,57 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.threewks.thundr.deferred.task.DeduplicatedDeferredTask;
+
+/**
+ * Counts its runs, and fails while {@link #failing} is set.
+ */
+public class MockDeduplicatedDeferredTask implements DeduplicatedDeferredTask {
+	public static AtomicInteger runs = new AtomicInteger();
+	public static volatile boolean failing;
+
+	private String entityId;
+
+	public static void reset() {
+		runs.set(0);
+		failing = false;
+	}
+
+	public MockDeduplicatedDeferredTask() {
+	}
+
+	public MockDeduplicatedDeferredTask(String entityId) {
+		this.entityId = entityId;
+	}
+
+	@Override
+	public String dedupeKey() {
+		return entityId;
+	}
+
+	@Override
+	public void run() {
+		runs.incrementAndGet();
+		if (failing) {
+			throw new IllegalStateException("Failing on purpose");
+		}
+	}
+}
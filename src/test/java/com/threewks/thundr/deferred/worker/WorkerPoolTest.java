@@ -0,0 +1,186 @@
+/*
+ * This file is a component of thundr, a software library from 3wks.
+ * Read more: http://www.3wks.com.au/thundr
+ * Copyright (C) 2013 3wks, <thundr@3wks.com.au>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.threewks.thundr.deferred.worker;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class WorkerPoolTest {
+	@Rule
+	public ExpectedException thrown = ExpectedException.none();
+
+	private WorkerPool workerPool;
+	private final AtomicInteger running = new AtomicInteger();
+	private final AtomicInteger peak = new AtomicInteger();
+
+	@After
+	public void after() {
+		if (workerPool != null) {
+			workerPool.shutdown();
+		}
+	}
+
+	@Test
+	public void shouldRunOnPooledThreads() throws Exception {
+		workerPool = new WorkerPool(2, 10, RejectionPolicy.CallerRuns);
+
+		assertThat(workerPool.getMode(), is(WorkerMode.Pooled));
+		assertThat(workerPool.getThreads(), is(2));
+		assertThat(workerPool.submit(threadName()).get(), startsWith("deferred-worker-"));
+	}
+
+	@Test
+	public void shouldFallBackToPooledThreadsWithoutVirtualThreads() {
+		assumeTrue(!WorkerPool.isVirtualThreadsSupported());
+		workerPool = new WorkerPool(WorkerMode.Virtual, 3, 10, 100, RejectionPolicy.CallerRuns);
+
+		assertThat(workerPool.getMode(), is(WorkerMode.Pooled));
+		assertThat(workerPool.getThreads(), is(3));
+	}
+
+	@Test
+	public void shouldRunOnVirtualThreads() throws Exception {
+		assumeTrue(WorkerPool.isVirtualThreadsSupported());
+		workerPool = new WorkerPool(WorkerMode.Virtual, 3, 10, 100, RejectionPolicy.CallerRuns);
+
+		assertThat(workerPool.getMode(), is(WorkerMode.Virtual));
+		assertThat(workerPool.getThreads(), is(100));
+		assertThat(workerPool.submit(isVirtual()).get(), is(true));
+	}
+
+	@Test
+	public void shouldCapConcurrencyOfThreadPerTaskExecutor() throws Exception {
+		workerPool = new WorkerPool(Executors.newCachedThreadPool(), 4, RejectionPolicy.Block);
+
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		for (int i = 0; i < 40; i++) {
+			results.add(workerPool.submit(sleep(10)));
+		}
+		for (Future<Void> result : results) {
+			result.get();
+		}
+
+		assertThat(peak.get(), is(lessThanOrEqualTo(4)));
+		assertThat(peak.get(), is(greaterThan(1)));
+	}
+
+	@Test
+	public void shouldRunOnCallerWhenSaturatedWithCallerRunsPolicy() throws Exception {
+		workerPool = new WorkerPool(Executors.newCachedThreadPool(), 1, RejectionPolicy.CallerRuns);
+		CountDownLatch release = new CountDownLatch(1);
+		Future<Void> blocker = workerPool.submit(await(release));
+
+		String caller = Thread.currentThread().getName();
+		assertThat(workerPool.submit(threadName()).get(), is(caller));
+
+		release.countDown();
+		blocker.get();
+	}
+
+	@Test
+	public void shouldRejectWhenSaturatedWithAbortPolicy() throws Exception {
+		workerPool = new WorkerPool(Executors.newCachedThreadPool(), 1, RejectionPolicy.Abort);
+		CountDownLatch release = new CountDownLatch(1);
+		workerPool.submit(await(release));
+
+		try {
+			thrown.expect(RejectedExecutionException.class);
+			thrown.expectMessage("Worker pool is saturated");
+			workerPool.submit(threadName());
+		} finally {
+			release.countDown();
+		}
+	}
+
+	@Test
+	public void shouldReleasePermitWhenTaskFails() throws Exception {
+		workerPool = new WorkerPool(Executors.newCachedThreadPool(), 1, RejectionPolicy.Abort);
+		Future<Void> failed = workerPool.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				throw new IllegalStateException("Expected");
+			}
+		});
+		try {
+			failed.get();
+		} catch (Exception e) {
+			// expected
+		}
+
+		assertThat(workerPool.submit(threadName()).get(), is(notNullValue()));
+	}
+
+	private Callable<String> threadName() {
+		return new Callable<String>() {
+			@Override
+			public String call() {
+				return Thread.currentThread().getName();
+			}
+		};
+	}
+
+	private Callable<Boolean> isVirtual() {
+		return new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				return (Boolean) Thread.class.getMethod("isVirtual").invoke(Thread.currentThread());
+			}
+		};
+	}
+
+	private Callable<Void> sleep(final long millis) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				int now = running.incrementAndGet();
+				int previous;
+				while ((previous = peak.get()) < now && !peak.compareAndSet(previous, now)) {
+				}
+				Thread.sleep(millis);
+				running.decrementAndGet();
+				return null;
+			}
+		};
+	}
+
+	private Callable<Void> await(final CountDownLatch latch) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				latch.await(5, TimeUnit.SECONDS);
+				return null;
+			}
+		};
+	}
+}